@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeaderIndex;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
@@ -103,6 +104,12 @@ public abstract class AbstractBlockChain {
     // locked most of the time.
     private final Object chainHeadLock = new Object();
 
+    // The shape of the chain, so the difficulty, timestamp and re-org checks don't have to walk back through the
+    // block store one block at a time. Blocks more than HEADER_INDEX_INTERVALS difficulty intervals behind the chain
+    // head are dropped once there are twice that many, anything older is looked up in the store.
+    private final HeaderIndex headerIndex = new HeaderIndex();
+    private static final int HEADER_INDEX_INTERVALS = 2;
+
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
@@ -113,8 +120,8 @@ public abstract class AbstractBlockChain {
         final Map<Sha256Hash, Transaction> filteredTxn;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
+            Preconditions.checkArgument((!block.hasTransactions() && filtered)
+                                        || (block.hasTransactions() && !filtered));
             if (!shouldVerifyTransactions())
                 this.block = block.cloneAsHeader();
             else
@@ -197,6 +204,16 @@ public abstract class AbstractBlockChain {
         return blockStore;
     }
     
+    /**
+     * Returns the hash of the best chain block at the given height, without going to the block store. Only the last
+     * few difficulty intervals of the chain are kept in memory, so this returns null for heights further back than
+     * that, as well as for heights above the chain head.
+     */
+    @Nullable
+    public Sha256Hash getBestChainHash(int height) {
+        return headerIndex.getBestChainHash(height);
+    }
+
     /**
      * Adds/updates the given {@link Block} with the block store.
      * This version is used when the transactions have not been verified.
@@ -293,6 +310,14 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * Called by a {@link Peer} when a transaction that isn't part of a block is relayed to it. Does nothing by
+     * default. A chain that verifies transactions can use it to do work ahead of the transaction being included in a
+     * block. Must not block the calling thread for long.
+     */
+    protected void transactionRelayed(Transaction tx) {
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -349,9 +374,19 @@ public abstract class AbstractBlockChain {
             }
 
             // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
-            if (shouldVerifyTransactions() && block.transactions == null)
+            if (shouldVerifyTransactions() && !block.hasTransactions())
                 throw new VerificationException("Got a block header while running in full-block mode");
 
+            // A fully verifying chain can check and connect a block straight from its serialized transactions, but
+            // listeners are given Transaction objects, so parse them if there's anybody to give them to.
+            if (shouldVerifyTransactions() && block.transactions == null && !listeners.isEmpty()) {
+                try {
+                    block.ensureParsedTransactions();
+                } catch (ProtocolException e) {
+                    throw new VerificationException(e);
+                }
+            }
+
             // Check for already-seen block, but only for full pruned mode, where the DB is
             // more likely able to handle these queries quickly.
             if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
@@ -419,10 +454,17 @@ public abstract class AbstractBlockChain {
         if (!params.passesCheckpoint(storedPrev.getHeight() + 1, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + (storedPrev.getHeight() + 1));
         if (shouldVerifyTransactions()) {
-            checkNotNull(block.transactions);
-            for (Transaction tx : block.transactions)
-                if (!tx.isFinal(storedPrev.getHeight() + 1, block.getTimeSeconds()))
-                   throw new VerificationException("Block contains non-final transaction");
+            BlockReader reader = block.getTransactionReader();
+            if (reader != null) {
+                for (int i = 0; i < reader.getTransactionCount(); i++)
+                    if (!reader.isFinal(i, storedPrev.getHeight() + 1, block.getTimeSeconds()))
+                        throw new VerificationException("Block contains non-final transaction");
+            } else {
+                checkNotNull(block.transactions);
+                for (Transaction tx : block.transactions)
+                    if (!tx.isFinal(storedPrev.getHeight() + 1, block.getTimeSeconds()))
+                       throw new VerificationException("Block contains non-final transaction");
+            }
         }
         
         StoredBlock head = getChainHead();
@@ -432,7 +474,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimePast(head))
                 throw new VerificationException("Block's timestamp is too early");
             
             // This block connects to the best known block, it is a normal continuation of the system.
@@ -440,7 +482,7 @@ public abstract class AbstractBlockChain {
             if (shouldVerifyTransactions())
                 txOutChanges = connectTransactions(storedPrev.getHeight() + 1, block);
             StoredBlock newStoredBlock = addToBlockStore(storedPrev,
-                    block.transactions == null ? block : block.cloneAsHeader(), txOutChanges);
+                    block.hasTransactions() ? block.cloneAsHeader() : block, txOutChanges);
             setChainHead(newStoredBlock);
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
             informListenersForNewBlock(block, NewBlockType.BEST_CHAIN, filteredTxHashList, filteredTxn, newStoredBlock);
@@ -454,7 +496,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -566,6 +608,35 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Gets the median timestamp of the given block and the ten before it, from the header index if it has them.
+     */
+    private long getMedianTimePast(StoredBlock storedBlock) throws BlockStoreException {
+        long median = headerIndex.getMedianTimePast(indexSlot(storedBlock));
+        return median >= 0 ? median : getMedianTimestampOfRecentBlocks(storedBlock, blockStore);
+    }
+
+    /**
+     * Returns the header index slot of the given block. If the index doesn't have it, it's added along with as many
+     * of the blocks before it as the difficulty checks need, from the block store.
+     */
+    private int indexSlot(StoredBlock block) throws BlockStoreException {
+        int slot = headerIndex.getSlot(block.getHeader().getHash());
+        if (slot != HeaderIndex.UNKNOWN)
+            return slot;
+        LinkedList<StoredBlock> missing = new LinkedList<StoredBlock>();
+        StoredBlock cursor = block;
+        while (cursor != null && missing.size() <= params.getInterval()) {
+            missing.addFirst(cursor);
+            if (headerIndex.getSlot(cursor.getHeader().getPrevBlockHash()) != HeaderIndex.UNKNOWN)
+                break;
+            cursor = cursor.getPrev(blockStore);
+        }
+        for (StoredBlock missingBlock : missing)
+            slot = headerIndex.add(missingBlock);
+        return slot;
+    }
+
     /**
      * Gets the median timestamp of the last 11 blocks
      */
@@ -603,7 +674,7 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
@@ -629,7 +700,7 @@ public abstract class AbstractBlockChain {
             // Walk in ascending chronological order.
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
-                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimePast(cursor.getPrev(blockStore)))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -682,6 +753,27 @@ public abstract class AbstractBlockChain {
         return results;
     }
 
+    /**
+     * Locates the point in the chain at which newStoredBlock and chainHead diverge, using the header index if it goes
+     * back far enough. See {@link #findSplit(StoredBlock, StoredBlock, BlockStore)}.
+     */
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        // This may add newChainHead to the index before it's in the store, or even if it turns out to have invalid
+        // transactions. That's harmless, as it isn't on the best chain and no valid block can be built on it.
+        int fork = headerIndex.findFork(indexSlot(newChainHead), indexSlot(oldChainHead));
+        if (fork != HeaderIndex.UNKNOWN) {
+            Sha256Hash hash = headerIndex.getHash(fork);
+            if (hash.equals(newChainHead.getHeader().getHash()))
+                return newChainHead;
+            if (hash.equals(oldChainHead.getHeader().getHash()))
+                return oldChainHead;
+            StoredBlock splitPoint = blockStore.get(hash);
+            if (splitPoint != null)
+                return splitPoint;
+        }
+        return findSplit(newChainHead, oldChainHead, blockStore);
+    }
+
     /**
      * Locates the point in the chain at which newStoredBlock and chainHead diverge. Returns null if no split point was
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
@@ -748,6 +840,10 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        headerIndex.setBestChain(indexSlot(chainHead));
+        int interval = params.getInterval();
+        if (headerIndex.size() > interval * HEADER_INDEX_INTERVALS * 2)
+            headerIndex.removeBelow(chainHead.getHeight() - interval * HEADER_INDEX_INTERVALS);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
@@ -819,24 +915,31 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
+        // We need to find a block far back in the chain. The header index usually has it, otherwise walk back through
+        // the block store.
+        long timeIntervalAgo;
+        int slotIntervalAgo = headerIndex.getAncestor(indexSlot(storedPrev),
+                storedPrev.getHeight() - (params.getInterval() - 1));
+        if (slotIntervalAgo != HeaderIndex.UNKNOWN) {
+            timeIntervalAgo = headerIndex.getTimeSeconds(slotIntervalAgo);
+        } else {
+            long now = System.currentTimeMillis();
+            StoredBlock cursor = blockStore.get(prev.getHash());
+            for (int i = 0; i < params.getInterval() - 1; i++) {
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the genesis block.");
+                }
+                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            long elapsed = System.currentTimeMillis() - now;
+            if (elapsed > 50)
+                log.info("Difficulty transition traversal took {}msec", elapsed);
+            timeIntervalAgo = cursor.getHeader().getTimeSeconds();
         }
-        long elapsed = System.currentTimeMillis() - now;
-        if (elapsed > 50)
-            log.info("Difficulty transition traversal took {}msec", elapsed);
 
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
+        int timespan = (int) (prev.getTimeSeconds() - timeIntervalAgo);
         // Limit the adjustment step.
         final int targetTimespan = params.getTargetTimespan();
         if (timespan < targetTimespan / 4)
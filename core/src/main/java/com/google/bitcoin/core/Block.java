@@ -36,7 +36,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static com.google.bitcoin.core.Utils.doubleDigest;
-import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -87,11 +86,16 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
 
-    private transient boolean headerParsed;
-    private transient boolean transactionsParsed;
+    // Volatile for the same reason as Message.parsed: each part is parsed at most once, under the lock, after which
+    // the flags are all that getters have to check.
+    private transient volatile boolean headerParsed;
+    private transient volatile boolean transactionsParsed;
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // Reads the transactions straight from the bytes until they are parsed, see getTransactionReader().
+    @Nullable private transient BlockReader transactionReader;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -223,6 +227,7 @@ public class Block extends Message {
         // If this is a genuine lazy parse then length must have been provided to the constructor.
         transactionsParsed = true;
         transactionBytesValid = parseRetain;
+        transactionReader = null;
     }
 
     void parse() throws ProtocolException {
@@ -269,6 +274,11 @@ public class Block extends Message {
      * the cached header bytes.
      */
     private void maybeParseHeader() {
+        if (!headerParsed)
+            parseHeaderOnce();
+    }
+
+    private synchronized void parseHeaderOnce() {
         if (headerParsed || bytes == null)
             return;
         try {
@@ -283,6 +293,11 @@ public class Block extends Message {
     }
 
     private void maybeParseTransactions() {
+        if (!transactionsParsed)
+            parseTransactionsOnce();
+    }
+
+    private synchronized void parseTransactionsOnce() {
         if (transactionsParsed || bytes == null)
             return;
         try {
@@ -676,7 +691,18 @@ public class Block extends Message {
     }
 
     private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
+        maybeParseHeader();
+        Sha256Hash calculatedRoot;
+        if (transactionBytesValid && bytes != null) {
+            // Hash the transactions straight from the bytes they arrived in, rather than reserializing them.
+            try {
+                calculatedRoot = MerkleHasher.calculateRoot(bytes, offset);
+            } catch (ProtocolException e) {
+                throw new VerificationException(e);
+            }
+        } else {
+            calculatedRoot = calculateMerkleRoot();
+        }
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
             throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
@@ -684,63 +710,8 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleHasher.calculateRoot(transactions);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -783,9 +754,14 @@ public class Block extends Message {
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
         // transactions that reference spent or non-existant inputs.
-        if (transactions.isEmpty())
-            throw new VerificationException("Block had no transactions");
+        BlockReader reader = getTransactionReader();
+        if (reader != null) {
+            verifyTransactions(reader);
+            return;
+        }
         maybeParseTransactions();
+        if (transactions == null || transactions.isEmpty())
+            throw new VerificationException("Block had no transactions");
         if (this.getOptimalEncodingMessageSize() > MAX_BLOCK_SIZE)
             throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
         checkTransactions();
@@ -795,6 +771,59 @@ public class Block extends Message {
             transaction.verify();
         }
 
+    // The same checks as above, made straight from the serialized transactions.
+    private void verifyTransactions(BlockReader reader) throws VerificationException {
+        if (reader.getOptimalEncodingMessageSize() > MAX_BLOCK_SIZE)
+            throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
+        if (!reader.isCoinBase(0))
+            throw new VerificationException("First tx is not coinbase");
+        for (int i = 1; i < reader.getTransactionCount(); i++) {
+            if (reader.isCoinBase(i))
+                throw new VerificationException("TX " + i + " is coinbase when it should not be.");
+        }
+        maybeParseHeader();
+        Sha256Hash calculatedRoot = reader.getMerkleRoot();
+        if (!calculatedRoot.equals(merkleRoot)) {
+            log.error("Merkle tree did not verify");
+            throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
+        }
+        int sigOps = 0;
+        for (int i = 0; i < reader.getTransactionCount(); i++)
+            sigOps += reader.getSigOpCount(i);
+        if (sigOps > MAX_BLOCK_SIGOPS)
+            throw new VerificationException("Block had too many Signature Operations");
+        for (int i = 0; i < reader.getTransactionCount(); i++)
+            reader.verifyTransaction(params, i);
+    }
+
+    /**
+     * Returns a reader over the serialized transactions if the block holds them but hasn't parsed them into
+     * {@link Transaction} objects, or null otherwise. Whilst this returns a reader, {@link #transactions} is null, so
+     * code that uses the field directly should check {@link #hasTransactions()} to tell the block from a header.
+     *
+     * @throws VerificationException if the transactions can't be read.
+     */
+    @Nullable
+    BlockReader getTransactionReader() throws VerificationException {
+        if (transactionsParsed || bytes == null || length <= HEADER_SIZE) {
+            transactionReader = null;
+            return null;
+        }
+        if (transactionReader == null) {
+            try {
+                transactionReader = new BlockReader(bytes, offset);
+            } catch (ProtocolException e) {
+                throw new VerificationException(e);
+            }
+        }
+        return transactionReader;
+    }
+
+    /** Returns true if the block holds transactions, whether or not they have been parsed, rather than just a header. */
+    boolean hasTransactions() {
+        return transactions != null || (!transactionsParsed && bytes != null && length > HEADER_SIZE);
+    }
+
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
      */
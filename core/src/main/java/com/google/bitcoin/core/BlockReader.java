@@ -0,0 +1,347 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+
+import java.util.Arrays;
+
+/**
+ * <p>Reads the transactions of a serialized block straight from its bytes, without creating {@link Transaction},
+ * {@link TransactionInput}, {@link TransactionOutput} or {@link Script} objects for them. The block is walked once
+ * when the reader is created, noting where each transaction, input, output and script starts, after which their
+ * fields are read from the bytes when asked for. Transaction hashes are calculated together the first time one is
+ * needed.</p>
+ *
+ * <p>This is what {@link FullPrunedBlockChain} uses to verify and connect a block whose transactions haven't been
+ * parsed, when nothing listening to the chain wants to see them. Transactions are indexed from zero in block order,
+ * as are the inputs and outputs of each transaction. {@link #getTransaction(NetworkParameters, int)} parses a full
+ * {@link Transaction} for the rare cases that need one.</p>
+ *
+ * <p>The reader doesn't copy the block, so the bytes must not be changed whilst it's in use. It isn't thread safe.</p>
+ */
+public final class BlockReader {
+    private final byte[] bytes;
+    private final int offset;
+    private final int numTransactions;
+    // Where each transaction starts, followed by where the last one ends.
+    private final int[] txStarts;
+    // The index into the input and output arrays of each transaction's first input and output, followed by the total.
+    private final int[] txInputs, txOutputs;
+    // Where each input starts, and where its script starts and how long it is. Its sequence number follows the script.
+    private int[] inputStarts, inputScriptStarts, inputScriptLengths;
+    // Where each output's value is, and where its script starts and how long it is.
+    private int[] outputStarts, outputScriptStarts, outputScriptLengths;
+    private int numInputs, numOutputs;
+    // How many bytes the block would take with the shortest encoding of every VarInt.
+    private final int optimalEncodingMessageSize;
+    // Transaction hashes in the order they are hashed, rather than displayed, or null until first needed.
+    private byte[] hashes;
+
+    private int cursor;
+    // How many more bytes the VarInts read so far take than they would encoded as short as possible.
+    private int excessVarIntBytes;
+
+    /**
+     * Walks the transactions of the block that starts at the given offset of the buffer.
+     *
+     * @throws ProtocolException if the block has no transactions or runs off the end of the buffer.
+     */
+    public BlockReader(byte[] bytes, int offset) throws ProtocolException {
+        this.bytes = bytes;
+        this.offset = offset;
+        cursor = offset + Block.HEADER_SIZE;
+        long count = readVarInt();
+        // Each transaction is at least 10 bytes, which stops a bogus count from making us allocate huge arrays.
+        if (count <= 0 || count > (bytes.length - cursor) / 10)
+            throw new ProtocolException("Bad transaction count " + count);
+        numTransactions = (int) count;
+        txStarts = new int[numTransactions + 1];
+        txInputs = new int[numTransactions + 1];
+        txOutputs = new int[numTransactions + 1];
+        inputStarts = new int[numTransactions * 2];
+        inputScriptStarts = new int[numTransactions * 2];
+        inputScriptLengths = new int[numTransactions * 2];
+        outputStarts = new int[numTransactions * 2];
+        outputScriptStarts = new int[numTransactions * 2];
+        outputScriptLengths = new int[numTransactions * 2];
+        for (int i = 0; i < numTransactions; i++)
+            readTransaction(i);
+        txStarts[numTransactions] = cursor;
+        txInputs[numTransactions] = numInputs;
+        txOutputs[numTransactions] = numOutputs;
+        optimalEncodingMessageSize = cursor - offset - excessVarIntBytes;
+    }
+
+    private void readTransaction(int index) throws ProtocolException {
+        txStarts[index] = cursor;
+        txInputs[index] = numInputs;
+        txOutputs[index] = numOutputs;
+        skip(4);  // Version.
+        long inputs = readVarInt();
+        for (long i = 0; i < inputs; i++) {
+            if (numInputs == inputStarts.length) {
+                inputStarts = Arrays.copyOf(inputStarts, numInputs * 2);
+                inputScriptStarts = Arrays.copyOf(inputScriptStarts, numInputs * 2);
+                inputScriptLengths = Arrays.copyOf(inputScriptLengths, numInputs * 2);
+            }
+            inputStarts[numInputs] = cursor;
+            skip(TransactionOutPoint.MESSAGE_LENGTH);
+            inputScriptLengths[numInputs] = readScriptLength();
+            inputScriptStarts[numInputs] = cursor;
+            skip(inputScriptLengths[numInputs] + 4);  // The script and sequence number.
+            numInputs++;
+        }
+        long outputs = readVarInt();
+        for (long i = 0; i < outputs; i++) {
+            if (numOutputs == outputStarts.length) {
+                outputStarts = Arrays.copyOf(outputStarts, numOutputs * 2);
+                outputScriptStarts = Arrays.copyOf(outputScriptStarts, numOutputs * 2);
+                outputScriptLengths = Arrays.copyOf(outputScriptLengths, numOutputs * 2);
+            }
+            outputStarts[numOutputs] = cursor;
+            skip(8);  // Value.
+            outputScriptLengths[numOutputs] = readScriptLength();
+            outputScriptStarts[numOutputs] = cursor;
+            skip(outputScriptLengths[numOutputs]);
+            numOutputs++;
+        }
+        skip(4);  // Lock time.
+    }
+
+    private void skip(int length) throws ProtocolException {
+        if (length < 0 || length > bytes.length - cursor)
+            throw new ProtocolException("Transaction runs off the end of the block");
+        cursor += length;
+    }
+
+    private int readScriptLength() throws ProtocolException {
+        long length = readVarInt();
+        if (length < 0 || length > bytes.length - cursor)
+            throw new ProtocolException("Script length " + length + " runs off the end of the block");
+        return (int) length;
+    }
+
+    private long readVarInt() throws ProtocolException {
+        skip(1);
+        int first = 0xFF & bytes[cursor - 1];
+        long value;
+        if (first < 0xFD) {
+            return first;
+        } else if (first == 0xFD) {
+            skip(2);
+            value = (0xFF & bytes[cursor - 2]) | (0xFF & bytes[cursor - 1]) << 8;
+        } else if (first == 0xFE) {
+            skip(4);
+            value = Utils.readUint32(bytes, cursor - 4);
+        } else {
+            skip(8);
+            value = Utils.readInt64(bytes, cursor - 8);
+        }
+        excessVarIntBytes += (first == 0xFD ? 3 : first == 0xFE ? 5 : 9) - VarInt.sizeOf(value);
+        return value;
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return numTransactions;
+    }
+
+    /** Returns the size of the block if every VarInt in it were encoded as short as possible. */
+    public int getOptimalEncodingMessageSize() {
+        return optimalEncodingMessageSize;
+    }
+
+    /** Returns the offset into the buffer at which the given transaction starts. */
+    public int getTransactionOffset(int tx) {
+        return txStarts[tx];
+    }
+
+    /** Returns the length in bytes of the given transaction. */
+    public int getTransactionLength(int tx) {
+        return txStarts[tx + 1] - txStarts[tx];
+    }
+
+    private byte[] getHashes() {
+        if (hashes == null)
+            hashes = MerkleHasher.hashTransactions(bytes, txStarts, numTransactions);
+        return hashes;
+    }
+
+    /** Returns the hash of the given transaction. */
+    public Sha256Hash getTransactionHash(int tx) {
+        byte[] hashes = getHashes();
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = hashes[tx * 32 + 31 - i];
+        return new Sha256Hash(hash);
+    }
+
+    /** Returns the Merkle root of the block's transactions. */
+    public Sha256Hash getMerkleRoot() {
+        return MerkleHasher.calculateRootOfHashes(getHashes(), numTransactions);
+    }
+
+    /** Returns the number of inputs the given transaction has. */
+    public int getInputCount(int tx) {
+        return txInputs[tx + 1] - txInputs[tx];
+    }
+
+    /** Returns the number of outputs the given transaction has. */
+    public int getOutputCount(int tx) {
+        return txOutputs[tx + 1] - txOutputs[tx];
+    }
+
+    private int input(int tx, int input) {
+        if (input < 0 || input >= getInputCount(tx))
+            throw new IndexOutOfBoundsException("Input " + input + " of " + getInputCount(tx));
+        return txInputs[tx] + input;
+    }
+
+    private int output(int tx, int output) {
+        if (output < 0 || output >= getOutputCount(tx))
+            throw new IndexOutOfBoundsException("Output " + output + " of " + getOutputCount(tx));
+        return txOutputs[tx] + output;
+    }
+
+    /** Returns the hash of the transaction whose output the given input spends. */
+    public Sha256Hash getOutpointHash(int tx, int input) {
+        int start = inputStarts[input(tx, input)];
+        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(bytes, start, start + 32)));
+    }
+
+    /** Returns the index of the output the given input spends. */
+    public long getOutpointIndex(int tx, int input) {
+        return Utils.readUint32(bytes, inputStarts[input(tx, input)] + 32);
+    }
+
+    /** Returns the sequence number of the given input. */
+    public long getSequence(int tx, int input) {
+        int i = input(tx, input);
+        return Utils.readUint32(bytes, inputScriptStarts[i] + inputScriptLengths[i]);
+    }
+
+    /** Returns a copy of the script of the given input. */
+    public byte[] getScriptSigBytes(int tx, int input) {
+        int i = input(tx, input);
+        return Arrays.copyOfRange(bytes, inputScriptStarts[i], inputScriptStarts[i] + inputScriptLengths[i]);
+    }
+
+    /** Returns the value of the given output in nanocoins, as a signed number, so huge values read as negative. */
+    public long getOutputValue(int tx, int output) {
+        return Utils.readInt64(bytes, outputStarts[output(tx, output)]);
+    }
+
+    /** Returns a copy of the script of the given output. */
+    public byte[] getOutputScriptBytes(int tx, int output) {
+        int o = output(tx, output);
+        return Arrays.copyOfRange(bytes, outputScriptStarts[o], outputScriptStarts[o] + outputScriptLengths[o]);
+    }
+
+    /** Returns the lock time of the given transaction. */
+    public long getLockTime(int tx) {
+        return Utils.readUint32(bytes, txStarts[tx + 1] - 4);
+    }
+
+    private boolean isCoinBaseInput(int i) {
+        int start = inputStarts[i];
+        for (int j = start; j < start + 32; j++) {
+            if (bytes[j] != 0)
+                return false;
+        }
+        return Utils.readUint32(bytes, start + 32) == 0xFFFFFFFFL;
+    }
+
+    /** Returns true if the given transaction is a coinbase, as {@link Transaction#isCoinBase()} does. */
+    public boolean isCoinBase(int tx) {
+        return getInputCount(tx) == 1 && isCoinBaseInput(txInputs[tx]);
+    }
+
+    /** Returns true if the given transaction is final, as {@link Transaction#isFinal(int, long)} does. */
+    public boolean isFinal(int tx, int height, long blockTimeSeconds) {
+        long time = getLockTime(tx);
+        if (time == 0 || time < (time < Transaction.LOCKTIME_THRESHOLD ? height : blockTimeSeconds))
+            return true;
+        for (int i = 0; i < getInputCount(tx); i++) {
+            if (getSequence(tx, i) != TransactionInput.NO_SEQUENCE)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the number of signature operations in the given transaction, as {@link Transaction#getSigOpCount()}. */
+    public int getSigOpCount(int tx) {
+        int sigOps = 0;
+        for (int i = txInputs[tx]; i < txInputs[tx + 1]; i++)
+            sigOps += Script.getSigOpCount(bytes, inputScriptStarts[i], inputScriptLengths[i]);
+        for (int o = txOutputs[tx]; o < txOutputs[tx + 1]; o++)
+            sigOps += Script.getSigOpCount(bytes, outputScriptStarts[o], outputScriptLengths[o]);
+        return sigOps;
+    }
+
+    /**
+     * Checks the given transaction for sanity in the same ways as {@link Transaction#verify()}.
+     *
+     * @throws VerificationException
+     */
+    public void verifyTransaction(NetworkParameters params, int tx) throws VerificationException {
+        if (getInputCount(tx) == 0 || getOutputCount(tx) == 0)
+            throw new VerificationException("Transaction had no inputs or no outputs.");
+        if (getTransactionLength(tx) > Block.MAX_BLOCK_SIZE)
+            throw new VerificationException("Transaction larger than MAX_BLOCK_SIZE");
+
+        long maxMoney = params.MAX_MONEY.longValue();
+        long valueOut = 0;
+        for (int o = 0; o < getOutputCount(tx); o++) {
+            long value = getOutputValue(tx, o);
+            // Values that don't fit a signed long would parse as more than all the money there is.
+            if (value < 0 || value > maxMoney)
+                throw new VerificationException("Total transaction output value greater than possible");
+            valueOut += value;
+            if (valueOut > maxMoney)
+                throw new VerificationException("Total transaction output value greater than possible");
+        }
+
+        if (isCoinBase(tx)) {
+            int scriptLength = inputScriptLengths[txInputs[tx]];
+            if (scriptLength < 2 || scriptLength > 100)
+                throw new VerificationException("Coinbase script size out of range");
+        } else {
+            for (int i = txInputs[tx]; i < txInputs[tx + 1]; i++)
+                if (isCoinBaseInput(i))
+                    throw new VerificationException("Coinbase input as input in non-coinbase transaction");
+        }
+    }
+
+    /**
+     * Parses the given transaction into a {@link Transaction} object, for when the details of one are needed, such as
+     * to run its scripts.
+     */
+    public Transaction getTransaction(NetworkParameters params, int tx) {
+        try {
+            Transaction transaction = new Transaction(params, bytes, txStarts[tx], null, false, false,
+                    getTransactionLength(tx));
+            if (hashes != null)
+                transaction.setHash(getTransactionHash(tx));
+            transaction.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            return transaction;
+        } catch (ProtocolException e) {
+            // We already walked over it, so can't happen.
+            throw new RuntimeException(e);
+        }
+    }
+}
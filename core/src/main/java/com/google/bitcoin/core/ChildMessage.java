@@ -65,6 +65,11 @@ public abstract class ChildMessage extends Message {
         this.parent = parent;
     }
 
+    @Nullable
+    Message getParent() {
+        return parent;
+    }
+
     /* (non-Javadoc)
       * @see Message#unCache()
       */
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.math.LongMath;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ * <p>An immutable amount of money, in nanocoins, held as a long. All the money there will ever be fits in a long many
+ * times over, so unlike {@link BigInteger} there's no need for an object per digit and adding two amounts is a single
+ * instruction. Arithmetic is checked, throwing {@link ArithmeticException} rather than silently wrapping around if a
+ * result doesn't fit.</p>
+ *
+ * <p>Most of the API still deals in BigIntegers; the methods that return a Coin sit alongside their BigInteger
+ * equivalents. The static {@link #add(long, long)} and {@link #subtract(long, long)} are for summing many values
+ * without creating an object for each step, which is how totals are calculated internally.</p>
+ */
+public final class Coin implements Comparable<Coin>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final Coin ZERO = new Coin(0);
+    /** The smallest amount there can be. */
+    public static final Coin NANOCOIN = new Coin(1);
+    /** How many nanocoins there are in a hundredth of a coin. */
+    public static final Coin CENT = new Coin(Utils.CENT.longValue());
+    /** How many nanocoins there are in a coin. */
+    public static final Coin COIN = new Coin(Utils.COIN.longValue());
+
+    private final long value;
+
+    private Coin(long value) {
+        this.value = value;
+    }
+
+    /** Returns the given number of nanocoins. */
+    public static Coin valueOf(long nanocoins) {
+        return nanocoins == 0 ? ZERO : new Coin(nanocoins);
+    }
+
+    /**
+     * Returns the given number of nanocoins.
+     *
+     * @throws ArithmeticException if the value doesn't fit in a long.
+     */
+    public static Coin valueOf(BigInteger nanocoins) {
+        return valueOf(longValueOf(nanocoins));
+    }
+
+    /**
+     * Returns the given number of nanocoins as a long, for adding up BigInteger values without allocating.
+     *
+     * @throws ArithmeticException if the value doesn't fit in a long.
+     */
+    public static long longValueOf(BigInteger nanocoins) {
+        if (nanocoins.bitLength() > 63)
+            throw new ArithmeticException("Value out of range: " + nanocoins);
+        return nanocoins.longValue();
+    }
+
+    /**
+     * Returns a + b.
+     *
+     * @throws ArithmeticException if the result doesn't fit in a long.
+     */
+    public static long add(long a, long b) {
+        return LongMath.checkedAdd(a, b);
+    }
+
+    /**
+     * Returns a - b.
+     *
+     * @throws ArithmeticException if the result doesn't fit in a long.
+     */
+    public static long subtract(long a, long b) {
+        return LongMath.checkedSubtract(a, b);
+    }
+
+    /** Returns the number of nanocoins. */
+    public long longValue() {
+        return value;
+    }
+
+    public BigInteger toBigInteger() {
+        return BigInteger.valueOf(value);
+    }
+
+    public Coin add(Coin other) {
+        return valueOf(add(value, other.value));
+    }
+
+    public Coin subtract(Coin other) {
+        return valueOf(subtract(value, other.value));
+    }
+
+    public Coin multiply(long factor) {
+        return valueOf(LongMath.checkedMultiply(value, factor));
+    }
+
+    /** Returns this divided by the given divisor, rounded towards zero. */
+    public Coin divide(long divisor) {
+        return valueOf(value / divisor);
+    }
+
+    public Coin negate() {
+        return valueOf(subtract(0, value));
+    }
+
+    public int signum() {
+        return value > 0 ? 1 : value < 0 ? -1 : 0;
+    }
+
+    public boolean isPositive() {
+        return value > 0;
+    }
+
+    public boolean isNegative() {
+        return value < 0;
+    }
+
+    public boolean isZero() {
+        return value == 0;
+    }
+
+    public boolean isGreaterThan(Coin other) {
+        return value > other.value;
+    }
+
+    public boolean isLessThan(Coin other) {
+        return value < other.value;
+    }
+
+    @Override
+    public int compareTo(Coin other) {
+        return value < other.value ? -1 : value == other.value ? 0 : 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return value == ((Coin) o).value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    /** Returns the value as a string like "1.23", see {@link Utils#bitcoinValueToFriendlyString(BigInteger)}. */
+    @Override
+    public String toString() {
+        return Utils.bitcoinValueToFriendlyString(toBigInteger());
+    }
+}
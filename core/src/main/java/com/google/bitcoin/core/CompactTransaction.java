@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An immutable transaction kept as little more than its serialized bytes. A {@link Transaction} holds lists of
+ * {@link TransactionInput} and {@link TransactionOutput} objects, each with a {@link Script} parsed into chunks, values
+ * as BigIntegers, a {@link TransactionConfidence} and often the bytes it was parsed from as well, so a transaction of
+ * a few hundred bytes can take several kilobytes of heap. This class holds the bytes, the hash and a single table of
+ * where each input and output starts, and reads fields from the bytes when asked for them. Values are returned as
+ * longs and scripts are only parsed when {@link #getScriptPubKey(int)} or {@link #getScriptSig(int)} is called.</p>
+ *
+ * <p>There is no confidence here: a compact transaction is just the data, and whoever keeps one is responsible for
+ * remembering anything else about it, as {@link MemoryPool} does for the transactions it pins. Use
+ * {@link #toTransaction()} to get a full, mutable {@link Transaction} back.</p>
+ *
+ * <p>Instances are safe to share between threads.</p>
+ */
+public final class CompactTransaction {
+    private final NetworkParameters params;
+    private final byte[] bytes;
+    private final Sha256Hash hash;
+    private final int numInputs;
+    // Where each input starts, followed by where each output starts, followed by where the lock time is.
+    private final int[] offsets;
+
+    private CompactTransaction(NetworkParameters params, byte[] bytes, Sha256Hash hash, int numInputs, int[] offsets) {
+        this.params = checkNotNull(params);
+        this.bytes = bytes;
+        this.hash = hash;
+        this.numInputs = numInputs;
+        this.offsets = offsets;
+    }
+
+    /** Makes a compact copy of the given transaction. */
+    public static CompactTransaction of(Transaction tx) {
+        try {
+            // The bytes are only ever read, so there's no need for a copy if the transaction has them already.
+            return create(tx.getParams(), tx.unsafeBitcoinSerialize(), tx.getHash());
+        } catch (ProtocolException e) {
+            // It was just serialized, so can't happen.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Makes a compact transaction from a copy of the given range of the buffer, which must hold exactly one
+     * transaction.
+     *
+     * @throws ProtocolException if the range doesn't hold exactly one transaction.
+     */
+    public static CompactTransaction parse(NetworkParameters params, byte[] bytes, int offset, int length)
+            throws ProtocolException {
+        if (offset < 0 || length < 0 || offset + length > bytes.length)
+            throw new ProtocolException("Transaction runs off the end of the buffer");
+        byte[] copy = Arrays.copyOfRange(bytes, offset, offset + length);
+        return create(params, copy, new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(copy))));
+    }
+
+    private static CompactTransaction create(NetworkParameters params, byte[] bytes, Sha256Hash hash)
+            throws ProtocolException {
+        int[] offsets = new int[4];
+        int count = 0;
+        Scanner scanner = new Scanner(bytes);
+        scanner.skip(4);  // Version.
+        long numInputs = scanner.readVarInt();
+        for (long i = 0; i < numInputs; i++) {
+            offsets = add(offsets, count++, scanner.cursor);
+            scanner.skip(TransactionOutPoint.MESSAGE_LENGTH);
+            scanner.skip(scanner.readLength() + 4);  // The script and sequence number.
+        }
+        long numOutputs = scanner.readVarInt();
+        for (long i = 0; i < numOutputs; i++) {
+            offsets = add(offsets, count++, scanner.cursor);
+            scanner.skip(8);  // Value.
+            scanner.skip(scanner.readLength());
+        }
+        offsets = add(offsets, count++, scanner.cursor);
+        scanner.skip(4);  // Lock time.
+        if (scanner.cursor != bytes.length)
+            throw new ProtocolException((bytes.length - scanner.cursor) + " bytes left over after transaction");
+        return new CompactTransaction(params, bytes, hash, (int) numInputs,
+                count == offsets.length ? offsets : Arrays.copyOf(offsets, count));
+    }
+
+    private static int[] add(int[] array, int index, int value) {
+        if (index == array.length)
+            array = Arrays.copyOf(array, index * 2);
+        array[index] = value;
+        return array;
+    }
+
+    private static class Scanner {
+        final byte[] bytes;
+        int cursor;
+
+        Scanner(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        void skip(int length) throws ProtocolException {
+            if (length < 0 || length > bytes.length - cursor)
+                throw new ProtocolException("Transaction runs off the end of the buffer");
+            cursor += length;
+        }
+
+        long readVarInt() throws ProtocolException {
+            if (cursor >= bytes.length)
+                throw new ProtocolException("Transaction runs off the end of the buffer");
+            int first = 0xFF & bytes[cursor];
+            int size = first < 0xFD ? 1 : first == 0xFD ? 3 : first == 0xFE ? 5 : 9;
+            if (size > bytes.length - cursor)
+                throw new ProtocolException("Transaction runs off the end of the buffer");
+            long value = new VarInt(bytes, cursor).value;
+            cursor += size;
+            return value;
+        }
+
+        int readLength() throws ProtocolException {
+            long length = readVarInt();
+            if (length < 0 || length > bytes.length - cursor)
+                throw new ProtocolException("Script length " + length + " runs off the end of the buffer");
+            return (int) length;
+        }
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    /** Returns the size of the serialized transaction. */
+    public int getMessageSize() {
+        return bytes.length;
+    }
+
+    public long getVersion() {
+        return Utils.readUint32(bytes, 0);
+    }
+
+    public long getLockTime() {
+        return Utils.readUint32(bytes, offsets[offsets.length - 1]);
+    }
+
+    public int getInputCount() {
+        return numInputs;
+    }
+
+    public int getOutputCount() {
+        return offsets.length - 1 - numInputs;
+    }
+
+    private int input(int index) {
+        if (index < 0 || index >= numInputs)
+            throw new IndexOutOfBoundsException("Input " + index + " of " + numInputs);
+        return offsets[index];
+    }
+
+    private int output(int index) {
+        if (index < 0 || index >= getOutputCount())
+            throw new IndexOutOfBoundsException("Output " + index + " of " + getOutputCount());
+        return offsets[numInputs + index];
+    }
+
+    /** Returns the hash of the transaction whose output the given input spends. */
+    public Sha256Hash getOutpointHash(int input) {
+        int start = input(input);
+        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(bytes, start, start + 32)));
+    }
+
+    /** Returns the index of the output the given input spends. */
+    public long getOutpointIndex(int input) {
+        return Utils.readUint32(bytes, input(input) + 32);
+    }
+
+    /** Returns the sequence number of the given input. */
+    public long getSequence(int input) {
+        VarInt length = new VarInt(bytes, input(input) + TransactionOutPoint.MESSAGE_LENGTH);
+        return Utils.readUint32(bytes, input(input) + TransactionOutPoint.MESSAGE_LENGTH +
+                length.getOriginalSizeInBytes() + (int) length.value);
+    }
+
+    /** Returns a copy of the script of the given input. */
+    public byte[] getScriptSigBytes(int input) {
+        return readScript(input(input) + TransactionOutPoint.MESSAGE_LENGTH);
+    }
+
+    /** Parses the script of the given input. */
+    public Script getScriptSig(int input) throws ScriptException {
+        return new Script(getScriptSigBytes(input));
+    }
+
+    /** Returns the value of the given output in nanocoins. */
+    public long getOutputValue(int output) {
+        return Utils.readInt64(bytes, output(output));
+    }
+
+    /** Returns a copy of the script of the given output. */
+    public byte[] getOutputScriptBytes(int output) {
+        return readScript(output(output) + 8);
+    }
+
+    /** Parses the script of the given output. */
+    public Script getScriptPubKey(int output) throws ScriptException {
+        return new Script(getOutputScriptBytes(output));
+    }
+
+    private byte[] readScript(int offset) {
+        VarInt length = new VarInt(bytes, offset);
+        int start = offset + length.getOriginalSizeInBytes();
+        return Arrays.copyOfRange(bytes, start, start + (int) length.value);
+    }
+
+    /** Returns the sum of the values of the outputs, in nanocoins. */
+    public long getValueOut() {
+        long value = 0;
+        for (int i = 0; i < getOutputCount(); i++)
+            value += getOutputValue(i);
+        return value;
+    }
+
+    /** Returns true if this is a coinbase transaction, as {@link Transaction#isCoinBase()} does. */
+    public boolean isCoinBase() {
+        if (numInputs != 1)
+            return false;
+        for (int i = offsets[0]; i < offsets[0] + 32; i++) {
+            if (bytes[i] != 0)
+                return false;
+        }
+        return getOutpointIndex(0) == 0xFFFFFFFFL;
+    }
+
+    /** Returns a copy of the serialized transaction. */
+    public byte[] bitcoinSerialize() {
+        return bytes.clone();
+    }
+
+    /** Parses a new {@link Transaction} from the bytes. It has a new, empty confidence. */
+    public Transaction toTransaction() {
+        try {
+            Transaction tx = new Transaction(params, bytes, 0, null, false, false, bytes.length);
+            tx.setHash(hash);
+            return tx;
+        } catch (ProtocolException e) {
+            // We already walked over it, so can't happen.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return hash.equals(((CompactTransaction) o).hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CompactTransaction " + hash + ", " + numInputs + " inputs, " + getOutputCount() + " outputs";
+    }
+}
@@ -19,6 +19,8 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.PublicKeyCache;
+import com.google.bitcoin.crypto.Secp256k1;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -112,12 +114,24 @@ public class ECKey implements Serializable {
 
     // Transient because it's calculated on demand.
     transient private byte[] pubKeyHash;
+    // The public key decoded and prepared for verifying signatures with, worked out the first time it's needed.
+    @Nullable transient private volatile Secp256k1.PreparedPoint preparedPubKey;
 
     /**
      * Generates an entirely new keypair. Point compression is used so the resulting public key will be 33 bytes
      * (32 for the co-ordinate and 1 byte to represent the y bit).
      */
     public ECKey() {
+        if (Secp256k1.enabled) {
+            // The same way ECKeyPairGenerator picks a private key, but with a much faster point multiply.
+            BigInteger n = CURVE.getN();
+            do {
+                priv = new BigInteger(n.bitLength(), secureRandom);
+            } while (priv.signum() == 0 || priv.compareTo(n) >= 0);
+            pub = Secp256k1.publicKeyFromPrivate(priv, true);
+            creationTimeSeconds = Utils.currentTimeMillis() / 1000;
+            return;
+        }
         ECKeyPairGenerator generator = new ECKeyPairGenerator();
         ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(CURVE, secureRandom);
         generator.init(keygenParams);
@@ -251,6 +265,10 @@ public class ECKey implements Serializable {
      * new BigInteger(1, bytes);</tt>
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        // Keys out of range, such as ones decrypted with the wrong AES key, take the slow path, which doesn't reject them,
+        // so that the caller finds out from the public key not matching.
+        if (Secp256k1.enabled && privKey.signum() > 0 && privKey.compareTo(CURVE.getN()) < 0)
+            return Secp256k1.publicKeyFromPrivate(privKey, compressed);
         ECPoint point = CURVE.getG().multiply(privKey);
         if (compressed)
             point = compressPoint(point);
@@ -463,10 +481,15 @@ public class ECKey implements Serializable {
             }
         }
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
+        BigInteger[] components;
+        if (Secp256k1.enabled) {
+            components = Secp256k1.sign(input.getBytes(), privateKeyForSigning, secureRandom);
+        } else {
+            ECDSASigner signer = new ECDSASigner();
+            ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
+            signer.init(true, privKey);
+            components = signer.generateSignature(input.getBytes());
+        }
         final ECDSASignature signature = new ECDSASignature(components[0], components[1]);
         signature.ensureCanonical();
         return signature;
@@ -489,6 +512,14 @@ public class ECKey implements Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        if (Secp256k1.enabled) {
+            PublicKeyCache cache = PublicKeyCache.getDefault();
+            if (cache == null)
+                return Secp256k1.verify(data, signature.r, signature.s, pub);
+            Secp256k1.PreparedPoint point = cache.get(pub);
+            return point != null && Secp256k1.verify(data, signature.r, signature.s, point);
+        }
+
         ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
         signer.init(false, params);
@@ -523,14 +554,32 @@ public class ECKey implements Serializable {
      * @param signature ASN.1 encoded signature.
      */
     public boolean verify(byte[] data, byte[] signature) {
-        return ECKey.verify(data, signature, getPubKey());
+        if (NativeSecp256k1.enabled)
+            return NativeSecp256k1.verify(data, signature, pub);
+        return verify(data, ECDSASignature.decodeFromDER(signature));
     }
 
     /**
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        return verify(sigHash.getBytes(), signature);
+    }
+
+    // The first time this key verifies something, the decoded public key and a table of multiples of it are worked
+    // out and kept, making later verifications quicker. This suits keys that are kept around, like a payment
+    // channel's client key.
+    private boolean verify(byte[] data, ECDSASignature signature) {
+        if (FAKE_SIGNATURES || NativeSecp256k1.enabled || !Secp256k1.enabled)
+            return ECKey.verify(data, signature, pub);
+        Secp256k1.PreparedPoint point = preparedPubKey;
+        if (point == null) {
+            point = Secp256k1.preparePublicKey(pub);
+            if (point == null)
+                return false;
+            preparedPubKey = point;
+        }
+        return Secp256k1.verify(data, signature.r, signature.s, point);
     }
 
     /**
@@ -730,10 +779,15 @@ public class ECKey implements Serializable {
         }
         // Compressed keys require you to know an extra bit of data about the y-coord as there are two possibilities.
         // So it's encoded in the recId.
-        ECPoint R = decompressKey(x, (recId & 1) == 1);
-        //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
-        if (!R.multiply(n).isInfinity())
-            return null;
+        boolean yBit = (recId & 1) == 1;
+        ECPoint R = null;
+        if (!Secp256k1.enabled) {
+            R = decompressKey(x, yBit);
+            //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
+            //        secp256k1 has a cofactor of one so this can't happen, and the fast path doesn't check it.
+            if (!R.multiply(n).isInfinity())
+                return null;
+        }
         //   1.5. Compute e from M using Steps 2 and 3 of ECDSA signature verification.
         BigInteger e = message.toBigInteger();
         //   1.6. For k from 1 to 2 do the following.   (loop is outside this function via iterating recId)
@@ -751,6 +805,8 @@ public class ECKey implements Serializable {
         BigInteger rInv = sig.r.modInverse(n);
         BigInteger srInv = rInv.multiply(sig.s).mod(n);
         BigInteger eInvrInv = rInv.multiply(eInv).mod(n);
+        if (Secp256k1.enabled)
+            return recoverWithSecp256k1(x, yBit, eInvrInv, srInv, compressed);
         ECPoint.Fp q = (ECPoint.Fp) ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), eInvrInv, R, srInv);
         if (compressed) {
             // We have to manually recompress the point as the compressed-ness gets lost when multiply() is used.
@@ -759,6 +815,20 @@ public class ECKey implements Serializable {
         return new ECKey((byte[])null, q.getEncoded());
     }
 
+    @Nullable
+    private static ECKey recoverWithSecp256k1(BigInteger x, boolean yBit, BigInteger eInvrInv, BigInteger srInv,
+                                              boolean compressed) {
+        byte[] encodedR = Utils.bigIntegerToBytes(x, 33);
+        encodedR[0] = (byte) (yBit ? 0x03 : 0x02);
+        try {
+            byte[] q = Secp256k1.sumOfTwoMultiplies(eInvrInv, encodedR, srInv, compressed);
+            return q == null ? null : new ECKey((byte[]) null, q);
+        } catch (IllegalArgumentException e) {
+            // x is not the co-ordinate of a point on the curve.
+            return null;
+        }
+    }
+
     /** Decompress a compressed public key (x co-ord and low-bit of y-coord). */
     private static ECPoint decompressKey(BigInteger xBN, boolean yBit) {
         X9IntegerConverter x9 = new X9IntegerConverter();
@@ -16,9 +16,14 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.crypto.SignatureBatch;
+import com.google.bitcoin.crypto.SignatureCache;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptExecutionContext;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +53,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
+    // Where to remember signatures that were found to be valid, or null to always check them from scratch.
+    @Nullable private SignatureCache signatureCache = SignatureCache.getDefault();
+    // Whether to check all the signatures in a block together once its scripts have run.
+    private boolean batchVerifySignatures = false;
 
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -90,7 +99,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block block)
             throws BlockStoreException, VerificationException {
         StoredBlock newBlock = storedPrev.build(block);
-        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), block.transactions));
+        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), block.getTransactions()));
         return newBlock;
     }
 
@@ -109,6 +118,86 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public void setRunScripts(boolean value) {
         this.runScripts = value;
     }
+
+    /**
+     * Sets the cache signatures are checked through whilst running scripts. Signatures that were already checked,
+     * for instance when the transaction was relayed to us or when the block was connected before a re-org, are then
+     * not checked again. Defaults to {@link SignatureCache#getDefault()}, pass null to always check from scratch.
+     */
+    public void setSignatureCache(@Nullable SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /** Returns the cache signatures are checked through, or null if there isn't one. */
+    @Nullable
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * If set to true, a block's scripts are run assuming every signature is valid, and the signatures are collected
+     * and then checked together using {@link SignatureBatch}, which is faster than checking them one at a time. The
+     * scripts of any transaction with an invalid signature are run again the normal way to find out if the
+     * transaction really is invalid, so the result is always the same. Defaults to false.
+     */
+    public void setBatchVerifySignatures(boolean value) {
+        this.batchVerifySignatures = value;
+    }
+
+    /** Returns whether signatures are checked together after running a block's scripts. */
+    public boolean getBatchVerifySignatures() {
+        return batchVerifySignatures;
+    }
+
+    /**
+     * Checks the signatures of a transaction relayed to us on a thread of {@link Threading#THREAD_POOL}, so that they
+     * are in the signature cache by the time the transaction is included in a block, and connecting the block doesn't
+     * have to check them again.
+     */
+    @Override
+    protected void transactionRelayed(final Transaction tx) {
+        final SignatureCache cache = signatureCache;
+        if (!runScripts || cache == null || tx.isCoinBase())
+            return;
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkRelayedTransaction(tx, cache);
+                } catch (Exception e) {
+                    log.warn("Failed to check relayed tx {}: {}", tx.getHashAsString(), e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the scripts of a transaction that isn't in a block against the unspent outputs it spends, checking its
+     * signatures through the given cache. Returns false without running anything if some output it spends isn't in
+     * the unspent output set, for instance because it was created by another unconfirmed transaction. Otherwise
+     * returns whether the scripts passed. Nothing is changed apart from the cache.
+     */
+    @VisibleForTesting
+    boolean checkRelayedTransaction(Transaction tx, SignatureCache cache) throws BlockStoreException {
+        List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+        // The store must not be read whilst a block is half connected.
+        lock.lock();
+        try {
+            for (TransactionInput input : tx.getInputs()) {
+                TransactionOutPoint outpoint = input.getOutpoint();
+                StoredTransactionOutput prevOut = blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                if (prevOut == null)
+                    return false;
+                prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        VerificationException e = new Verifier(tx, prevOutScripts, true, cache, false).runScripts(null);
+        if (e != null)
+            log.info("Relayed tx {} failed to verify: {}", tx.getHashAsString(), e.getMessage());
+        return e == null;
+    }
     
     //TODO: Remove lots of duplicated code in the two connectTransactions
     
@@ -120,18 +209,37 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final boolean enforcePayToScriptHash;
+        @Nullable final SignatureCache signatureCache;
+        // Where signatures are put to be checked later, or null once the scripts were run checking them straight away.
+        @Nullable SignatureBatch deferredSignatures;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
+        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash,
+                        @Nullable final SignatureCache signatureCache, final boolean deferSignatures) {
             this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+            this.signatureCache = signatureCache;
+            this.deferredSignatures = deferSignatures ? new SignatureBatch(signatureCache) : null;
         }
 
         @Nullable
         @Override
         public VerificationException call() throws Exception {
+            if (deferredSignatures != null) {
+                if (runScripts(deferredSignatures) == null)
+                    return null;
+                // The scripts failed even though all signatures were assumed valid. An invalid one could have made
+                // them pass though, so run them again properly.
+                deferredSignatures = null;
+            }
+            return runScripts(null);
+        }
+
+        @Nullable
+        VerificationException runScripts(@Nullable SignatureBatch batch) {
             try{
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
+                ScriptExecutionContext context = new ScriptExecutionContext(tx, signatureCache, batch);
                 for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(context, index, prevOutIt.next(), enforcePayToScriptHash);
                 }
             } catch (VerificationException e) {
                 return e;
@@ -139,15 +247,61 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             return null;
         }
     }
-    
+
+    // Checks the signatures the verifiers put aside all together, then runs the scripts of any transaction with an
+    // invalid one again to find out whether it really fails. Must only be called once all the verifiers are done.
+    private void checkDeferredSignatures(List<Verifier> verifiers) throws VerificationException {
+        List<Verifier> deferred = new ArrayList<Verifier>(verifiers.size());
+        List<SignatureBatch> batches = new ArrayList<SignatureBatch>(verifiers.size());
+        for (Verifier verifier : verifiers) {
+            if (verifier.deferredSignatures != null) {
+                deferred.add(verifier);
+                batches.add(verifier.deferredSignatures);
+            }
+        }
+        if (batches.isEmpty())
+            return;
+        boolean[] valid = SignatureBatch.verifyAll(batches, scriptVerificationExecutor);
+        for (int i = 0; i < valid.length; i++) {
+            if (valid[i])
+                continue;
+            VerificationException e = deferred.get(i).runScripts(null);
+            if (e != null)
+                throw e;
+        }
+    }
+
+    // Waits for the verifiers running a block's scripts, throwing the first failure, then checks any signatures they
+    // put aside.
+    private void checkScripts(List<Future<VerificationException>> results, List<Verifier> verifiers)
+            throws VerificationException {
+        for (Future<VerificationException> future : results) {
+            VerificationException e;
+            try {
+                e = future.get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            if (e != null)
+                throw e;
+        }
+        checkDeferredSignatures(verifiers);
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
-        if (block.transactions == null)
+        BlockReader reader = block.getTransactionReader();
+        if (reader == null && block.transactions == null)
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
+        if (reader != null)
+            return connectTransactions(height, block, reader);
 
         blockStore.beginDatabaseBatchWrite();
 
@@ -160,6 +314,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        List<Verifier> verifiers = new ArrayList<Verifier>(block.transactions.size());
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -235,27 +390,126 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
+                    // The verifier reads tx from another thread, so this must come after we are done with tx
+                    Verifier verifier = new Verifier(tx, prevOutScripts, enforcePayToScriptHash, signatureCache, batchVerifySignatures);
+                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
                     scriptVerificationExecutor.execute(future);
+                    verifiers.add(verifier);
                     listScriptVerificationResults.add(future);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            checkScripts(listScriptVerificationResults, verifiers);
+        } catch (VerificationException e) {
+            scriptVerificationExecutor.shutdownNow();
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        } catch (BlockStoreException e) {
+            scriptVerificationExecutor.shutdownNow();
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        }
+        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+    }
+
+    /**
+     * Connects a block whose transactions haven't been parsed, reading them straight from the block's bytes. The same
+     * rules are applied as above, but only transactions whose scripts are run are parsed into {@link Transaction}
+     * objects.
+     */
+    private TransactionOutputChanges connectTransactions(int height, Block block, BlockReader reader)
+            throws VerificationException, BlockStoreException {
+        blockStore.beginDatabaseBatchWrite();
+
+        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
+        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
+        long sigOps = 0;
+        final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
+        final long maxMoney = params.MAX_MONEY.longValue();
+        final int numTransactions = reader.getTransactionCount();
+
+        if (scriptVerificationExecutor.isShutdown())
+            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(numTransactions);
+        List<Verifier> verifiers = new ArrayList<Verifier>(numTransactions);
+        try {
+            if (!params.isCheckpoint(height)) {
+                // See the BIP30 comment above.
+                for (int i = 0; i < numTransactions; i++) {
+                    if (blockStore.hasUnspentOutputs(reader.getTransactionHash(i), reader.getOutputCount(i)))
+                        throw new VerificationException("Block failed BIP30 test!");
+                    if (enforcePayToScriptHash)
+                        sigOps += reader.getSigOpCount(i);
+                }
+            }
+            // Values are checked against MAX_MONEY as they are added up, so the sums can't overflow.
+            long totalFees = 0;
+            long coinbaseValue = 0;
+            for (int i = 0; i < numTransactions; i++) {
+                boolean isCoinBase = reader.isCoinBase(i);
+                long valueIn = 0;
+                long valueOut = 0;
+                final List<Script> prevOutScripts = new ArrayList<Script>(reader.getInputCount(i));
+                if (!isCoinBase) {
+                    for (int index = 0; index < reader.getInputCount(i); index++) {
+                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(
+                                reader.getOutpointHash(i, index), reader.getOutpointIndex(i, index));
+                        if (prevOut == null)
+                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                        if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
+                            throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
+                        valueIn += prevOut.getValue().longValue();
+                        if (valueIn > maxMoney)
+                            throw new VerificationException("Transaction input value out of range");
+                        if (enforcePayToScriptHash) {
+                            if (Script.isPayToScriptHash(prevOut.getScriptBytes()))
+                                sigOps += Script.getP2SHSigOpCount(reader.getScriptSigBytes(i, index));
+                            if (sigOps > Block.MAX_BLOCK_SIGOPS)
+                                throw new VerificationException("Too many P2SH SigOps in block");
+                        }
+                        if (runScripts)
+                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                        blockStore.removeUnspentTransactionOutput(prevOut);
+                        txOutsSpent.add(prevOut);
+                    }
+                }
+                Sha256Hash hash = reader.getTransactionHash(i);
+                for (int index = 0; index < reader.getOutputCount(i); index++) {
+                    long value = reader.getOutputValue(i, index);
+                    if (value < 0 || value > maxMoney)
+                        throw new VerificationException("Transaction output value out of rage");
+                    valueOut += value;
+                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, index, BigInteger.valueOf(value),
+                            height, isCoinBase, reader.getOutputScriptBytes(i, index));
+                    blockStore.addUnspentTransactionOutput(newOut);
+                    txOutsCreated.add(newOut);
+                }
+                if (valueOut > maxMoney)
+                    throw new VerificationException("Transaction output value out of rage");
+                if (isCoinBase) {
+                    coinbaseValue = valueOut;
+                } else {
+                    if (valueIn < valueOut)
+                        throw new VerificationException("Transaction input value out of range");
+                    totalFees += valueIn - valueOut;
+                    if (totalFees > maxMoney)
+                        throw new VerificationException("Transaction fees out of range");
+                }
+
+                if (!isCoinBase && runScripts) {
+                    Verifier verifier = new Verifier(reader.getTransaction(params, i), prevOutScripts,
+                            enforcePayToScriptHash, signatureCache, batchVerifySignatures);
+                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
+                    scriptVerificationExecutor.execute(future);
+                    verifiers.add(verifier);
+                    listScriptVerificationResults.add(future);
                 }
-                if (e != null)
-                    throw e;
             }
+            if (block.getBlockInflation(height).add(BigInteger.valueOf(totalFees)).compareTo(BigInteger.valueOf(coinbaseValue)) < 0)
+                throw new VerificationException("Transaction fees out of range");
+            checkScripts(listScriptVerificationResults, verifiers);
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
@@ -306,6 +560,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (scriptVerificationExecutor.isShutdown())
                     scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
                 List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                List<Verifier> verifiers = new ArrayList<Verifier>(transactions.size());
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -357,9 +612,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
+                        // The verifier reads tx from another thread, so this must come after we are done with tx
+                        Verifier verifier = new Verifier(tx, prevOutScripts, enforcePayToScriptHash, signatureCache, batchVerifySignatures);
+                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
                         scriptVerificationExecutor.execute(future);
+                        verifiers.add(verifier);
                         listScriptVerificationResults.add(future);
                     }
                 }
@@ -367,19 +624,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                checkScripts(listScriptVerificationResults, verifiers);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
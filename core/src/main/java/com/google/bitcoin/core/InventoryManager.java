@@ -0,0 +1,442 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Coordinates inventory (the "inv" and "getdata" traffic) between all the peers of a {@link PeerGroup}. It does
+ * two things:</p>
+ *
+ * <ol>
+ *     <li>Remembers, for each peer, which hashes that peer is known to have, either because it announced them to us,
+ *     sent them to us or because we sent or announced them to it. This lets us avoid sending peers data they already
+ *     have. Each peer's set is a pair of rolling bloom filters bounded both in size and in age, so it uses a small, fixed
+ *     amount of memory. In exchange, a peer is occasionally thought to have something it doesn't.</li>
+ *     <li>De-duplicates transaction downloads across peers. Only one peer at a time is asked for any given transaction.
+ *     Other peers that announce it are remembered as alternates, and if the request times out, is answered with a
+ *     notfound or the peer disconnects, the download is moved to one of the alternates. If there's nobody left to
+ *     ask, the announcement is forgotten by the {@link MemoryPool}, so that the next peer to announce the
+ *     transaction is asked for it.</li>
+ * </ol>
+ *
+ * <p>Outgoing announcements are not trickled, as we never send invs: {@link TransactionBroadcast} sends the transaction
+ * itself (see the comment there). The getdata for an inv is already a single message, and downloads moved to other
+ * peers are batched into one getdata per peer at each tick.</p>
+ *
+ * <p>Periodic work is done by a background timer started with {@link #start()}. A PeerGroup creates one of these for
+ * you and passes it to each Peer, so normally you don't need to construct one yourself.</p>
+ */
+public class InventoryManager {
+    private static final Logger log = LoggerFactory.getLogger(InventoryManager.class);
+    protected final ReentrantLock lock = Threading.lock("inventory");
+
+    /** The maximum number of hashes remembered per peer by default. */
+    public static final int DEFAULT_MAX_KNOWN_PER_PEER = 5000;
+    /** The most hashes that can be remembered per peer. Beyond this the filters can't be made big enough. */
+    public static final int MAX_KNOWN_PER_PEER = 20000;
+    // The chance of a peer being thought to have a hash it was never seen with.
+    private static final double KNOWN_FALSE_POSITIVE_RATE = 0.0001;
+    /** How long a hash is remembered as known by a peer, by default. */
+    public static final long DEFAULT_KNOWN_MAX_AGE_MSEC = 15 * 60 * 1000;
+    /** How long we wait for a peer to answer a transaction getdata before asking somebody else, by default. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MSEC = 30 * 1000;
+    /** How often timed out requests are retried, by default. */
+    public static final long DEFAULT_RETRY_INTERVAL_MSEC = 500;
+
+    private final NetworkParameters params;
+    @Nullable private final MemoryPool memoryPool;
+    private final int maxKnownPerPeer;
+    private final long knownMaxAgeMsec;
+    private volatile long vRequestTimeoutMsec = DEFAULT_REQUEST_TIMEOUT_MSEC;
+    private volatile long vRetryIntervalMsec = DEFAULT_RETRY_INTERVAL_MSEC;
+
+    // The hashes a peer is known to have, as two generations of bloom filter. New hashes go into the current one and
+    // lookups check both. Once the current one has had half the per-peer maximum put in it, or is older than half the
+    // maximum age, the previous one is dropped and replaced by it. So a hash is remembered for at least half the bounds
+    // and never beyond the maximum age, in a fixed amount of memory.
+    private class KnownInventory {
+        private BloomFilter current;
+        private long currentStartMsec;
+        private int currentCount;
+        @Nullable private BloomFilter previous;
+        private long previousStartMsec;
+
+        KnownInventory(long nowMillis) {
+            current = newFilter();
+            currentStartMsec = nowMillis;
+        }
+
+        void add(Sha256Hash hash, long nowMillis) {
+            roll(nowMillis);
+            byte[] bytes = hash.getBytes();
+            if (current.contains(bytes))
+                return;
+            if (currentCount >= generationSize())
+                startGeneration(nowMillis);
+            current.insert(bytes);
+            currentCount++;
+        }
+
+        boolean contains(Sha256Hash hash, long nowMillis) {
+            roll(nowMillis);
+            byte[] bytes = hash.getBytes();
+            return current.contains(bytes) || (previous != null && previous.contains(bytes));
+        }
+
+        private void roll(long nowMillis) {
+            if (nowMillis - currentStartMsec > knownMaxAgeMsec / 2)
+                startGeneration(nowMillis);
+            if (previous != null && nowMillis - previousStartMsec > knownMaxAgeMsec)
+                previous = null;
+        }
+
+        private void startGeneration(long nowMillis) {
+            previous = current;
+            previousStartMsec = currentStartMsec;
+            current = newFilter();
+            currentStartMsec = nowMillis;
+            currentCount = 0;
+        }
+
+        private BloomFilter newFilter() {
+            return new BloomFilter(generationSize(), KNOWN_FALSE_POSITIVE_RATE, (long) (Math.random() * Long.MAX_VALUE));
+        }
+
+        private int generationSize() {
+            return Math.max(1, maxKnownPerPeer / 2);
+        }
+    }
+    @GuardedBy("lock") private final Map<Peer, KnownInventory> known = new HashMap<Peer, KnownInventory>();
+
+    // A transaction download that is in progress on some peer, along with other peers we could ask instead.
+    private static class InFlightRequest {
+        Peer peer;
+        long requestTimeMsec;
+        final LinkedHashSet<Peer> alternates = new LinkedHashSet<Peer>();
+    }
+    @GuardedBy("lock") private final Map<Sha256Hash, InFlightRequest> inFlight = new HashMap<Sha256Hash, InFlightRequest>();
+
+    private volatile Timer vTimer;
+
+    /**
+     * Creates an inventory manager with the default bounds on how much is remembered per peer.
+     */
+    public InventoryManager(NetworkParameters params) {
+        this(params, null);
+    }
+
+    /**
+     * Creates an inventory manager with the default bounds on how much is remembered per peer. Downloads that can't be
+     * completed by any peer are forgotten by the given memory pool, if not null.
+     */
+    public InventoryManager(NetworkParameters params, @Nullable MemoryPool memoryPool) {
+        this(params, memoryPool, DEFAULT_MAX_KNOWN_PER_PEER, DEFAULT_KNOWN_MAX_AGE_MSEC);
+    }
+
+    /**
+     * Creates an inventory manager that remembers at most maxKnownPerPeer hashes for each peer, which can't be more
+     * than {@link #MAX_KNOWN_PER_PEER}, and forgets any that are older than knownMaxAgeMsec.
+     */
+    public InventoryManager(NetworkParameters params, @Nullable MemoryPool memoryPool, int maxKnownPerPeer,
+                            long knownMaxAgeMsec) {
+        checkArgument(maxKnownPerPeer > 0 && maxKnownPerPeer <= MAX_KNOWN_PER_PEER);
+        checkArgument(knownMaxAgeMsec > 0);
+        this.params = checkNotNull(params);
+        this.memoryPool = memoryPool;
+        this.maxKnownPerPeer = maxKnownPerPeer;
+        this.knownMaxAgeMsec = knownMaxAgeMsec;
+    }
+
+    /** Starts the background timer that retries timed out downloads. */
+    public void start() {
+        final Timer timer = new Timer("Inventory retry thread", true);
+        final long interval = vRetryIntervalMsec;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable e) {
+                    log.error("Exception in inventory timer", e);
+                }
+            }
+        }, interval, interval);
+        vTimer = timer;
+    }
+
+    /** Stops the background timer. */
+    public void stop() {
+        Timer timer = vTimer;
+        if (timer != null)
+            timer.cancel();
+        vTimer = null;
+    }
+
+    /**
+     * Records that the given peer has the given item, so we don't need to send or announce it there.
+     */
+    public void markKnown(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            markKnownLocked(peer, hash, Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void markKnownLocked(Peer peer, Sha256Hash hash, long nowMillis) {
+        KnownInventory inv = known.get(peer);
+        if (inv == null) {
+            inv = new KnownInventory(nowMillis);
+            known.put(peer, inv);
+        }
+        inv.add(hash, nowMillis);
+    }
+
+    /**
+     * Returns true if the given peer is known to have the given item (and we have not forgotten it yet). Very rarely
+     * this is true of an item the peer was never seen with.
+     */
+    public boolean isKnownBy(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            KnownInventory inv = known.get(peer);
+            if (inv == null)
+                return false;
+            return inv.contains(hash, Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Called by a peer when it sees a transaction announced in an inv. Returns true if the peer should ask for it
+     * with a getdata now, in which case the download is recorded as being in flight on that peer. Returns false if some
+     * other peer is already downloading it, in which case this peer is remembered as a fallback, or if we already
+     * have it.</p>
+     *
+     * @param seenBefore whether the transaction was already known to us, eg, by the {@link MemoryPool}.
+     */
+    public boolean shouldRequestTransaction(Peer peer, Sha256Hash hash, boolean seenBefore) {
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeMillis();
+            markKnownLocked(peer, hash, now);
+            InFlightRequest request = inFlight.get(hash);
+            if (request == null) {
+                if (seenBefore)
+                    return false;  // Already downloaded.
+                request = new InFlightRequest();
+                request.peer = peer;
+                request.requestTimeMsec = now;
+                inFlight.put(hash, request);
+                return true;
+            }
+            if (request.peer == peer)
+                return false;
+            if (now - request.requestTimeMsec > vRequestTimeoutMsec) {
+                // The original peer is not delivering. Take over the download.
+                log.info("{}: Taking over download of tx {} from {}", peer, hash, request.peer);
+                request.alternates.remove(peer);
+                request.peer = peer;
+                request.requestTimeMsec = now;
+                return true;
+            }
+            request.alternates.add(peer);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer when it receives a transaction or block, so any download in flight is marked as complete. */
+    public void received(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            markKnownLocked(peer, hash, Utils.currentTimeMillis());
+            inFlight.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer when it is told that the given item was not found. If the peer was the one downloading it, the
+     * download will be moved to an alternate peer at the next tick.
+     */
+    public void notFound(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            InFlightRequest request = inFlight.get(hash);
+            if (request == null)
+                return;
+            request.alternates.remove(peer);
+            if (request.peer == peer)
+                request.requestTimeMsec = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets everything about the given peer. Any transaction downloads in flight on it are immediately moved to
+     * alternate peers, if there are any.
+     */
+    public void peerDisconnected(Peer peer) {
+        Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+        List<Sha256Hash> abandoned = new ArrayList<Sha256Hash>();
+        lock.lock();
+        try {
+            known.remove(peer);
+            Iterator<Map.Entry<Sha256Hash, InFlightRequest>> it = inFlight.entrySet().iterator();
+            final long now = Utils.currentTimeMillis();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, InFlightRequest> entry = it.next();
+                InFlightRequest request = entry.getValue();
+                request.alternates.remove(peer);
+                if (request.peer == peer && !reassignLocked(entry.getKey(), request, now, getdatas)) {
+                    it.remove();
+                    abandoned.add(entry.getKey());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        forgetAll(abandoned);
+        sendAll(getdatas);
+    }
+
+    /**
+     * Moves timed out downloads to alternate peers. This is run periodically by the timer started with
+     * {@link #start()}.
+     */
+    @VisibleForTesting
+    void tick() {
+        Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+        List<Sha256Hash> abandoned = new ArrayList<Sha256Hash>();
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeMillis();
+            final long timeout = vRequestTimeoutMsec;
+            Iterator<Map.Entry<Sha256Hash, InFlightRequest>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, InFlightRequest> entry = it.next();
+                InFlightRequest request = entry.getValue();
+                if (now - request.requestTimeMsec <= timeout)
+                    continue;
+                if (!reassignLocked(entry.getKey(), request, now, getdatas)) {
+                    it.remove();
+                    abandoned.add(entry.getKey());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        forgetAll(abandoned);
+        sendAll(getdatas);
+    }
+
+    // The memory pool remembers every announced hash, and peers only ask for hashes it doesn't know, so a download
+    // nobody could complete has to be forgotten there too or the transaction would never be requested again.
+    private void forgetAll(List<Sha256Hash> abandoned) {
+        if (memoryPool == null)
+            return;
+        for (Sha256Hash hash : abandoned)
+            memoryPool.forgetAnnouncement(hash);
+    }
+
+    // Moves the request to the first alternate peer, adding it to the getdata batch for that peer. Returns false if
+    // there was nobody else to ask, in which case the caller should forget the request.
+    @GuardedBy("lock")
+    private boolean reassignLocked(Sha256Hash hash, InFlightRequest request, long nowMillis,
+                                   Map<Peer, GetDataMessage> getdatas) {
+        Iterator<Peer> it = request.alternates.iterator();
+        if (!it.hasNext()) {
+            log.info("{}: No other peer to download tx {} from, giving up", request.peer, hash);
+            return false;
+        }
+        Peer next = it.next();
+        it.remove();
+        log.info("{}: Download of tx {} stalled, asking {} instead", request.peer, hash, next);
+        request.peer = next;
+        request.requestTimeMsec = nowMillis;
+        GetDataMessage getdata = getdatas.get(next);
+        if (getdata == null) {
+            getdata = new GetDataMessage(params);
+            getdatas.put(next, getdata);
+        }
+        getdata.addTransaction(hash);
+        return true;
+    }
+
+    private void sendAll(Map<Peer, ? extends Message> messages) {
+        // Runs without the lock held, as sending can block and may call back into us.
+        for (Map.Entry<Peer, ? extends Message> entry : messages.entrySet()) {
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (Exception e) {
+                log.warn("{}: Failed to send {}: {}", entry.getKey(), entry.getValue().getClass().getSimpleName(),
+                        e.toString());
+            }
+        }
+    }
+
+    /** Returns the number of transaction downloads currently in flight across all peers. */
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how long a peer has to answer a transaction getdata before the download is moved elsewhere. */
+    public long getRequestTimeoutMsec() {
+        return vRequestTimeoutMsec;
+    }
+
+    /** See {@link #getRequestTimeoutMsec()}. */
+    public void setRequestTimeoutMsec(long requestTimeoutMsec) {
+        checkArgument(requestTimeoutMsec > 0);
+        this.vRequestTimeoutMsec = requestTimeoutMsec;
+    }
+
+    /** Returns how often stalled downloads are checked for. */
+    public long getRetryIntervalMsec() {
+        return vRetryIntervalMsec;
+    }
+
+    /** See {@link #getRetryIntervalMsec()}. Only takes effect the next time {@link #start()} is called. */
+    public void setRetryIntervalMsec(long retryIntervalMsec) {
+        checkArgument(retryIntervalMsec > 0);
+        this.vRetryIntervalMsec = retryIntervalMsec;
+    }
+}
@@ -20,16 +20,16 @@ import com.google.bitcoin.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.jcip.annotations.GuardedBy;
+
 import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +43,15 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The pool is split into independently locked segments, selected by transaction hash, so that many peer threads
+ * can update it at once without contending on a single lock. Downloaded transactions are held strongly, as
+ * {@link CompactTransaction}s, until the total serialized size of such transactions exceeds a memory budget. After
+ * that the oldest transactions are demoted to weak references so they stay around only as long as something else
+ * (like a wallet) cares about them.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -71,18 +76,62 @@ public class MemoryPool {
         // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
         // allowing us to delete the associated entry (the tx itself has already gone away).
         WeakTransactionReference tx;
+        // Whilst the segment is within its memory budget we also pin the transaction, so it survives even if nothing
+        // else is interested in it yet. It's pinned in compact form, which is a fraction of the size of the object,
+        // and recreated from that if the object is garbage collected. Null once demoted.
+        CompactTransaction strongTx;
+        // The serialized size of strongTx, counted against the budget.
+        int strongSize;
+        // The peers that announced strongTx, as its confidence goes along with the object, so that the count can be
+        // restored if it has to be recreated. Null once demoted.
+        Set<PeerAddress> strongPeers;
+        // When the entry was created, for age based eviction.
+        long createdMsec;
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
-    // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    // One lock-striped part of the pool. A transaction always lives in the segment picked by its hash.
+    private class Segment {
+        final ReentrantLock lock = Threading.lock("mempool");
+        @GuardedBy("lock") final LinkedHashMap<Sha256Hash, Entry> memoryPool;
+        // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
+        // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool
+        // entries corresponding to expired transactions. In this way memory usage of the system is in line with
+        // however many transactions you actually care to track the confidence of. We can still end up with lots of
+        // hashes being stored if our peers flood us with invs but the size param caps this.
+        final ReferenceQueue<Transaction> referenceQueue = new ReferenceQueue<Transaction>();
+        @GuardedBy("lock") long strongBytes;
+
+        Segment(final int maxEntries) {
+            memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+                    // of some kind of DoS attack.
+                    if (size() > maxEntries) {
+                        strongBytes -= entry.getValue().strongSize;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private final Segment[] segments;
+    private final long maxSegmentBytes;
+    private volatile long vMaxAgeMsec = DEFAULT_MAX_AGE_MSEC;
 
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
+    /** The default budget, in bytes of serialized transactions, for transactions kept with strong references. */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    /** The default number of independently locked segments. */
+    public static final int DEFAULT_CONCURRENCY = 16;
+    /** By default entries older than this are forgotten once the segment they are in is next modified. */
+    public static final long DEFAULT_MAX_AGE_MSEC = 2 * 60 * 60 * 1000;
+
+    // Don't bother splitting tiny pools, as the per segment bound would become too coarse.
+    private static final int MIN_ENTRIES_PER_SEGMENT = 64;
 
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
@@ -90,15 +139,7 @@ public class MemoryPool {
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<Transaction>();
+        this(size, DEFAULT_MAX_BYTES, DEFAULT_CONCURRENCY);
     }
 
     /**
@@ -109,35 +150,119 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    /**
+     * Creates a memory pool split into (up to) the given number of segments.
+     *
+     * @param size Max number of transactions and announced hashes to track.
+     * @param maxBytes How many bytes of serialized transactions to keep strongly referenced. Zero means that only weak
+     *                 references are kept, so transactions nothing else cares about are forgotten quickly.
+     * @param concurrency How many peer threads are expected to use the pool at once. It's rounded down to a power of
+     *                    two and may be reduced further for small pools.
+     */
+    public MemoryPool(int size, long maxBytes, int concurrency) {
+        checkArgument(size > 0);
+        checkArgument(maxBytes >= 0);
+        checkArgument(concurrency > 0);
+        int numSegments = Integer.highestOneBit(Math.max(1, Math.min(concurrency, size / MIN_ENTRIES_PER_SEGMENT)));
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            // Spread any remainder over the first segments so the total is exactly size.
+            segments[i] = new Segment(size / numSegments + (i < size % numSegments ? 1 : 0));
+        }
+        maxSegmentBytes = maxBytes / numSegments;
+    }
+
+    private Segment segmentFor(Sha256Hash hash) {
+        // Hashes are effectively random so any bits will do.
+        return segments[(hash.hashCode() & 0x7fffffff) % segments.length];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * are relevant to any of our wallets. Also forgets about entries that are too old.
      */
-    private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
+    private void cleanPool(Segment segment) {
+        checkState(segment.lock.isHeldByCurrentThread());
+        Reference<? extends Transaction> ref;
+        while ((ref = segment.referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed. The entry may
+            // have been replaced since, in which case leave it alone, and if the transaction is pinned it can be
+            // recreated so the entry stays.
+            Entry entry = segment.memoryPool.get(txRef.hash);
+            if (entry != null && entry.tx == txRef && entry.strongTx == null)
+                segment.memoryPool.remove(txRef.hash);
+        }
+        // Entries are in insertion order, so the oldest are first.
+        final long cutoff = Utils.currentTimeMillis() - vMaxAgeMsec;
+        Iterator<Entry> it = segment.memoryPool.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.createdMsec >= cutoff)
+                break;
+            segment.strongBytes -= entry.strongSize;
+            it.remove();
+        }
+    }
+
+    // Pins the transaction in the entry with a strong reference, then if that puts the segment over budget, demotes
+    // other entries to weak references until it's back under.
+    private void holdStrongly(Segment segment, Entry entry, Transaction tx) {
+        checkState(segment.lock.isHeldByCurrentThread());
+        if (maxSegmentBytes == 0 || entry.strongTx != null)
+            return;
+        entry.strongTx = CompactTransaction.of(tx);
+        entry.strongSize = entry.strongTx.getMessageSize();
+        entry.strongPeers = new HashSet<PeerAddress>();
+        for (ListIterator<PeerAddress> it = tx.getConfidence().getBroadcastBy(); it.hasNext(); )
+            entry.strongPeers.add(it.next());
+        segment.strongBytes += entry.strongSize;
+        if (segment.strongBytes <= maxSegmentBytes)
+            return;
+        // Entries are in insertion order, so the oldest are demoted first.
+        Iterator<Entry> it = segment.memoryPool.values().iterator();
+        while (it.hasNext() && segment.strongBytes > maxSegmentBytes) {
+            Entry e = it.next();
+            if (e.strongTx == null || e == entry)
+                continue;
+            segment.strongBytes -= e.strongSize;
+            e.strongTx = null;
+            e.strongSize = 0;
+            e.strongPeers = null;
+            // If the object was already collected there's nothing left to track.
+            if (e.tx.get() == null)
+                it.remove();
         }
     }
 
+    // Returns the transaction of an entry that has been downloaded, recreating it from its compact form if it was
+    // garbage collected whilst pinned, or null if it's gone.
+    @Nullable
+    private Transaction getTransaction(Segment segment, Entry entry) {
+        checkState(segment.lock.isHeldByCurrentThread());
+        Transaction tx = entry.tx.get();
+        if (tx != null || entry.strongTx == null)
+            return tx;
+        tx = entry.strongTx.toTransaction();
+        entry.tx = new WeakTransactionReference(tx, segment.referenceQueue);
+        TransactionConfidence confidence = tx.getConfidence();
+        for (PeerAddress address : entry.strongPeers)
+            confidence.markBroadcastBy(address);
+        return tx;
+    }
+
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        final Segment segment = segmentFor(txHash);
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            cleanPool(segment);
+            Entry entry = segment.memoryPool.get(txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
@@ -145,13 +270,16 @@ public class MemoryPool {
                 // We've seen at least one peer announce with an inv.
                 checkNotNull(entry.addresses);
                 return entry.addresses.size();
+            } else if (entry.tx.get() == null && entry.strongTx != null) {
+                // Collected but still pinned, so the peers are remembered in the entry.
+                return entry.strongPeers.size();
             } else {
                 final Transaction tx = entry.tx.get();
                 if (tx == null) {
                     // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
                     // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
                     // just delete it from the map.
-                    memoryPool.remove(txHash);
+                    segment.memoryPool.remove(txHash);
                     return 0;
                 } else {
                     checkState(entry.addresses == null);
@@ -159,7 +287,7 @@ public class MemoryPool {
                 }
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -169,10 +297,11 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        final Segment segment = segmentFor(tx.getHash());
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
+            cleanPool(segment);
+            Entry entry = segment.memoryPool.get(tx.getHash());
             if (entry != null) {
                 // This TX or its hash have been previously interned.
                 if (entry.tx != null) {
@@ -180,23 +309,28 @@ public class MemoryPool {
                     checkState(entry.addresses == null);
                     // We only want one canonical object instance for a transaction no matter how many times it is
                     // deserialized.
-                    Transaction transaction = entry.tx.get();
+                    Transaction transaction = getTransaction(segment, entry);
                     if (transaction != null) {
                         // We saw it before and kept it around. Hand back the canonical copy.
                         tx = transaction;
+                    } else {
+                        // The old copy was collected, this one becomes the canonical copy.
+                        entry.tx = new WeakTransactionReference(tx, segment.referenceQueue);
+                        holdStrongly(segment, entry, tx);
                     }
                     return tx;
                 } else {
                     // We received a transaction that we have previously seen announced but not downloaded until now.
                     checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
+                    entry.tx = new WeakTransactionReference(tx, segment.referenceQueue);
                     Set<PeerAddress> addrs = entry.addresses;
                     entry.addresses = null;
+                    holdStrongly(segment, entry, tx);
                     TransactionConfidence confidence = tx.getConfidence();
                     log.debug("Adding tx [{}] {} to the memory pool",
                             confidence.numBroadcastPeers(), tx.getHashAsString());
                     for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
+                        markBroadcast(segment, entry, a, tx);
                     }
                     return tx;
                 }
@@ -205,12 +339,14 @@ public class MemoryPool {
                 // dependencies of a relevant transaction (see Peer.downloadDependencies).
                 log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
                 entry = new Entry();
-                entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                entry.createdMsec = Utils.currentTimeMillis();
+                entry.tx = new WeakTransactionReference(tx, segment.referenceQueue);
+                segment.memoryPool.put(tx.getHash(), entry);
+                holdStrongly(segment, entry, tx);
                 return tx;
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -221,13 +357,14 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        final Segment segment = segmentFor(tx.getHash());
+        segment.lock.lock();
         try {
             final Transaction interned = intern(tx);
-            markBroadcast(byPeer, interned);
+            markBroadcast(segment, segment.memoryPool.get(interned.getHash()), byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -236,19 +373,23 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        final Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            cleanPool(segment);
+            Entry entry = segment.memoryPool.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
                     checkState(entry.addresses == null);
                     Transaction tx = entry.tx.get();
                     if (tx != null) {
-                        markBroadcast(byPeer, tx);
+                        markBroadcast(segment, entry, byPeer, tx);
                         log.debug("{}: Peer announced transaction we have seen before [{}] {}",
                                 byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
+                    } else if (entry.strongTx != null) {
+                        // Collected but still pinned. The peer is counted when the transaction is next recreated.
+                        entry.strongPeers.add(byPeer);
                     } else {
                         // The inv is telling us about a transaction that we previously downloaded, and threw away
                         // because nothing found it interesting enough to keep around. So do nothing.
@@ -262,19 +403,22 @@ public class MemoryPool {
             } else {
                 // This TX has never been seen before.
                 entry = new Entry();
+                entry.createdMsec = Utils.currentTimeMillis();
                 // TODO: Using hashsets here is inefficient compared to just having an array.
                 entry.addresses = new HashSet<PeerAddress>();
                 entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                segment.memoryPool.put(hash, entry);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
-    private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+    private void markBroadcast(Segment segment, @Nullable Entry entry, PeerAddress byPeer, Transaction tx) {
+        checkState(segment.lock.isHeldByCurrentThread());
+        if (entry != null && entry.strongTx != null)
+            entry.strongPeers.add(byPeer);
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -283,21 +427,20 @@ public class MemoryPool {
     /**
      * Returns the {@link Transaction} for the given hash if we have downloaded it, or null if that hash is unknown or
      * we only saw advertisements for it yet or it has been downloaded but garbage collected due to nowhere else
-     * holding a reference to it.
+     * holding a reference to it. A transaction that is still within the strong reference budget is recreated if it
+     * was collected, with the same broadcast peers, though it will be a different object to the one seen before.
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        final Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = segment.memoryPool.get(hash);
             if (entry == null) return null;  // Unknown.
             if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            return getTransaction(segment, entry);  // Null if it was downloaded but garbage collected.
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -307,12 +450,68 @@ public class MemoryPool {
      * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        final Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = segment.memoryPool.get(hash);
             return entry != null;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets that the given hash was announced, if the transaction itself was never downloaded, so that
+     * {@link #maybeWasSeen(Sha256Hash)} returns false for it again. Used when no peer could deliver the transaction.
+     */
+    void forgetAnnouncement(Sha256Hash hash) {
+        final Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            Entry entry = segment.memoryPool.get(hash);
+            if (entry != null && entry.tx == null)
+                segment.memoryPool.remove(hash);
+        } finally {
+            segment.lock.unlock();
         }
     }
+
+    /** Returns the number of hashes and transactions currently tracked across all segments. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.memoryPool.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the total serialized size of the transactions currently held with strong references. */
+    public long getStrongBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                bytes += segment.strongBytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns how long entries are remembered before being forgotten regardless of how full the pool is. */
+    public long getMaxAgeMsec() {
+        return vMaxAgeMsec;
+    }
+
+    /** See {@link MemoryPool#getMaxAgeMsec()}. */
+    public void setMaxAgeMsec(long maxAgeMsec) {
+        checkArgument(maxAgeMsec > 0);
+        this.vMaxAgeMsec = maxAgeMsec;
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.base.Throwables;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the Merkle root of a block's transactions.</p>
+ *
+ * <p>The root is based on a tree of hashes calculated from the transactions:</p>
+ *
+ * <pre>
+ *     root
+ *      / \
+ *   A      B
+ *  / \    / \
+ * t1 t2 t3 t4
+ * </pre>
+ *
+ * <p>The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
+ * The interior nodes are hashes of the concatenation of the two child hashes. If a level has an odd number of nodes
+ * the last one is paired with itself, so a tree with 5 transactions looks like this:</p>
+ *
+ * <pre>
+ *         root
+ *        /     \
+ *       1        5
+ *     /   \     / \
+ *    2     3    4  4
+ *  / \   / \   / \
+ * t1 t2 t3 t4 t5 t5
+ * </pre>
+ *
+ * <p>The nodes of each level are kept next to each other in a single flat array, in the byte order they are hashed
+ * in, so nothing is allocated per node and bytes are only reversed once at each end. Each thread hashes with a digest
+ * of its own, and levels large enough to make it worthwhile are split between threads of
+ * {@link Threading#THREAD_POOL}.</p>
+ */
+public final class MerkleHasher {
+    private static final int HASH_LENGTH = 32;
+    // Below this many nodes per thread, handing work to other threads costs more than it saves.
+    private static final int MIN_NODES_PER_THREAD = 512;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+    };
+
+    private MerkleHasher() {}
+
+    /** Returns the Merkle root of the given transactions, which must not be empty. */
+    public static Sha256Hash calculateRoot(List<Transaction> transactions) {
+        int count = transactions.size();
+        checkArgument(count > 0);
+        byte[] nodes = allocate(count);
+        for (int i = 0; i < count; i++) {
+            // Hashes are displayed (and so stored) the other way around to how they are hashed.
+            byte[] hash = transactions.get(i).getHash().getBytes();
+            int offset = i * HASH_LENGTH;
+            for (int j = 0; j < HASH_LENGTH; j++)
+                nodes[offset + j] = hash[HASH_LENGTH - 1 - j];
+        }
+        return root(nodes, count);
+    }
+
+    /**
+     * Returns the Merkle root of the transactions in the given serialized block, hashing them straight from the bytes
+     * without building {@link Transaction} objects.
+     *
+     * @param bytes a buffer holding the block.
+     * @param offset where in the buffer the block starts.
+     * @throws ProtocolException if the block has no transactions or runs off the end of the buffer.
+     */
+    public static Sha256Hash calculateRoot(byte[] bytes, int offset) throws ProtocolException {
+        return new BlockReader(bytes, offset).getMerkleRoot();
+    }
+
+    /**
+     * Returns true if the Merkle root in the header of the given serialized block matches its transactions, which are
+     * hashed straight from the bytes without building {@link Transaction} objects.
+     *
+     * @throws ProtocolException if the block has no transactions or runs off the end of the buffer.
+     */
+    public static boolean verifyRoot(byte[] bytes, int offset) throws ProtocolException {
+        byte[] root = calculateRoot(bytes, offset).getBytes();
+        // The root in the header comes after the version and previous block hash, in hashing order.
+        int rootOffset = offset + 4 + HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (bytes[rootOffset + i] != root[HASH_LENGTH - 1 - i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hashes each of the given serialized transactions, the i'th of which runs from starts[i] to starts[i + 1], into
+     * an array of hashes in the order they are hashed.
+     */
+    static byte[] hashTransactions(final byte[] bytes, final int[] starts, int count) {
+        final byte[] hashes = new byte[count * HASH_LENGTH];
+        forEachRange(count, new Range() {
+            @Override
+            public void run(int from, int to) {
+                MessageDigest digest = digests.get();
+                for (int i = from; i < to; i++) {
+                    digest.update(bytes, starts[i], starts[i + 1] - starts[i]);
+                    finishDoubleDigest(digest, hashes, i * HASH_LENGTH);
+                }
+            }
+        });
+        return hashes;
+    }
+
+    /** Returns the Merkle root of the given leaves, which are in the order they are hashed. */
+    static Sha256Hash calculateRootOfHashes(byte[] leaves, int count) {
+        checkArgument(count > 0);
+        byte[] nodes = allocate(count);
+        System.arraycopy(leaves, 0, nodes, 0, count * HASH_LENGTH);
+        return root(nodes, count);
+    }
+
+    // Room for the leaves, followed by room for the level above them. Each level is hashed into the other half from
+    // the one below it, so threads never write over nodes another thread has yet to read.
+    private static byte[] allocate(int count) {
+        return new byte[(count + (count + 1) / 2) * HASH_LENGTH];
+    }
+
+    private static Sha256Hash root(final byte[] nodes, int count) {
+        final int upperStart = count * HASH_LENGTH;
+        int from = 0;
+        while (count > 1) {
+            final int levelSize = count, in = from, out = from == 0 ? upperStart : 0;
+            count = (count + 1) / 2;
+            forEachRange(count, new Range() {
+                @Override
+                public void run(int start, int end) {
+                    MessageDigest digest = digests.get();
+                    for (int i = start; i < end; i++) {
+                        int left = 2 * i;
+                        // The right hand node is the same as the left hand when there's an odd number of nodes.
+                        int right = Math.min(left + 1, levelSize - 1);
+                        digest.update(nodes, in + left * HASH_LENGTH, HASH_LENGTH);
+                        digest.update(nodes, in + right * HASH_LENGTH, HASH_LENGTH);
+                        finishDoubleDigest(digest, nodes, out + i * HASH_LENGTH);
+                    }
+                }
+            });
+            from = out;
+        }
+        byte[] root = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++)
+            root[i] = nodes[from + HASH_LENGTH - 1 - i];
+        return new Sha256Hash(root);
+    }
+
+    // Completes the first hash of whatever was fed to the digest into the given place, then hashes it again there.
+    private static void finishDoubleDigest(MessageDigest digest, byte[] out, int offset) {
+        try {
+            digest.digest(out, offset, HASH_LENGTH);
+            digest.update(out, offset, HASH_LENGTH);
+            digest.digest(out, offset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    // Runs the given range over [0, count), split between this thread and the pool if there's enough to do.
+    private static void forEachRange(int count, final Range range) {
+        int threads = Math.min(THREADS, count / MIN_NODES_PER_THREAD);
+        if (threads <= 1) {
+            range.run(0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+        int perThread = (count + threads - 1) / threads;
+        for (int start = perThread; start < count; start += perThread) {
+            final int from = start, to = Math.min(count, start + perThread);
+            futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    range.run(from, to);
+                }
+            }));
+        }
+        range.run(0, perThread);
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
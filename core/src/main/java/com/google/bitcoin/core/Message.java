@@ -52,7 +52,9 @@ public abstract class Message implements Serializable {
     // The raw message bytes themselves.
     protected transient byte[] bytes;
 
-    protected transient boolean parsed = false;
+    // Volatile so that once a lazy parse has finished, other threads can see so and read the parsed fields without
+    // taking the lock. See maybeParse().
+    protected transient volatile boolean parsed = false;
     protected transient boolean recached = false;
     protected transient final boolean parseLazy;
     protected transient final boolean parseRetain;
@@ -175,7 +177,16 @@ public abstract class Message implements Serializable {
      * Ensure the object is parsed if needed.  This should be called in every getter before returning a value.
      * If the lazy parse flag is not set this is a method returns immediately.
      */
-    protected synchronized void maybeParse() {
+    protected void maybeParse() {
+        // Messages are parsed at most once, so after the first time this is a read of the volatile flag, which also
+        // makes everything parse() wrote visible to this thread. Only the thread that does the parse, and any that
+        // arrive whilst it's doing so, take the lock.
+        if (parsed)
+            return;
+        parseOnce();
+    }
+
+    private synchronized void parseOnce() {
         if (parsed || bytes == null)
             return;
         try {
@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.ListenerRegistration;
+import com.google.bitcoin.utils.RateMeter;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
@@ -32,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -39,6 +41,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -88,6 +91,9 @@ public class Peer extends PeerSocketHandler {
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Coordinates transaction downloads with our other peers and remembers what inventory this peer already has. Set
+    // by the PeerGroup, may be null if this peer is used on its own.
+    @Nullable private volatile InventoryManager vInventoryManager;
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
     // A time before which we only download block headers, after that point we download block bodies.
@@ -116,6 +122,19 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    /** How many filtered blocks are requested from the peer at once during chain download, unless set otherwise. */
+    public static final int DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT = 200;
+    // A getblocks reply of this many blocks means the peer has more after them.
+    private static final int MAX_GETBLOCKS_INV_SIZE = 500;
+    private volatile int vMaxFilteredBlocksInFlight = DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT;
+    // Filtered blocks we were told about but didn't ask for yet because enough were already in flight. These are in
+    // pendingBlockDownloads too, so they aren't queued twice.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> filteredBlockQueue = new LinkedList<Sha256Hash>();
+    // Filtered blocks we asked for that didn't arrive yet.
+    @GuardedBy("lock") private final HashSet<Sha256Hash> filteredBlocksInFlight = new HashSet<Sha256Hash>();
+    // The last block of a full getblocks reply that is still in filteredBlockQueue. When it is requested, we ask for
+    // the next batch so its inv arrives whilst the window is still draining.
+    @Nullable @GuardedBy("lock") private Sha256Hash filteredBatchEnd;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -136,6 +155,27 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    /** How far back in time {@link #getBlocksPerSecond()} and {@link #getBytesPerSecond()} are averaged over. */
+    public static final long THROUGHPUT_WINDOW_MSEC = 20 * 1000;
+    // How fast chain data and raw bytes are arriving from this peer. PeerGroup uses these to notice a download peer
+    // that stalled or slowed down.
+    private final RateMeter blocksReceived = new RateMeter(THROUGHPUT_WINDOW_MSEC, 20);
+    private final RateMeter bytesReceived = new RateMeter(THROUGHPUT_WINDOW_MSEC, 20);
+    // When each block in pendingBlockDownloads was asked for, and how long the last few took to arrive. Entries are
+    // dropped along with the rest of the download state, or oldest first once there are too many, so requests that
+    // are never answered don't pile up.
+    private static final int MAX_BLOCK_REQUEST_TIMES = 1000;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Long> blockRequestTimes =
+            new LinkedHashMap<Sha256Hash, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Long> eldest) {
+                    return size() > MAX_BLOCK_REQUEST_TIMES;
+                }
+            };
+    private final ReentrantLock lastGetDataTimesLock = new ReentrantLock();
+    @GuardedBy("lastGetDataTimesLock") private long[] lastGetDataTimes = null;
+    private static final int GETDATA_MOVING_AVERAGE_WINDOW = 20;
+
     private volatile VersionMessage vPeerVersionMessage;
     private boolean isAcked;
 
@@ -316,9 +356,8 @@ public class Peer extends PeerSocketHandler {
         } else if (m instanceof GetDataMessage) {
             processGetData((GetDataMessage) m);
         } else if (m instanceof AddressMessage) {
-            // We don't care about addresses of the network right now. But in future,
-            // we should save them in the wallet so we don't put too much load on the seed nodes and can
-            // properly explore the network.
+            // Nothing to do here: a PeerGroup with a PeerAddressManager picks these up via its pre-message
+            // listener and remembers them, so we don't put too much load on the seed nodes next time.
         } else if (m instanceof HeadersMessage) {
             processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
@@ -411,6 +450,22 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        final InventoryManager inventory = vInventoryManager;
+        if (inventory != null) {
+            for (InventoryItem item : m.getItems())
+                inventory.notFound(this, item.hash);
+        }
+        lock.lock();
+        try {
+            for (InventoryItem item : m.getItems()) {
+                if (item.type == InventoryItem.Type.Block || item.type == InventoryItem.Type.FilteredBlock) {
+                    blockRequestTimes.remove(item.hash);
+                    filteredBlocksInFlight.remove(item.hash);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -461,6 +516,8 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        if (vDownloadData)
+            blocksReceived.record(m.getBlockHeaders().size());
         try {
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
@@ -543,6 +600,9 @@ public class Peer extends PeerSocketHandler {
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
+            final InventoryManager inventory = vInventoryManager;
+            if (inventory != null)
+                inventory.received(this, tx.getHash());
             if (memoryPool != null) {
                 // We may get back a different transaction object.
                 tx = memoryPool.seen(tx, getAddress());
@@ -564,6 +624,8 @@ public class Peer extends PeerSocketHandler {
                 // fully downloaded instead.
                 return;
             }
+            if (blockChain != null)
+                blockChain.transactionRelayed(fTx);
             // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
             for (final Wallet wallet : wallets) {
                 try {
@@ -774,6 +836,9 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast block {}", getAddress(), m.getHashAsString());
         }
+        final InventoryManager inventory = vInventoryManager;
+        if (inventory != null)
+            inventory.received(this, m.getHash());
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m)) return;
         if (blockChain == null) {
@@ -783,9 +848,11 @@ public class Peer extends PeerSocketHandler {
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
+            forgetBlockRequest(m.getHash());
             return;
         }
         pendingBlockDownloads.remove(m.getHash());
+        blockDownloaded(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -838,6 +905,7 @@ public class Peer extends PeerSocketHandler {
         }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
+            forgetBlockRequest(m.getHash());
             return;
         }
         if (blockChain == null) {
@@ -848,6 +916,18 @@ public class Peer extends PeerSocketHandler {
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
         pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        blockDownloaded(m.getBlockHeader().getHash());
+        // Ask for more before adding this one to the chain, so the peer is sending whilst we process.
+        List<Message> requests;
+        lock.lock();
+        try {
+            filteredBlocksInFlight.remove(m.getBlockHeader().getHash());
+            requests = requestFilteredBlocksLocked();
+        } finally {
+            lock.unlock();
+        }
+        for (Message message : requests)
+            sendMessage(message);
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -952,6 +1032,7 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        final InventoryManager inventory = vInventoryManager;
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -973,6 +1054,8 @@ public class Peer extends PeerSocketHandler {
         while (it.hasNext()) {
             InventoryItem item = it.next();
             if (memoryPool == null) {
+                if (inventory != null)
+                    inventory.markKnown(this, item.hash);
                 if (downloadData) {
                     // If there's no memory pool only download transactions if we're configured to.
                     getdata.addItem(item);
@@ -983,8 +1066,12 @@ public class Peer extends PeerSocketHandler {
                 // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
                 // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
                 // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-                // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-                if (memoryPool.maybeWasSeen(item.hash)) {
+                // sending us the transaction, unless an InventoryManager is set: it remembers which other peers
+                // announced the tx and moves the download to one of them if this one stalls.
+                final boolean seenBefore = memoryPool.maybeWasSeen(item.hash);
+                final boolean download = inventory == null ? !seenBefore :
+                        inventory.shouldRequestTransaction(this, item.hash, seenBefore);
+                if (!download) {
                     // Some other peer already announced this so don't download.
                     it.remove();
                 } else {
@@ -996,9 +1083,8 @@ public class Peer extends PeerSocketHandler {
             }
         }
 
-        // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
-        // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
-        boolean pingAfterGetData = false;
+        // Filtered blocks are queued and requested a window at a time, see requestFilteredBlocksLocked.
+        List<Message> filteredBlockRequests = Collections.emptyList();
 
         lock.lock();
         try {
@@ -1027,15 +1113,20 @@ public class Peer extends PeerSocketHandler {
                         // it's better to be safe here.
                         if (!pendingBlockDownloads.contains(item.hash)) {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
-                                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, item.hash));
-                                pingAfterGetData = true;
+                                filteredBlockQueue.add(item.hash);
                             } else {
                                 getdata.addItem(item);
+                                blockRequestTimes.put(item.hash, Utils.currentTimeMillis());
                             }
                             pendingBlockDownloads.add(item.hash);
                         }
                     }
                 }
+                if (!filteredBlockQueue.isEmpty()) {
+                    if (blocks.size() >= MAX_GETBLOCKS_INV_SIZE)
+                        filteredBatchEnd = filteredBlockQueue.getLast();
+                    filteredBlockRequests = requestFilteredBlocksLocked();
+                }
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
                 // peer to advertize the head block to us in a single-item inv. When we download THAT, it will be an
                 // orphan block, meaning we'll re-enter blockChainDownloadLocked() to trigger another getblocks between the
@@ -1051,8 +1142,69 @@ public class Peer extends PeerSocketHandler {
             sendMessage(getdata);
         }
 
-        if (pingAfterGetData)
-            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        for (Message message : filteredBlockRequests)
+            sendMessage(message);
+    }
+
+    // Tops up the filtered blocks in flight from filteredBlockQueue, once no more than half the window is left. Returns
+    // the messages to send after the lock is released, in this order:
+    //  - A getdata for the blocks.
+    //  - A ping. The transactions matching a filtered block follow it with no marker at the end, so the last block of
+    //    a batch would otherwise sit in currentFilteredBlock until the next batch arrives. The pong closes it.
+    //  - If the last block of a full getblocks reply was requested, a getblocks for the next batch. The peer answers
+    //    whilst we are still receiving and processing this one, rather than after the whole round trip.
+    @GuardedBy("lock")
+    private List<Message> requestFilteredBlocksLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vDownloadData) {
+            // We aren't the download peer any more, so forget what we were going to ask for.
+            pendingBlockDownloads.removeAll(filteredBlockQueue);
+            filteredBlockQueue.clear();
+            blockRequestTimes.keySet().removeAll(filteredBlocksInFlight);
+            filteredBlocksInFlight.clear();
+            filteredBatchEnd = null;
+            return Collections.emptyList();
+        }
+        final int maxInFlight = vMaxFilteredBlocksInFlight;
+        if (filteredBlockQueue.isEmpty() || filteredBlocksInFlight.size() > maxInFlight / 2)
+            return Collections.emptyList();
+        List<Message> messages = new ArrayList<Message>(3);
+        GetDataMessage getdata = new GetDataMessage(params);
+        final long now = Utils.currentTimeMillis();
+        boolean batchEndRequested = false;
+        while (!filteredBlockQueue.isEmpty() && filteredBlocksInFlight.size() < maxInFlight) {
+            Sha256Hash hash = filteredBlockQueue.poll();
+            getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
+            filteredBlocksInFlight.add(hash);
+            blockRequestTimes.put(hash, now);
+            if (hash.equals(filteredBatchEnd))
+                batchEndRequested = true;
+        }
+        messages.add(getdata);
+        messages.add(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        if (batchEndRequested) {
+            List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+            locator.add(filteredBatchEnd);
+            locator.addAll(buildBlockLocatorLocked());
+            messages.add(new GetBlocksMessage(params, locator, Sha256Hash.ZERO_HASH));
+            filteredBatchEnd = null;
+        }
+        return messages;
+    }
+
+    /**
+     * Sets how many filtered blocks may be requested from the peer at once during chain download. More blocks in
+     * flight keep a high latency link busy, at the cost of the peer buffering more data for us. Defaults to
+     * {@link Peer#DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT}.
+     */
+    public void setMaxFilteredBlocksInFlight(int maxFilteredBlocksInFlight) {
+        checkArgument(maxFilteredBlocksInFlight > 0);
+        this.vMaxFilteredBlocksInFlight = maxFilteredBlocksInFlight;
+    }
+
+    /** Returns the value set by {@link Peer#setMaxFilteredBlocksInFlight(int)}. */
+    public int getMaxFilteredBlocksInFlight() {
+        return vMaxFilteredBlocksInFlight;
     }
 
     /**
@@ -1179,6 +1331,34 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
+        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        // Did we already make this request? If so, don't do it again.
+        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
+            return;
+        }
+        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
+                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+        List<Sha256Hash> blockLocator = buildBlockLocatorLocked();
+
+        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
+        // block being solved during chain download.
+        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksEnd = toHash;
+
+        if (downloadBlockBodies) {
+            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        } else {
+            // Downloading headers for a while instead of full blocks.
+            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildBlockLocatorLocked() {
         // TODO: Block locators should be abstracted out rather than special cased here.
         List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
         // For now we don't do the exponential thinning as suggested here:
@@ -1189,16 +1369,7 @@ public class Peer extends PeerSocketHandler {
         // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
         // must always put the genesis block as the first entry.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
-        // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
-            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
-            return;
-        }
-        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
+        StoredBlock cursor = blockChain.getChainHead();
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
             try {
@@ -1212,20 +1383,7 @@ public class Peer extends PeerSocketHandler {
         if (cursor != null) {
             blockLocator.add(params.getGenesisBlock().getHash());
         }
-
-        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
-        // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
-        lastGetBlocksEnd = toHash;
-
-        if (downloadBlockBodies) {
-            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        } else {
-            // Downloading headers for a while instead of full blocks.
-            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        }
+        return blockLocator;
     }
 
     /**
@@ -1249,6 +1407,9 @@ public class Peer extends PeerSocketHandler {
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
+                // An explicit start isn't a duplicate, even if we asked this peer the same thing before: we may be
+                // coming back to it after another download peer stalled.
+                lastGetBlocksBegin = null;
                 blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
             } finally {
                 lock.unlock();
@@ -1284,21 +1445,99 @@ public class Peer extends PeerSocketHandler {
     private void addPingTimeData(long sample) {
         lastPingTimesLock.lock();
         try {
-            if (lastPingTimes == null) {
-                lastPingTimes = new long[PING_MOVING_AVERAGE_WINDOW];
-                // Initialize the averaging window to the first sample.
-                Arrays.fill(lastPingTimes, sample);
-            } else {
-                // Shift all elements backwards by one.
-                System.arraycopy(lastPingTimes, 1, lastPingTimes, 0, lastPingTimes.length - 1);
-                // And append the new sample to the end.
-                lastPingTimes[lastPingTimes.length - 1] = sample;
-            }
+            lastPingTimes = addToWindow(lastPingTimes, PING_MOVING_AVERAGE_WINDOW, sample);
         } finally {
             lastPingTimesLock.unlock();
         }
     }
 
+    private static long[] addToWindow(@Nullable long[] window, int size, long sample) {
+        if (window == null) {
+            window = new long[size];
+            // Initialize the averaging window to the first sample.
+            Arrays.fill(window, sample);
+        } else {
+            // Shift all elements backwards by one.
+            System.arraycopy(window, 1, window, 0, window.length - 1);
+            // And append the new sample to the end.
+            window[window.length - 1] = sample;
+        }
+        return window;
+    }
+
+    // Runs on the network thread when a block or filtered block arrives that is relevant to chain download.
+    private void blockDownloaded(Sha256Hash hash) {
+        blocksReceived.record(1);
+        Long requestTime = forgetBlockRequest(hash);
+        if (requestTime == null)
+            return;
+        lastGetDataTimesLock.lock();
+        try {
+            lastGetDataTimes = addToWindow(lastGetDataTimes, GETDATA_MOVING_AVERAGE_WINDOW,
+                    Utils.currentTimeMillis() - requestTime);
+        } finally {
+            lastGetDataTimesLock.unlock();
+        }
+    }
+
+    // Returns when the given block was asked for, if it's still remembered, and forgets it.
+    @Nullable
+    private Long forgetBlockRequest(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return blockRequestTimes.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        int consumed = super.receiveBytes(buff);
+        if (consumed > 0)
+            bytesReceived.record(consumed);
+        return consumed;
+    }
+
+    /**
+     * Returns how many blocks per second this peer delivered for chain download, averaged over the last
+     * {@link #THROUGHPUT_WINDOW_MSEC} milliseconds. Block headers received during fast catchup count as blocks.
+     */
+    public double getBlocksPerSecond() {
+        return blocksReceived.getRatePerSecond();
+    }
+
+    /** Returns how many bytes per second were received from this peer, over the last {@link #THROUGHPUT_WINDOW_MSEC}. */
+    public double getBytesPerSecond() {
+        return bytesReceived.getRatePerSecond();
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch that this peer last delivered a block or headers for chain
+     * download, or zero if it never did.
+     */
+    public long getLastBlockReceivedTime() {
+        return blocksReceived.getLastRecordTime();
+    }
+
+    /**
+     * Returns a moving average of how long it took between us requesting a block with getdata as part of chain
+     * download and it arriving, in milliseconds. If no requested block arrived yet, returns {@link Long#MAX_VALUE}.
+     * Unlike the ping time this includes transfer time, so it reflects the bandwidth of the peer as well as latency.
+     */
+    public long getGetDataTime() {
+        lastGetDataTimesLock.lock();
+        try {
+            if (lastGetDataTimes == null)
+                return Long.MAX_VALUE;
+            long sum = 0;
+            for (long i : lastGetDataTimes) sum += i;
+            return (long)((double) sum / lastGetDataTimes.length);
+        } finally {
+            lastGetDataTimesLock.unlock();
+        }
+    }
+
     /**
      * Sends the peer a ping message and returns a future that will be invoked when the pong is received back.
      * The future provides a number which is the number of milliseconds elapsed between the ping and the pong.
@@ -1401,6 +1640,20 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Sets the {@link InventoryManager} used to co-ordinate transaction downloads with other peers. This is done for
+     * you by {@link PeerGroup}. If none is set, a transaction is downloaded only from the first peer that announces it.
+     */
+    public void setInventoryManager(@Nullable InventoryManager inventoryManager) {
+        this.vInventoryManager = inventoryManager;
+    }
+
+    /** Returns the {@link InventoryManager} set by {@link Peer#setInventoryManager(InventoryManager)}, or null. */
+    @Nullable
+    public InventoryManager getInventoryManager() {
+        return vInventoryManager;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
       return vPeerVersionMessage;
@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.ClientConnectionManager;
 import com.google.bitcoin.net.NioClientManager;
+import com.google.bitcoin.net.discovery.PeerAddressManager;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.script.Script;
@@ -36,6 +37,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -92,11 +94,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private final CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
+    // Remembers peers across restarts and how well they performed. Consulted before the other discovery sources.
+    @Nullable private volatile PeerAddressManager vAddressManager;
+    // Position of addresses in the address manager's ranking when they were added, used to try the best ones first.
+    @GuardedBy("lock") private final Map<PeerAddress, Integer> addressRanks;
+    /** How often the address manager is saved to disk whilst running. */
+    public static final long ADDRESS_SAVE_INTERVAL_MSEC = 5 * 60 * 1000;
     // The version message to use for new connections.
     @GuardedBy("lock") private VersionMessage versionMessage;
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Co-ordinates transaction downloads between peers so each tx is only fetched once, and remembers what inventory
+    // each peer already has. It is passed to each Peer.
+    private final InventoryManager inventoryManager;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -110,6 +121,21 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
+    /**
+     * How long the download peer may go without delivering blocks or headers whilst our chain is behind, before the
+     * download is moved to another peer.
+     */
+    public static final long DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC = 30 * 1000;
+    // How often the download peer is checked for stalls, using the ping timer.
+    private static final long DOWNLOAD_CHECK_INTERVAL_MSEC = 1000;
+    @GuardedBy("lock") private long downloadStallTimeoutMsec = DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC;
+    @GuardedBy("lock") private double minDownloadBlocksPerSecond = 0;
+    // When the current download peer was selected, so it gets a fair chance before being judged.
+    @GuardedBy("lock") private long downloadPeerSelectedTime;
+    // Peers we moved the download away from because they stalled or were too slow. They won't be selected again
+    // whilst there are other peers to choose from.
+    @GuardedBy("lock") private final Set<Peer> demotedDownloadPeers = new HashSet<Peer>();
+
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
@@ -124,6 +150,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             return handleGetData(m);
         }
 
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null && m instanceof AddressMessage)
+                addressManager.addAddresses(((AddressMessage) m).getAddresses());
+            return m;
+        }
+
         @Override
         public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
             double rate = checkNotNull(chain).getFalsePositiveRate();
@@ -292,11 +326,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.versionMessage = new VersionMessage(params, height, true);
 
         memoryPool = new MemoryPool();
+        inventoryManager = new InventoryManager(params, memoryPool);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
             public int compare(PeerAddress a, PeerAddress b) {
                 int result = backoffMap.get(a).compareTo(backoffMap.get(b));
+                // Prefer the peers the address manager ranked highest.
+                if (result == 0)
+                    result = Ints.compare(rankOf(a), rankOf(b));
                 // Sort by port if otherwise equals - for testing
                 if (result == 0)
                     result = Ints.compare(a.getPort(), b.getPort());
@@ -304,6 +342,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
         });
         backoffMap = new HashMap<PeerAddress, ExponentialBackoff>();
+        addressRanks = new HashMap<PeerAddress, Integer>();
         peers = new CopyOnWriteArrayList<Peer>();
         pendingPeers = new CopyOnWriteArrayList<Peer>();
         channels = connectionManager;
@@ -576,8 +615,62 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Sets a {@link PeerAddressManager} that remembers peers across restarts. It is asked for addresses before any
+     * other discovery source, so on startup connections to the fastest previously known peers begin immediately. DNS
+     * and the other sources are only queried once every remembered address is in use or backing off.</p>
+     *
+     * <p>The manager is told about connection successes, failures and ping times, learns addresses from addr
+     * messages (connected peers are asked for them with getaddr), and is saved periodically and on shutdown.</p>
+     */
+    public void setPeerAddressManager(@Nullable PeerAddressManager addressManager) {
+        lock.lock();
+        try {
+            if (addressManager != null && getMaxConnections() == 0)
+                setMaxConnections(DEFAULT_CONNECTIONS);
+            vAddressManager = addressManager;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the {@link PeerAddressManager} set by {@link #setPeerAddressManager(PeerAddressManager)}, if any. */
+    @Nullable
+    public PeerAddressManager getPeerAddressManager() {
+        return vAddressManager;
+    }
+
+    @GuardedBy("lock")
+    private int rankOf(PeerAddress address) {
+        Integer rank = addressRanks.get(address);
+        return rank == null ? Integer.MAX_VALUE : rank;
+    }
+
     protected void discoverPeers() throws PeerDiscoveryException {
         long start = System.currentTimeMillis();
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager != null) {
+            // Remembered peers never need network access to look up, so use them if any aren't in the queue yet.
+            int added = 0;
+            lock.lock();
+            try {
+                int rank = 0;
+                for (InetSocketAddress address : addressManager.getPeers(5, TimeUnit.SECONDS)) {
+                    PeerAddress peerAddress = new PeerAddress(address);
+                    addressRanks.put(peerAddress, rank++);
+                    if (!backoffMap.containsKey(peerAddress)) {
+                        addInactive(peerAddress);
+                        added++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (added > 0) {
+                log.info("Address manager provided {} peers in {}msec", added, System.currentTimeMillis() - start);
+                return;
+            }
+        }
         Set<PeerAddress> addressSet = Sets.newHashSet();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
             InetSocketAddress[] addresses;
@@ -677,6 +770,24 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                saveAddresses();
+            }
+        }, ADDRESS_SAVE_INTERVAL_MSEC, ADDRESS_SAVE_INTERVAL_MSEC);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    checkDownloadPeer();
+                } catch (Exception e) {
+                    // Don't let this kill the timer, pings are scheduled on it too.
+                    log.error("Exception whilst checking download peer", e);
+                }
+            }
+        }, DOWNLOAD_CHECK_INTERVAL_MSEC, DOWNLOAD_CHECK_INTERVAL_MSEC);
+        inventoryManager.start();
         channels.startAndWait();
         triggerConnections();
     }
@@ -685,11 +796,30 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        inventoryManager.stop();
         // Blocking close of all sockets.
         channels.stopAndWait();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
             peerDiscovery.shutdown();
         }
+        saveAddresses();
+    }
+
+    // Records the current ping times of connected peers and writes the address manager to disk.
+    private void saveAddresses() {
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager == null)
+            return;
+        for (Peer peer : peers) {
+            long pingTime = peer.getPingTime();
+            if (pingTime != Long.MAX_VALUE)
+                addressManager.recordLatency(peer.getAddress().toSocketAddress(), pingTime);
+        }
+        try {
+            addressManager.save();
+        } catch (IOException e) {
+            log.error("Failed to save peer addresses", e);
+        }
     }
 
     @Override
@@ -888,9 +1018,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         ver.time = Utils.currentTimeMillis() / 1000;
 
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
+        peer.setInventoryManager(inventoryManager);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
         pendingPeers.add(peer);
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager != null)
+            addressManager.recordAttempt(address.toSocketAddress());
 
         try {
             channels.openConnection(address.toSocketAddress(), peer);
@@ -987,7 +1121,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
             // Re-evaluate download peers.
-            Peer newDownloadPeer = selectDownloadPeer(peers);
+            Peer newDownloadPeer = selectDownloadPeer(getDownloadCandidates());
             if (downloadPeer != newDownloadPeer) {
                 setDownloadPeer(newDownloadPeer);
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
@@ -1001,11 +1135,18 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             for (ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
                 peer.addEventListenerWithoutOnDisconnect(registration.listener, registration.executor);
             }
+            // Ask for more addresses so we can connect without the seeds next time.
+            if (vAddressManager != null)
+                peer.sendMessage(new GetAddrMessage(params));
             setupPingingForNewPeer(peer);
         } finally {
             lock.unlock();
         }
 
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager != null)
+            addressManager.recordSuccess(peer.getAddress().toSocketAddress());
+
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
             registration.executor.execute(new Runnable() {
@@ -1088,6 +1229,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            downloadPeerSelectedTime = Utils.currentTimeMillis();
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null)
@@ -1110,6 +1252,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return memoryPool;
     }
 
+    /**
+     * Returns the {@link InventoryManager} created by this peer group. It makes sure each announced transaction is only
+     * downloaded from one peer at a time, and remembers which peers already have which transactions so we don't send
+     * them back.
+     */
+    public InventoryManager getInventoryManager() {
+        return inventoryManager;
+    }
+
     /**
      * Tells the PeerGroup to download only block headers before a certain time and bodies after that. Call this
      * before starting block chain download.
@@ -1150,10 +1301,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
         int numPeers = 0;
         int numConnectedPeers = 0;
+        boolean handshakeFailed;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            handshakeFailed = pendingPeers.remove(peer);
             peers.remove(peer);
+            demotedDownloadPeers.remove(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1162,7 +1315,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
-                final Peer newDownloadPeer = selectDownloadPeer(peers);
+                final Peer newDownloadPeer = selectDownloadPeer(getDownloadCandidates());
                 if (newDownloadPeer != null) {
                     setDownloadPeer(newDownloadPeer);
                     if (downloadListener != null) {
@@ -1187,7 +1340,18 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             lock.unlock();
         }
 
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager != null) {
+            InetSocketAddress socketAddress = peer.getAddress().toSocketAddress();
+            long pingTime = peer.getPingTime();
+            if (handshakeFailed)
+                addressManager.recordFailure(socketAddress);
+            else if (pingTime != Long.MAX_VALUE)
+                addressManager.recordLatency(socketAddress, pingTime);
+        }
+
         peer.removeEventListener(peerListener);
+        inventoryManager.peerDisconnected(peer);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
@@ -1204,6 +1368,60 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    // Everyone we could download from, except peers that were demoted for being slow unless that leaves nobody.
+    @GuardedBy("lock")
+    private List<Peer> getDownloadCandidates() {
+        if (demotedDownloadPeers.isEmpty())
+            return peers;
+        List<Peer> candidates = new ArrayList<Peer>(peers);
+        candidates.removeAll(demotedDownloadPeers);
+        return candidates.isEmpty() ? peers : candidates;
+    }
+
+    /**
+     * Moves the chain download to another peer if the current download peer has delivered nothing for longer than
+     * the stall timeout, or has been slower than the minimum blocks per second, whilst our chain is behind. Whatever
+     * was already downloaded is in the block chain, so the new peer picks up from where the old one stopped. This is
+     * run periodically whilst the group is running.
+     */
+    @VisibleForTesting
+    void checkDownloadPeer() {
+        lock.lock();
+        try {
+            final Peer peer = downloadPeer;
+            if (peer == null || chain == null || downloadListener == null || peers.size() < 2)
+                return;
+            // If we already have as many blocks as the network, there's nothing to wait for.
+            if (chain.getBestChainHeight() >= getMostCommonChainHeight(peers))
+                return;
+            long now = Utils.currentTimeMillis();
+            long idleMsec = now - Math.max(peer.getLastBlockReceivedTime(), downloadPeerSelectedTime);
+            String reason;
+            if (downloadStallTimeoutMsec > 0 && idleMsec > downloadStallTimeoutMsec) {
+                reason = "nothing received for " + idleMsec + "msec";
+            } else if (minDownloadBlocksPerSecond > 0 && now - downloadPeerSelectedTime > Peer.THROUGHPUT_WINDOW_MSEC
+                    && peer.getBlocksPerSecond() < minDownloadBlocksPerSecond) {
+                reason = String.format("only %.2f blocks/sec", peer.getBlocksPerSecond());
+            } else {
+                return;
+            }
+            // Pick from the other peers as getDownloadCandidates() would once this one is demoted. It's only demoted
+            // if there's somebody to switch to, as otherwise it stays the download peer.
+            List<Peer> others = new ArrayList<Peer>(peers);
+            others.remove(peer);
+            List<Peer> candidates = new ArrayList<Peer>(others);
+            candidates.removeAll(demotedDownloadPeers);
+            Peer newDownloadPeer = selectDownloadPeer(candidates.isEmpty() ? others : candidates);
+            if (newDownloadPeer == null)
+                return;
+            demotedDownloadPeers.add(peer);
+            log.warn("{}: Download peer is too slow ({}), switching to {}", peer, reason, newDownloadPeer);
+            startBlockChainDownloadFromPeer(newDownloadPeer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
@@ -1378,6 +1596,54 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Sets how long the download peer may go without delivering any blocks or headers, whilst our chain is behind the
+     * rest of the network, before the download is moved to another peer. It defaults to
+     * {@link PeerGroup#DEFAULT_DOWNLOAD_STALL_TIMEOUT_MSEC}. Setting the value to be <= 0 disables the check.
+     */
+    public void setDownloadStallTimeoutMsec(long downloadStallTimeoutMsec) {
+        lock.lock();
+        try {
+            this.downloadStallTimeoutMsec = downloadStallTimeoutMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the value set by {@link PeerGroup#setDownloadStallTimeoutMsec(long)}. */
+    public long getDownloadStallTimeoutMsec() {
+        lock.lock();
+        try {
+            return downloadStallTimeoutMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the slowest rate, in blocks per second averaged over {@link Peer#THROUGHPUT_WINDOW_MSEC}, that the download
+     * peer may deliver whilst our chain is behind. A slower peer is replaced by the best other peer, if there is one.
+     * A newly selected peer gets one full window before it is judged. Zero, the default, disables the check.
+     */
+    public void setMinDownloadBlocksPerSecond(double minDownloadBlocksPerSecond) {
+        lock.lock();
+        try {
+            this.minDownloadBlocksPerSecond = minDownloadBlocksPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the value set by {@link PeerGroup#setMinDownloadBlocksPerSecond(double)}. */
+    public double getMinDownloadBlocksPerSecond() {
+        lock.lock();
+        try {
+            return minDownloadBlocksPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
@@ -1447,6 +1713,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private static class PeerAndPing {
         Peer peer;
         long pingTime;
+        long getDataTime;
     }
 
     /**
@@ -1458,7 +1725,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Ping time, then how quickly it has answered our getdata requests.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -1484,13 +1751,17 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 PeerAndPing pap = new PeerAndPing();
                 pap.peer = peer;
                 pap.pingTime = peer.getPingTime();
+                pap.getDataTime = peer.getGetDataTime();
                 candidates2.add(pap);
             }
         }
-        // Sort by ping time.
+        // Sort by ping time, then getdata round trip time.
         Collections.sort(candidates2, new Comparator<PeerAndPing>() {
             public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                return Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
+                int result = Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
+                if (result != 0)
+                    return result;
+                return Longs.compare(peerAndPing.getDataTime, peerAndPing2.getDataTime);
             }
         });
         return candidates2.get(0).peer;
@@ -17,13 +17,17 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.script.ScriptExecutionContext;
 import com.google.bitcoin.script.ScriptOpCodes;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -34,6 +38,12 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.bitcoin.core.Utils.*;
 import static com.google.common.base.Preconditions.*;
@@ -109,6 +119,10 @@ public class Transaction extends ChildMessage implements Serializable {
     // This is an in memory helper only.
     private transient Sha256Hash hash;
 
+    // Set while the wallet builds this transaction, serializing it over and over with small changes, so that the inputs
+    // and outputs keep their serialized bytes until it's done. See setCachingChildSerializations().
+    private transient boolean cachingChildSerializations;
+
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
 
@@ -151,7 +165,7 @@ public class Transaction extends ChildMessage implements Serializable {
         inputs = new ArrayList<TransactionInput>();
         outputs = new ArrayList<TransactionOutput>();
         // We don't initialize appearsIn deliberately as it's only useful for transactions stored in the wallet.
-        length = 8; // 8 for std fields
+        length = 10; // 8 for std fields, plus a byte each for the empty input and output counts
     }
 
     public Transaction(NetworkParameters params, int version, Sha256Hash hash) {
@@ -161,7 +175,7 @@ public class Transaction extends ChildMessage implements Serializable {
         outputs = new ArrayList<TransactionOutput>();
         this.hash = hash;
         // We don't initialize appearsIn deliberately as it's only useful for transactions stored in the wallet.
-        length = 8; //8 for std fields
+        length = 10; // 8 for std fields, plus a byte each for the empty input and output counts
     }
 
     /**
@@ -210,7 +224,8 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
+            // The bytes are only read, so there's no need to copy them.
+            byte[] bits = unsafeBitcoinSerialize();
             hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
         }
         return hash;
@@ -235,17 +250,34 @@ public class Transaction extends ChildMessage implements Serializable {
      * include spent outputs or not.
      */
     BigInteger getValueSentToMe(Wallet wallet, boolean includeSpent) {
+        try {
+            return BigInteger.valueOf(valueSentToMe(wallet, includeSpent));
+        } catch (ArithmeticException e) {
+            // Only a transaction that hasn't been verified yet can get here, so add it up the slow way.
+            BigInteger v = BigInteger.ZERO;
+            for (TransactionOutput o : outputs) {
+                if (isSentToMe(o, wallet, includeSpent))
+                    v = v.add(o.getValue());
+            }
+            return v;
+        }
+    }
+
+    private long valueSentToMe(Wallet wallet, boolean includeSpent) {
         maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionOutput o : outputs) {
-            if (!o.isMineOrWatched(wallet)) continue;
-            if (!includeSpent && !o.isAvailableForSpending()) continue;
-            v = v.add(o.getValue());
+            if (isSentToMe(o, wallet, includeSpent))
+                v = Coin.add(v, Coin.longValueOf(o.getValue()));
         }
         return v;
     }
 
+    private static boolean isSentToMe(TransactionOutput o, Wallet wallet, boolean includeSpent) {
+        return o.isMineOrWatched(wallet) && (includeSpent || o.isAvailableForSpending());
+    }
+
     /*
      * If isSpent - check that all my outputs spent, otherwise check that there at least
      * one unspent.
@@ -276,6 +308,15 @@ public class Transaction extends ChildMessage implements Serializable {
         return getValueSentToMe(wallet, true);
     }
 
+    /**
+     * Calculates the sum of the outputs that are sending coins to a key in the wallet, as a {@link Coin}.
+     *
+     * @throws ArithmeticException if the sum doesn't fit in a {@link Coin}, which only an invalid transaction can do.
+     */
+    public Coin getValueSentToMeAsCoin(Wallet wallet) {
+        return Coin.valueOf(valueSentToMe(wallet, true));
+    }
+
     /**
      * Returns a map of block [hashes] which contain the transaction mapped to relativity counters, or null if this
      * transaction doesn't have that data because it's not stored in the wallet or because it has never appeared in a
@@ -345,33 +386,77 @@ public class Transaction extends ChildMessage implements Serializable {
      * @return sum in nanocoins.
      */
     public BigInteger getValueSentFromMe(Wallet wallet) throws ScriptException {
+        try {
+            return BigInteger.valueOf(valueSentFromMe(wallet));
+        } catch (ArithmeticException e) {
+            BigInteger v = BigInteger.ZERO;
+            for (TransactionInput input : inputs) {
+                TransactionOutput connected = getConnectedOutputFromMe(input, wallet);
+                if (connected != null)
+                    v = v.add(connected.getValue());
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Calculates the sum of the inputs that are spending coins with keys in the wallet, as a {@link Coin}. See
+     * {@link Transaction#getValueSentFromMe(Wallet)}.
+     *
+     * @throws ArithmeticException if the sum doesn't fit in a {@link Coin}, which only an invalid transaction can do.
+     */
+    public Coin getValueSentFromMeAsCoin(Wallet wallet) throws ScriptException {
+        return Coin.valueOf(valueSentFromMe(wallet));
+    }
+
+    private long valueSentFromMe(Wallet wallet) throws ScriptException {
         maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionInput input : inputs) {
-            // This input is taking value from a transaction in our wallet. To discover the value,
-            // we must find the connected transaction.
-            TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.spent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.pending);
-            if (connected == null)
-                continue;
-            // The connected output may be the change to the sender of a previous input sent to this wallet. In this
-            // case we ignore it.
-            if (!connected.isMineOrWatched(wallet))
-                continue;
-            v = v.add(connected.getValue());
+            TransactionOutput connected = getConnectedOutputFromMe(input, wallet);
+            if (connected != null)
+                v = Coin.add(v, Coin.longValueOf(connected.getValue()));
         }
         return v;
     }
 
+    @Nullable
+    private static TransactionOutput getConnectedOutputFromMe(TransactionInput input, Wallet wallet) {
+        // This input is taking value from a transaction in our wallet. To discover the value,
+        // we must find the connected transaction.
+        TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
+        if (connected == null)
+            connected = input.getConnectedOutput(wallet.spent);
+        if (connected == null)
+            connected = input.getConnectedOutput(wallet.pending);
+        // The connected output may be the change to the sender of a previous input sent to this wallet. In this
+        // case we ignore it.
+        if (connected == null || !connected.isMineOrWatched(wallet))
+            return null;
+        return connected;
+    }
+
     /**
      * Returns the difference of {@link Transaction#getValueSentFromMe(Wallet)} and {@link Transaction#getValueSentToMe(Wallet)}.
      */
     public BigInteger getValue(Wallet wallet) throws ScriptException {
-        return getValueSentToMe(wallet).subtract(getValueSentFromMe(wallet));
+        try {
+            return BigInteger.valueOf(Coin.subtract(valueSentToMe(wallet, true), valueSentFromMe(wallet)));
+        } catch (ArithmeticException e) {
+            return getValueSentToMe(wallet).subtract(getValueSentFromMe(wallet));
+        }
+    }
+
+    /**
+     * Returns the difference of {@link Transaction#getValueSentFromMe(Wallet)} and {@link Transaction#getValueSentToMe(Wallet)},
+     * as a {@link Coin}.
+     *
+     * @throws ArithmeticException if the difference doesn't fit in a {@link Coin}, which only an invalid transaction
+     * can do.
+     */
+    public Coin getValueAsCoin(Wallet wallet) throws ScriptException {
+        return Coin.valueOf(Coin.subtract(valueSentToMe(wallet, true), valueSentFromMe(wallet)));
     }
 
     boolean disconnectInputs() {
@@ -653,18 +738,37 @@ public class Transaction extends ChildMessage implements Serializable {
         return s.toString();
     }
 
+    /**
+     * Whether inputs and outputs keep their serialized bytes when serialized. Turning this off throws away the ones
+     * they kept, so it only costs memory while a transaction is being built.
+     */
+    void setCachingChildSerializations(boolean caching) {
+        maybeParse();
+        cachingChildSerializations = caching;
+        if (!caching) {
+            for (TransactionInput input : inputs)
+                input.dropSerialization();
+            for (TransactionOutput output : outputs)
+                output.dropSerialization();
+        }
+    }
+
+    boolean isCachingChildSerializations() {
+        return cachingChildSerializations;
+    }
+
     /**
      * Removes all the inputs from this transaction.
-     * Note that this also invalidates the length attribute
      */
     public void clearInputs() {
         unCache();
+        int removed = 0;
         for (TransactionInput input : inputs) {
             input.setParent(null);
+            removed = addLength(removed, input.length);
         }
+        adjustLength(removed == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : 1 - VarInt.sizeOf(inputs.size()) - removed);
         inputs.clear();
-        // You wanted to reserialize, right?
-        this.length = this.bitcoinSerialize().length;
     }
 
     /**
@@ -684,7 +788,9 @@ public class Transaction extends ChildMessage implements Serializable {
         unCache();
         input.setParent(this);
         inputs.add(input);
-        adjustLength(inputs.size(), input.length);
+        // The length already counts the list's length prefix, so work out the adjustment here rather than having
+        // adjustLength() assume the prefix was previously missing.
+        adjustLength(grownBy(inputs.size(), input.length));
         return input;
     }
 
@@ -721,17 +827,31 @@ public class Transaction extends ChildMessage implements Serializable {
     }
 
     /**
-     * Removes all the inputs from this transaction.
-     * Note that this also invalidates the length attribute
+     * Removes all the outputs from this transaction.
      */
     public void clearOutputs() {
         unCache();
+        int removed = 0;
         for (TransactionOutput output : outputs) {
             output.setParent(null);
+            removed = addLength(removed, output.length);
         }
+        adjustLength(removed == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : 1 - VarInt.sizeOf(outputs.size()) - removed);
         outputs.clear();
-        // You wanted to reserialize, right?
-        this.length = this.bitcoinSerialize().length;
+    }
+
+    private static int addLength(int total, int length) {
+        return total == UNKNOWN_LENGTH || length == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : total + length;
+    }
+
+    /**
+     * Returns how much adding a child of the given length to a list that now has the given size grew the serialized
+     * transaction by, including any growth of the list's length prefix.
+     */
+    private static int grownBy(int newListSize, int length) {
+        if (length == UNKNOWN_LENGTH)
+            return UNKNOWN_LENGTH;
+        return length + VarInt.sizeOf(newListSize) - VarInt.sizeOf(newListSize - 1);
     }
 
     /**
@@ -741,7 +861,7 @@ public class Transaction extends ChildMessage implements Serializable {
         unCache();
         to.setParent(this);
         outputs.add(to);
-        adjustLength(outputs.size(), to.length);
+        adjustLength(grownBy(outputs.size(), to.length));
         return to;
     }
 
@@ -792,6 +912,25 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, null);
+    }
+
+    /**
+     * <p>Signs the inputs as {@link #signInputs(SigHash, Wallet, KeyParameter)} does, spreading the work over the given
+     * executor if it isn't null. Signature hashes are calculated from a {@link ScriptExecutionContext} rather than by
+     * editing the transaction, so any number of inputs can be signed at once, and each encrypted key is only
+     * decrypted once however many inputs it signs. This is worth doing for sweeps and consolidations with many
+     * inputs, as each signature takes far longer than everything else put together.</p>
+     *
+     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     * @param executor Where to sign the inputs, or null to sign them on the calling thread. The calling thread signs
+     *                 whatever the executor hasn't started on by the time the work is handed out, so the executor may
+     *                 be bounded and may be the one the calling thread is running on.
+     */
+    public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                        @Nullable ExecutorService executor) throws ScriptException {
         checkState(inputs.size() > 0);
         checkState(outputs.size() > 0);
 
@@ -807,42 +946,55 @@ public class Transaction extends ChildMessage implements Serializable {
 
         TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
         ECKey[] signingKeys = new ECKey[inputs.size()];
-        for (int i = 0; i < inputs.size(); i++) {
-            TransactionInput input = inputs.get(i);
-            // We don't have the connected output, we assume it was signed already and move on
-            if (input.getOutpoint().getConnectedOutput() == null) {
-                log.warn("Missing connected output, assuming input {} is already signed.", i);
-                continue;
-            }
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                input.getScriptSig().correctlySpends(this, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
-                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
-                continue;
-            } catch (ScriptException e) {
-                // Expected.
+        // The keys to sign each input with, decrypted if need be, and the scripts they're signing for. Null for inputs
+        // that aren't being signed here.
+        ECKey[] privateKeys = new ECKey[inputs.size()];
+        byte[][] connectedScripts = new byte[inputs.size()][];
+        // Input scripts aren't covered by signature hashes, so one snapshot serves for checking all the inputs and for
+        // calculating what to sign.
+        ScriptExecutionContext context = new ScriptExecutionContext(this);
+        Map<ECKey, ECKey> decryptedKeys = new HashMap<ECKey, ECKey>();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                // We don't have the connected output, we assume it was signed already and move on
+                if (input.getOutpoint().getConnectedOutput() == null) {
+                    log.warn("Missing connected output, assuming input {} is already signed.", i);
+                    continue;
+                }
+                try {
+                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                    // we sign missing pieces (to check this would require either assuming any signatures are signing
+                    // standard output types or a way to get processed signatures out of script execution)
+                    input.getScriptSig().correctlySpends(context, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+                    log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
+                    continue;
+                } catch (ScriptException e) {
+                    // Expected.
+                }
+                if (input.getScriptBytes().length != 0)
+                    log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
+                // Find the signing key we'll need to use.
+                ECKey key = input.getOutpoint().getConnectedKey(wallet);
+                // This assert should never fire. If it does, it means the wallet is inconsistent.
+                checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
+                // Keep the key around for the script creation step below.
+                signingKeys[i] = key;
+                if (key.hasPrivKey() || key.isEncrypted()) {
+                    privateKeys[i] = decryptOnce(key, aesKey, decryptedKeys);
+                    connectedScripts[i] = input.getOutpoint().getConnectedPubKeyScript();
+                } else {
+                    // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
+                    // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
+                    // be doing something special and that they will replace the dummy signature with a real one later.
+                    signatures[i] = TransactionSignature.dummy();
+                }
             }
-            if (input.getScriptBytes().length != 0)
-                log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
-            // Find the signing key we'll need to use.
-            ECKey key = input.getOutpoint().getConnectedKey(wallet);
-            // This assert should never fire. If it does, it means the wallet is inconsistent.
-            checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
-            // Keep the key around for the script creation step below.
-            signingKeys[i] = key;
             // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            if (key.hasPrivKey() || key.isEncrypted()) {
-                signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
-            } else {
-                // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
-                // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
-                // be doing something special and that they will replace the dummy signature with a real one later.
-                signatures[i] = TransactionSignature.dummy();
-            }
+            calculateSignatures(context, privateKeys, connectedScripts, aesKey, hashType, false, signatures, executor);
+        } finally {
+            for (ECKey key : decryptedKeys.values())
+                key.clearPrivateKey();
         }
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
@@ -871,6 +1023,151 @@ public class Transaction extends ChildMessage implements Serializable {
         // Every input is now complete.
     }
 
+    // Inputs signed per task, so that handing out a task costs little compared to the work in it.
+    private static final int MIN_INPUTS_PER_TASK = 4;
+    // Most tasks signing is split into, which is plenty to keep any likely number of threads busy.
+    private static final int MAX_SIGNING_TASKS = 64;
+
+    /**
+     * Returns a copy of the given key with its private key decrypted, decrypting each key only the first time it's
+     * seen. Keys that aren't encrypted, or that can't be decrypted for want of an AES key or a key crypter, are
+     * returned as they are, so that signing with them reports the problem as it always has.
+     */
+    private static ECKey decryptOnce(ECKey key, @Nullable KeyParameter aesKey, Map<ECKey, ECKey> decryptedKeys) {
+        if (!key.isEncrypted() || aesKey == null || key.getKeyCrypter() == null)
+            return key;
+        ECKey decrypted = decryptedKeys.get(key);
+        if (decrypted == null) {
+            try {
+                decrypted = key.decrypt(key.getKeyCrypter(), aesKey);
+            } catch (KeyCrypterException e) {
+                // Fail the same way ECKey.sign does when given the wrong AES key.
+                throw new KeyCrypterException("Could not decrypt bytes", e);
+            }
+            decryptedKeys.put(key, decrypted);
+        }
+        return decrypted;
+    }
+
+    /**
+     * Signs every input that has a key, putting the signatures into the given array. All the work is finished, or
+     * abandoned, by the time this returns, so the caller can clear the keys straight afterwards.
+     */
+    private static void calculateSignatures(ScriptExecutionContext context, ECKey[] keys, byte[][] connectedScripts,
+                                            @Nullable KeyParameter aesKey, SigHash hashType, boolean anyoneCanPay,
+                                            TransactionSignature[] signatures, @Nullable ExecutorService executor) {
+        int toSign = 0;
+        for (ECKey key : keys)
+            if (key != null) toSign++;
+        // The split only depends on the inputs, not on how many threads there are to run it.
+        int tasks = executor == null ? 1 : Math.max(1, Math.min(MAX_SIGNING_TASKS, toSign / MIN_INPUTS_PER_TASK));
+        if (tasks == 1) {
+            calculateSignatures(context, keys, connectedScripts, aesKey, hashType, anyoneCanPay, signatures, 0,
+                    keys.length);
+            return;
+        }
+        final ParallelSigner signer = new ParallelSigner(context, keys, connectedScripts, aesKey, hashType,
+                anyoneCanPay, signatures, tasks);
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        try {
+            for (int task = 0; task < tasks; task++) {
+                final int t = task;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        signer.runIfUnclaimed(t);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            // This thread does the rest below.
+        }
+        // Do the tasks the executor hasn't started on this thread, last first as the executor starts from the front.
+        for (int task = tasks - 1; task >= 0; task--)
+            signer.runIfUnclaimed(task);
+        // Every task has been claimed now, so the ones still queued have nothing to do.
+        for (Future<?> future : futures)
+            future.cancel(false);
+        try {
+            signer.finished.await();
+        } catch (InterruptedException e) {
+            // The tasks still running use the keys, so they have to stop before the caller clears them.
+            signer.stopped = true;
+            Uninterruptibles.awaitUninterruptibly(signer.finished);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        Throwable failure = signer.failure.get();
+        if (failure != null)
+            throw Throwables.propagate(failure);
+    }
+
+    /**
+     * Signs the inputs of a transaction split into tasks, each of which is run by whichever thread claims it first,
+     * an executor thread or the signing thread. The signing thread claims whatever is left after handing the tasks
+     * out, so signing finishes even if the executor never gets round to them, for example because it's bounded and the
+     * signing thread is one of its own.
+     */
+    private static class ParallelSigner {
+        private final ScriptExecutionContext context;
+        private final ECKey[] keys;
+        private final byte[][] connectedScripts;
+        @Nullable private final KeyParameter aesKey;
+        private final SigHash hashType;
+        private final boolean anyoneCanPay;
+        private final TransactionSignature[] signatures;
+        private final int tasks;
+        private final AtomicIntegerArray claimed;
+        final CountDownLatch finished;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        // Set when a task fails or the signing thread is interrupted, so that the other tasks stop early.
+        volatile boolean stopped;
+
+        ParallelSigner(ScriptExecutionContext context, ECKey[] keys, byte[][] connectedScripts,
+                       @Nullable KeyParameter aesKey, SigHash hashType, boolean anyoneCanPay,
+                       TransactionSignature[] signatures, int tasks) {
+            this.context = context;
+            this.keys = keys;
+            this.connectedScripts = connectedScripts;
+            this.aesKey = aesKey;
+            this.hashType = hashType;
+            this.anyoneCanPay = anyoneCanPay;
+            this.signatures = signatures;
+            this.tasks = tasks;
+            this.claimed = new AtomicIntegerArray(tasks);
+            this.finished = new CountDownLatch(tasks);
+        }
+
+        void runIfUnclaimed(int task) {
+            if (!claimed.compareAndSet(task, 0, 1))
+                return;
+            try {
+                int from = (int) ((long) keys.length * task / tasks);
+                int to = (int) ((long) keys.length * (task + 1) / tasks);
+                for (int i = from; i < to && !stopped; i++)
+                    calculateSignatures(context, keys, connectedScripts, aesKey, hashType, anyoneCanPay, signatures,
+                            i, i + 1);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+                stopped = true;
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    private static void calculateSignatures(ScriptExecutionContext context, ECKey[] keys, byte[][] connectedScripts,
+                                            @Nullable KeyParameter aesKey, SigHash hashType, boolean anyoneCanPay,
+                                            TransactionSignature[] signatures, int from, int to) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(hashType, anyoneCanPay);
+        for (int i = from; i < to; i++) {
+            if (keys[i] == null)
+                continue;
+            Sha256Hash hash = context.hashForSignature(i, connectedScripts[i], sigHashType);
+            signatures[i] = new TransactionSignature(keys[i].sign(hash, aesKey), hashType, anyoneCanPay);
+        }
+    }
+
     /**
      * Calculates a signature that is valid for being inserted into the input at the given position. This is simply
      * a wrapper around calling {@link Transaction#hashForSignature(int, byte[], com.google.bitcoin.core.Transaction.SigHash, boolean)}
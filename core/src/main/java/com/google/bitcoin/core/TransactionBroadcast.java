@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -86,8 +87,9 @@ public class TransactionBroadcast {
             pinnedTx = peerGroup.getMemoryPool().intern(tx);
             // Prepare to send the transaction by adding a listener that'll be called when confidence changes.
             // Only bother with this if we might actually hear back:
+            final ConfidenceChange confidenceListener = new ConfidenceChange();
             if (minConnections > 1)
-                pinnedTx.getConfidence().addEventListener(new ConfidenceChange());
+                pinnedTx.getConfidence().addEventListener(confidenceListener);
             // Satoshis code sends an inv in this case and then lets the peer request the tx data. We just
             // blast out the TX here for a couple of reasons. Firstly it's simpler: in the case where we have
             // just a single connection we don't have to wait for getdata to be received and handled before
@@ -100,14 +102,29 @@ public class TransactionBroadcast {
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
-            peers = peers.subList(0, numToBroadcastTo);
+            // Don't send the transaction to peers that already announced or sent it to us, they have it already. This
+            // happens when re-broadcasting a transaction we received from somebody else. Other peers are picked in
+            // their place, if there are any.
+            final InventoryManager inventory = peerGroup.getInventoryManager();
+            boolean skippedPeers = false;
+            List<Peer> targets = new ArrayList<Peer>(numToBroadcastTo);
+            for (Peer peer : peers) {
+                if (targets.size() == numToBroadcastTo)
+                    break;
+                if (inventory.isKnownBy(peer, pinnedTx.getHash()))
+                    skippedPeers = true;
+                else
+                    targets.add(peer);
+            }
+            peers = targets;
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
-                    numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+                    numConnected, tx.getHashAsString(), peers.size(), numWaitingFor, Joiner.on(",").join(peers));
             for (Peer peer : peers) {
                 try {
                     peer.sendMessage(pinnedTx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
+                    // how many peers announced to us. Nor do we mark it as known to the peer: it may have dropped the
+                    // transaction, and a later re-broadcast should send it again.
                 } catch (Exception e) {
                     log.error("Caught exception sending to {}", peer, e);
                 }
@@ -118,6 +135,10 @@ public class TransactionBroadcast {
             // any peer discovery source and the user just calls connectTo() once.
             if (minConnections == 1) {
                 future.set(pinnedTx);
+            } else if (skippedPeers && pinnedTx.getConfidence().numBroadcastPeers() >= numWaitingFor) {
+                // Enough peers announced it before we even started, so we won't see a confidence change.
+                pinnedTx.getConfidence().removeEventListener(confidenceListener);
+                future.set(pinnedTx);
             }
         }
     }
@@ -53,6 +53,10 @@ public class TransactionInput extends ChildMessage implements Serializable {
     // The Script object obtained from parsing scriptBytes. Only filled in on demand and if the transaction is not
     // coinbase.
     transient private WeakReference<Script> scriptSig;
+    // The serialized script and sequence number, kept while the parent transaction is being built so that serializing
+    // it again after some other part of it changed doesn't re-encode them. The outpoint isn't included as it may be
+    // shared with other inputs, so can change without this input hearing about it. Thrown away by unCache().
+    private transient byte[] serialized;
     // A pointer to the transaction that owns this input.
     private Transaction parentTransaction;
 
@@ -63,6 +67,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = new TransactionOutPoint(params, NO_SEQUENCE, (Transaction)null);
+        this.outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.parentTransaction = parentTransaction;
         length = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
@@ -73,6 +78,10 @@ public class TransactionInput extends ChildMessage implements Serializable {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        // Outpoints are sometimes shared between inputs, and taking one over would make its changes stop reaching
+        // the input that had it first.
+        if (outpoint.getParent() == null)
+            outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.parentTransaction = parentTransaction;
         length = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
@@ -85,6 +94,7 @@ public class TransactionInput extends ChildMessage implements Serializable {
         super(params);
         long outputIndex = output.getIndex();
         outpoint = new TransactionOutPoint(params, outputIndex, output.parentTransaction);
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         this.parentTransaction = parentTransaction;
@@ -138,11 +148,37 @@ public class TransactionInput extends ChildMessage implements Serializable {
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         outpoint.bitcoinSerialize(stream);
+        if (serialized == null) {
+            Message parent = getParent();
+            if (!(parent instanceof Transaction) || !((Transaction) parent).isCachingChildSerializations()) {
+                serializeScriptAndSequence(stream);
+                return;
+            }
+            UnsafeByteArrayOutputStream bos =
+                    new UnsafeByteArrayOutputStream(VarInt.sizeOf(scriptBytes.length) + scriptBytes.length + 4);
+            serializeScriptAndSequence(bos);
+            serialized = bos.toByteArray();
+        }
+        stream.write(serialized);
+    }
+
+    private void serializeScriptAndSequence(OutputStream stream) throws IOException {
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
         Utils.uint32ToByteStreamLE(sequence, stream);
     }
 
+    @Override
+    protected void unCache() {
+        super.unCache();
+        serialized = null;
+    }
+
+    // Called by the parent transaction once it's built.
+    void dropSerialization() {
+        serialized = null;
+    }
+
     /**
      * Coinbase transactions have special inputs with hashes of zero. If this is such an input, returns true.
      */
@@ -167,6 +167,7 @@ public class TransactionOutPoint extends ChildMessage implements Serializable {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -176,6 +177,7 @@ public class TransactionOutPoint extends ChildMessage implements Serializable {
     }
     
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
@@ -46,6 +46,10 @@ public class TransactionOutput extends ChildMessage implements Serializable {
 
     // The script bytes are parsed and turned into a Script on demand.
     private transient WeakReference<Script> scriptPubKey;
+    // The serialized form of this output, kept while the parent transaction is being built so that serializing it again
+    // after some other part of it changed doesn't re-encode this output too. Thrown away by unCache() whenever the
+    // value changes.
+    private transient byte[] serialized;
 
     // These fields are Java serialized but not Bitcoin serialized. They are used for tracking purposes in our wallet
     // only. If set to true, this output is counted towards our balance. If false and spentBy is null the tx output
@@ -149,12 +153,38 @@ public class TransactionOutput extends ChildMessage implements Serializable {
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         checkNotNull(scriptBytes);
+        if (serialized == null) {
+            Message parent = getParent();
+            if (!(parent instanceof Transaction) || !((Transaction) parent).isCachingChildSerializations()) {
+                serializeValueAndScript(stream);
+                return;
+            }
+            UnsafeByteArrayOutputStream bos =
+                    new UnsafeByteArrayOutputStream(8 + VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
+            serializeValueAndScript(bos);
+            serialized = bos.toByteArray();
+        }
+        stream.write(serialized);
+    }
+
+    private void serializeValueAndScript(OutputStream stream) throws IOException {
         Utils.int64ToByteStreamLE(getValue().longValue(), stream);
         // TODO: Move script serialization into the Script class, where it belongs.
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
     }
 
+    @Override
+    protected void unCache() {
+        super.unCache();
+        serialized = null;
+    }
+
+    // Called by the parent transaction once it's built.
+    void dropSerialization() {
+        serialized = null;
+    }
+
     /**
      * Returns the value of this output in nanocoins. This is the amount of currency that the destination address
      * receives.
@@ -173,6 +203,22 @@ public class TransactionOutput extends ChildMessage implements Serializable {
         this.value = value;
     }
 
+    /**
+     * Returns the value of this output as a {@link Coin}.
+     *
+     * @throws ArithmeticException if the value is too big to be valid.
+     */
+    public Coin getValueAsCoin() {
+        return Coin.valueOf(getValue());
+    }
+
+    /**
+     * Sets the value of this output.
+     */
+    public void setValue(Coin value) {
+        setValue(value.toBigInteger());
+    }
+
     int getIndex() {
         checkNotNull(parentTransaction);
         for (int i = 0; i < parentTransaction.getOutputs().size(); i++) {
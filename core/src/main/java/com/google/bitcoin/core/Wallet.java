@@ -31,6 +31,7 @@ import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.*;
 import com.google.bitcoin.wallet.WalletTransaction.Pool;
 import com.google.common.collect.*;
+import com.google.common.math.LongMath;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -46,9 +47,11 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -132,6 +135,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // The keychain indexed by public key and by public key hash, so that finding the key for an output doesn't mean
+    // going through every key in the wallet. Rebuilt by indexKeys() whenever the keychain is replaced.
+    private transient Map<ByteBuffer, ECKey> keysByPubKey;
+    private transient Map<ByteBuffer, ECKey> keysByPubKeyHash;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
@@ -214,6 +221,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
+        indexKeys();
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
@@ -239,6 +247,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         acceptRiskyTransactions = false;
     }
 
+    private void indexKeys() {
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>();
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>();
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        // If two keys share a hash the first one wins, as it did when the keychain was searched in order.
+        ByteBuffer hash = ByteBuffer.wrap(key.getPubKeyHash());
+        if (!keysByPubKeyHash.containsKey(hash))
+            keysByPubKeyHash.put(hash, key);
+        ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+        if (!keysByPubKey.containsKey(pubKey))
+            keysByPubKey.put(pubKey, key);
+    }
+
     public NetworkParameters getNetworkParameters() {
         return params;
     }
@@ -275,7 +300,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            indexKeys();
+            return true;
         } finally {
             lock.unlock();
         }
@@ -1584,6 +1612,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
          */
         public CoinSelector coinSelector = null;
 
+        /**
+         * If not null, the inputs are signed in parallel on this executor rather than one after the other on the
+         * calling thread. Only worth setting when spending many inputs, see
+         * {@link Transaction#signInputs(Transaction.SigHash, Wallet, KeyParameter, ExecutorService)}.
+         */
+        public ExecutorService signingExecutor = null;
+
         // Tracks if this has been passed to wallet.completeTx already: just a safety check.
         private boolean completed;
 
@@ -1797,24 +1832,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkArgument(!req.completed, "Given SendRequest has already been completed.");
+            // The transaction is serialized many times over while fees are worked out and inputs are signed.
+            req.tx.setCachingChildSerializations(true);
             // Calculate the amount of value we need to import.
-            BigInteger value = BigInteger.ZERO;
-            for (TransactionOutput output : req.tx.getOutputs()) {
-                value = value.add(output.getValue());
+            long valueOut = 0;
+            try {
+                for (TransactionOutput output : req.tx.getOutputs())
+                    valueOut = Coin.add(valueOut, Coin.longValueOf(output.getValue()));
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Outputs add up to more than there is money", e);
             }
+            BigInteger value = BigInteger.valueOf(valueOut);
             BigInteger totalOutput = value;
 
             log.info("Completing send tx with {} outputs totalling {} satoshis (not including fees)",
                     req.tx.getOutputs().size(), value);
 
             // If any inputs have already been added, we don't need to get their value from wallet
-            BigInteger totalInput = BigInteger.ZERO;
+            long valueIn = 0;
             for (TransactionInput input : req.tx.getInputs())
                 if (input.getConnectedOutput() != null)
-                    totalInput = totalInput.add(input.getConnectedOutput().getValue());
+                    valueIn = Coin.add(valueIn, Coin.longValueOf(input.getConnectedOutput().getValue()));
                 else
                     log.warn("SendRequest transaction already has inputs but we don't know how much they are worth - they will be added to fee.");
-            value = value.subtract(totalInput);
+            BigInteger totalInput = BigInteger.valueOf(valueIn);
+            value = BigInteger.valueOf(Coin.subtract(valueOut, valueIn));
 
             List<TransactionInput> originalInputs = new ArrayList<TransactionInput>(req.tx.getInputs());
 
@@ -1834,17 +1876,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies.
             //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
+            // Note that the spend candidates only alter when transactions in the wallet change - they could be
+            // pre-calculated and held in RAM, and this is probably an optimization worth doing.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             if (!req.emptyWallet) {
                 // This can throw InsufficientMoneyException.
                 FeeCalculation feeCalculation;
-                feeCalculation = new FeeCalculation(req, value, originalInputs, needAtLeastReferenceFee, candidates);
+                feeCalculation = new FeeCalculation(req, Coin.longValueOf(value), originalInputs, needAtLeastReferenceFee, candidates);
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
             } else {
@@ -1881,7 +1921,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
 
             // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey, req.signingExecutor);
 
             // Check size.
             int size = req.tx.bitcoinSerialize().length;
@@ -1903,6 +1943,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             req.fee = calculatedFee;
             log.info("  completed: {}", req.tx);
         } finally {
+            req.tx.setCachingChildSerializations(false);
             lock.unlock();
         }
     }
@@ -1911,7 +1952,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private boolean adjustOutputDownwardsForFee(Transaction tx, CoinSelection coinSelection, BigInteger baseFee, BigInteger feePerKb) {
         TransactionOutput output = tx.getOutput(0);
         // Check if we need additional fee due to the transaction's size
-        int size = tx.bitcoinSerialize().length;
+        int size = tx.getMessageSize();
         size += estimateBytesForSigning(coinSelection);
         BigInteger fee = baseFee.add(BigInteger.valueOf((size / 1000) + 1).multiply(feePerKb));
         output.setValue(output.getValue().subtract(fee));
@@ -2008,9 +2049,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2020,6 +2060,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                indexKey(key);
                 added++;
             }
             queueOnKeysAdded(keys);
@@ -2110,20 +2151,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2154,10 +2192,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2211,10 +2246,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                try {
+                    return BigInteger.valueOf(getEstimatedBalance());
+                } catch (ArithmeticException e) {
+                    // Pending transactions are only checked one at a time, so between them they can add up to more
+                    // than a long holds.
+                    BigInteger value = BigInteger.ZERO;
+                    for (TransactionOutput out : calculateAllSpendCandidates(false))
+                        value = value.add(out.getValue());
+                    return value;
+                }
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2223,6 +2264,43 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns the AVAILABLE balance of this wallet as a {@link Coin}. See {@link BalanceType#AVAILABLE} for details on
+     * what this means.
+     */
+    public Coin getBalanceAsCoin() {
+        return getBalanceAsCoin(BalanceType.AVAILABLE);
+    }
+
+    /**
+     * Returns the balance of this wallet as calculated by the provided balanceType, as a {@link Coin}.
+     *
+     * @throws ArithmeticException if the balance doesn't fit in a {@link Coin}, which only pending transactions that
+     * could never all confirm can cause.
+     */
+    public Coin getBalanceAsCoin(BalanceType balanceType) {
+        lock.lock();
+        try {
+            if (balanceType == BalanceType.AVAILABLE) {
+                return getBalanceAsCoin(coinSelector);
+            } else if (balanceType == BalanceType.ESTIMATED) {
+                return Coin.valueOf(getEstimatedBalance());
+            } else {
+                throw new AssertionError("Unknown balance type");  // Unreachable.
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long getEstimatedBalance() {
+        checkState(lock.isHeldByCurrentThread());
+        long value = 0;
+        for (TransactionOutput out : calculateAllSpendCandidates(false))
+            value = Coin.add(value, Coin.longValueOf(out.getValue()));
+        return value;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
      * as many coins as possible and returns the total.
@@ -2239,6 +2317,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Returns the balance that would be considered spendable by the given coin selector, as a {@link Coin}.
+     */
+    public Coin getBalanceAsCoin(CoinSelector selector) {
+        return Coin.valueOf(getBalance(selector));
+    }
+
     /** Returns the available balance, including any unspent balance at watched addresses */
     public BigInteger getWatchedBalance() {
         return getWatchedBalance(coinSelector);
@@ -2741,6 +2826,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeys();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2782,6 +2868,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeys();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3338,9 +3425,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         private CoinSelection bestCoinSelection;
         private TransactionOutput bestChangeOutput;
 
-        public FeeCalculation(SendRequest req, BigInteger value, List<TransactionInput> originalInputs,
+        public FeeCalculation(SendRequest req, long value, List<TransactionInput> originalInputs,
                               boolean needAtLeastReferenceFee, LinkedList<TransactionOutput> candidates) throws InsufficientMoneyException {
             checkState(lock.isHeldByCurrentThread());
+            // All the arithmetic here is done with longs, as it's repeated for every selection we try.
+            final long minTxFee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue();
+            final long minNonDust = Transaction.MIN_NONDUST_OUTPUT.longValue();
+            final long cent = Utils.CENT.longValue();
+            final long baseFee = req.fee == null ? 0 : Coin.longValueOf(req.fee);
+            final long feePerKb = Coin.longValueOf(req.feePerKb);
             // There are 3 possibilities for what adding change might do:
             // 1) No effect
             // 2) Causes increase in fee (change < 0.01 COINS)
@@ -3348,7 +3441,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // If we get either of the last 2, we keep note of what the inputs looked like at the time and try to
             // add inputs as we go up the list (keeping track of minimum inputs for each category).  At the end, we pick
             // the best input set as the one which generates the lowest total fee.
-            BigInteger additionalValueForNextCategory = null;
+            //
+            // The additional value for the next category is always positive when there is one, so zero means none.
+            long additionalValueForNextCategory = 0;
             CoinSelection selection3 = null;
             CoinSelection selection2 = null;
             TransactionOutput selection2Change = null;
@@ -3357,31 +3452,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // We keep track of the last size of the transaction we calculated but only if the act of adding inputs and
             // change resulted in the size crossing a 1000 byte boundary. Otherwise it stays at zero.
             int lastCalculatedSize = 0;
-            BigInteger valueNeeded, valueMissing = null;
+            // Each selection we try is sized by adding it to the size of the transaction as it is now, with just the
+            // original inputs, rather than by adding inputs to the transaction and measuring it.
+            final int baseSize = req.tx.getMessageSize();
+            long valueNeeded, valueMissing = 0;
             while (true) {
-                resetTxInputs(req, originalInputs);
-
-                BigInteger fees = req.fee == null ? BigInteger.ZERO : req.fee;
+                long fees = baseFee;
                 if (lastCalculatedSize > 0) {
                     // If the size is exactly 1000 bytes then we'll over-pay, but this should be rare.
-                    fees = fees.add(BigInteger.valueOf((lastCalculatedSize / 1000) + 1).multiply(req.feePerKb));
+                    fees = Coin.add(fees, LongMath.checkedMultiply((lastCalculatedSize / 1000) + 1, feePerKb));
                 } else {
-                    fees = fees.add(req.feePerKb);  // First time around the loop.
+                    fees = Coin.add(fees, feePerKb);  // First time around the loop.
                 }
-                if (needAtLeastReferenceFee && fees.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
-                    fees = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+                if (needAtLeastReferenceFee && fees < minTxFee)
+                    fees = minTxFee;
 
-                valueNeeded = value.add(fees);
-                if (additionalValueForNextCategory != null)
-                    valueNeeded = valueNeeded.add(additionalValueForNextCategory);
-                BigInteger additionalValueSelected = additionalValueForNextCategory;
+                valueNeeded = Coin.add(Coin.add(value, fees), additionalValueForNextCategory);
+                long additionalValueSelected = additionalValueForNextCategory;
 
                 // Of the coins we could spend, pick some that we actually will spend.
                 CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                CoinSelection selection = selector.select(valueNeeded, candidates);
+                CoinSelection selection = selector.select(BigInteger.valueOf(valueNeeded), candidates);
+                long valueGathered = Coin.longValueOf(selection.valueGathered);
                 // Can we afford this?
-                if (selection.valueGathered.compareTo(valueNeeded) < 0) {
-                    valueMissing = valueNeeded.subtract(selection.valueGathered);
+                if (valueGathered < valueNeeded) {
+                    valueMissing = valueNeeded - valueGathered;
                     break;
                 }
                 checkState(selection.gathered.size() > 0 || originalInputs.size() > 0);
@@ -3395,62 +3490,54 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 boolean eitherCategory2Or3 = false;
                 boolean isCategory3 = false;
 
-                BigInteger change = selection.valueGathered.subtract(valueNeeded);
-                if (additionalValueSelected != null)
-                    change = change.add(additionalValueSelected);
+                long change = valueGathered - valueNeeded + additionalValueSelected;
 
                 // If change is < 0.01 BTC, we will need to have at least minfee to be accepted by the network
-                if (req.ensureMinRequiredFee && !change.equals(BigInteger.ZERO) &&
-                        change.compareTo(Utils.CENT) < 0 && fees.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0) {
+                if (req.ensureMinRequiredFee && change != 0 && change < cent && fees < minTxFee) {
                     // This solution may fit into category 2, but it may also be category 3, we'll check that later
                     eitherCategory2Or3 = true;
-                    additionalValueForNextCategory = Utils.CENT;
+                    additionalValueForNextCategory = cent;
                     // If the change is smaller than the fee we want to add, this will be negative
-                    change = change.subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.subtract(fees));
+                    change -= minTxFee - fees;
                 }
 
                 int size = 0;
                 TransactionOutput changeOutput = null;
-                if (change.compareTo(BigInteger.ZERO) > 0) {
+                if (change > 0) {
                     // The value of the inputs is greater than what we want to send. Just like in real life then,
                     // we need to take back some coins ... this is called "change". Add another output that sends the change
                     // back to us. The address comes either from the request or getChangeAddress() as a default.
                     Address changeAddress = req.changeAddress;
                     if (changeAddress == null)
                         changeAddress = getChangeAddress();
-                    changeOutput = new TransactionOutput(params, req.tx, change, changeAddress);
+                    changeOutput = new TransactionOutput(params, req.tx, BigInteger.valueOf(change), changeAddress);
                     // If the change output would result in this transaction being rejected as dust, just drop the change and make it a fee
-                    if (req.ensureMinRequiredFee && Transaction.MIN_NONDUST_OUTPUT.compareTo(change) >= 0) {
+                    if (req.ensureMinRequiredFee && minNonDust >= change) {
                         // This solution definitely fits in category 3
                         isCategory3 = true;
-                        additionalValueForNextCategory = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.add(
-                                                         Transaction.MIN_NONDUST_OUTPUT.add(BigInteger.ONE));
+                        additionalValueForNextCategory = minTxFee + minNonDust + 1;
                     } else {
-                        size += changeOutput.bitcoinSerialize().length + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
+                        size += changeOutput.getMessageSize() + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
                         // This solution is either category 1 or 2
                         if (!eitherCategory2Or3) // must be category 1
-                            additionalValueForNextCategory = null;
+                            additionalValueForNextCategory = 0;
                     }
                 } else {
                     if (eitherCategory2Or3) {
                         // This solution definitely fits in category 3 (we threw away change because it was smaller than MIN_TX_FEE)
                         isCategory3 = true;
-                        additionalValueForNextCategory = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.add(BigInteger.ONE);
+                        additionalValueForNextCategory = minTxFee + 1;
                     }
                 }
 
-                // Now add unsigned inputs for the selected coins.
-                for (TransactionOutput output : selection.gathered) {
-                    TransactionInput input = req.tx.addInput(output);
-                    // If the scriptBytes don't default to none, our size calculations will be thrown off.
-                    checkState(input.getScriptBytes().length == 0);
-                }
-
-                // Estimate transaction size and loop again if we need more fee per kb. The serialized tx doesn't
-                // include things we haven't added yet like input signatures/scripts or the change output.
-                size += req.tx.bitcoinSerialize().length;
+                // Estimate transaction size and loop again if we need more fee per kb. An unsigned input for each
+                // selected coin takes its outpoint, an empty script and a sequence number, and the signatures and
+                // keys that go into its script are estimated separately.
+                int numInputs = originalInputs.size() + selection.gathered.size();
+                size += baseSize + selection.gathered.size() * (TransactionOutPoint.MESSAGE_LENGTH + 1 + 4);
+                size += VarInt.sizeOf(numInputs) - VarInt.sizeOf(originalInputs.size());
                 size += estimateBytesForSigning(selection);
-                if (size/1000 > lastCalculatedSize/1000 && req.feePerKb.compareTo(BigInteger.ZERO) > 0) {
+                if (size/1000 > lastCalculatedSize/1000 && feePerKb > 0) {
                     lastCalculatedSize = size;
                     // We need more fees anyway, just try again with the same additional value
                     additionalValueForNextCategory = additionalValueSelected;
@@ -3464,48 +3551,47 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     // If we are in selection2, we will require at least CENT additional. If we do that, there is no way
                     // we can end up back here because CENT additional will always get us to 1
                     checkState(selection2 == null);
-                    checkState(additionalValueForNextCategory.equals(Utils.CENT));
+                    checkState(additionalValueForNextCategory == cent);
                     selection2 = selection;
                     selection2Change = checkNotNull(changeOutput); // If we get no change in category 2, we are actually in category 3
                 } else {
                     // Once we get a category 1 (change kept), we should break out of the loop because we can't do better
                     checkState(selection1 == null);
-                    checkState(additionalValueForNextCategory == null);
+                    checkState(additionalValueForNextCategory == 0);
                     selection1 = selection;
                     selection1Change = changeOutput;
                 }
 
-                if (additionalValueForNextCategory != null) {
-                    if (additionalValueSelected != null)
-                        checkState(additionalValueForNextCategory.compareTo(additionalValueSelected) > 0);
+                if (additionalValueForNextCategory != 0) {
+                    if (additionalValueSelected != 0)
+                        checkState(additionalValueForNextCategory > additionalValueSelected);
                     continue;
                 }
                 break;
             }
 
-            resetTxInputs(req, originalInputs);
-
             if (selection3 == null && selection2 == null && selection1 == null) {
-                checkNotNull(valueMissing);
-                log.warn("Insufficient value in wallet for send: needed {} more", bitcoinValueToFriendlyString(valueMissing));
-                throw new InsufficientMoneyException(valueMissing);
+                checkState(valueMissing > 0);
+                BigInteger missing = BigInteger.valueOf(valueMissing);
+                log.warn("Insufficient value in wallet for send: needed {} more", bitcoinValueToFriendlyString(missing));
+                throw new InsufficientMoneyException(missing);
             }
 
-            BigInteger lowestFee = null;
+            long lowestFee = Long.MAX_VALUE;
             bestCoinSelection = null;
             bestChangeOutput = null;
             if (selection1 != null) {
+                lowestFee = Coin.longValueOf(selection1.valueGathered);
                 if (selection1Change != null)
-                    lowestFee = selection1.valueGathered.subtract(selection1Change.getValue());
-                else
-                    lowestFee = selection1.valueGathered;
+                    lowestFee -= Coin.longValueOf(selection1Change.getValue());
                 bestCoinSelection = selection1;
                 bestChangeOutput = selection1Change;
             }
 
             if (selection2 != null) {
-                BigInteger fee = selection2.valueGathered.subtract(checkNotNull(selection2Change).getValue());
-                if (lowestFee == null || fee.compareTo(lowestFee) < 0) {
+                long fee = Coin.longValueOf(selection2.valueGathered) -
+                        Coin.longValueOf(checkNotNull(selection2Change).getValue());
+                if (fee < lowestFee) {
                     lowestFee = fee;
                     bestCoinSelection = selection2;
                     bestChangeOutput = selection2Change;
@@ -3513,18 +3599,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
 
             if (selection3 != null) {
-                if (lowestFee == null || selection3.valueGathered.compareTo(lowestFee) < 0) {
+                if (Coin.longValueOf(selection3.valueGathered) < lowestFee) {
                     bestCoinSelection = selection3;
                     bestChangeOutput = null;
                 }
             }
         }
-
-        private void resetTxInputs(SendRequest req, List<TransactionInput> originalInputs) {
-            req.tx.clearInputs();
-            for (TransactionInput input : originalInputs)
-                req.tx.addInput(input);
-        }
     }
 
     private int estimateBytesForSigning(CoinSelection selection) {
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers recently used public keys in decoded form, so verifying several signatures made by the same key doesn't
+ * decode (and for compressed keys, decompress) it and work out its multiples every time. Keys that keep coming back
+ * are given the larger table of {@link Secp256k1#preparePublicKey(byte[])}, which makes each verification quicker
+ * still.</p>
+ *
+ * <p>Only keys that are valid points on the curve are remembered. The cache holds a bounded number of entries and can
+ * be used from any number of threads at once. {@link com.google.bitcoin.core.ECKey#verify(byte[],
+ * com.google.bitcoin.core.ECKey.ECDSASignature, byte[])} uses the cache returned by {@link #getDefault()}; call
+ * {@link #setDefault(PublicKeyCache)} with null to switch it off.</p>
+ */
+@ThreadSafe
+public class PublicKeyCache {
+    /** How many keys the default cache remembers. Each entry takes between one and ten kilobytes. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /** How many times a key has to be looked up before it is given the larger table. */
+    public static final int PREPARE_AFTER_USES = 4;
+
+    @Nullable private static volatile PublicKeyCache defaultCache = new PublicKeyCache(DEFAULT_MAX_ENTRIES);
+
+    private final Cache<ByteBuffer, Entry> points;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private static final class Entry {
+        volatile Secp256k1.PreparedPoint point;
+        final AtomicInteger uses = new AtomicInteger(1);
+
+        Entry(Secp256k1.PreparedPoint point) {
+            this.point = point;
+        }
+    }
+
+    /** Creates an empty cache that remembers at most the given number of keys. */
+    public PublicKeyCache(int maxEntries) {
+        checkArgument(maxEntries > 0);
+        points = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /** Returns the cache used by {@link com.google.bitcoin.core.ECKey} to verify signatures, or null. */
+    @Nullable
+    public static PublicKeyCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by {@link com.google.bitcoin.core.ECKey} by default. Passing null turns off caching. */
+    public static void setDefault(@Nullable PublicKeyCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Returns the decoded form of the given public key, decoding it if it isn't in the cache already, or null if it
+     * isn't a valid encoding of a point on the curve.
+     */
+    @Nullable
+    public Secp256k1.PreparedPoint get(byte[] pubKey) {
+        Entry entry = points.getIfPresent(ByteBuffer.wrap(pubKey));
+        if (entry != null) {
+            hits.incrementAndGet();
+            // Exactly one thread sees the count go past the threshold, so the larger table is only built once.
+            if (entry.uses.incrementAndGet() == PREPARE_AFTER_USES)
+                entry.point = Secp256k1.preparePublicKey(pubKey);
+            return entry.point;
+        }
+        misses.incrementAndGet();
+        Secp256k1.PreparedPoint point = Secp256k1.decodePublicKey(pubKey);
+        // Copy the key bytes, as the caller may change them later.
+        if (point != null)
+            points.put(ByteBuffer.wrap(pubKey.clone()), new Entry(point));
+        return point;
+    }
+
+    /** Returns how many lookups found the key already decoded. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups had to decode the key. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns roughly how many keys are in the cache. */
+    public long size() {
+        return points.size();
+    }
+
+    /** Forgets every key and resets the hit and miss counters. */
+    public void clear() {
+        points.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.bitcoin.crypto.Secp256k1Field.*;
+
+/**
+ * <p>Elliptic curve maths specialised for secp256k1, the curve Bitcoin uses. {@link com.google.bitcoin.core.ECKey}
+ * uses this instead of Spongy Castle's generic implementation whenever the native secp256k1 library isn't loaded.</p>
+ *
+ * <p>It is many times faster than the generic code and produces far less garbage because:</p>
+ * <ul>
+ *     <li>Field elements are fixed size arrays of 32 bit limbs and reduction uses the special form of the prime,
+ *     see {@link Secp256k1Field}. Points are kept in Jacobian co-ordinates so no inversions are needed along the
+ *     way.</li>
+ *     <li>The curve has an efficiently computable endomorphism, (x, y) -&gt; (beta * x, y), which multiplies a point
+ *     by lambda. Each scalar is split into two halves of around 128 bits such that k = k1 + k2 * lambda, halving the
+ *     number of doublings.</li>
+ *     <li>Scalars are written in windowed non-adjacent form, and the odd multiples of the generator it needs are
+ *     computed once when the class loads.</li>
+ *     <li>Verification computes u1 * G + u2 * Q with all four half scalars sharing one chain of doublings (Shamir's
+ *     trick), and compares the result to r without converting it back to affine co-ordinates.</li>
+ * </ul>
+ *
+ * <p>Like the Spongy Castle code it replaces, this does not try to run in constant time, so signing may leak timing
+ * information about the nonce to an attacker who can measure it very precisely.</p>
+ */
+public class Secp256k1 {
+    /**
+     * Whether {@link com.google.bitcoin.core.ECKey} should use this class. Set it to false to go back to Spongy
+     * Castle, for instance to compare the two.
+     */
+    public static boolean enabled = true;
+
+    /** The order of the curve. */
+    public static final BigInteger N =
+            new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+
+    private static final int[] GX = fromBigInteger(
+            new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16));
+    private static final int[] GY = fromBigInteger(
+            new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16));
+    private static final int[] ONE = fromInt(1);
+    private static final int[] SEVEN = fromInt(7);
+
+    // lambda * (x, y) = (beta * x, y) for every point on the curve.
+    static final BigInteger LAMBDA =
+            new BigInteger("5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+    private static final int[] BETA = fromBigInteger(
+            new BigInteger("7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16));
+    // Two short vectors (a1, b1) and (a2, b2) with a + b * lambda = 0 mod n, used to split scalars.
+    private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+    private static final BigInteger B1 = new BigInteger("-E4437ED6010E88286F547FA90ABFE4C3", 16);
+    private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+    private static final BigInteger B2 = A1;
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    // Window sizes for the wNAF forms of scalars multiplying the generator and other points. The generator tables
+    // are built once, so they can be much bigger.
+    private static final int WINDOW_G = 10;
+    private static final int WINDOW_A = 5;
+    // Window size for public keys prepared ahead of time to verify many signatures with. A bigger table costs more to
+    // build but saves a few additions on every verification.
+    private static final int WINDOW_PREPARED = 8;
+    // Affine co-ordinates of G, 3G, 5G and so on. lambda * G has the same y co-ordinates.
+    private static final int[][] G_TABLE_X, G_TABLE_Y, LAMBDA_G_TABLE_X;
+
+    static {
+        int size = 1 << (WINDOW_G - 2);
+        JacobianPoint[] multiples = oddMultiples(new Workspace(), new JacobianPoint(GX, GY), size);
+        int[][] zs = new int[size][];
+        for (int i = 0; i < size; i++)
+            zs[i] = copy(multiples[i].z);
+        invertAll(zs, size);
+        G_TABLE_X = new int[size][];
+        G_TABLE_Y = new int[size][];
+        LAMBDA_G_TABLE_X = new int[size][];
+        for (int i = 0; i < size; i++) {
+            int[][] affine = multiples[i].toAffine(zs[i]);
+            G_TABLE_X[i] = affine[0];
+            G_TABLE_Y[i] = affine[1];
+            LAMBDA_G_TABLE_X[i] = create();
+            mul(affine[0], BETA, LAMBDA_G_TABLE_X[i]);
+        }
+    }
+
+    /**
+     * Returns the public key for the given private key, encoded as a 33 byte compressed or 65 byte uncompressed point.
+     */
+    public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        checkScalar(privKey);
+        JacobianPoint point = multiply(new Workspace(), privKey, null, null);
+        return point.encode(compressed);
+    }
+
+    /**
+     * Signs the given hash with the private key, choosing a random nonce from the given source of randomness.
+     * Returns r and s. The signature is not canonicalised, so s may be more than half the curve order.
+     */
+    public static BigInteger[] sign(byte[] hash, BigInteger privKey, SecureRandom random) {
+        checkScalar(privKey);
+        BigInteger e = calculateE(hash);
+        Workspace workspace = new Workspace();
+        while (true) {
+            BigInteger k;
+            do {
+                k = new BigInteger(N.bitLength(), random);
+            } while (k.signum() == 0 || k.compareTo(N) >= 0);
+            JacobianPoint point = multiply(workspace, k, null, null);
+            int[] zInverse = create();
+            invert(point.z, zInverse);
+            BigInteger r = toBigInteger(point.toAffine(zInverse)[0]).mod(N);
+            if (r.signum() == 0)
+                continue;
+            BigInteger s = k.modInverse(N).multiply(e.add(privKey.multiply(r))).mod(N);
+            if (s.signum() != 0)
+                return new BigInteger[] { r, s };
+        }
+    }
+
+    /**
+     * Verifies an ECDSA signature. Returns false if the signature is wrong or the public key isn't a valid encoding of
+     * a point on the curve.
+     *
+     * @param hash   Hash of the data that was signed.
+     * @param r      The r component of the signature.
+     * @param s      The s component of the signature.
+     * @param pubKey The public key, compressed or not.
+     */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, byte[] pubKey) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        PreparedPoint q = prepare(pubKey, WINDOW_A);
+        if (q == null)
+            return false;
+        return verify(new Workspace(), hash, r, s.modInverse(N), q);
+    }
+
+    /**
+     * Verifies an ECDSA signature against a public key that was prepared earlier with
+     * {@link #preparePublicKey(byte[])} or {@link #decodePublicKey(byte[])}. Returns false if the signature is wrong.
+     */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, PreparedPoint pubKey) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        return verify(new Workspace(), hash, r, s.modInverse(N), pubKey);
+    }
+
+    /**
+     * Decodes a public key and checks it is on the curve, doing the same amount of preparation as a single
+     * verification would. Returns null if it isn't a valid encoding of a point on the curve.
+     */
+    @Nullable
+    public static PreparedPoint decodePublicKey(byte[] pubKey) {
+        return prepare(pubKey, WINDOW_A);
+    }
+
+    /**
+     * Like {@link #decodePublicKey(byte[])}, but also works out a larger table of multiples of the key that makes each
+     * verification with it quicker. Building the table costs about as much as one verification, so this is worth
+     * doing for keys that will be used for several.
+     */
+    @Nullable
+    public static PreparedPoint preparePublicKey(byte[] pubKey) {
+        return prepare(pubKey, WINDOW_PREPARED);
+    }
+
+    /**
+     * Verifies the signatures with the given indexes, writing whether each is valid into results. Work is shared
+     * between signatures where possible: public keys that appear more than once are decoded and prepared once, and all
+     * the s values are inverted together using Montgomery's trick.
+     */
+    static void verify(byte[][] hashes, BigInteger[] rs, BigInteger[] ss, byte[][] pubKeys, int from, int to,
+                       boolean[] results) {
+        int count = to - from;
+        // Montgomery's trick: one modular inversion plus three multiplications per value instead of an inversion each.
+        // Out of range values are left out by treating them as one, and fail the range check below.
+        BigInteger[] prefix = new BigInteger[count];
+        BigInteger product = BigInteger.ONE;
+        for (int i = 0; i < count; i++) {
+            BigInteger s = ss[from + i];
+            if (s.signum() > 0 && s.compareTo(N) < 0)
+                product = product.multiply(s).mod(N);
+            prefix[i] = product;
+        }
+        BigInteger inverse = product.modInverse(N);
+        BigInteger[] sInverses = new BigInteger[count];
+        for (int i = count - 1; i >= 0; i--) {
+            BigInteger s = ss[from + i];
+            if (s.signum() <= 0 || s.compareTo(N) >= 0)
+                continue;
+            // inverse is 1 / (s0 * ... * si), so multiplying by the product of the values before leaves 1 / si.
+            sInverses[i] = i == 0 ? inverse : inverse.multiply(prefix[i - 1]).mod(N);
+            inverse = inverse.multiply(s).mod(N);
+        }
+
+        Map<ByteBuffer, PreparedPoint> points = new HashMap<ByteBuffer, PreparedPoint>();
+        Workspace workspace = new Workspace();
+        for (int i = 0; i < count; i++) {
+            int index = from + i;
+            BigInteger r = rs[index];
+            results[index] = false;
+            if (sInverses[i] == null || r.signum() <= 0 || r.compareTo(N) >= 0)
+                continue;
+            ByteBuffer key = ByteBuffer.wrap(pubKeys[index]);
+            PreparedPoint q = points.get(key);
+            if (q == null && !points.containsKey(key)) {
+                q = prepare(pubKeys[index], WINDOW_A);
+                points.put(key, q);
+            }
+            if (q != null)
+                results[index] = verify(workspace, hashes[index], r, sInverses[i], q);
+        }
+    }
+
+    private static boolean verify(Workspace workspace, byte[] hash, BigInteger r, BigInteger sInverse, PreparedPoint q) {
+        BigInteger u1 = calculateE(hash).multiply(sInverse).mod(N);
+        BigInteger u2 = r.multiply(sInverse).mod(N);
+        JacobianPoint point = multiply(workspace, u1, q, u2);
+        if (point.infinity)
+            return false;
+        // The signature is good if the x co-ordinate, taken modulo n, equals r. As x = X / Z^2, compare X with
+        // r * Z^2 instead of inverting Z. x may also be r + n, if that is still less than the field prime.
+        int[] zz = create(), rzz = create();
+        sqr(point.z, zz);
+        mul(fromBigInteger(r), zz, rzz);
+        if (equal(rzz, point.x))
+            return true;
+        BigInteger rPlusN = r.add(N);
+        if (rPlusN.compareTo(P) >= 0)
+            return false;
+        mul(fromBigInteger(rPlusN), zz, rzz);
+        return equal(rzz, point.x);
+    }
+
+    /**
+     * Returns a * G + b * P, where G is the generator and P is the given encoded point, encoded in the same way as
+     * public keys. Returns null if the result is the point at infinity.
+     *
+     * @throws IllegalArgumentException if P isn't a valid encoding of a point on the curve
+     */
+    @Nullable
+    public static byte[] sumOfTwoMultiplies(BigInteger a, byte[] point, BigInteger b, boolean compressed) {
+        PreparedPoint p = prepare(point, WINDOW_A);
+        if (p == null)
+            throw new IllegalArgumentException("Invalid point");
+        JacobianPoint result = multiply(new Workspace(), a.mod(N), p, b.mod(N));
+        return result.infinity ? null : result.encode(compressed);
+    }
+
+    /**
+     * Decodes a point in the SEC format used for public keys and checks it is on the curve. Returns the affine x and
+     * y co-ordinates, or null if the encoding or point is invalid. The hybrid encodings starting with 6 or 7 are
+     * accepted like uncompressed points.
+     */
+    @Nullable
+    static int[][] decodePoint(byte[] encoded) {
+        if (encoded.length == 33 && (encoded[0] == 2 || encoded[0] == 3)) {
+            int[] x = fromBytes(encoded, 1);
+            if (x == null)
+                return null;
+            int[] y = create();
+            curveRightSide(x, y);
+            if (!Secp256k1Field.sqrt(y, y))
+                return null;
+            if (isOdd(y) != (encoded[0] == 3))
+                negate(y, y);
+            return new int[][] { x, y };
+        } else if (encoded.length == 65 && (encoded[0] == 4 || encoded[0] == 6 || encoded[0] == 7)) {
+            int[] x = fromBytes(encoded, 1);
+            int[] y = fromBytes(encoded, 33);
+            if (x == null || y == null)
+                return null;
+            int[] yy = create(), rhs = create();
+            sqr(y, yy);
+            curveRightSide(x, rhs);
+            return equal(yy, rhs) ? new int[][] { x, y } : null;
+        }
+        return null;
+    }
+
+    // r = x^3 + 7
+    private static void curveRightSide(int[] x, int[] r) {
+        int[] t = create();
+        sqr(x, t);
+        mul(t, x, t);
+        add(t, SEVEN, r);
+    }
+
+    // Turns a hash into a number the same way Spongy Castle's ECDSASigner does, keeping only its leftmost bits if it
+    // is longer than the curve order.
+    private static BigInteger calculateE(byte[] hash) {
+        BigInteger e = new BigInteger(1, hash);
+        int hashBits = hash.length * 8;
+        if (hashBits > N.bitLength())
+            e = e.shiftRight(hashBits - N.bitLength());
+        return e;
+    }
+
+    private static void checkScalar(BigInteger k) {
+        if (k.signum() <= 0 || k.compareTo(N) >= 0)
+            throw new IllegalArgumentException("Private key out of range");
+    }
+
+    // Splits k into k1 and k2 of around 128 bits each, such that k = k1 + k2 * lambda modulo n. See "Guide to
+    // Elliptic Curve Cryptography", algorithm 3.74.
+    static BigInteger[] split(BigInteger k) {
+        BigInteger c1 = B2.multiply(k).add(HALF_N).divide(N);
+        BigInteger c2 = B1.negate().multiply(k).add(HALF_N).divide(N);
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(B1).add(c2.multiply(B2)).negate();
+        return new BigInteger[] { k1, k2 };
+    }
+
+    // Writes k in windowed non-adjacent form: digits are zero or odd with an absolute value below 2^(w-1), and any w
+    // consecutive digits contain at most one that isn't zero. Returns how many digits were used.
+    private static int wnaf(BigInteger k, int w, int[] digits) {
+        int sign = k.signum() < 0 ? -1 : 1;
+        k = k.abs();
+        int bitLength = k.bitLength();
+        int bit = 0, carry = 0, length = 0;
+        while (bit < bitLength || carry != 0) {
+            if ((k.testBit(bit) ? 1 : 0) == carry) {
+                bit++;
+                continue;
+            }
+            int word = carry;
+            for (int i = 0; i < w; i++) {
+                if (k.testBit(bit + i))
+                    word += 1 << i;
+            }
+            carry = (word >> (w - 1)) & 1;
+            word -= carry << w;
+            digits[bit] = sign * word;
+            length = bit + 1;
+            bit += w;
+        }
+        return length;
+    }
+
+    // Decodes a point and works out the multiples of it that multiply() needs, or returns null if it's invalid.
+    @Nullable
+    private static PreparedPoint prepare(byte[] encoded, int window) {
+        int[][] p = decodePoint(encoded);
+        if (p == null)
+            return null;
+        int size = 1 << (window - 2);
+        JacobianPoint[] multiples = oddMultiples(new Workspace(), new JacobianPoint(p[0], p[1]), size);
+        // The multiples are converted to affine co-ordinates, sharing one inversion between them, so that adding them
+        // during multiplication is cheaper. None of them is infinity as the curve order is prime.
+        int[][] zs = new int[size][];
+        for (int i = 0; i < size; i++)
+            zs[i] = Secp256k1Field.copy(multiples[i].z);
+        invertAll(zs, size);
+        int[][] tableX = new int[size][], tableY = new int[size][], lambdaTableX = new int[size][];
+        for (int i = 0; i < size; i++) {
+            int[][] affine = multiples[i].toAffine(zs[i]);
+            tableX[i] = affine[0];
+            tableY[i] = affine[1];
+            lambdaTableX[i] = create();
+            mul(affine[0], BETA, lambdaTableX[i]);
+        }
+        return new PreparedPoint(window, tableX, tableY, lambdaTableX);
+    }
+
+    /**
+     * A public key that has been decoded, checked to be on the curve, and had the multiples of it that verification
+     * needs worked out, see {@link #preparePublicKey(byte[])}. Instances are immutable and can be shared between
+     * threads.
+     */
+    public static final class PreparedPoint {
+        final int window;
+        // Affine co-ordinates of P, 3P, 5P and so on. lambda * P has the same y co-ordinates.
+        final int[][] tableX, tableY, lambdaTableX;
+
+        PreparedPoint(int window, int[][] tableX, int[][] tableY, int[][] lambdaTableX) {
+            this.window = window;
+            this.tableX = tableX;
+            this.tableY = tableY;
+            this.lambdaTableX = lambdaTableX;
+        }
+    }
+
+    // Computes a * G + b * P, leaving out the second term if p is null.
+    private static JacobianPoint multiply(Workspace workspace, BigInteger a, @Nullable PreparedPoint p, @Nullable BigInteger b) {
+        // Both halves of a split scalar fit in 129 bits, so their wNAF forms are at most 129 + window digits long.
+        BigInteger[] aSplit = split(a);
+        int[] wnafA1 = new int[130 + WINDOW_G], wnafA2 = new int[130 + WINDOW_G];
+        int length = Math.max(wnaf(aSplit[0], WINDOW_G, wnafA1), wnaf(aSplit[1], WINDOW_G, wnafA2));
+
+        int[] wnafB1 = null, wnafB2 = null;
+        if (p != null) {
+            BigInteger[] bSplit = split(b);
+            wnafB1 = new int[130 + p.window];
+            wnafB2 = new int[130 + p.window];
+            length = Math.max(length, wnaf(bSplit[0], p.window, wnafB1));
+            length = Math.max(length, wnaf(bSplit[1], p.window, wnafB2));
+        }
+
+        JacobianPoint result = new JacobianPoint();
+        for (int i = length - 1; i >= 0; i--) {
+            workspace.doublePoint(result);
+            int digit = wnafA1[i];
+            if (digit != 0)
+                workspace.addAffine(result, G_TABLE_X[Math.abs(digit) >> 1], G_TABLE_Y[Math.abs(digit) >> 1], digit < 0);
+            digit = wnafA2[i];
+            if (digit != 0)
+                workspace.addAffine(result, LAMBDA_G_TABLE_X[Math.abs(digit) >> 1], G_TABLE_Y[Math.abs(digit) >> 1], digit < 0);
+            if (p != null) {
+                digit = wnafB1[i];
+                if (digit != 0)
+                    workspace.addAffine(result, p.tableX[Math.abs(digit) >> 1], p.tableY[Math.abs(digit) >> 1], digit < 0);
+                digit = wnafB2[i];
+                if (digit != 0)
+                    workspace.addAffine(result, p.lambdaTableX[Math.abs(digit) >> 1], p.tableY[Math.abs(digit) >> 1], digit < 0);
+            }
+        }
+        return result;
+    }
+
+    // Returns P, 3P, 5P ... up to (2 * count - 1) * P.
+    private static JacobianPoint[] oddMultiples(Workspace workspace, JacobianPoint p, int count) {
+        JacobianPoint[] multiples = new JacobianPoint[count];
+        multiples[0] = p;
+        JacobianPoint twiceP = p.copy();
+        workspace.doublePoint(twiceP);
+        for (int i = 1; i < count; i++) {
+            multiples[i] = multiples[i - 1].copy();
+            workspace.addPoint(multiples[i], twiceP, false);
+        }
+        return multiples;
+    }
+
+    // A point in Jacobian co-ordinates, which represent the affine point (X / Z^2, Y / Z^3).
+    private static final class JacobianPoint {
+        final int[] x, y, z;
+        boolean infinity;
+
+        // Creates the point at infinity.
+        JacobianPoint() {
+            x = create();
+            y = create();
+            z = create();
+            infinity = true;
+        }
+
+        JacobianPoint(int[] affineX, int[] affineY) {
+            x = Secp256k1Field.copy(affineX);
+            y = Secp256k1Field.copy(affineY);
+            z = fromInt(1);
+        }
+
+        JacobianPoint copy() {
+            JacobianPoint copy = new JacobianPoint();
+            set(this, copy);
+            return copy;
+        }
+
+        static void set(JacobianPoint from, JacobianPoint to) {
+            Secp256k1Field.copy(from.x, to.x);
+            Secp256k1Field.copy(from.y, to.y);
+            Secp256k1Field.copy(from.z, to.z);
+            to.infinity = from.infinity;
+        }
+
+        // Returns the affine x and y co-ordinates given 1 / Z.
+        int[][] toAffine(int[] zInverse) {
+            int[] zInverse2 = create(), affineX = create(), affineY = create();
+            sqr(zInverse, zInverse2);
+            mul(x, zInverse2, affineX);
+            mul(y, zInverse2, affineY);
+            mul(affineY, zInverse, affineY);
+            return new int[][] { affineX, affineY };
+        }
+
+        byte[] encode(boolean compressed) {
+            if (infinity)
+                throw new IllegalStateException("Point at infinity has no encoding");
+            int[] zInverse = create();
+            invert(z, zInverse);
+            int[][] affine = toAffine(zInverse);
+            if (compressed) {
+                byte[] encoded = new byte[33];
+                encoded[0] = (byte) (isOdd(affine[1]) ? 3 : 2);
+                toBytes(affine[0], encoded, 1);
+                return encoded;
+            } else {
+                byte[] encoded = new byte[65];
+                encoded[0] = 4;
+                toBytes(affine[0], encoded, 1);
+                toBytes(affine[1], encoded, 33);
+                return encoded;
+            }
+        }
+    }
+
+    // Scratch space for the point formulas, so a whole multiplication allocates only a handful of arrays. Not thread
+    // safe, each operation makes its own.
+    private static final class Workspace {
+        final int[] t1 = create(), t2 = create(), t3 = create(), t4 = create(), t5 = create(), t6 = create(),
+                t7 = create(), t8 = create(), t9 = create(), negY = create();
+
+        // p = 2p, using the "dbl-2009-l" formulas for curves with a = 0.
+        void doublePoint(JacobianPoint p) {
+            if (p.infinity)
+                return;
+            int[] a = t1, b = t2, c = t3, d = t4, e = t5, f = t6;
+            sqr(p.x, a);
+            sqr(p.y, b);
+            sqr(b, c);
+            add(p.x, b, d);
+            sqr(d, d);
+            sub(d, a, d);
+            sub(d, c, d);
+            twice(d, d);                    // D = 2 * ((X + B)^2 - A - C)
+            twice(a, e);
+            add(e, a, e);                   // E = 3 * A
+            sqr(e, f);
+            mul(p.y, p.z, p.z);
+            twice(p.z, p.z);                // Z3 = 2 * Y * Z
+            twice(d, p.x);
+            sub(f, p.x, p.x);               // X3 = F - 2 * D
+            sub(d, p.x, d);
+            mul(e, d, p.y);
+            twice(c, c);
+            twice(c, c);
+            twice(c, c);
+            sub(p.y, c, p.y);               // Y3 = E * (D - X3) - 8 * C
+        }
+
+        // p = p + (x, y) or p - (x, y), where the second point is in affine co-ordinates.
+        void addAffine(JacobianPoint p, int[] x, int[] y, boolean subtract) {
+            if (subtract) {
+                negate(y, negY);
+                y = negY;
+            }
+            if (p.infinity) {
+                Secp256k1Field.copy(x, p.x);
+                Secp256k1Field.copy(y, p.y);
+                Secp256k1Field.copy(ONE, p.z);
+                p.infinity = false;
+                return;
+            }
+            int[] z1z1 = t1, u2 = t2, s2 = t3, h = t4, r = t5;
+            sqr(p.z, z1z1);
+            mul(x, z1z1, u2);
+            mul(y, p.z, s2);
+            mul(s2, z1z1, s2);
+            sub(u2, p.x, h);
+            sub(s2, p.y, r);
+            finishAdd(p, p.x, p.y, h, r, null);
+        }
+
+        // p = p + q or p - q, both in Jacobian co-ordinates.
+        void addPoint(JacobianPoint p, JacobianPoint q, boolean subtract) {
+            if (q.infinity)
+                return;
+            int[] qy = q.y;
+            if (subtract) {
+                negate(q.y, negY);
+                qy = negY;
+            }
+            if (p.infinity) {
+                JacobianPoint.set(q, p);
+                Secp256k1Field.copy(qy, p.y);
+                return;
+            }
+            int[] z1z1 = t1, z2z2 = t2, u1 = t3, u2 = t4, s1 = t5, s2 = t6;
+            sqr(p.z, z1z1);
+            sqr(q.z, z2z2);
+            mul(p.x, z2z2, u1);
+            mul(q.x, z1z1, u2);
+            mul(p.y, q.z, s1);
+            mul(s1, z2z2, s1);
+            mul(qy, p.z, s2);
+            mul(s2, z1z1, s2);
+            sub(u2, u1, u2);                // H
+            sub(s2, s1, s2);                // R
+            finishAdd(p, u1, s1, u2, s2, q.z);
+        }
+
+        // Completes the "add-1998-cmo-2" addition formulas, given U1, S1, H = U2 - U1 and R = S2 - S1. The second
+        // point's Z is null if it was affine. U1 and S1 may be p's own X and Y.
+        private void finishAdd(JacobianPoint p, int[] u1, int[] s1, int[] h, int[] r, @Nullable int[] z2) {
+            if (isZero(h)) {
+                // Either the points are the same, or one is the negation of the other.
+                if (isZero(r))
+                    doublePoint(p);
+                else
+                    p.infinity = true;
+                return;
+            }
+            int[] hh = t7, hhh = t8, v = t9;
+            sqr(h, hh);
+            mul(h, hh, hhh);
+            mul(u1, hh, v);
+            mul(s1, hhh, hh);               // S1 * HHH
+            mul(p.z, h, p.z);
+            if (z2 != null)
+                mul(p.z, z2, p.z);          // Z3 = Z1 * Z2 * H
+            sqr(r, p.x);
+            sub(p.x, hhh, p.x);
+            sub(p.x, v, p.x);
+            sub(p.x, v, p.x);               // X3 = R^2 - HHH - 2 * V
+            sub(v, p.x, v);
+            mul(r, v, p.y);
+            sub(p.y, hh, p.y);              // Y3 = R * (V - X3) - S1 * HHH
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Arithmetic modulo the secp256k1 field prime p = 2^256 - 2^32 - 977, used by {@link Secp256k1}.</p>
+ *
+ * <p>A field element is an int[8] holding the value as unsigned 32 bit limbs, least significant first. Every method
+ * takes fully reduced elements (less than p) and produces a fully reduced result, and the result array may be the same
+ * as any of the inputs. Because p is so close to 2^256, reducing a product only takes a couple of multiplications by
+ * 2^32 + 977 rather than a division.</p>
+ */
+final class Secp256k1Field {
+    private Secp256k1Field() {}
+
+    private static final long M = 0xFFFFFFFFL;
+    // 2^256 - p.
+    private static final long C_LOW = 977;
+
+    static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+
+    /** Returns a new element holding zero. */
+    static int[] create() {
+        return new int[8];
+    }
+
+    static int[] fromInt(int value) {
+        int[] r = new int[8];
+        r[0] = value;
+        return r;
+    }
+
+    static int[] copy(int[] a) {
+        return a.clone();
+    }
+
+    static void copy(int[] a, int[] r) {
+        System.arraycopy(a, 0, r, 0, 8);
+    }
+
+    /** Reads 32 big endian bytes. Returns null if they encode a number that isn't less than p. */
+    static int[] fromBytes(byte[] bytes, int offset) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - i * 4;
+            r[i] = ((bytes[o] & 0xFF) << 24) | ((bytes[o + 1] & 0xFF) << 16) | ((bytes[o + 2] & 0xFF) << 8) | (bytes[o + 3] & 0xFF);
+        }
+        return isAtLeastP(r) ? null : r;
+    }
+
+    /** Writes the element as 32 big endian bytes. */
+    static void toBytes(int[] a, byte[] bytes, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - i * 4;
+            bytes[o] = (byte) (a[i] >>> 24);
+            bytes[o + 1] = (byte) (a[i] >>> 16);
+            bytes[o + 2] = (byte) (a[i] >>> 8);
+            bytes[o + 3] = (byte) a[i];
+        }
+    }
+
+    /** Converts a number between zero and p - 1 into a field element. */
+    static int[] fromBigInteger(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] padded = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, padded, 32 - length, length);
+        int[] r = fromBytes(padded, 0);
+        if (r == null || value.signum() < 0 || value.bitLength() > 256)
+            throw new IllegalArgumentException("Not a field element: " + value);
+        return r;
+    }
+
+    static BigInteger toBigInteger(int[] a) {
+        byte[] bytes = new byte[32];
+        toBytes(a, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+
+    static boolean isZero(int[] a) {
+        int bits = 0;
+        for (int i = 0; i < 8; i++)
+            bits |= a[i];
+        return bits == 0;
+    }
+
+    static boolean isOdd(int[] a) {
+        return (a[0] & 1) != 0;
+    }
+
+    static boolean equal(int[] a, int[] b) {
+        int diff = 0;
+        for (int i = 0; i < 8; i++)
+            diff |= a[i] ^ b[i];
+        return diff == 0;
+    }
+
+    /** r = a + b */
+    static void add(int[] a, int[] b, int[] r) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) + (b[i] & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        // The sum is below 2p. If it went past 2^256 or is at least p, subtracting p is the same as adding
+        // 2^256 - p and dropping the carry out of the top limb.
+        if (c != 0 || isAtLeastP(r))
+            addC(r);
+    }
+
+    /** r = a - b */
+    static void sub(int[] a, int[] b, int[] r) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+        // If we borrowed we have a - b + 2^256, and adding p means subtracting 2^256 - p.
+        if (c != 0)
+            subC(r);
+    }
+
+    /** r = -a */
+    static void negate(int[] a, int[] r) {
+        if (isZero(a)) {
+            copy(a, r);
+            return;
+        }
+        // p - a, which can't borrow because a is less than p.
+        long c = 0;
+        c += 0xFFFFFC2FL - (a[0] & M); r[0] = (int) c; c >>= 32;
+        c += 0xFFFFFFFEL - (a[1] & M); r[1] = (int) c; c >>= 32;
+        for (int i = 2; i < 8; i++) {
+            c += M - (a[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+    }
+
+    /** r = a * a */
+    static void sqr(int[] a, int[] r) {
+        mul(a, a, r);
+    }
+
+    /** r = a squared n times over */
+    static void sqr(int[] a, int n, int[] r) {
+        copy(a, r);
+        for (int i = 0; i < n; i++)
+            mul(r, r, r);
+    }
+
+    /** r = a * b */
+    static void mul(int[] a, int[] b, int[] r) {
+        // Schoolbook multiplication a column at a time. Each 64 bit product is split into halves so the column sums
+        // can't overflow.
+        long a0 = a[0] & M, a1 = a[1] & M, a2 = a[2] & M, a3 = a[3] & M, a4 = a[4] & M, a5 = a[5] & M, a6 = a[6] & M, a7 = a[7] & M;
+        long b0 = b[0] & M, b1 = b[1] & M, b2 = b[2] & M, b3 = b[3] & M, b4 = b[4] & M, b5 = b[5] & M, b6 = b[6] & M, b7 = b[7] & M;
+        long lo, hi, p, c = 0;
+        lo = c; hi = 0;
+        p = a0 * b0; lo += p & M; hi += p >>> 32;
+        long t0 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b1; lo += p & M; hi += p >>> 32;
+        p = a1 * b0; lo += p & M; hi += p >>> 32;
+        long t1 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b2; lo += p & M; hi += p >>> 32;
+        p = a1 * b1; lo += p & M; hi += p >>> 32;
+        p = a2 * b0; lo += p & M; hi += p >>> 32;
+        long t2 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b3; lo += p & M; hi += p >>> 32;
+        p = a1 * b2; lo += p & M; hi += p >>> 32;
+        p = a2 * b1; lo += p & M; hi += p >>> 32;
+        p = a3 * b0; lo += p & M; hi += p >>> 32;
+        long t3 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b4; lo += p & M; hi += p >>> 32;
+        p = a1 * b3; lo += p & M; hi += p >>> 32;
+        p = a2 * b2; lo += p & M; hi += p >>> 32;
+        p = a3 * b1; lo += p & M; hi += p >>> 32;
+        p = a4 * b0; lo += p & M; hi += p >>> 32;
+        long t4 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b5; lo += p & M; hi += p >>> 32;
+        p = a1 * b4; lo += p & M; hi += p >>> 32;
+        p = a2 * b3; lo += p & M; hi += p >>> 32;
+        p = a3 * b2; lo += p & M; hi += p >>> 32;
+        p = a4 * b1; lo += p & M; hi += p >>> 32;
+        p = a5 * b0; lo += p & M; hi += p >>> 32;
+        long t5 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b6; lo += p & M; hi += p >>> 32;
+        p = a1 * b5; lo += p & M; hi += p >>> 32;
+        p = a2 * b4; lo += p & M; hi += p >>> 32;
+        p = a3 * b3; lo += p & M; hi += p >>> 32;
+        p = a4 * b2; lo += p & M; hi += p >>> 32;
+        p = a5 * b1; lo += p & M; hi += p >>> 32;
+        p = a6 * b0; lo += p & M; hi += p >>> 32;
+        long t6 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a0 * b7; lo += p & M; hi += p >>> 32;
+        p = a1 * b6; lo += p & M; hi += p >>> 32;
+        p = a2 * b5; lo += p & M; hi += p >>> 32;
+        p = a3 * b4; lo += p & M; hi += p >>> 32;
+        p = a4 * b3; lo += p & M; hi += p >>> 32;
+        p = a5 * b2; lo += p & M; hi += p >>> 32;
+        p = a6 * b1; lo += p & M; hi += p >>> 32;
+        p = a7 * b0; lo += p & M; hi += p >>> 32;
+        long t7 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a1 * b7; lo += p & M; hi += p >>> 32;
+        p = a2 * b6; lo += p & M; hi += p >>> 32;
+        p = a3 * b5; lo += p & M; hi += p >>> 32;
+        p = a4 * b4; lo += p & M; hi += p >>> 32;
+        p = a5 * b3; lo += p & M; hi += p >>> 32;
+        p = a6 * b2; lo += p & M; hi += p >>> 32;
+        p = a7 * b1; lo += p & M; hi += p >>> 32;
+        long t8 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a2 * b7; lo += p & M; hi += p >>> 32;
+        p = a3 * b6; lo += p & M; hi += p >>> 32;
+        p = a4 * b5; lo += p & M; hi += p >>> 32;
+        p = a5 * b4; lo += p & M; hi += p >>> 32;
+        p = a6 * b3; lo += p & M; hi += p >>> 32;
+        p = a7 * b2; lo += p & M; hi += p >>> 32;
+        long t9 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a3 * b7; lo += p & M; hi += p >>> 32;
+        p = a4 * b6; lo += p & M; hi += p >>> 32;
+        p = a5 * b5; lo += p & M; hi += p >>> 32;
+        p = a6 * b4; lo += p & M; hi += p >>> 32;
+        p = a7 * b3; lo += p & M; hi += p >>> 32;
+        long t10 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a4 * b7; lo += p & M; hi += p >>> 32;
+        p = a5 * b6; lo += p & M; hi += p >>> 32;
+        p = a6 * b5; lo += p & M; hi += p >>> 32;
+        p = a7 * b4; lo += p & M; hi += p >>> 32;
+        long t11 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a5 * b7; lo += p & M; hi += p >>> 32;
+        p = a6 * b6; lo += p & M; hi += p >>> 32;
+        p = a7 * b5; lo += p & M; hi += p >>> 32;
+        long t12 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a6 * b7; lo += p & M; hi += p >>> 32;
+        p = a7 * b6; lo += p & M; hi += p >>> 32;
+        long t13 = lo & M; c = (lo >>> 32) + hi;
+        lo = c; hi = 0;
+        p = a7 * b7; lo += p & M; hi += p >>> 32;
+        long t14 = lo & M; c = (lo >>> 32) + hi;
+        long t15 = c;
+
+        // The product is low + high * 2^256, and 2^256 = 2^32 + 977 modulo p. Fold the high half in once.
+        c = t0 + t8 * C_LOW;
+        long r0 = c & M; c >>>= 32;
+        c += t1 + t9 * C_LOW + t8;
+        long r1 = c & M; c >>>= 32;
+        c += t2 + t10 * C_LOW + t9;
+        long r2 = c & M; c >>>= 32;
+        c += t3 + t11 * C_LOW + t10;
+        long r3 = c & M; c >>>= 32;
+        c += t4 + t12 * C_LOW + t11;
+        long r4 = c & M; c >>>= 32;
+        c += t5 + t13 * C_LOW + t12;
+        long r5 = c & M; c >>>= 32;
+        c += t6 + t14 * C_LOW + t13;
+        long r6 = c & M; c >>>= 32;
+        c += t7 + t15 * C_LOW + t14;
+        long r7 = c & M; c >>>= 32;
+        // What is left above 2^256 is less than 2^33, so folding it in a second time leaves at most a single carry.
+        long top = c + t15;
+        c = r0 + top * C_LOW;
+        r0 = c & M; c >>>= 32;
+        c += r1 + top;
+        r1 = c & M; c >>>= 32;
+        c += r2; r2 = c & M; c >>>= 32;
+        c += r3; r3 = c & M; c >>>= 32;
+        c += r4; r4 = c & M; c >>>= 32;
+        c += r5; r5 = c & M; c >>>= 32;
+        c += r6; r6 = c & M; c >>>= 32;
+        c += r7; r7 = c & M; c >>>= 32;
+        r[0] = (int) r0; r[1] = (int) r1; r[2] = (int) r2; r[3] = (int) r3;
+        r[4] = (int) r4; r[5] = (int) r5; r[6] = (int) r6; r[7] = (int) r7;
+        // Past 2^256 again means the limbs now hold a small number, so adding 2^256 - p can't carry out.
+        if (c != 0 || isAtLeastP(r))
+            addC(r);
+    }
+
+    /** r = a * 2 */
+    static void twice(int[] a, int[] r) {
+        add(a, a, r);
+    }
+
+    /** r = 1 / a, or zero if a is zero. */
+    static void invert(int[] a, int[] r) {
+        // a^(p - 2). The binary form of p - 2 has blocks of ones with lengths 1, 2, 22 and 223, so the powers
+        // a^(2^n - 1) for those lengths are built up first: 1, [2], 3, 6, 9, 11, [22], 44, 88, 176, 220, [223].
+        int[][] x = powerBlocks(a);
+        int[] x2 = x[0], x22 = x[2], x223 = x[3];
+        int[] t = create();
+        sqr(x223, 23, t);
+        mul(t, x22, t);
+        sqr(t, 5, t);
+        mul(t, a, t);
+        sqr(t, 3, t);
+        mul(t, x2, t);
+        sqr(t, 2, t);
+        mul(t, a, r);
+    }
+
+    /** r = a square root of a. Returns false, leaving r undefined, if a has no square root. */
+    static boolean sqrt(int[] a, int[] r) {
+        // a^((p + 1) / 4), which works because p = 3 mod 4. The binary form of (p + 1) / 4 has blocks of ones with
+        // lengths 2, 22 and 223.
+        int[][] x = powerBlocks(a);
+        int[] x2 = x[0], x22 = x[2], x223 = x[3];
+        int[] t = create();
+        sqr(x223, 23, t);
+        mul(t, x22, t);
+        sqr(t, 6, t);
+        mul(t, x2, t);
+        sqr(t, 2, t);
+        // Check the answer, as not every element has a square root.
+        int[] check = create();
+        sqr(t, check);
+        boolean found = equal(check, a);
+        copy(t, r);
+        return found;
+    }
+
+    // Returns a^(2^2 - 1), a^(2^3 - 1), a^(2^22 - 1) and a^(2^223 - 1).
+    private static int[][] powerBlocks(int[] a) {
+        int[] x2 = create(), x3 = create(), x6 = create(), x9 = create(), x11 = create(), x22 = create();
+        int[] t = create();
+        sqr(a, x2);
+        mul(x2, a, x2);
+        sqr(x2, x3);
+        mul(x3, a, x3);
+        sqr(x3, 3, x6);
+        mul(x6, x3, x6);
+        sqr(x6, 3, x9);
+        mul(x9, x3, x9);
+        sqr(x9, 2, x11);
+        mul(x11, x2, x11);
+        sqr(x11, 11, x22);
+        mul(x22, x11, x22);
+        int[] x44 = create();
+        sqr(x22, 22, x44);
+        mul(x44, x22, x44);
+        int[] x88 = create();
+        sqr(x44, 44, x88);
+        mul(x88, x44, x88);
+        sqr(x88, 88, t);
+        mul(t, x88, t);       // x176
+        sqr(t, 44, t);
+        mul(t, x44, t);       // x220
+        sqr(t, 3, t);
+        mul(t, x3, t);        // x223
+        return new int[][] { x2, x3, x22, t };
+    }
+
+    /**
+     * Inverts all the given elements at once using Montgomery's trick, which needs one inversion plus three
+     * multiplications per element instead of one inversion each. None of the elements may be zero.
+     */
+    static void invertAll(int[][] elements, int count) {
+        if (count == 0)
+            return;
+        int[][] prefix = new int[count][];
+        prefix[0] = copy(elements[0]);
+        for (int i = 1; i < count; i++) {
+            prefix[i] = create();
+            mul(prefix[i - 1], elements[i], prefix[i]);
+        }
+        int[] inverse = create();
+        invert(prefix[count - 1], inverse);
+        int[] t = create();
+        for (int i = count - 1; i > 0; i--) {
+            // inverse is now 1 / (e0 * ... * ei), so multiplying by the prefix product up to e(i-1) leaves 1 / ei.
+            mul(inverse, prefix[i - 1], t);
+            mul(inverse, elements[i], inverse);
+            copy(t, elements[i]);
+        }
+        copy(inverse, elements[0]);
+    }
+
+    private static boolean isAtLeastP(int[] r) {
+        // p is 0xFFFFFFFF in all limbs except the bottom two, so only values with those limbs all set can reach it.
+        int high = r[2] & r[3] & r[4] & r[5] & r[6] & r[7];
+        if (high != -1)
+            return false;
+        long r1 = r[1] & M, r0 = r[0] & M;
+        return r1 > 0xFFFFFFFEL || (r1 == 0xFFFFFFFEL && r0 >= 0xFFFFFC2FL);
+    }
+
+    // Adds 2^256 - p = 2^32 + 977, dropping any carry out of the top limb.
+    private static void addC(int[] r) {
+        long c = (r[0] & M) + C_LOW;
+        r[0] = (int) c; c >>>= 32;
+        c += (r[1] & M) + 1;
+        r[1] = (int) c; c >>>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += r[i] & M;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+
+    // Subtracts 2^256 - p, dropping any borrow out of the top limb.
+    private static void subC(int[] r) {
+        long c = (r[0] & M) - C_LOW;
+        r[0] = (int) c; c >>= 32;
+        c += (r[1] & M) - 1;
+        r[1] = (int) c; c >>= 32;
+        for (int i = 2; i < 8 && c != 0; i++) {
+            c += r[i] & M;
+            r[i] = (int) c;
+            c >>= 32;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.base.Throwables;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.bitcoin.NativeSecp256k1;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Collects ECDSA signature checks so they can be done together later, for instance all the signatures in a block.
+ * Checking many at once is cheaper than checking them one at a time: public keys that appear more than once are only
+ * decoded and prepared once, the modular inversions of the signatures are shared using Montgomery's trick, and the
+ * work can be spread over several threads.</p>
+ *
+ * <p>If the batch was given a {@link SignatureCache}, signatures the cache already knows are valid are not added, and
+ * the ones found valid when the batch is verified are added to it.</p>
+ *
+ * <p>Signatures can be added from any number of threads at once.</p>
+ */
+@ThreadSafe
+public class SignatureBatch {
+    // Below this there is little point splitting work up between threads.
+    private static final int MIN_SIGNATURES_PER_TASK = 16;
+
+    @Nullable private final SignatureCache signatureCache;
+    @GuardedBy("this") private final List<byte[]> hashes = new ArrayList<byte[]>();
+    @GuardedBy("this") private final List<ECKey.ECDSASignature> signatures = new ArrayList<ECKey.ECDSASignature>();
+    @GuardedBy("this") private final List<byte[]> pubKeys = new ArrayList<byte[]>();
+
+    /** Creates an empty batch that doesn't use a signature cache. */
+    public SignatureBatch() {
+        this(null);
+    }
+
+    /** Creates an empty batch that skips signatures known to the given cache, and adds valid ones to it. */
+    public SignatureBatch(@Nullable SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Adds a signature to be checked later.
+     *
+     * @param sigHash   Hash of the data that was signed.
+     * @param signature The signature to check.
+     * @param pubKey    The public key bytes to use.
+     */
+    public void add(byte[] sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (signatureCache != null && signatureCache.isKnownValid(sigHash, signature, pubKey))
+            return;
+        synchronized (this) {
+            hashes.add(sigHash);
+            signatures.add(signature);
+            pubKeys.add(pubKey);
+        }
+    }
+
+    /** Returns how many signatures are waiting to be checked. */
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Checks every signature in the batch, spreading the work over the given executor if it isn't null. Returns true
+     * if they are all valid.
+     */
+    public boolean verify(@Nullable ExecutorService executor) {
+        return verifyAll(Collections.singletonList(this), executor)[0];
+    }
+
+    /**
+     * Checks every signature in all the given batches together, spreading the work over the given executor if it
+     * isn't null. Returns whether all the signatures in each batch are valid, in the same order as the batches.
+     */
+    public static boolean[] verifyAll(List<SignatureBatch> batches, @Nullable ExecutorService executor) {
+        // Flatten everything into arrays so it can be split between threads however is best.
+        int[] batchEnds = new int[batches.size()];
+        List<byte[]> allHashes = new ArrayList<byte[]>();
+        List<ECKey.ECDSASignature> allSignatures = new ArrayList<ECKey.ECDSASignature>();
+        List<byte[]> allPubKeys = new ArrayList<byte[]>();
+        for (int i = 0; i < batches.size(); i++) {
+            SignatureBatch batch = batches.get(i);
+            synchronized (batch) {
+                allHashes.addAll(batch.hashes);
+                allSignatures.addAll(batch.signatures);
+                allPubKeys.addAll(batch.pubKeys);
+            }
+            batchEnds[i] = allHashes.size();
+        }
+        final int total = allHashes.size();
+        final byte[][] hashes = allHashes.toArray(new byte[total][]);
+        final byte[][] pubKeys = allPubKeys.toArray(new byte[total][]);
+        final BigInteger[] rs = new BigInteger[total], ss = new BigInteger[total];
+        for (int i = 0; i < total; i++) {
+            rs[i] = allSignatures.get(i).r;
+            ss[i] = allSignatures.get(i).s;
+        }
+        final boolean[] valid = new boolean[total];
+
+        int tasks = executor == null ? 1 :
+                Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), total / MIN_SIGNATURES_PER_TASK));
+        if (tasks == 1) {
+            verify(hashes, rs, ss, pubKeys, 0, total, valid);
+        } else {
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+            for (int task = 0; task < tasks; task++) {
+                final int from = (int) ((long) total * task / tasks);
+                final int to = (int) ((long) total * (task + 1) / tasks);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        verify(hashes, rs, ss, pubKeys, from, to, valid);
+                    }
+                }));
+            }
+            try {
+                for (Future<?> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        boolean[] results = new boolean[batches.size()];
+        int start = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            SignatureCache cache = batches.get(i).signatureCache;
+            results[i] = true;
+            for (int j = start; j < batchEnds[i]; j++) {
+                if (!valid[j])
+                    results[i] = false;
+                else if (cache != null)
+                    cache.addValid(hashes[j], allSignatures.get(j), pubKeys[j]);
+            }
+            start = batchEnds[i];
+        }
+        return results;
+    }
+
+    private static void verify(byte[][] hashes, BigInteger[] rs, BigInteger[] ss, byte[][] pubKeys, int from, int to,
+                               boolean[] results) {
+        if (!ECKey.FAKE_SIGNATURES && !NativeSecp256k1.enabled && Secp256k1.enabled) {
+            Secp256k1.verify(hashes, rs, ss, pubKeys, from, to, results);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            try {
+                results[i] = ECKey.verify(hashes[i], new ECKey.ECDSASignature(rs[i], ss[i]), pubKeys[i]);
+            } catch (RuntimeException e) {
+                // Spongy Castle throws on badly encoded public keys.
+                results[i] = false;
+            }
+        }
+    }
+}
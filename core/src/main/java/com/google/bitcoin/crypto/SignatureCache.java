@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples were recently found to be valid, so the same
+ * signature doesn't have to go through the expensive ECDSA maths twice. This happens when a transaction is checked
+ * and then checked again as part of a block, or when a block is connected again after a re-org. A
+ * {@link com.google.bitcoin.core.FullPrunedBlockChain} checks transactions relayed to its peers as they arrive, so
+ * most signatures in a new block are already in the cache.</p>
+ *
+ * <p>Only valid signatures are remembered. Entries are keyed by a hash of the triple mixed with a random salt that is
+ * picked when the cache is created, so nobody can predict what the keys will be. The cache holds a bounded number of
+ * entries and can be used from any number of threads at once.</p>
+ *
+ * <p>The script interpreter uses the cache returned by {@link #getDefault()} unless it is given another one. Call
+ * {@link #setDefault(SignatureCache)} with null to switch caching off.</p>
+ */
+@ThreadSafe
+public class SignatureCache {
+    /** How many signatures the default cache remembers. Each entry takes roughly a hundred bytes. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    @Nullable private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+    };
+
+    private final byte[] salt = new byte[32];
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /** Creates an empty cache that remembers at most the given number of valid signatures. */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries > 0);
+        new SecureRandom().nextBytes(salt);
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /** Returns the cache used by the script interpreter when it isn't told to use a different one, or null. */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by the script interpreter by default. Passing null turns off caching. */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Checks the signature like {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} does, but returns
+     * straight away if the same signature was verified before.
+     *
+     * @param sigHash   Hash of the data that was signed.
+     * @param signature The signature to check.
+     * @param pubKey    The public key bytes to use.
+     */
+    public boolean verify(byte[] sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // Faked signatures must not end up in the cache, they would still pass once faking is switched off.
+        if (ECKey.FAKE_SIGNATURES)
+            return true;
+        if (isKnownValid(sigHash, signature, pubKey))
+            return true;
+        boolean valid = ECKey.verify(sigHash, signature, pubKey);
+        if (valid)
+            addValid(sigHash, signature, pubKey);
+        return valid;
+    }
+
+    /**
+     * Like {@link #verify(byte[], ECKey.ECDSASignature, byte[])}, but signatures that aren't in the cache are checked
+     * with {@link ECKey#verify(Sha256Hash, ECKey.ECDSASignature)} so they can use the key's decoded point.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, ECKey key) {
+        if (ECKey.FAKE_SIGNATURES)
+            return true;
+        byte[] pubKey = key.getPubKey();
+        if (isKnownValid(sigHash.getBytes(), signature, pubKey))
+            return true;
+        boolean valid = key.verify(sigHash, signature);
+        if (valid)
+            addValid(sigHash.getBytes(), signature, pubKey);
+        return valid;
+    }
+
+    // Returns whether the signature was remembered as valid, counting a hit or a miss.
+    boolean isKnownValid(byte[] sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (validSignatures.getIfPresent(keyFor(sigHash, signature, pubKey)) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    // Remembers a signature that was found to be valid some other way.
+    void addValid(byte[] sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (!ECKey.FAKE_SIGNATURES)
+            validSignatures.put(keyFor(sigHash, signature, pubKey), Boolean.TRUE);
+    }
+
+    /** Returns how many checks were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many checks had to do the ECDSA maths, including those where the signature was invalid. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns roughly how many valid signatures are remembered right now. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets every signature and resets the hit and miss counters. */
+    public void clear() {
+        validSignatures.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private Sha256Hash keyFor(byte[] sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(salt);
+        digest.update(sigHash);
+        // Public keys vary in length, so include it to keep the boundary with the signature unambiguous.
+        digest.update((byte) (pubKey.length >> 8));
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature.encodeToDER());
+        return new Sha256Hash(digest.digest());
+    }
+}
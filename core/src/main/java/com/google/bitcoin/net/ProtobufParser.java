@@ -20,6 +20,7 @@ import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -214,14 +215,17 @@ public class ProtobufParser<MessageType extends MessageLite> extends AbstractTim
      * @throws IllegalStateException If the encoded message is larger than the maximum message size.
      */
     public void write(MessageType msg) throws IllegalStateException {
-        byte[] messageBytes = msg.toByteArray();
-        checkState(messageBytes.length <= maxMessageSize);
-        byte[] messageLength = new byte[4];
-        Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
+        int size = msg.getSerializedSize();
+        checkState(size <= maxMessageSize);
+        // Write the length prefix and message in one go: as two small writes, Nagle's algorithm holds the second back
+        // until the first is acknowledged, which adds the peer's delayed ACK time to every request/response exchange.
+        byte[] bytes = new byte[4 + size];
+        Utils.uint32ToByteArrayBE(size, bytes, 0);
         try {
-            MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            CodedOutputStream output = CodedOutputStream.newInstance(bytes, 4, size);
+            msg.writeTo(output);
+            output.checkNoSpaceLeft();
+            writeTarget.get().writeBytes(bytes);
         } catch (IOException e) {
             closeConnection();
         }
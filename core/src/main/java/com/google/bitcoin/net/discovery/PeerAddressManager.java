@@ -0,0 +1,468 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers we have heard about or connected to, along with how well each of them behaved,
+ * and optionally persists that knowledge to a small binary file. On the next start the best known peers can be
+ * connected to straight away instead of waiting for DNS seeds, and the seeds see far less load.</p>
+ *
+ * <p>Addresses are kept in two buckets. The "tried" bucket holds peers we completed a handshake with, ranked by
+ * consecutive failures, then measured latency, then how recently they worked. The "new" bucket holds addresses that
+ * were only advertised to us via addr messages, ranked by how recently they were seen. Both are bounded and the
+ * worst entry is dropped when a bucket overflows. {@link #getPeers(long, java.util.concurrent.TimeUnit)} returns
+ * tried peers before new ones, so the fastest known peers are always attempted first.</p>
+ *
+ * <p>Give an instance to {@link com.google.bitcoin.core.PeerGroup#setPeerAddressManager(PeerAddressManager)} and
+ * it will be consulted before any other discovery source and kept up to date as connections succeed and fail.</p>
+ */
+public class PeerAddressManager implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressManager.class);
+
+    /** The default maximum number of peers we have successfully connected to that will be remembered. */
+    public static final int DEFAULT_MAX_TRIED = 1000;
+    /** The default maximum number of advertised but untried addresses that will be remembered. */
+    public static final int DEFAULT_MAX_NEW = 4000;
+    /** Advertised addresses older than this are ignored, and untried ones are forgotten once they get this old. */
+    public static final long MAX_ADDRESS_AGE_SECS = 10 * 24 * 60 * 60;
+    /** Addresses that failed this many times in a row without ever working are forgotten. */
+    public static final int MAX_NEW_FAILURES = 3;
+    /** Tried addresses that failed this many times in a row are forgotten. */
+    public static final int MAX_TRIED_FAILURES = 10;
+    // The latency assumed for peers we connected to but never measured, so they sort behind peers known to be fast.
+    private static final int UNKNOWN_LATENCY_MSEC = 5000;
+
+    private static final int FILE_MAGIC = 0x70616d31;  // "pam1"
+    private static final int FILE_VERSION = 1;
+
+    private final ReentrantLock lock = Threading.lock("peeraddressmanager");
+
+    private final NetworkParameters params;
+    @Nullable private final File file;
+    private final int maxTried, maxNew;
+
+    @GuardedBy("lock") private final Map<InetSocketAddress, Record> records = new HashMap<InetSocketAddress, Record>();
+    @GuardedBy("lock") private int numTried;
+    @GuardedBy("lock") private boolean dirty;
+
+    private static class Record {
+        final InetSocketAddress address;
+        long services;
+        // Seconds since the epoch.
+        long lastSeenSecs, lastSuccessSecs;
+        // Moving average of handshake and ping times, or -1 if never measured.
+        int latencyMsec = -1;
+        int failures;
+        // Not persisted: when we last started connecting, used to measure handshake time.
+        long lastAttemptMsec;
+
+        Record(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isTried() {
+            return lastSuccessSecs > 0;
+        }
+
+        int effectiveLatency() {
+            return latencyMsec < 0 ? UNKNOWN_LATENCY_MSEC : latencyMsec;
+        }
+    }
+
+    // Best first.
+    private static final Comparator<Record> RANKING = new Comparator<Record>() {
+        @Override
+        public int compare(Record a, Record b) {
+            if (a.isTried() != b.isTried())
+                return a.isTried() ? -1 : 1;
+            if (a.isTried()) {
+                if (a.failures != b.failures)
+                    return a.failures < b.failures ? -1 : 1;
+                if (a.effectiveLatency() != b.effectiveLatency())
+                    return a.effectiveLatency() < b.effectiveLatency() ? -1 : 1;
+                if (a.lastSuccessSecs != b.lastSuccessSecs)
+                    return a.lastSuccessSecs > b.lastSuccessSecs ? -1 : 1;
+            } else {
+                if (a.failures != b.failures)
+                    return a.failures < b.failures ? -1 : 1;
+                if (a.lastSeenSecs != b.lastSeenSecs)
+                    return a.lastSeenSecs > b.lastSeenSecs ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /** Creates a manager that only remembers addresses in memory. */
+    public PeerAddressManager(NetworkParameters params) {
+        this(params, null, DEFAULT_MAX_TRIED, DEFAULT_MAX_NEW);
+    }
+
+    /**
+     * Creates a manager backed by the given file, loading it if it exists. Nothing is written until {@link #save()}
+     * or {@link #shutdown()} is called.
+     *
+     * @throws IOException if the file exists but could not be read, or belongs to a different network.
+     */
+    public PeerAddressManager(NetworkParameters params, File file) throws IOException {
+        this(params, checkNotNull(file), DEFAULT_MAX_TRIED, DEFAULT_MAX_NEW);
+        if (file.exists())
+            load();
+    }
+
+    @VisibleForTesting
+    PeerAddressManager(NetworkParameters params, @Nullable File file, int maxTried, int maxNew) {
+        checkArgument(maxTried > 0 && maxNew > 0);
+        this.params = checkNotNull(params);
+        this.file = file;
+        this.maxTried = maxTried;
+        this.maxNew = maxNew;
+    }
+
+    /**
+     * Records addresses advertised by a remote peer in an addr message. Addresses we already know about have their
+     * last seen time refreshed, others are added to the new bucket.
+     */
+    public void addAddresses(Collection<PeerAddress> addresses) {
+        long nowSecs = Utils.currentTimeMillis() / 1000;
+        lock.lock();
+        try {
+            for (PeerAddress address : addresses) {
+                // Nodes sometimes advertise timestamps a little in the future, don't let that make them look better.
+                long seen = Math.min(address.getTime(), nowSecs);
+                if (seen < nowSecs - MAX_ADDRESS_AGE_SECS)
+                    continue;
+                Record record = getOrCreate(address.toSocketAddress(), seen);
+                record.lastSeenSecs = Math.max(record.lastSeenSecs, seen);
+                record.services = address.getServices().longValue();
+            }
+            trim(false);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds an address learned some other way, for instance from the user or a seed list. */
+    public void addAddress(InetSocketAddress address) {
+        lock.lock();
+        try {
+            getOrCreate(address, Utils.currentTimeMillis() / 1000);
+            trim(false);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Call when starting to connect to the given address, so the time taken to handshake can be measured. */
+    public void recordAttempt(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record != null)
+                record.lastAttemptMsec = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Call when the version handshake with the given address completed. The address moves to the tried bucket and
+     * its failure count is reset.
+     */
+    public void recordSuccess(InetSocketAddress address) {
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Record record = getOrCreate(address, now / 1000);
+            if (!record.isTried())
+                numTried++;
+            record.lastSuccessSecs = record.lastSeenSecs = now / 1000;
+            record.failures = 0;
+            if (record.lastAttemptMsec > 0) {
+                addLatencySample(record, now - record.lastAttemptMsec);
+                record.lastAttemptMsec = 0;
+            }
+            trim(true);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Feeds a round trip time measured by pinging the peer into its latency average. */
+    public void recordLatency(InetSocketAddress address, long latencyMsec) {
+        checkArgument(latencyMsec >= 0);
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record != null) {
+                addLatencySample(record, latencyMsec);
+                dirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Call when a connection attempt to the given address failed before the handshake completed. */
+    public void recordFailure(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record == null)
+                return;
+            record.failures++;
+            record.lastAttemptMsec = 0;
+            if (record.failures >= (record.isTried() ? MAX_TRIED_FAILURES : MAX_NEW_FAILURES))
+                remove(record);
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void addLatencySample(Record record, long sampleMsec) {
+        int sample = (int) Math.min(sampleMsec, Integer.MAX_VALUE);
+        record.latencyMsec = record.latencyMsec < 0 ? sample : (int) ((record.latencyMsec * 3L + sample) / 4);
+    }
+
+    @GuardedBy("lock")
+    private Record getOrCreate(InetSocketAddress address, long nowSecs) {
+        Record record = records.get(address);
+        if (record == null) {
+            record = new Record(address);
+            record.lastSeenSecs = nowSecs;
+            records.put(address, record);
+        }
+        return record;
+    }
+
+    @GuardedBy("lock")
+    private void remove(Record record) {
+        records.remove(record.address);
+        if (record.isTried())
+            numTried--;
+    }
+
+    // Drops the worst entries of a bucket until it fits again.
+    @GuardedBy("lock")
+    private void trim(boolean tried) {
+        int size = tried ? numTried : records.size() - numTried;
+        int max = tried ? maxTried : maxNew;
+        if (size <= max)
+            return;
+        List<Record> bucket = new ArrayList<Record>(size);
+        for (Record record : records.values())
+            if (record.isTried() == tried)
+                bucket.add(record);
+        Collections.sort(bucket, RANKING);
+        for (int i = max; i < bucket.size(); i++)
+            remove(bucket.get(i));
+    }
+
+    /**
+     * Returns up to the given number of addresses, best first: peers that worked before ordered by reliability and
+     * latency, followed by the most recently advertised untried addresses.
+     */
+    public List<InetSocketAddress> getBestPeers(int maxResults) {
+        lock.lock();
+        try {
+            List<Record> sorted = new ArrayList<Record>(records.values());
+            Collections.sort(sorted, RANKING);
+            List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(Math.min(maxResults, sorted.size()));
+            for (int i = 0; i < sorted.size() && i < maxResults; i++)
+                result.add(sorted.get(i).address);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns every remembered address, best first. Never blocks on the network. */
+    @Override
+    public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        List<InetSocketAddress> peers = getBestPeers(Integer.MAX_VALUE);
+        return peers.toArray(new InetSocketAddress[peers.size()]);
+    }
+
+    /** Saves to the backing file, if there is one. */
+    @Override
+    public void shutdown() {
+        try {
+            save();
+        } catch (IOException e) {
+            log.error("Failed to save peer addresses", e);
+        }
+    }
+
+    /** Returns how many addresses are currently remembered. */
+    public int size() {
+        lock.lock();
+        try {
+            return records.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many of the remembered addresses we have successfully connected to at some point. */
+    public int getNumTried() {
+        lock.lock();
+        try {
+            return numTried;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the addresses to the backing file if anything changed since the last save. The data is written to a
+     * temporary file in the same directory first and then renamed over the old one, so a crash can't leave a
+     * truncated file behind. Does nothing for managers without a file.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            long nowSecs = Utils.currentTimeMillis() / 1000;
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("peers", null, directory);
+            FileOutputStream stream = null;
+            try {
+                stream = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                write(out, nowSecs);
+                out.flush();
+                stream.getFD().sync();
+                stream.close();
+                stream = null;
+                if (Utils.isWindows()) {
+                    // Work around an issue on Windows whereby you can't rename over existing files.
+                    File canonical = file.getCanonicalFile();
+                    canonical.delete();
+                    if (!temp.renameTo(canonical))
+                        throw new IOException("Failed to rename " + temp + " to " + canonical);
+                } else if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp + " to " + file);
+                }
+                dirty = false;
+            } finally {
+                if (stream != null)
+                    stream.close();
+                if (temp.delete())
+                    log.warn("Deleted temp file after failed save.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Format: magic, version, network id, count, then per address: address length (4 or 16), address bytes, port,
+    // services, last seen, last success, latency, failures.
+    @GuardedBy("lock")
+    private void write(DataOutputStream out, long nowSecs) throws IOException {
+        List<Record> toWrite = new ArrayList<Record>(records.size());
+        for (Record record : records.values()) {
+            // Forget untried addresses nobody has mentioned for a long time instead of carrying them forever.
+            if (!record.isTried() && record.lastSeenSecs < nowSecs - MAX_ADDRESS_AGE_SECS)
+                continue;
+            toWrite.add(record);
+        }
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeUTF(params.getId());
+        out.writeInt(toWrite.size());
+        for (Record record : toWrite) {
+            byte[] addr = record.address.getAddress().getAddress();
+            out.writeByte(addr.length);
+            out.write(addr);
+            out.writeShort(record.address.getPort());
+            out.writeLong(record.services);
+            out.writeLong(record.lastSeenSecs);
+            out.writeLong(record.lastSuccessSecs);
+            out.writeInt(record.latencyMsec);
+            out.writeInt(record.failures);
+        }
+    }
+
+    private void load() throws IOException {
+        checkNotNull(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        lock.lock();
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a peer address file: " + file);
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown peer address file version " + version);
+            String network = in.readUTF();
+            if (!network.equals(params.getId()))
+                throw new IOException("Peer address file is for " + network + " not " + params.getId());
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Corrupt peer address file: " + file);
+            for (int i = 0; i < count; i++) {
+                int length = in.readUnsignedByte();
+                if (length != 4 && length != 16)
+                    throw new IOException("Corrupt peer address file: " + file);
+                byte[] addr = new byte[length];
+                in.readFully(addr);
+                int port = in.readUnsignedShort();
+                Record record = new Record(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+                record.services = in.readLong();
+                record.lastSeenSecs = in.readLong();
+                record.lastSuccessSecs = in.readLong();
+                record.latencyMsec = in.readInt();
+                record.failures = in.readInt();
+                if (records.put(record.address, record) == null && record.isTried())
+                    numTried++;
+            }
+            trim(true);
+            trim(false);
+            log.info("Loaded {} peer addresses ({} tried) from {}", records.size(), numTried, file);
+        } catch (EOFException e) {
+            throw new IOException("Truncated peer address file: " + file, e);
+        } finally {
+            lock.unlock();
+            in.close();
+        }
+    }
+}
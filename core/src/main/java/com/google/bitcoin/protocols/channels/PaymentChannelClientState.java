@@ -537,4 +537,18 @@ public class PaymentChannelClientState {
     public synchronized BigInteger getValueSpent() {
         return getTotalValue().subtract(getValueRefunded());
     }
+
+    /**
+     * Returns the amount of money sent on this channel so far, as a {@link Coin}.
+     */
+    public synchronized Coin getValueSpentAsCoin() {
+        return Coin.valueOf(getValueSpent());
+    }
+
+    /**
+     * Gets the current amount refunded to us from the multisig contract, as a {@link Coin}.
+     */
+    public synchronized Coin getValueRefundedAsCoin() {
+        return Coin.valueOf(getValueRefunded());
+    }
 }
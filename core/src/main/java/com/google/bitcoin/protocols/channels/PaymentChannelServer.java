@@ -21,6 +21,7 @@ import com.google.bitcoin.protocols.channels.PaymentChannelCloseException.CloseR
 import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import net.jcip.annotations.GuardedBy;
 import org.bitcoin.paymentchannel.Protos;
@@ -319,9 +320,36 @@ public class PaymentChannelServer {
             conn.paymentIncrease(bestPaymentChange, state.getBestValueToMe());
 
         if (sendAck) {
-            Protos.TwoWayChannelMessage.Builder ack = Protos.TwoWayChannelMessage.newBuilder();
-            ack.setType(Protos.TwoWayChannelMessage.MessageType.PAYMENT_ACK);
-            conn.sendToClient(ack.build());
+            // Only acknowledge the payment once it's stored. Without a state log that's already happened, so the ack goes
+            // out straight away, otherwise it's sent from the user thread rather than the log's writer thread.
+            ListenableFuture<Void> stored = state.getStoredFuture();
+            Futures.addCallback(stored, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    lock.lock();
+                    try {
+                        if (!connectionOpen)
+                            return;
+                        Protos.TwoWayChannelMessage.Builder ack = Protos.TwoWayChannelMessage.newBuilder();
+                        ack.setType(Protos.TwoWayChannelMessage.MessageType.PAYMENT_ACK);
+                        conn.sendToClient(ack.build());
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("Failed to store payment", t);
+                    lock.lock();
+                    try {
+                        if (connectionOpen)
+                            conn.destroyConnection(CloseReason.SERVER_REQUESTED_CLOSE);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, stored.isDone() ? Threading.SAME_THREAD : Threading.USER_THREAD);
         }
 
         if (!stillUsable) {
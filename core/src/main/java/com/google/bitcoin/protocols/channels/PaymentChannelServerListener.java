@@ -22,7 +22,10 @@ import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.net.NioServer;
 import com.google.bitcoin.net.ProtobufParser;
 import com.google.bitcoin.net.StreamParserFactory;
+import net.jcip.annotations.GuardedBy;
 import org.bitcoin.paymentchannel.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
@@ -30,6 +33,9 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -39,6 +45,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * channels API. Internally, sends protobuf messages to/from a newly created {@link PaymentChannelServer}.
  */
 public class PaymentChannelServerListener {
+    private static final Logger log = LoggerFactory.getLogger(PaymentChannelServerListener.class);
+
     // The wallet and peergroup which are used to complete/broadcast transactions
     private final Wallet wallet;
     private final TransactionBroadcaster broadcaster;
@@ -49,6 +57,8 @@ public class PaymentChannelServerListener {
 
     private NioServer server;
     private final int timeoutSeconds;
+    // If set, connection events are handled here instead of on the network thread.
+    @Nullable private final Executor executor;
 
     /**
      * A factory which generates connection-specific event handlers.
@@ -86,29 +96,44 @@ public class PaymentChannelServerListener {
 
             protobufHandlerListener = new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
                 @Override
-                public synchronized void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
-                    paymentChannelManager.receiveMessage(msg);
+                public void messageReceived(ProtobufParser handler, final Protos.TwoWayChannelMessage msg) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            paymentChannelManager.receiveMessage(msg);
+                        }
+                    });
                 }
 
                 @Override
-                public synchronized void connectionClosed(ProtobufParser handler) {
-                    paymentChannelManager.connectionClosed();
-                    if (closeReason != null)
-                        eventHandler.channelClosed(closeReason);
-                    else
-                        eventHandler.channelClosed(PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED);
-                    eventHandler.setConnectionChannel(null);
+                public void connectionClosed(ProtobufParser handler) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            paymentChannelManager.connectionClosed();
+                            if (closeReason != null)
+                                eventHandler.channelClosed(closeReason);
+                            else
+                                eventHandler.channelClosed(PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED);
+                            eventHandler.setConnectionChannel(null);
+                        }
+                    });
                 }
 
                 @Override
-                public synchronized void connectionOpen(ProtobufParser handler) {
-                    ServerConnectionEventHandler eventHandler = eventHandlerFactory.onNewConnection(address);
-                    if (eventHandler == null)
-                        handler.closeConnection();
-                    else {
-                        ServerHandler.this.eventHandler = eventHandler;
-                        paymentChannelManager.connectionOpen();
-                    }
+                public void connectionOpen(final ProtobufParser handler) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            ServerConnectionEventHandler eventHandler = eventHandlerFactory.onNewConnection(address);
+                            if (eventHandler == null)
+                                handler.closeConnection();
+                            else {
+                                ServerHandler.this.eventHandler = eventHandler;
+                                paymentChannelManager.connectionOpen();
+                            }
+                        }
+                    });
                 }
             };
 
@@ -116,6 +141,45 @@ public class PaymentChannelServerListener {
                     (protobufHandlerListener, Protos.TwoWayChannelMessage.getDefaultInstance(), Short.MAX_VALUE, timeoutSeconds*1000);
         }
 
+        // Runs the events of this connection one at a time and in order, either on the calling thread or, if the
+        // listener was given an executor, on that.
+        private synchronized void dispatch(Runnable event) {
+            if (executor == null) {
+                event.run();
+                return;
+            }
+            pendingEvents.add(event);
+            if (!eventsScheduled) {
+                eventsScheduled = true;
+                executor.execute(runEvents);
+            }
+        }
+
+        private final Runnable runEvents = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable event;
+                    synchronized (ServerHandler.this) {
+                        event = pendingEvents.poll();
+                        if (event == null) {
+                            eventsScheduled = false;
+                            return;
+                        }
+                    }
+                    try {
+                        event.run();
+                    } catch (Throwable t) {
+                        log.error("Error handling payment channel connection event", t);
+                        socketProtobufHandler.closeConnection();
+                    }
+                }
+            }
+        };
+
+        @GuardedBy("this") private final Queue<Runnable> pendingEvents = new ArrayDeque<Runnable>();
+        @GuardedBy("this") private boolean eventsScheduled;
+
         private PaymentChannelCloseException.CloseReason closeReason;
 
         // The user-provided event handler
@@ -161,6 +225,24 @@ public class PaymentChannelServerListener {
     public PaymentChannelServerListener(TransactionBroadcaster broadcaster, Wallet wallet,
                                         final int timeoutSeconds, BigInteger minAcceptedChannelSize,
                                         HandlerFactory eventHandlerFactory) throws IOException {
+        this(broadcaster, wallet, timeoutSeconds, minAcceptedChannelSize, eventHandlerFactory, null);
+    }
+
+    /**
+     * <p>Sets up a new payment channel server which listens on the given port, handling messages from clients using
+     * the given executor.</p>
+     *
+     * <p>All connections share a single network thread, so by default one slow handler (for instance one checking a
+     * signature or waiting on the wallet) holds up every other client. Given an executor, such as
+     * {@link com.google.bitcoin.utils.Threading#THREAD_POOL}, each connection has its messages handled on it instead,
+     * one at a time and in the order they arrived, while different connections are handled in parallel.</p>
+     *
+     * @see #PaymentChannelServerListener(TransactionBroadcaster, Wallet, int, BigInteger, HandlerFactory)
+     */
+    public PaymentChannelServerListener(TransactionBroadcaster broadcaster, Wallet wallet,
+                                        final int timeoutSeconds, BigInteger minAcceptedChannelSize,
+                                        HandlerFactory eventHandlerFactory, @Nullable Executor executor) throws IOException {
+        this.executor = executor;
         this.wallet = checkNotNull(wallet);
         this.broadcaster = checkNotNull(broadcaster);
         this.eventHandlerFactory = checkNotNull(eventHandlerFactory);
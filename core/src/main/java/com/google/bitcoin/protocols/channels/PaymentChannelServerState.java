@@ -17,9 +17,11 @@
 package com.google.bitcoin.protocols.channels;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.SignatureCache;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -113,6 +115,18 @@ public class PaymentChannelServerState {
 
     private StoredServerChannel storedServerChannel = null;
 
+    // Completes when the latest payment has been stored.
+    private ListenableFuture<Void> storedFuture = Futures.immediateFuture(null);
+    // Where storedServerChannel is kept, looked up from the wallet the first time it's needed.
+    private StoredPaymentChannelServerStates storedChannels;
+
+    // The wallet's copy of the multisig contract, which is kept up to date with its confidence.
+    private Transaction walletContract;
+    // The serialized payment transaction that the client signs, up to where its output starts, and the script of the
+    // output that refunds the client. See hashForPayment.
+    private byte[] paymentPrefix, clientOutputScript;
+    private long paymentLockTime;
+
     PaymentChannelServerState(StoredServerChannel storedServerChannel, Wallet wallet, TransactionBroadcaster broadcaster) throws VerificationException {
         synchronized (storedServerChannel) {
             this.wallet = checkNotNull(wallet);
@@ -302,7 +316,8 @@ public class PaymentChannelServerState {
         // Get the wallet's copy of the multisigContract (ie with confidence information), if this is null, the wallet
         // was not connected to the peergroup when the contract was broadcast (which may cause issues down the road, and
         // disables our double-spend check next)
-        Transaction walletContract = wallet.getTransaction(multisigContract.getHash());
+        if (walletContract == null)
+            walletContract = wallet.getTransaction(multisigContract.getHash());
         checkNotNull(walletContract, "Wallet did not contain multisig contract {} after state was marked READY", multisigContract.getHash());
 
         // Note that we check for DEAD state here, but this test is essentially useless in production because we will
@@ -324,20 +339,76 @@ public class PaymentChannelServerState {
         if (signature.sigHashMode() != mode || !signature.anyoneCanPay())
             throw new VerificationException("New payment signature was not signed with the right SIGHASH flags.");
 
-        Wallet.SendRequest req = makeUnsignedChannelContract(newValueToMe);
         // Now check the signature is correct.
         // Note that the client must sign with SIGHASH_{SINGLE/NONE} | SIGHASH_ANYONECANPAY to allow us to add additional
         // inputs (in case we need to add significant fee, or something...) and any outputs we want to pay to.
-        Sha256Hash sighash = req.tx.hashForSignature(0, multisigScript, mode, true);
+        Sha256Hash sighash = hashForPayment(newValueToMe, mode);
 
-        if (!clientKey.verify(sighash, signature))
-            throw new VerificationException("Signature does not verify on tx\n" + req.tx);
+        SignatureCache signatureCache = SignatureCache.getDefault();
+        boolean sigValid = signatureCache != null ? signatureCache.verify(sighash, signature, clientKey)
+                                                  : clientKey.verify(sighash, signature);
+        if (!sigValid)
+            throw new VerificationException("Signature does not verify on tx\n" + makeUnsignedChannelContract(newValueToMe).tx);
         bestValueToMe = newValueToMe;
         bestValueSignature = signatureBytes;
         updateChannelInWallet();
         return !fullyUsedUp;
     }
 
+    /**
+     * Returns the hash the client signs to pay us newValueToMe, the same as signing the first input of the transaction
+     * made by {@link #makeUnsignedChannelContract(BigInteger)} would. The client signs with ANYONECANPAY so only the
+     * contract input is covered, and with SINGLE, or NONE when nothing is refunded, so only the output refunding the
+     * client is, whose value is the only thing that changes from one payment to the next. So everything else is
+     * serialized once and kept, rather than building a transaction and serializing it for every payment.
+     */
+    @VisibleForTesting
+    synchronized Sha256Hash hashForPayment(BigInteger newValueToMe, Transaction.SigHash mode) {
+        checkState(multisigContract != null);
+        if (paymentPrefix == null) {
+            Transaction tx = new Transaction(wallet.getParams());
+            TransactionInput input = tx.addInput(multisigContract.getOutput(0));
+            byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+            // The input's script is the contract output's script whilst signing.
+            byte[] script = multisigScript.getProgram();
+            byte[] scriptLength = new VarInt(script.length).encode();
+            paymentPrefix = new byte[4 + 1 + outpoint.length + scriptLength.length + script.length + 4];
+            Utils.uint32ToByteArrayLE(tx.getVersion(), paymentPrefix, 0);
+            paymentPrefix[4] = 1;  // Number of inputs.
+            int offset = 5;
+            System.arraycopy(outpoint, 0, paymentPrefix, offset, outpoint.length);
+            offset += outpoint.length;
+            System.arraycopy(scriptLength, 0, paymentPrefix, offset, scriptLength.length);
+            offset += scriptLength.length;
+            System.arraycopy(script, 0, paymentPrefix, offset, script.length);
+            offset += script.length;
+            Utils.uint32ToByteArrayLE(input.getSequenceNumber(), paymentPrefix, offset);
+            byte[] clientScript = clientOutput.getScriptBytes();
+            byte[] clientScriptLength = new VarInt(clientScript.length).encode();
+            clientOutputScript = new byte[clientScriptLength.length + clientScript.length];
+            System.arraycopy(clientScriptLength, 0, clientOutputScript, 0, clientScriptLength.length);
+            System.arraycopy(clientScript, 0, clientOutputScript, clientScriptLength.length, clientScript.length);
+            paymentLockTime = tx.getLockTime();
+        }
+        boolean single = mode == Transaction.SigHash.SINGLE;
+        checkArgument(single || mode == Transaction.SigHash.NONE);
+        byte[] buf = new byte[paymentPrefix.length + 1 + (single ? 8 + clientOutputScript.length : 0) + 8];
+        System.arraycopy(paymentPrefix, 0, buf, 0, paymentPrefix.length);
+        int offset = paymentPrefix.length;
+        if (single) {
+            buf[offset++] = 1;  // Number of outputs.
+            Utils.uint64ToByteArrayLE(totalValue.subtract(newValueToMe).longValue(), buf, offset);
+            offset += 8;
+            System.arraycopy(clientOutputScript, 0, buf, offset, clientOutputScript.length);
+            offset += clientOutputScript.length;
+        } else {
+            buf[offset++] = 0;
+        }
+        Utils.uint32ToByteArrayLE(paymentLockTime, buf, offset);
+        Utils.uint32ToByteArrayLE(0xff & ((mode.ordinal() + 1) | Transaction.SIGHASH_ANYONECANPAY_VALUE), buf, offset + 4);
+        return new Sha256Hash(Utils.doubleDigest(buf));
+    }
+
     // Signs the first input of the transaction which must spend the multisig contract.
     private void signMultisigInput(Transaction tx, Transaction.SigHash hashType, boolean anyoneCanPay) {
         TransactionSignature signature = tx.calculateSignature(0, serverKey, multisigScript, hashType, anyoneCanPay);
@@ -442,6 +513,13 @@ public class PaymentChannelServerState {
         return bestValueToMe;
     }
 
+    /**
+     * Gets the highest payment to ourselves, as a {@link Coin}.
+     */
+    public synchronized Coin getBestValueToMeAsCoin() {
+        return Coin.valueOf(bestValueToMe);
+    }
+
     /**
      * Gets the fee paid in the final payment transaction (only available if settle() did not throw an exception)
      */
@@ -467,12 +545,28 @@ public class PaymentChannelServerState {
         return refundTransactionUnlockTimeSecs;
     }
 
+    /**
+     * Returns a future which completes when the latest payment accepted by
+     * {@link PaymentChannelServerState#incrementPayment(BigInteger, byte[])} has been stored, or fails if it could not
+     * be. Payments are stored straight away by saving the wallet, unless the {@link StoredPaymentChannelServerStates}
+     * has a {@link PaymentChannelStateLog}, in which case they are written to the log in the background.
+     */
+    public synchronized ListenableFuture<Void> getStoredFuture() {
+        return storedFuture;
+    }
+
     private synchronized void updateChannelInWallet() {
         if (storedServerChannel != null) {
             storedServerChannel.updateValueToMe(bestValueToMe, bestValueSignature);
-            StoredPaymentChannelServerStates channels = (StoredPaymentChannelServerStates)
-                    wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
-            wallet.addOrUpdateExtension(channels);
+            if (storedChannels == null)
+                storedChannels = (StoredPaymentChannelServerStates)
+                        wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
+            StoredPaymentChannelServerStates channels = storedChannels;
+            PaymentChannelStateLog stateLog = channels.getStateLog();
+            if (stateLog != null)
+                storedFuture = stateLog.append(multisigContract.getHash(), bestValueToMe, bestValueSignature);
+            else
+                wallet.addOrUpdateExtension(channels);
         }
     }
 
@@ -499,6 +593,7 @@ public class PaymentChannelServerState {
         if (connectedHandler != null)
             checkState(storedServerChannel.setConnectedHandler(connectedHandler, false) == connectedHandler);
         channels.putChannel(storedServerChannel);
+        storedChannels = channels;
         wallet.addOrUpdateExtension(channels);
     }
 }
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Durably records the latest payment on each server side payment channel, without saving the whole wallet every
+ * time a payment arrives. Updates are appended to a log file by a background thread, which writes every update that
+ * is waiting in one go and then syncs the file once, so the cost of syncing is shared between all the channels that
+ * were paid in the meantime. The future returned by {@link #append(Sha256Hash, BigInteger, byte[])} completes once the
+ * update is on disk.</p>
+ *
+ * <p>When the log grows past a threshold, the latest update for each channel is written to a snapshot file next to
+ * it and the log is emptied. Both files are read back when the log is opened. A record cut short by a crash at the end
+ * of the log is discarded, which is safe as its update was never reported as stored. As the value paid on a channel
+ * can only go up, the update with the highest value for a channel is the latest one.</p>
+ *
+ * <p>The channels themselves are still stored in the wallet by {@link StoredPaymentChannelServerStates}, which only
+ * needs saving when channels are opened or closed once it has been given a log with
+ * {@link StoredPaymentChannelServerStates#setStateLog(PaymentChannelStateLog)}.</p>
+ */
+@ThreadSafe
+public class PaymentChannelStateLog {
+    private static final Logger log = LoggerFactory.getLogger(PaymentChannelStateLog.class);
+
+    /** How big the log can get, in bytes, before its contents are moved into the snapshot. */
+    public static final long DEFAULT_SNAPSHOT_THRESHOLD = 4 * 1024 * 1024;
+
+    // Records are the length of the body, the body (channel id, value and signature) and a checksum of the body.
+    private static final int BODY_OVERHEAD = 32 + 8;
+    private static final int RECORD_OVERHEAD = 4 + BODY_OVERHEAD + 4;
+    // Signatures are much smaller than this, anything bigger means the log is corrupt.
+    private static final int MAX_SIGNATURE_SIZE = 1024;
+
+    /** The latest stored payment on a channel. */
+    public static class Update {
+        public final Sha256Hash channelId;
+        public final BigInteger valueToMe;
+        public final byte[] signature;
+
+        Update(Sha256Hash channelId, BigInteger valueToMe, byte[] signature) {
+            this.channelId = channelId;
+            this.valueToMe = valueToMe;
+            this.signature = signature;
+        }
+    }
+
+    // An entry in the queue for the writer thread, either an update or a request for a snapshot or to stop.
+    private static class Request {
+        @Nullable final Update update;
+        final boolean stop;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        Request(@Nullable Update update, boolean stop) {
+            this.update = update;
+            this.stop = stop;
+        }
+    }
+
+    private final File file, snapshotFile;
+    private final long snapshotThreshold;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Thread writer;
+    private final AtomicLong syncs = new AtomicLong();
+
+    private final ReentrantLock lock = Threading.lock("PaymentChannelStateLog");
+    @GuardedBy("lock") private final Map<Sha256Hash, Update> latest = new HashMap<Sha256Hash, Update>();
+    @GuardedBy("lock") private boolean closed;
+    // Only used by the writer thread once the constructor has finished.
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    // Set if a failed write couldn't be undone, after which nothing more is written as it could follow a broken record.
+    @Nullable private IOException broken;
+
+    /** Opens or creates the log in the given file, using the default snapshot threshold. */
+    public PaymentChannelStateLog(File file) throws IOException {
+        this(file, DEFAULT_SNAPSHOT_THRESHOLD);
+    }
+
+    /**
+     * Opens or creates the log in the given file, reading back the updates stored in it. The snapshot is kept in a
+     * file with the same name plus ".snapshot", and is taken whenever the log is bigger than snapshotThreshold bytes.
+     */
+    public PaymentChannelStateLog(File file, long snapshotThreshold) throws IOException {
+        checkArgument(snapshotThreshold > 0);
+        this.file = checkNotNull(file);
+        this.snapshotFile = new File(file.getPath() + ".snapshot");
+        this.snapshotThreshold = snapshotThreshold;
+        if (snapshotFile.exists()) {
+            RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "r");
+            try {
+                read(snapshot.getChannel());
+            } finally {
+                snapshot.close();
+            }
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long end = read(channel);
+        if (end < channel.size()) {
+            log.warn("Discarding {} bytes of incomplete updates at the end of {}", channel.size() - end, file);
+            channel.truncate(end);
+            channel.force(false);
+        }
+        channel.position(end);
+        log.info("Read the latest payments on {} channels from {}", latest.size(), file);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "Payment channel state log writer");
+        writer.setDaemon(true);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            writer.setUncaughtExceptionHandler(handler);
+        writer.start();
+    }
+
+    /**
+     * Queues the new latest payment on the given channel to be written to the log. The returned future completes when
+     * it has been synced to disk, or fails if it could not be written.
+     */
+    public ListenableFuture<Void> append(Sha256Hash channelId, BigInteger valueToMe, byte[] signature) {
+        checkArgument(signature.length <= MAX_SIGNATURE_SIZE);
+        checkArgument(valueToMe.signum() >= 0 && valueToMe.bitLength() < 64);
+        return enqueue(new Request(new Update(checkNotNull(channelId), valueToMe, signature.clone()), false));
+    }
+
+    /** Writes a snapshot of the latest updates and empties the log, once the updates queued before it are stored. */
+    public ListenableFuture<Void> snapshot() {
+        return enqueue(new Request(null, false));
+    }
+
+    private ListenableFuture<Void> enqueue(Request request) {
+        lock.lock();
+        try {
+            checkState(!closed, "Log is closed");
+            queue.add(request);
+        } finally {
+            lock.unlock();
+        }
+        return request.future;
+    }
+
+    /** Returns the latest stored update for the given channel, or null if there isn't one. */
+    @Nullable
+    public Update get(Sha256Hash channelId) {
+        lock.lock();
+        try {
+            return latest.get(channelId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the latest stored update for each channel. */
+    public Map<Sha256Hash, Update> getAll() {
+        lock.lock();
+        try {
+            return ImmutableMap.copyOf(latest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops keeping the given channel, usually because it has been closed. Its updates are left out of the next
+     * snapshot.
+     */
+    public void forget(Sha256Hash channelId) {
+        lock.lock();
+        try {
+            latest.remove(channelId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times the log has been synced to disk, which is at most once per update. */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /** Waits for all queued updates to be stored and then closes the log file. */
+    public void close() throws InterruptedException {
+        Request stop = new Request(null, true);
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            queue.add(stop);
+        } finally {
+            lock.unlock();
+        }
+        writer.join();
+    }
+
+    private void writeLoop() {
+        List<Request> batch = new ArrayList<Request>();
+        boolean stop = false;
+        while (!stop) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                // Nobody interrupts this thread, but carry on so queued updates aren't left hanging.
+                continue;
+            }
+            queue.drainTo(batch);
+            boolean snapshotRequested = false;
+            int size = 0;
+            for (Request request : batch) {
+                if (request.update != null)
+                    size += RECORD_OVERHEAD + request.update.signature.length;
+                else if (request.stop)
+                    stop = true;
+                else
+                    snapshotRequested = true;
+            }
+            long goodEnd = -1;
+            try {
+                if (broken != null)
+                    throw broken;
+                if (size > 0) {
+                    goodEnd = channel.position();
+                    ByteBuffer buf = ByteBuffer.allocate(size);
+                    for (Request request : batch) {
+                        if (request.update != null)
+                            writeRecord(buf, request.update);
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining())
+                        channel.write(buf);
+                    channel.force(false);
+                    goodEnd = -1;
+                    syncs.incrementAndGet();
+                    lock.lock();
+                    try {
+                        for (Request request : batch) {
+                            if (request.update != null)
+                                apply(request.update);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                if (snapshotRequested || channel.size() > snapshotThreshold)
+                    writeSnapshot();
+                for (Request request : batch)
+                    request.future.set(null);
+            } catch (Throwable t) {
+                log.error("Failed to write payment channel state to " + file, t);
+                if (goodEnd >= 0)
+                    discardFrom(goodEnd);
+                for (Request request : batch)
+                    request.future.setException(t);
+            }
+        }
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close " + file, e);
+        }
+    }
+
+    // Cuts off whatever part of a failed batch made it into the log, so that it isn't read back as stored and later
+    // records don't end up behind a partial one.
+    private void discardFrom(long goodEnd) {
+        try {
+            channel.truncate(goodEnd);
+            channel.position(goodEnd);
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("Failed to discard partly written payment channel state from " + file, e);
+            broken = e;
+        }
+    }
+
+    // Writes the latest updates to a temporary file, moves it over the snapshot and then empties the log. A crash
+    // part way through leaves either the old snapshot and the full log, or the new snapshot and some of the log, both of
+    // which give the same latest updates when read back.
+    private void writeSnapshot() throws IOException {
+        List<Update> updates;
+        lock.lock();
+        try {
+            updates = new ArrayList<Update>(latest.values());
+        } finally {
+            lock.unlock();
+        }
+        int size = 0;
+        for (Update update : updates)
+            size += RECORD_OVERHEAD + update.signature.length;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (Update update : updates)
+            writeRecord(buf, update);
+        buf.flip();
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            while (buf.hasRemaining())
+                outChannel.write(buf);
+            outChannel.force(true);
+        } finally {
+            out.close();
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = snapshotFile.getCanonicalFile();
+            canonical.delete();
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(snapshotFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + snapshotFile);
+        }
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+        syncs.incrementAndGet();
+        log.info("Wrote snapshot of {} payment channels to {}", updates.size(), snapshotFile);
+    }
+
+    private static void writeRecord(ByteBuffer buf, Update update) {
+        int start = buf.position();
+        buf.putInt(BODY_OVERHEAD + update.signature.length);
+        buf.put(update.channelId.getBytes());
+        buf.putLong(update.valueToMe.longValue());
+        buf.put(update.signature);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), start + 4, buf.position() - start - 4);
+        buf.putInt((int) crc.getValue());
+    }
+
+    // Reads records from the start of the channel until the end or the first one that is incomplete or corrupt,
+    // returning where that is. Only called from the constructor, before any other thread can see this object.
+    private long read(FileChannel in) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+        in.position(0);
+        while (data.hasRemaining() && in.read(data) >= 0);
+        data.flip();
+        byte[] array = data.array();
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length < BODY_OVERHEAD || length > BODY_OVERHEAD + MAX_SIGNATURE_SIZE ||
+                    data.remaining() < length + 4)
+                return start;
+            CRC32 crc = new CRC32();
+            crc.update(array, start + 4, length);
+            byte[] id = new byte[32];
+            data.get(id);
+            long value = data.getLong();
+            byte[] signature = new byte[length - BODY_OVERHEAD];
+            data.get(signature);
+            if (data.getInt() != (int) crc.getValue() || value < 0)
+                return start;
+            apply(new Update(new Sha256Hash(id), BigInteger.valueOf(value), signature));
+        }
+        return data.position();
+    }
+
+    @GuardedBy("lock")
+    private void apply(Update update) {
+        Update previous = latest.get(update.channelId);
+        if (previous == null || previous.valueToMe.compareTo(update.valueToMe) <= 0)
+            latest.put(update.channelId, update);
+    }
+}
@@ -70,17 +70,17 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     /** Returns the outstanding amount of money sent back to us for all channels to this server added together. */
     public BigInteger getBalanceForServer(Sha256Hash id) {
-        BigInteger balance = BigInteger.ZERO;
+        long balance = 0;
         lock.lock();
         try {
             Set<StoredClientChannel> setChannels = mapChannels.get(id);
             for (StoredClientChannel channel : setChannels) {
                 synchronized (channel) {
                     if (channel.close != null) continue;
-                    balance = balance.add(channel.valueToMe);
+                    balance = Coin.add(balance, Coin.longValueOf(channel.valueToMe));
                 }
             }
-            return balance;
+            return BigInteger.valueOf(balance);
         } finally {
             lock.unlock();
         }
@@ -17,35 +17,49 @@
 package com.google.bitcoin.protocols.channels;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.HashedWheelTimer;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.*;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
- * unlock.
+ * <p>Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
+ * unlock.</p>
+ *
+ * <p>Channels are kept in a concurrent map, so looking channels up from many connections at once doesn't contend on a
+ * single lock, and their expiry times are kept by a {@link HashedWheelTimer} shared by all instances, which copes with
+ * very large numbers of channels and forgets a channel's expiry as soon as it is closed.</p>
  */
 public class StoredPaymentChannelServerStates implements WalletExtension {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StoredPaymentChannelServerStates.class);
 
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<Sha256Hash, StoredServerChannel>();
+    @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels =
+            new ConcurrentHashMap<Sha256Hash, StoredServerChannel>(16, 0.75f, 64);
     private final Wallet wallet;
     private final TransactionBroadcaster broadcaster;
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    // Expiry times are hours away, so checking once a second is plenty. There are 4096 seconds to a turn of the wheel.
+    private static final HashedWheelTimer channelTimeoutHandler =
+            new HashedWheelTimer("Payment channel expiry", 1, TimeUnit.SECONDS, 4096);
 
+    // Held whilst reading or writing the set of channels as a whole.
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
+    @Nullable private volatile PaymentChannelStateLog stateLog;
+
     /**
      * The offset between the refund transaction's lock time and the time channels will be automatically closed.
      * This defines a window during which we must get the last payment transaction verified, ie it should allow time for
@@ -73,14 +87,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
-        lock.lock();
-        try {
-            if (mapChannels.remove(channel.contract.getHash()) == null)
-                return;
-        } finally {
-            lock.unlock();
-        }
+        if (!mapChannels.remove(channel.contract.getHash(), channel))
+            return;
         synchronized (channel) {
+            if (channel.autoCloseTimeout != null)
+                channel.autoCloseTimeout.cancel();
             channel.closeConnectedHandler();
             try {
                 channel.getOrCreateState(wallet, broadcaster).close();
@@ -91,21 +102,52 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             }
             channel.state = null;
         }
+        PaymentChannelStateLog stateLog = this.stateLog;
+        if (stateLog != null)
+            stateLog.forget(channel.contract.getHash());
         wallet.addOrUpdateExtension(this);
     }
 
     /**
-     * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
+     * <p>Makes payments on these channels get stored in the given log instead of by saving the wallet, which is much
+     * quicker when there are many payments. The wallet is still saved when channels are opened or closed. Passing null
+     * goes back to saving the wallet for each payment.</p>
+     *
+     * <p>Payments already in the log that are newer than the ones stored in the wallet are applied to the channels.
+     * This should be called as soon as the wallet has been loaded, before any of the channels are used, and the same
+     * log should be used every time the wallet is loaded.</p>
      */
-    public StoredServerChannel getChannel(Sha256Hash id) {
+    public void setStateLog(@Nullable PaymentChannelStateLog stateLog) {
         lock.lock();
         try {
-            return mapChannels.get(id);
+            if (stateLog != null) {
+                for (StoredServerChannel channel : mapChannels.values()) {
+                    PaymentChannelStateLog.Update update = stateLog.get(channel.contract.getHash());
+                    synchronized (channel) {
+                        if (update != null && update.valueToMe.compareTo(channel.bestValueToMe) > 0)
+                            channel.updateValueToMe(update.valueToMe, update.signature);
+                    }
+                }
+            }
+            this.stateLog = stateLog;
         } finally {
             lock.unlock();
         }
     }
 
+    /** Returns the log payments are stored in, or null if they are stored by saving the wallet. */
+    @Nullable
+    public PaymentChannelStateLog getStateLog() {
+        return stateLog;
+    }
+
+    /**
+     * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
+     */
+    public StoredServerChannel getChannel(Sha256Hash id) {
+        return mapChannels.get(id);
+    }
+
     /**
      * <p>Puts the given channel in the channels map and automatically closes it 2 hours before its refund transaction
      * becomes spendable.</p>
@@ -114,22 +156,27 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
-        lock.lock();
-        try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    closeChannel(channel);
-                }
-            }, autocloseTime);
-        } finally {
-            lock.unlock();
+        checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
+        // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+        long autocloseTime = (channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
+                + (System.currentTimeMillis() - Utils.currentTimeMillis());
+        if (log.isDebugEnabled())
+            log.debug("Scheduling channel for automatic closure at {}: {}", new Date(autocloseTime), channel);
+        HashedWheelTimer.Timeout timeout = channelTimeoutHandler.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                log.info("Auto-closing channel: {}", channel);
+                // Closing broadcasts a transaction and saves the wallet, which shouldn't hold up the timer.
+                Threading.THREAD_POOL.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeChannel(channel);
+                    }
+                });
+            }
+        }, autocloseTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        synchronized (channel) {
+            channel.autoCloseTimeout = timeout;
         }
     }
 
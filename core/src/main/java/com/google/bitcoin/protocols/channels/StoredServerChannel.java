@@ -17,6 +17,7 @@
 package com.google.bitcoin.protocols.channels;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.HashedWheelTimer;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
@@ -41,6 +42,8 @@ public class StoredServerChannel {
     // Used as a flag to prevent duplicate connections and to disconnect the channel if its expire time approaches.
     private PaymentChannelServer connectedHandler = null;
     PaymentChannelServerState state = null;
+    // Closes the channel when it's about to expire, set by StoredPaymentChannelServerStates.
+    @Nullable HashedWheelTimer.Timeout autoCloseTimeout = null;
 
     StoredServerChannel(@Nullable PaymentChannelServerState state, Transaction contract, TransactionOutput clientOutput,
                         long refundTransactionUnlockTimeSecs, ECKey myKey, BigInteger bestValueToMe, @Nullable byte[] bestValueSignature) {
@@ -20,12 +20,10 @@ package com.google.bitcoin.script;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.params.MainNetParams;
-import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -55,19 +53,32 @@ import static com.google.common.base.Preconditions.checkState;
 public class Script {
     private static final Logger log = LoggerFactory.getLogger(Script.class);
     public static final long MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
+    // Most items the main and alt stacks may hold between them while a script runs.
+    private static final int MAX_STACK_SIZE = 1000;
 
-    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
-    protected List<ScriptChunk> chunks;
+    /**
+     * Whether {@link #correctlySpends(ScriptExecutionContext, long, Script, boolean)} checks the standard kinds of
+     * script (pay to address, pay to public key, multisig, and pay to script hash wrapping one of those) directly
+     * instead of running the general interpreter. The results are the same either way; set it to false to compare.
+     */
+    public static boolean fastPathsEnabled = true;
+
+    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]. Scripts read
+    // from bytes only build this list when something asks for it, so it's null until then.
+    private volatile List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
     // must preserve the exact bytes that we read off the wire, along with the parsed form.
     protected byte[] program;
+    // Where the chunks are in the program, used to run the script and match it against templates without copying
+    // anything out of it. Scripts made from chunks work this out the first time it's needed.
+    private ParsedProgram parsed;
 
     // Creation time of the associated keys in seconds since the epoch.
     private long creationTimeSeconds;
 
     /** Creates an empty script that serializes to nothing. */
     private Script() {
-        chunks = Lists.newArrayList();
+        chunks = Collections.emptyList();
     }
 
     // Used from ScriptBuilder.
@@ -83,13 +94,13 @@ public class Script {
      */
     public Script(byte[] programBytes) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        parsed = parse(programBytes, false);
         creationTimeSeconds = Utils.currentTimeMillis() / 1000;
     }
 
     public Script(byte[] programBytes, long creationTimeSeconds) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        parsed = parse(programBytes, false);
         this.creationTimeSeconds = creationTimeSeconds;
     }
 
@@ -106,7 +117,7 @@ public class Script {
      */
     public String toString() {
         StringBuilder buf = new StringBuilder();
-        for (ScriptChunk chunk : chunks) {
+        for (ScriptChunk chunk : chunks()) {
             if (chunk.isOpCode()) {
                 buf.append(getOpCodeName(chunk.data[0]));
                 buf.append(" ");
@@ -137,21 +148,59 @@ public class Script {
         }
     }
 
-    /** Returns an immutable list of the scripts parsed form. */
+    /**
+     * Returns an immutable list of the scripts parsed form. Subclasses used to read this from the protected chunks
+     * field, which is now private as scripts read from bytes only build the list the first time it's asked for.
+     */
     public List<ScriptChunk> getChunks() {
-        return Collections.unmodifiableList(chunks);
+        return chunks();
+    }
+
+    // Builds the chunks for a script read from bytes the first time they're needed. Two threads may both build them,
+    // which does no harm as the results are the same, and the list is only published once it's complete.
+    private List<ScriptChunk> chunks() {
+        List<ScriptChunk> result = chunks;
+        if (result == null) {
+            ParsedProgram parsed = parsed();
+            List<ScriptChunk> list = new ArrayList<ScriptChunk>(parsed.size);
+            for (int i = 0; i < parsed.size; i++) {
+                ScriptChunk chunk;
+                if (parsed.isOpCode(i))
+                    chunk = new ScriptChunk(true, new byte[] {(byte) parsed.opCode(i)}, parsed.starts[i]);
+                else
+                    chunk = new ScriptChunk(false, parsed.data(i), parsed.starts[i]);
+                // Save some memory by eliminating redundant copies of the same chunk objects. INTERN_TABLE can be
+                // null here because this method is called whilst setting it up.
+                if (INTERN_TABLE != null) {
+                    for (ScriptChunk c : INTERN_TABLE) {
+                        if (c.equals(chunk)) chunk = c;
+                    }
+                }
+                list.add(chunk);
+            }
+            result = Collections.unmodifiableList(list);
+            chunks = result;
+        }
+        return result;
+    }
+
+    private ParsedProgram parsed() {
+        ParsedProgram result = parsed;
+        if (result == null)
+            parsed = result = parse(getQuickProgram(), false);
+        return result;
     }
 
     private static final ScriptChunk INTERN_TABLE[];
 
     static {
         Script examplePayToAddress = ScriptBuilder.createOutputScript(new Address(MainNetParams.get(), new byte[20]));
-        examplePayToAddress = new Script(examplePayToAddress.getProgram());
+        List<ScriptChunk> chunks = new Script(examplePayToAddress.getProgram()).getChunks();
         INTERN_TABLE = new ScriptChunk[] {
-                examplePayToAddress.chunks.get(0),  // DUP
-                examplePayToAddress.chunks.get(1),  // HASH160
-                examplePayToAddress.chunks.get(3),  // EQUALVERIFY
-                examplePayToAddress.chunks.get(4),  // CHECKSIG
+                chunks.get(0),  // DUP
+                chunks.get(1),  // HASH160
+                chunks.get(3),  // EQUALVERIFY
+                chunks.get(4),  // CHECKSIG
         };
     }
 
@@ -163,51 +212,109 @@ public class Script {
      * to reach into a programs structure and pull out bits of data without having to run it.
      * This is necessary to render the to/from addresses of transactions in a user interface.
      * The official client does something similar.</p>
+     *
+     * <p>Parsing only records where each chunk is, so nothing is copied out of the program until it's needed. If
+     * partial is true, a program that ends part way through a chunk is parsed up to that chunk instead of causing an
+     * exception.</p>
      */
-    private void parse(byte[] program) throws ScriptException {
-        chunks = new ArrayList<ScriptChunk>(5);   // Common size.
-        ByteArrayInputStream bis = new ByteArrayInputStream(program);
-        int initialSize = bis.available();
-        while (bis.available() > 0) {
-            int startLocationInProgram = initialSize - bis.available();
-            int opcode = bis.read();
+    private static ParsedProgram parse(byte[] program, boolean partial) throws ScriptException {
+        int[] starts = new int[5], dataLengths = new int[5];   // Common size.
+        int size = 0;
+        int cursor = 0, end = 0;
+        while (cursor < program.length) {
+            int startLocationInProgram = cursor;
+            int opcode = program[cursor++] & 0xFF;
+            int available = program.length - cursor;
 
             long dataToRead = -1;
-            if (opcode >= 0 && opcode < OP_PUSHDATA1) {
+            if (opcode < OP_PUSHDATA1) {
                 // Read some bytes of data, where how many is the opcode value itself.
                 dataToRead = opcode;
             } else if (opcode == OP_PUSHDATA1) {
-                if (bis.available() < 1) throw new ScriptException("Unexpected end of script");
-                dataToRead = bis.read();
+                if (available < 1) {
+                    if (partial) break;
+                    throw new ScriptException("Unexpected end of script");
+                }
+                dataToRead = program[cursor] & 0xFF;
+                cursor += 1;
             } else if (opcode == OP_PUSHDATA2) {
                 // Read a short, then read that many bytes of data.
-                if (bis.available() < 2) throw new ScriptException("Unexpected end of script");
-                dataToRead = bis.read() | (bis.read() << 8);
+                if (available < 2) {
+                    if (partial) break;
+                    throw new ScriptException("Unexpected end of script");
+                }
+                dataToRead = (program[cursor] & 0xFF) | ((program[cursor + 1] & 0xFF) << 8);
+                cursor += 2;
             } else if (opcode == OP_PUSHDATA4) {
                 // Read a uint32, then read that many bytes of data.
                 // Though this is allowed, because its value cannot be > 520, it should never actually be used
-                if (bis.available() < 4) throw new ScriptException("Unexpected end of script");
-                dataToRead = ((long)bis.read()) | (((long)bis.read()) << 8) | (((long)bis.read()) << 16) | (((long)bis.read()) << 24);
+                if (available < 4) {
+                    if (partial) break;
+                    throw new ScriptException("Unexpected end of script");
+                }
+                dataToRead = Utils.readUint32(program, cursor);
+                cursor += 4;
             }
 
-            ScriptChunk chunk;
-            if (dataToRead == -1) {
-                chunk = new ScriptChunk(true, new byte[]{(byte) opcode}, startLocationInProgram);
-            } else {
-                if (dataToRead > bis.available())
-                    throw new ScriptException("Push of data element that is larger than remaining data");
-                byte[] data = new byte[(int)dataToRead];
-                checkState(dataToRead == 0 || bis.read(data, 0, (int)dataToRead) == dataToRead);
-                chunk = new ScriptChunk(false, data, startLocationInProgram);
+            if (dataToRead > program.length - cursor) {
+                if (partial) break;
+                throw new ScriptException("Push of data element that is larger than remaining data");
             }
-            // Save some memory by eliminating redundant copies of the same chunk objects. INTERN_TABLE can be null
-            // here because this method is called whilst setting it up.
-            if (INTERN_TABLE != null) {
-                for (ScriptChunk c : INTERN_TABLE) {
-                    if (c.equals(chunk)) chunk = c;
-                }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                dataLengths = Arrays.copyOf(dataLengths, size * 2);
             }
-            chunks.add(chunk);
+            starts[size] = startLocationInProgram;
+            dataLengths[size] = (int) dataToRead;
+            size++;
+            if (dataToRead > 0)
+                cursor += (int) dataToRead;
+            end = cursor;
+        }
+        return new ParsedProgram(program, starts, dataLengths, size, end);
+    }
+
+    /**
+     * Where the chunks of a program are. Chunk i starts at starts[i] and ends where the next one starts, or at end
+     * for the last one, which is before the end of the program if it was partially parsed. Its last dataLengths[i]
+     * bytes are the data it pushes, or dataLengths[i] is -1 if it's an opcode.
+     */
+    private static final class ParsedProgram {
+        final byte[] program;
+        final int[] starts, dataLengths;
+        final int size, end;
+
+        ParsedProgram(byte[] program, int[] starts, int[] dataLengths, int size, int end) {
+            this.program = program;
+            this.starts = starts;
+            this.dataLengths = dataLengths;
+            this.size = size;
+            this.end = end;
+        }
+
+        boolean isOpCode(int i) {
+            return dataLengths[i] < 0;
+        }
+
+        int opCode(int i) {
+            return program[starts[i]] & 0xFF;
+        }
+
+        boolean equalsOpCode(int i, int opCode) {
+            return isOpCode(i) && opCode(i) == opCode;
+        }
+
+        int dataEnd(int i) {
+            return i + 1 < size ? starts[i + 1] : end;
+        }
+
+        int dataStart(int i) {
+            return dataEnd(i) - dataLengths[i];
+        }
+
+        // Returns a copy of the data the chunk pushes.
+        byte[] data(int i) {
+            return Arrays.copyOfRange(program, dataStart(i), dataEnd(i));
         }
     }
 
@@ -218,8 +325,9 @@ public class Script {
      * useful more exotic types of transaction, but today most payments are to addresses.
      */
     public boolean isSentToRawPubKey() {
-        return chunks.size() == 2 && chunks.get(1).equalsOpCode(OP_CHECKSIG) &&
-               !chunks.get(0).isOpCode() && chunks.get(0).data.length > 1;
+        ParsedProgram parsed = parsed();
+        return parsed.size == 2 && parsed.equalsOpCode(1, OP_CHECKSIG) &&
+               !parsed.isOpCode(0) && parsed.dataLengths[0] > 1;
     }
 
     /**
@@ -229,12 +337,13 @@ public class Script {
      * way to make payments due to the short and recognizable base58 form addresses come in.
      */
     public boolean isSentToAddress() {
-        return chunks.size() == 5 &&
-               chunks.get(0).equalsOpCode(OP_DUP) &&
-               chunks.get(1).equalsOpCode(OP_HASH160) &&
-               chunks.get(2).data.length == Address.LENGTH &&
-               chunks.get(3).equalsOpCode(OP_EQUALVERIFY) &&
-               chunks.get(4).equalsOpCode(OP_CHECKSIG);
+        ParsedProgram parsed = parsed();
+        return parsed.size == 5 &&
+               parsed.equalsOpCode(0, OP_DUP) &&
+               parsed.equalsOpCode(1, OP_HASH160) &&
+               parsed.dataLengths[2] == Address.LENGTH &&
+               parsed.equalsOpCode(3, OP_EQUALVERIFY) &&
+               parsed.equalsOpCode(4, OP_CHECKSIG);
     }
 
     /**
@@ -243,10 +352,11 @@ public class Script {
      * for pay to script hash type addresses.
      */
     public boolean isSentToP2SH() {
-        return chunks.size() == 3 &&
-               chunks.get(0).equalsOpCode(OP_HASH160) &&
-               chunks.get(1).data.length == Address.LENGTH &&
-               chunks.get(2).equalsOpCode(OP_EQUAL);
+        ParsedProgram parsed = parsed();
+        return parsed.size == 3 &&
+               parsed.equalsOpCode(0, OP_HASH160) &&
+               parsed.dataLengths[1] == Address.LENGTH &&
+               parsed.equalsOpCode(2, OP_EQUAL);
     }
 
     /**
@@ -257,9 +367,9 @@ public class Script {
      */
     public byte[] getPubKeyHash() throws ScriptException {
         if (isSentToAddress())
-            return chunks.get(2).data;
+            return chunks().get(2).data;
         else if (isSentToP2SH())
-            return chunks.get(1).data;
+            return chunks().get(1).data;
         else
             throw new ScriptException("Script not in the standard scriptPubKey form");
     }
@@ -273,6 +383,7 @@ public class Script {
      * @throws ScriptException if the script is none of the named forms.
      */
     public byte[] getPubKey() throws ScriptException {
+        List<ScriptChunk> chunks = chunks();
         if (chunks.size() != 2) {
             throw new ScriptException("Script not of right size, expecting 2 but got " + chunks.size());
         }
@@ -380,12 +491,12 @@ public class Script {
     
     ////////////////////// Interface used during verification of transactions/blocks ////////////////////////////////
     
-    private static int getSigOpCount(List<ScriptChunk> chunks, boolean accurate) throws ScriptException {
+    private static int getSigOpCount(ParsedProgram parsed, boolean accurate) throws ScriptException {
         int sigOps = 0;
         int lastOpCode = OP_INVALIDOPCODE;
-        for (ScriptChunk chunk : chunks) {
-            if (chunk.isOpCode()) {
-                int opcode = 0xFF & chunk.data[0];
+        for (int i = 0; i < parsed.size; i++) {
+            if (parsed.isOpCode(i)) {
+                int opcode = parsed.opCode(i);
                 switch (opcode) {
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
@@ -438,31 +549,59 @@ public class Script {
      * Gets the count of regular SigOps in the script program (counting multisig ops as 20)
      */
     public static int getSigOpCount(byte[] program) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(program);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
+        // Ignore errors and count up to the parse-able length
+        return getSigOpCount(parse(program, true), false);
+    }
+
+    /**
+     * Gets the count of regular SigOps in the script program held in the given part of a buffer, in the same way as
+     * {@link #getSigOpCount(byte[])} but without copying or parsing it into chunks.
+     */
+    public static int getSigOpCount(byte[] buffer, int offset, int length) {
+        int sigOps = 0;
+        int cursor = offset, end = offset + length;
+        while (cursor < end) {
+            int opcode = buffer[cursor++] & 0xFF;
+            int available = end - cursor;
+            long dataToRead;
+            if (opcode < OP_PUSHDATA1) {
+                dataToRead = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (available < 1) break;
+                dataToRead = buffer[cursor] & 0xFF;
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (available < 2) break;
+                dataToRead = (buffer[cursor] & 0xFF) | ((buffer[cursor + 1] & 0xFF) << 8);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (available < 4) break;
+                dataToRead = Utils.readUint32(buffer, cursor);
+                cursor += 4;
+            } else {
+                if (opcode == OP_CHECKSIG || opcode == OP_CHECKSIGVERIFY)
+                    sigOps++;
+                else if (opcode == OP_CHECKMULTISIG || opcode == OP_CHECKMULTISIGVERIFY)
+                    sigOps += 20;
+                continue;
+            }
+            // Ignore errors and count up to the parse-able length, like the version above.
+            if (dataToRead > end - cursor)
+                break;
+            cursor += (int) dataToRead;
         }
-        return getSigOpCount(script.chunks, false);
+        return sigOps;
     }
-    
+
     /**
      * Gets the count of P2SH Sig Ops in the Script scriptSig
      */
     public static long getP2SHSigOpCount(byte[] scriptSig) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(scriptSig);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
-        }
-        for (int i = script.chunks.size() - 1; i >= 0; i--)
-            if (!script.chunks.get(i).isOpCode()) {
-                Script subScript =  new Script();
-                subScript.parse(script.chunks.get(i).data);
-                return getSigOpCount(subScript.chunks, true);
-            }
+        // Ignore errors and count up to the parse-able length
+        ParsedProgram parsed = parse(scriptSig, true);
+        for (int i = parsed.size - 1; i >= 0; i--)
+            if (!parsed.isOpCode(i))
+                return getSigOpCount(parse(parsed.data(i), false), true);
         return 0;
     }
 
@@ -483,7 +622,11 @@ public class Script {
         // We have to check against the serialized form because BIP16 defines a P2SH output using an exact byte
         // template, not the logical program structure. Thus you can have two programs that look identical when
         // printed out but one is a P2SH script and the other isn't! :(
-        byte[] program = getProgram();
+        return isPayToScriptHash(getQuickProgram());
+    }
+
+    /** Returns true if the given serialized script is a P2SH output, as {@link #isPayToScriptHash()} does. */
+    public static boolean isPayToScriptHash(byte[] program) {
         return program.length == 23 &&
                (program[0] & 0xff) == OP_HASH160 &&
                (program[1] & 0xff) == 0x14 &&
@@ -494,26 +637,22 @@ public class Script {
      * Returns whether this script matches the format used for multisig outputs: [n] [keys...] [m] CHECKMULTISIG
      */
     public boolean isSentToMultiSig() {
-        if (chunks.size() < 4) return false;
-        ScriptChunk chunk = chunks.get(chunks.size() - 1);
+        ParsedProgram parsed = parsed();
+        if (parsed.size < 4) return false;
+        int last = parsed.size - 1;
         // Must end in OP_CHECKMULTISIG[VERIFY].
-        if (!chunk.isOpCode()) return false;
-        if (!(chunk.equalsOpCode(OP_CHECKMULTISIG) || chunk.equalsOpCode(OP_CHECKMULTISIGVERIFY))) return false;
-        try {
-            // Second to last chunk must be an OP_N opcode and there should be that many data chunks (keys).
-            ScriptChunk m = chunks.get(chunks.size() - 2);
-            if (!m.isOpCode()) return false;
-            int numKeys = decodeFromOpN(m.data[0]);
-            if (numKeys < 1 || chunks.size() != 3 + numKeys) return false;
-            for (int i = 1; i < chunks.size() - 2; i++) {
-                if (chunks.get(i).isOpCode()) return false;
-            }
-            // First chunk must be an OP_N opcode too.
-            if (decodeFromOpN(chunks.get(0).data[0]) < 1) return false;
-        } catch (IllegalStateException e) {
-            return false;   // Not an OP_N opcode.
+        if (!(parsed.equalsOpCode(last, OP_CHECKMULTISIG) || parsed.equalsOpCode(last, OP_CHECKMULTISIGVERIFY)))
+            return false;
+        // Second to last chunk must be an OP_N opcode and there should be that many data chunks (keys).
+        if (!parsed.isOpCode(last - 1)) return false;
+        int m = parsed.opCode(last - 1);
+        if (m < OP_1 || m > OP_16 || parsed.size != 3 + decodeFromOpN(m)) return false;
+        for (int i = 1; i < last - 1; i++) {
+            if (parsed.isOpCode(i)) return false;
         }
-        return true;
+        // First chunk must be an OP_N opcode too.
+        int n = parsed.isOpCode(0) ? parsed.opCode(0) : -1;
+        return n >= OP_1 && n <= OP_16;
     }
 
     private static boolean equalsRange(byte[] a, int start, byte[] b) {
@@ -537,20 +676,7 @@ public class Script {
             boolean skip = equalsRange(inputScript, cursor, chunkToRemove);
             
             int opcode = inputScript[cursor++] & 0xFF;
-            int additionalBytes = 0;
-            if (opcode >= 0 && opcode < OP_PUSHDATA1) {
-                additionalBytes = opcode;
-            } else if (opcode == OP_PUSHDATA1) {
-                additionalBytes = (0xFF & inputScript[cursor]) + 1;
-            } else if (opcode == OP_PUSHDATA2) {
-                additionalBytes = ((0xFF & inputScript[cursor]) |
-                                  ((0xFF & inputScript[cursor+1]) << 8)) + 2;
-            } else if (opcode == OP_PUSHDATA4) {
-                additionalBytes = ((0xFF & inputScript[cursor]) |
-                                  ((0xFF & inputScript[cursor+1]) << 8) |
-                                  ((0xFF & inputScript[cursor+1]) << 16) |
-                                  ((0xFF & inputScript[cursor+1]) << 24)) + 4;
-            }
+            int additionalBytes = chunkLength(inputScript, cursor, opcode);
             if (!skip) {
                 try {
                     bos.write(opcode);
@@ -563,6 +689,40 @@ public class Script {
         }
         return bos.toByteArray();
     }
+
+    /**
+     * Like {@link #removeAllInstancesOf(byte[], byte[])}, but returns inputScript itself rather than a copy if there
+     * is nothing to remove, which is nearly always the case. The result must not be modified.
+     */
+    static byte[] removeInstances(byte[] inputScript, byte[] chunkToRemove) {
+        int cursor = 0;
+        while (cursor < inputScript.length) {
+            if (equalsRange(inputScript, cursor, chunkToRemove))
+                return removeAllInstancesOf(inputScript, chunkToRemove);
+            int opcode = inputScript[cursor++] & 0xFF;
+            cursor += chunkLength(inputScript, cursor, opcode);
+        }
+        return inputScript;
+    }
+
+    // Returns how many bytes follow the opcode just before the cursor, counting any length prefix, the way the
+    // reference client does when removing chunks.
+    private static int chunkLength(byte[] script, int cursor, int opcode) {
+        if (opcode < OP_PUSHDATA1) {
+            return opcode;
+        } else if (opcode == OP_PUSHDATA1) {
+            return (0xFF & script[cursor]) + 1;
+        } else if (opcode == OP_PUSHDATA2) {
+            return ((0xFF & script[cursor]) |
+                   ((0xFF & script[cursor+1]) << 8)) + 2;
+        } else if (opcode == OP_PUSHDATA4) {
+            return ((0xFF & script[cursor]) |
+                   ((0xFF & script[cursor+1]) << 8) |
+                   ((0xFF & script[cursor+1]) << 16) |
+                   ((0xFF & script[cursor+1]) << 24)) + 4;
+        }
+        return 0;
+    }
     
     /**
      * Returns the script bytes of inputScript with all instances of the given op code removed
@@ -589,27 +749,28 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
     
-    private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+    private static void executeScript(ScriptExecutionContext txContainingThis, long index,
+                                      Script script, ArrayDeque<byte[]> stack) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
+        ArrayDeque<byte[]> altstack = new ArrayDeque<byte[]>();
+        ArrayDeque<Boolean> ifStack = new ArrayDeque<Boolean>();
         
-        for (ScriptChunk chunk : script.chunks) {
+        ParsedProgram parsed = script.parsed();
+        for (int chunk = 0; chunk < parsed.size; chunk++) {
             boolean shouldExecute = !ifStack.contains(false);
             
-            if (!chunk.isOpCode()) {
-                if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+            if (!parsed.isOpCode(chunk)) {
+                if (parsed.dataLengths[chunk] > MAX_SCRIPT_ELEMENT_SIZE)
                     throw new ScriptException("Attempted to push a data string larger than 520 bytes");
                 
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.add(parsed.data(chunk));
             } else {
-                int opcode = 0xFF & chunk.data[0];
+                int opcode = parsed.opCode(chunk);
                 if (opcode > OP_16) {
                     opCount++;
                     if (opCount > 201)
@@ -1063,7 +1224,7 @@ public class Script {
                     stack.add(Utils.doubleDigest(stack.pollLast()));
                     break;
                 case OP_CODESEPARATOR:
-                    lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
+                    lastCodeSepLocation = parsed.starts[chunk] + 1;
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
@@ -1090,7 +1251,7 @@ public class Script {
                 }
             }
             
-            if (stack.size() + altstack.size() > 1000 || stack.size() + altstack.size() < 0)
+            if (stack.size() + altstack.size() > MAX_STACK_SIZE || stack.size() + altstack.size() < 0)
                 throw new ScriptException("Stack size exceeded range");
         }
         
@@ -1098,35 +1259,17 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(ScriptExecutionContext txContainingThis, int index, Script script, ArrayDeque<byte[]> stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
         byte[] pubKey = stack.pollLast();
         byte[] sigBytes = stack.pollLast();
 
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
-
-        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
-        try {
-            writeBytes(outStream, sigBytes);
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen
-        }
-        connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        byte[] connectedScript = script.getProgramFrom(lastCodeSepLocation);
 
         // TODO: Use int for indexes everywhere, we can't have that many inputs/outputs
-        boolean sigValid = false;
-        try {
-            TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
-            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
-        } catch (Exception e1) {
-            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
-            // Because I can't verify there aren't more, we use a very generic Exception catch
-            log.warn(e1.toString());
-        }
+        boolean sigValid = checkSig(txContainingThis, index, connectedScript, sigBytes, pubKey);
 
         if (opcode == OP_CHECKSIG)
             stack.add(sigValid ? new byte[] {1} : new byte[] {0});
@@ -1135,7 +1278,7 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(ScriptExecutionContext txContainingThis, int index, Script script, ArrayDeque<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
@@ -1148,11 +1291,9 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
-        for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
-            pubkeys.add(pubKey);
-        }
+        byte[][] pubKeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubKeys[i] = stack.pollLast();
 
         int sigCount = castToBigInteger(stack.pollLast()).intValue();
         if (sigCount < 0 || sigCount > pubKeyCount)
@@ -1160,84 +1301,123 @@ public class Script {
         if (stack.size() < sigCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<byte[]>();
-        for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
-            sigs.add(sig);
-        }
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pollLast();
 
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        byte[] connectedScript = script.getProgramFrom(lastCodeSepLocation);
+        boolean valid = checkMultiSig(txContainingThis, index, connectedScript, sigs, pubKeys);
 
-        for (byte[] sig : sigs) {
-            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
-            try {
-                writeBytes(outStream, sig);
-            } catch (IOException e) {
-                throw new RuntimeException(e); // Cannot happen
-            }
-            connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        // We uselessly remove a stack object to emulate a reference client bug.
+        stack.pollLast();
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.add(valid ? new byte[] {1} : new byte[] {0});
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+
+    // Checks a signature from the stack against the connected script, which has any pushes of the signature removed
+    // first as the signature can't sign itself.
+    private static boolean checkSig(ScriptExecutionContext txContainingThis, int index, byte[] connectedScript,
+                                    byte[] sigBytes, byte[] pubKey) {
+        connectedScript = removeInstances(connectedScript, pushOf(sigBytes));
+        try {
+            TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            return txContainingThis.verifySignature(hash, sig, pubKey);
+        } catch (Exception e1) {
+            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+            // Because I can't verify there aren't more, we use a very generic Exception catch
+            log.warn(e1.toString());
+            return false;
         }
+    }
+
+    // Checks the signatures match the keys in order, skipping keys that don't sign anything, like CHECKMULTISIG does.
+    // Both arrays are in the order they were popped off the stack.
+    private static boolean checkMultiSig(ScriptExecutionContext txContainingThis, int index, byte[] connectedScript,
+                                         byte[][] sigs, byte[][] pubKeys) {
+        for (byte[] sig : sigs)
+            connectedScript = removeInstances(connectedScript, pushOf(sig));
+        // With a key for every signature each signature can only go with one key, so checking can be deferred. With
+        // spare keys, a signature that fails is tried against the next key, so it has to be checked now.
+        final boolean mayDefer = sigs.length == pubKeys.length;
 
-        boolean valid = true;
-        while (sigs.size() > 0) {
-            byte[] pubKey = pubkeys.pollFirst();
+        int sigIndex = 0, keyIndex = 0;
+        while (sigIndex < sigs.length) {
+            byte[] pubKey = pubKeys[keyIndex++];
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs[sigIndex], false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
+                boolean valid = mayDefer ? txContainingThis.verifySignature(hash, sig, pubKey) :
+                        txContainingThis.verifySignatureNow(hash, sig, pubKey);
+                if (valid)
+                    sigIndex++;
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                 // Because I can't verify there aren't more, we use a very generic Exception catch
             }
 
-            if (sigs.size() > pubkeys.size()) {
-                valid = false;
-                break;
-            }
+            if (sigs.length - sigIndex > pubKeys.length - keyIndex)
+                return false;
         }
+        return true;
+    }
 
-        // We uselessly remove a stack object to emulate a reference client bug.
-        stack.pollLast();
-
-        if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {0});
-        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
-            if (!valid)
-                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+    // Returns the script bytes that push the given data.
+    private static byte[] pushOf(byte[] data) {
+        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(data.length + 1);
+        try {
+            writeBytes(outStream, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
         }
-        return opCount;
+        return outStream.toByteArray();
     }
 
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
      * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     *                         Modifying txContainingThis from another thread while this method runs results in undefined behavior.
      * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
      * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
-        if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
+        correctlySpends(new ScriptExecutionContext(txContainingThis), scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey. When checking
+     * several inputs of the same transaction, create the {@link ScriptExecutionContext} once and pass it for each.
+     * @param txContainingThis A snapshot of the transaction in which this input scriptSig resides.
+     * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
+     */
+    public void correctlySpends(ScriptExecutionContext txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                boolean enforceP2SH) throws ScriptException {
+        if (getQuickProgram().length > 10000 || scriptPubKey.getQuickProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
+
+        if (fastPathsEnabled && correctlySpendsStandard(txContainingThis, (int) scriptSigIndex, scriptPubKey, enforceP2SH))
+            return;
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ArrayDeque<byte[]> stack = new ArrayDeque<byte[]>();
+        ArrayDeque<byte[]> p2shStack = null;
         
         executeScript(txContainingThis, scriptSigIndex, this, stack);
-        if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
+        // Only P2SH needs the stack as the scriptSig left it.
+        boolean payToScriptHash = enforceP2SH && scriptPubKey.isPayToScriptHash();
+        if (payToScriptHash)
+            p2shStack = new ArrayDeque<byte[]>(stack);
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
         
         if (stack.size() == 0)
@@ -1259,9 +1439,10 @@ public class Script {
         //     overall scalability and performance.
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
-        if (enforceP2SH && scriptPubKey.isPayToScriptHash()) {
-            for (ScriptChunk chunk : chunks)
-                if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
+        if (payToScriptHash) {
+            ParsedProgram parsed = parsed();
+            for (int i = 0; i < parsed.size; i++)
+                if (parsed.isOpCode(i) && parsed.opCode(i) > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
@@ -1277,6 +1458,89 @@ public class Script {
         }
     }
 
+    /**
+     * <p>Checks the spend without the general interpreter if this script only pushes data and the scriptPubKey is one
+     * of the standard forms, returning true if it is valid. Returns false without checking any signatures if the
+     * scripts don't fit those forms, or if running them would fail for some reason other than a bad signature, in
+     * which case the interpreter has to be used to get the right result.</p>
+     *
+     * <p>A scriptSig that only pushes data leaves exactly those pushes on the stack, so for the standard forms the
+     * outcome of running both scripts can be worked out from the pushes directly, without building stacks or
+     * interpreting opcodes one at a time.</p>
+     *
+     * @throws ScriptException if the scripts fit a standard form but a signature is invalid.
+     */
+    boolean correctlySpendsStandard(ScriptExecutionContext txContainingThis, int index, Script scriptPubKey,
+                                    boolean enforceP2SH) throws ScriptException {
+        ParsedProgram pushes = parsed();
+        for (int i = 0; i < pushes.size; i++) {
+            if (pushes.isOpCode(i) || pushes.dataLengths[i] > MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+        }
+        int stackSize = pushes.size;
+        if (!scriptPubKey.isPayToScriptHash())
+            return spendsStandard(txContainingThis, index, scriptPubKey, pushes, stackSize);
+        // HASH160 <script hash> EQUAL pushes one item more than it was given at its peak.
+        if (!enforceP2SH || stackSize == 0 || stackSize + 1 > MAX_STACK_SIZE)
+            return false;
+        // HASH160 <script hash> EQUAL, then the last push is run as a script against the rest.
+        byte[] redeemBytes = pushes.data(stackSize - 1);
+        if (!equalsRange(scriptPubKey.getQuickProgram(), 2, Utils.sha256hash160(redeemBytes)))
+            return false;
+        Script redeemScript;
+        try {
+            redeemScript = new Script(redeemBytes);
+        } catch (ScriptException e) {
+            return false;
+        }
+        return spendsStandard(txContainingThis, index, redeemScript, pushes, stackSize - 1);
+    }
+
+    // Runs a standard script against a stack made of the first stackSize of the given pushes, returning false if it
+    // isn't a standard script, the stack doesn't have what it needs or the script would take the stack over its limit.
+    private static boolean spendsStandard(ScriptExecutionContext txContainingThis, int index, Script script,
+                                          ParsedProgram pushes, int stackSize) throws ScriptException {
+        ParsedProgram parsed = script.parsed();
+        boolean valid;
+        if (script.isSentToAddress()) {
+            // DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG, which is two items up after pushing the hash.
+            if (stackSize < 2 || stackSize + 2 > MAX_STACK_SIZE)
+                return false;
+            byte[] pubKey = pushes.data(stackSize - 1);
+            if (!equalsRange(parsed.program, parsed.dataStart(2), Utils.sha256hash160(pubKey)))
+                return false;
+            valid = checkSig(txContainingThis, index, script.getQuickProgram(), pushes.data(stackSize - 2), pubKey);
+        } else if (script.isSentToRawPubKey()) {
+            // <pubkey> CHECKSIG
+            if (stackSize < 1 || stackSize + 1 > MAX_STACK_SIZE || parsed.dataLengths[0] > MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+            valid = checkSig(txContainingThis, index, script.getQuickProgram(), pushes.data(stackSize - 1),
+                    parsed.data(0));
+        } else if (script.isSentToMultiSig() && parsed.equalsOpCode(parsed.size - 1, OP_CHECKMULTISIG)) {
+            // <m> <pubkeys...> <n> CHECKMULTISIG, which also pops an extra item off the stack.
+            int sigCount = decodeFromOpN(parsed.opCode(0));
+            int pubKeyCount = parsed.size - 3;
+            // Everything but the CHECKMULTISIG is pushed before anything is popped.
+            if (sigCount > pubKeyCount || stackSize < sigCount + 1 || stackSize + pubKeyCount + 2 > MAX_STACK_SIZE)
+                return false;
+            byte[][] pubKeys = new byte[pubKeyCount][];
+            for (int i = 0; i < pubKeyCount; i++) {
+                if (parsed.dataLengths[pubKeyCount - i] > MAX_SCRIPT_ELEMENT_SIZE)
+                    return false;
+                pubKeys[i] = parsed.data(pubKeyCount - i);
+            }
+            byte[][] sigs = new byte[sigCount][];
+            for (int i = 0; i < sigCount; i++)
+                sigs[i] = pushes.data(stackSize - 1 - i);
+            valid = checkMultiSig(txContainingThis, index, script.getQuickProgram(), sigs, pubKeys);
+        } else {
+            return false;
+        }
+        if (!valid)
+            throw new ScriptException("Script resulted in a non-true stack: signature check failed");
+        return true;
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
@@ -1284,6 +1548,12 @@ public class Script {
         return getProgram();
     }
 
+    // Returns the program from the given offset on, without copying it when that's all of it. Must not be modified.
+    private byte[] getProgramFrom(int offset) {
+        byte[] prog = getQuickProgram();
+        return offset == 0 ? prog : Arrays.copyOfRange(prog, offset, prog.length);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof Script))
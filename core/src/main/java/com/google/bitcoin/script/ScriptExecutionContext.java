@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.SignatureBatch;
+import com.google.bitcoin.crypto.SignatureCache;
+import net.jcip.annotations.Immutable;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>A read only snapshot of a transaction, taken so its scripts can be run without copying or modifying it.</p>
+ *
+ * <p>Signature checking needs the hash of a modified form of the spending transaction, which
+ * {@link Transaction#hashForSignature(int, byte[], byte)} produces by temporarily editing the transaction in place.
+ * That forced {@link Script#correctlySpends(Transaction, long, Script, boolean)} to serialize and re-parse the whole
+ * transaction for every input it checked. This class instead serializes the pieces of the transaction once, and
+ * builds each signature hash by feeding the right pieces straight into the hash function. One context can be used
+ * to check all inputs of a transaction, from as many threads at once as you like.</p>
+ *
+ * <p>Changes made to the transaction after the context was created are not seen by it. Input scripts are not part
+ * of the snapshot because signatures never cover them, so a context stays valid whilst the inputs are being signed.</p>
+ *
+ * <p>Signatures are checked through a {@link SignatureCache}, which by default is the one returned by
+ * {@link SignatureCache#getDefault()}.</p>
+ *
+ * <p>A context can instead be told to put signatures into a {@link SignatureBatch} and assume they are valid, so that
+ * the signatures of many transactions can be checked together afterwards. A script run that way only gives the right
+ * answer if every signature in the batch turns out to be valid. If any isn't, or if the script fails, it has to be run
+ * again with a context that checks signatures straight away, because a script can succeed on an invalid
+ * signature (for instance by following OP_CHECKSIG with OP_NOT). CHECKMULTISIG with fewer signatures than keys checks
+ * its signatures straight away, as it tries each signature against successive keys until one matches.</p>
+ */
+@Immutable
+public class ScriptExecutionContext {
+    // What the reference client returns for SIGHASH_SINGLE when there is no output at the inputs index.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+    // An output with a value of -1 and an empty script, which is what SIGHASH_SINGLE puts before the signed output.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] CODESEPARATOR = { (byte) ScriptOpCodes.OP_CODESEPARATOR };
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+    };
+
+    // Each input serialized as it is when another input is being signed: outpoint, empty script, sequence number.
+    private static final int BLANK_INPUT_SIZE = 36 + 1 + 4;
+
+    private final Sha256Hash hash;
+    private final long version, lockTime;
+    // All the inputs with empty scripts back to back, so hashing the ones either side of the input being checked
+    // takes one call each.
+    private final byte[] blankInputs;
+    private final long[] sequenceNumbers;
+    // All the outputs serialized back to back, and where each one starts. There is one more offset than outputs.
+    private final byte[] outputs;
+    private final int[] outputOffsets;
+    @Nullable private final SignatureCache signatureCache;
+    @Nullable private final SignatureBatch deferredSignatures;
+
+    /** Takes a snapshot of the given transaction, which will check signatures using the default signature cache. */
+    public ScriptExecutionContext(Transaction tx) {
+        this(tx, SignatureCache.getDefault());
+    }
+
+    /**
+     * Takes a snapshot of the given transaction, which will check signatures using the given cache, or without a cache
+     * if it is null.
+     */
+    public ScriptExecutionContext(Transaction tx, @Nullable SignatureCache signatureCache) {
+        this(tx, signatureCache, null);
+    }
+
+    /**
+     * Takes a snapshot of the given transaction. If deferredSignatures isn't null, signatures are added to it and
+     * assumed to be valid instead of being checked, see the class documentation. Otherwise they are checked using the
+     * given cache, or without a cache if it is null.
+     */
+    public ScriptExecutionContext(Transaction tx, @Nullable SignatureCache signatureCache,
+                                  @Nullable SignatureBatch deferredSignatures) {
+        this.signatureCache = signatureCache;
+        this.deferredSignatures = deferredSignatures;
+        hash = tx.getHash();
+        version = tx.getVersion();
+        lockTime = tx.getLockTime();
+        List<TransactionInput> inputs = tx.getInputs();
+        blankInputs = new byte[inputs.size() * BLANK_INPUT_SIZE];
+        sequenceNumbers = new long[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            int offset = i * BLANK_INPUT_SIZE;
+            byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+            System.arraycopy(outpoint, 0, blankInputs, offset, outpoint.length);
+            // The byte after the outpoint is left as zero, the length of an empty script.
+            sequenceNumbers[i] = input.getSequenceNumber();
+            Utils.uint32ToByteArrayLE(sequenceNumbers[i], blankInputs, offset + 37);
+        }
+        List<TransactionOutput> outputList = tx.getOutputs();
+        outputOffsets = new int[outputList.size() + 1];
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(outputList.size() * 34);
+        try {
+            for (int i = 0; i < outputList.size(); i++) {
+                outputOffsets[i] = bos.size();
+                outputList.get(i).bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        outputOffsets[outputList.size()] = bos.size();
+        outputs = bos.toByteArray();
+    }
+
+    /** Returns the hash of the transaction this is a snapshot of. */
+    public Sha256Hash getTransactionHash() {
+        return hash;
+    }
+
+    /** Returns how many inputs the transaction has. */
+    public int getNumInputs() {
+        return sequenceNumbers.length;
+    }
+
+    /** Returns the cache signatures are checked through, or null if they are always checked from scratch. */
+    @Nullable
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Checks the signature against the given signature hash and public key, consulting the cache if there is one. If
+     * signatures are being deferred, adds it to the batch and returns true.
+     */
+    public boolean verifySignature(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (deferredSignatures != null) {
+            deferredSignatures.add(sigHash.getBytes(), signature, pubKey);
+            return true;
+        }
+        return verifySignatureNow(sigHash, signature, pubKey);
+    }
+
+    /**
+     * Checks the signature against the given signature hash and public key, consulting the cache if there is one,
+     * even if signatures are being deferred. For when the result decides which signature goes with which key, so that
+     * assuming it's valid would pair them up wrongly.
+     */
+    public boolean verifySignatureNow(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (signatureCache != null)
+            return signatureCache.verify(sigHash.getBytes(), signature, pubKey);
+        return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+    }
+
+    /**
+     * Calculates the hash a signature in the given input signs, exactly as
+     * {@link Transaction#hashForSignature(int, byte[], byte)} would for the transaction this context was created from.
+     *
+     * @param inputIndex input the signature is for
+     * @param connectedScript the bytes that should be in the given input during signing
+     * @param sigHashType the signature hash type byte, including the ANYONECANPAY bit
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        final int numInputs = sequenceNumbers.length;
+        checkElementIndex(inputIndex, numInputs);
+        final int numOutputs = outputOffsets.length - 1;
+        final boolean none = (sigHashType & 0x1f) == (Transaction.SigHash.NONE.ordinal() + 1);
+        final boolean single = (sigHashType & 0x1f) == (Transaction.SigHash.SINGLE.ordinal() + 1);
+        final boolean anyoneCanPay =
+                (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= numOutputs)
+            return SIGHASH_SINGLE_BUG;
+        // See Transaction.hashForSignature for why this is done.
+        connectedScript = Script.removeInstances(connectedScript, CODESEPARATOR);
+
+        MessageDigest digest = digests.get();
+        digest.reset();
+        byte[] buf = new byte[4];
+        updateUint32(digest, buf, version);
+        if (anyoneCanPay) {
+            digest.update((byte) 1);
+            updateInput(digest, buf, inputIndex, connectedScript, sequenceNumbers[inputIndex]);
+        } else if (none || single) {
+            // Other inputs are signed with empty scripts, and with NONE or SINGLE their sequence numbers aren't
+            // signed either.
+            digest.update(new VarInt(numInputs).encode());
+            for (int i = 0; i < numInputs; i++) {
+                if (i == inputIndex) {
+                    updateInput(digest, buf, i, connectedScript, sequenceNumbers[i]);
+                } else {
+                    digest.update(blankInputs, i * BLANK_INPUT_SIZE, BLANK_INPUT_SIZE - 4);
+                    updateUint32(digest, buf, 0);
+                }
+            }
+        } else {
+            digest.update(new VarInt(numInputs).encode());
+            digest.update(blankInputs, 0, inputIndex * BLANK_INPUT_SIZE);
+            updateInput(digest, buf, inputIndex, connectedScript, sequenceNumbers[inputIndex]);
+            int next = (inputIndex + 1) * BLANK_INPUT_SIZE;
+            digest.update(blankInputs, next, blankInputs.length - next);
+        }
+        if (none) {
+            digest.update((byte) 0);
+        } else if (single) {
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+        } else {
+            digest.update(new VarInt(numOutputs).encode());
+            digest.update(outputs);
+        }
+        updateUint32(digest, buf, lockTime);
+        updateUint32(digest, buf, 0x000000ff & sigHashType);
+        byte[] first = digest.digest();
+        return new Sha256Hash(digest.digest(first));
+    }
+
+    private void updateInput(MessageDigest digest, byte[] buf, int index, byte[] script, long sequenceNumber) {
+        digest.update(blankInputs, index * BLANK_INPUT_SIZE, 36);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        updateUint32(digest, buf, sequenceNumber);
+    }
+
+    private static void updateUint32(MessageDigest digest, byte[] buf, long val) {
+        Utils.uint32ToByteArrayLE(val, buf, 0);
+        digest.update(buf);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Keeps the shape of the block chain in memory, so that questions like "which block is the ancestor of this one at
+ * height N" or "where do these two chains fork" can be answered without going back to a {@link BlockStore} for every
+ * block on the way. Stores can be slow at that: {@link SPVBlockStore} has to scan its ring for blocks it doesn't have
+ * cached, and the database backed stores go to disk.</p>
+ *
+ * <p>Each block added gets a slot number, and what's known about it is kept in flat arrays indexed by slot: its hash,
+ * height, timestamp, chain work, the slot of its parent and the slot of an ancestor further back, chosen as in the
+ * reference client so that any ancestor can be reached in a logarithmic number of steps. On top of that the index
+ * keeps the slot at each height of the best chain, so ancestors of blocks on the best chain are found in constant
+ * time. A block whose parent isn't in the index starts a new tree, and its ancestors are unknown.</p>
+ *
+ * <p>Each block costs about a hundred bytes. Blocks stay in the index until {@link #removeBelow(int)} drops the ones
+ * deep enough that they're no longer needed. {@link com.google.bitcoin.core.AbstractBlockChain} uses it to keep a few
+ * difficulty intervals behind its chain head.</p>
+ */
+@ThreadSafe
+public class HeaderIndex {
+    /** Returned for slots and heights that aren't known. */
+    public static final int UNKNOWN = -1;
+
+    private static final int MEDIAN_TIME_SPAN = 11;
+
+    private final ReentrantLock lock = Threading.lock("HeaderIndex");
+
+    @GuardedBy("lock") private int size;
+    @GuardedBy("lock") private Sha256Hash[] hashes;
+    @GuardedBy("lock") private int[] heights;
+    @GuardedBy("lock") private int[] times;
+    // Chain work is at most 96 bits, see StoredBlock.CHAIN_WORK_BYTES.
+    @GuardedBy("lock") private long[] workLow;
+    @GuardedBy("lock") private int[] workHigh;
+    @GuardedBy("lock") private int[] prevs;
+    @GuardedBy("lock") private int[] skips;
+    // An open addressing hash table from block hash to slot, holding slot + 1 so that zero means empty.
+    @GuardedBy("lock") private int[] table;
+    // The slot of the best chain block at each height from bestChainBase, or UNKNOWN.
+    @GuardedBy("lock") private int[] bestChain = new int[0];
+    @GuardedBy("lock") private int bestChainBase;
+    @GuardedBy("lock") private int bestHeight = UNKNOWN;
+
+    public HeaderIndex() {
+        this(1024);
+    }
+
+    /** Creates an index with room for the given number of blocks before it has to grow. */
+    public HeaderIndex(int initialCapacity) {
+        checkArgument(initialCapacity > 0);
+        hashes = new Sha256Hash[initialCapacity];
+        heights = new int[initialCapacity];
+        times = new int[initialCapacity];
+        workLow = new long[initialCapacity];
+        workHigh = new int[initialCapacity];
+        prevs = new int[initialCapacity];
+        skips = new int[initialCapacity];
+        table = new int[Integer.highestOneBit(initialCapacity) * 4];
+    }
+
+    /**
+     * Adds the given block if it isn't in the index already, and returns its slot. If its parent is in the index the
+     * two are linked up. The parent must be added first, blocks added before their parents aren't linked up later.
+     */
+    public int add(StoredBlock block) {
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHeader().getHash();
+            int slot = find(hash);
+            if (slot != UNKNOWN)
+                return slot;
+            if (size == hashes.length)
+                grow();
+            slot = size++;
+            hashes[slot] = hash;
+            heights[slot] = block.getHeight();
+            times[slot] = (int) block.getHeader().getTimeSeconds();
+            BigInteger work = block.getChainWork();
+            workLow[slot] = work.longValue();
+            workHigh[slot] = work.shiftRight(64).intValue();
+            int prev = find(block.getHeader().getPrevBlockHash());
+            if (prev != UNKNOWN && heights[prev] != block.getHeight() - 1)
+                prev = UNKNOWN;
+            prevs[slot] = prev;
+            skips[slot] = prev == UNKNOWN ? UNKNOWN : ancestor(prev, skipHeight(block.getHeight()));
+            if ((size + 1) * 2 > table.length)
+                rehash(table.length * 2);
+            else
+                insert(table, slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the slot of the block with the given hash, or {@link #UNKNOWN}. */
+    public int getSlot(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return find(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks in the index. */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Sha256Hash getHash(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            return hashes[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getHeight(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            return heights[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the block's timestamp in seconds. */
+    public long getTimeSeconds(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            return times[slot] & 0xFFFFFFFFL;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link StoredBlock#getChainWork()}. */
+    public BigInteger getChainWork(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            long low = workLow[slot];
+            BigInteger work = BigInteger.valueOf(workHigh[slot] & 0xFFFFFFFFL).shiftLeft(64);
+            // The low word is unsigned.
+            return work.or(BigInteger.valueOf(low >>> 1).shiftLeft(1)).or(BigInteger.valueOf(low & 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the slot of the block's parent, or {@link #UNKNOWN} if it isn't in the index. */
+    public int getPrev(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            return prevs[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot of the block's ancestor at the given height, which is the block itself at its own height, or
+     * {@link #UNKNOWN} if that ancestor isn't in the index.
+     */
+    public int getAncestor(int slot, int height) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            return ancestor(slot, height);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the median timestamp of the given block and the ten before it, the earliest time the next block is
+     * allowed to have, or -1 if fewer than ten of those ancestors are in the index.
+     */
+    public long getMedianTimePast(int slot) {
+        lock.lock();
+        try {
+            checkElementIndex(slot, size);
+            long[] timestamps = new long[MEDIAN_TIME_SPAN];
+            for (int i = 0; i < MEDIAN_TIME_SPAN; i++) {
+                if (slot == UNKNOWN)
+                    return -1;
+                timestamps[i] = times[slot] & 0xFFFFFFFFL;
+                slot = prevs[slot];
+            }
+            Arrays.sort(timestamps);
+            return timestamps[MEDIAN_TIME_SPAN / 2];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot of the last block the two blocks have in common, which may be one of them, or
+     * {@link #UNKNOWN} if the index doesn't go back far enough to tell.
+     */
+    public int findFork(int a, int b) {
+        lock.lock();
+        try {
+            checkElementIndex(a, size);
+            checkElementIndex(b, size);
+            if (heights[a] > heights[b])
+                a = ancestor(a, heights[b]);
+            else
+                b = ancestor(b, heights[a]);
+            while (a != b && a != UNKNOWN && b != UNKNOWN) {
+                a = prevs[a];
+                b = prevs[b];
+            }
+            return a == b ? a : UNKNOWN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the given block the head of the best chain, which the height lookups then follow. Its ancestors back to
+     * where they join the previous best chain are filled in, as far back as the index goes.
+     */
+    public void setBestChain(int head) {
+        lock.lock();
+        try {
+            checkElementIndex(head, size);
+            int height = heights[head];
+            if (height < bestChainBase) {
+                // Below everything kept so far, start again from here.
+                Arrays.fill(bestChain, UNKNOWN);
+                bestChainBase = height;
+            } else {
+                for (int h = Math.max(height + 1, bestChainBase); h <= bestHeight; h++)
+                    bestChain[h - bestChainBase] = UNKNOWN;
+            }
+            if (height - bestChainBase >= bestChain.length) {
+                int[] newBestChain = Arrays.copyOf(bestChain,
+                        Math.max(height - bestChainBase + 1, bestChain.length * 3 / 2));
+                Arrays.fill(newBestChain, bestChain.length, newBestChain.length, UNKNOWN);
+                bestChain = newBestChain;
+            }
+            bestHeight = height;
+            int slot = head;
+            while (slot != UNKNOWN && heights[slot] >= bestChainBase &&
+                    bestChain[heights[slot] - bestChainBase] != slot) {
+                bestChain[heights[slot] - bestChainBase] = slot;
+                if (prevs[slot] == UNKNOWN) {
+                    // Forget the old best chain below this point, it isn't connected to the new one.
+                    for (int h = heights[slot] - 1; h >= bestChainBase && bestChain[h - bestChainBase] != UNKNOWN; h--)
+                        bestChain[h - bestChainBase] = UNKNOWN;
+                }
+                slot = prevs[slot];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the slot of the best chain block at the given height, or {@link #UNKNOWN}. */
+    public int getBestChainSlot(int height) {
+        lock.lock();
+        try {
+            return bestChainSlot(height);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the hash of the best chain block at the given height, or null if it isn't known. */
+    @Nullable
+    public Sha256Hash getBestChainHash(int height) {
+        lock.lock();
+        try {
+            int slot = bestChainSlot(height);
+            return slot == UNKNOWN ? null : hashes[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the blocks below the given height, which no longer count as ancestors of the blocks left. This
+     * renumbers the slots of the blocks that are kept, so slots from before the call mustn't be used after it.
+     */
+    public void removeBelow(int height) {
+        lock.lock();
+        try {
+            // Parents and skips are always in earlier slots, so they're renumbered before the blocks pointing at them.
+            int[] newSlots = new int[size];
+            int newSize = 0;
+            for (int slot = 0; slot < size; slot++) {
+                if (heights[slot] < height) {
+                    newSlots[slot] = UNKNOWN;
+                    continue;
+                }
+                int newSlot = newSize++;
+                newSlots[slot] = newSlot;
+                hashes[newSlot] = hashes[slot];
+                heights[newSlot] = heights[slot];
+                times[newSlot] = times[slot];
+                workLow[newSlot] = workLow[slot];
+                workHigh[newSlot] = workHigh[slot];
+                prevs[newSlot] = prevs[slot] == UNKNOWN ? UNKNOWN : newSlots[prevs[slot]];
+                skips[newSlot] = skips[slot] == UNKNOWN ? UNKNOWN : newSlots[skips[slot]];
+            }
+            Arrays.fill(hashes, newSize, size, null);
+            size = newSize;
+            rehash(table.length);
+            if (height > bestChainBase) {
+                int removed = Math.min(height - bestChainBase, bestChain.length);
+                System.arraycopy(bestChain, removed, bestChain, 0, bestChain.length - removed);
+                Arrays.fill(bestChain, bestChain.length - removed, bestChain.length, UNKNOWN);
+                bestChainBase = height;
+            }
+            for (int i = 0; i < bestChain.length; i++) {
+                if (bestChain[i] != UNKNOWN)
+                    bestChain[i] = newSlots[bestChain[i]];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int bestChainSlot(int height) {
+        return height >= bestChainBase && height <= bestHeight ? bestChain[height - bestChainBase] : UNKNOWN;
+    }
+
+    private boolean onBestChain(int slot) {
+        return bestChainSlot(heights[slot]) == slot;
+    }
+
+    private int ancestor(int slot, int height) {
+        if (height < 0 || height > heights[slot])
+            return UNKNOWN;
+        if (onBestChain(slot) && bestChainSlot(height) != UNKNOWN)
+            return bestChainSlot(height);
+        int walk = slot;
+        int heightWalk = heights[slot];
+        while (heightWalk > height) {
+            int heightSkip = skipHeight(heightWalk);
+            int heightSkipPrev = skipHeight(heightWalk - 1);
+            // Only take the skip if it doesn't overshoot, and a better one isn't one step back.
+            if (skips[walk] != UNKNOWN && (heightSkip == height || (heightSkip > height &&
+                    !(heightSkipPrev < heightSkip - 2 && heightSkipPrev >= height)))) {
+                walk = skips[walk];
+                heightWalk = heightSkip;
+            } else {
+                walk = prevs[walk];
+                heightWalk--;
+            }
+            if (walk == UNKNOWN)
+                return UNKNOWN;
+            if (onBestChain(walk) && bestChainSlot(height) != UNKNOWN)
+                return bestChainSlot(height);
+        }
+        return walk;
+    }
+
+    // The height a block's skip pointer points to. This spaces skips so that any ancestor is a logarithmic number of
+    // steps away, the same way the reference client does it.
+    private static int skipHeight(int height) {
+        if (height < 2)
+            return 0;
+        return (height & 1) != 0 ? clearLowestBit(clearLowestBit(height - 1)) + 1 : clearLowestBit(height);
+    }
+
+    private static int clearLowestBit(int n) {
+        return n & (n - 1);
+    }
+
+    private int find(Sha256Hash hash) {
+        int mask = table.length - 1;
+        for (int i = hash.hashCode() & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0)
+                return UNKNOWN;
+            if (hashes[entry - 1].equals(hash))
+                return entry - 1;
+        }
+    }
+
+    private void insert(int[] table, int slot) {
+        int mask = table.length - 1;
+        int i = hashes[slot].hashCode() & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int slot = 0; slot < size; slot++)
+            insert(table, slot);
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        times = Arrays.copyOf(times, capacity);
+        workLow = Arrays.copyOf(workLow, capacity);
+        workHigh = Arrays.copyOf(workHigh, capacity);
+        prevs = Arrays.copyOf(prevs, capacity);
+        skips = Arrays.copyOf(skips, capacity);
+    }
+}
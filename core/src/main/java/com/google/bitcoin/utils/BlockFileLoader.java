@@ -19,16 +19,25 @@ package com.google.bitcoin.utils;
 import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ProtocolException;
-import com.google.bitcoin.core.Utils;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
@@ -44,8 +53,23 @@ import java.util.NoSuchElementException;
  * for (Block block : loader) {<br>
  * &nbsp;&nbsp;try { chain.add(block); } catch (Exception e) { }<br>
  * }</p>
+ *
+ * <p>Files are memory mapped and, by default, scanned and parsed by the thread iterating over the blocks. If given
+ * parser threads with {@link #BlockFileLoader(NetworkParameters, List, int, boolean, boolean)}, the files are
+ * instead scanned for blocks on a background thread and the blocks are parsed by a pool of parser threads, so that
+ * reading and parsing keeps up with the chain. Blocks still come out of the iterator in the order they are in the
+ * files. A bounded number of blocks are read ahead, after which the loader waits for the iterator to catch up. If you
+ * stop iterating before the end, call {@link #close()} to stop the background threads.</p>
  */
-public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+public class BlockFileLoader implements Iterable<Block>, Iterator<Block>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
+    // How much of a file is mapped at once. Reference client files are much smaller than this, but a bigger file is
+    // mapped a piece at a time so it fits in a 32 bit address space.
+    private static final int MAP_WINDOW_SIZE = 256 * 1024 * 1024;
+    // How many blocks each parser thread may have read ahead of the iterator.
+    private static final int BLOCKS_AHEAD_PER_THREAD = 16;
+
     /**
      * Gets the list of files which contain blocks from the Satoshi client.
      */
@@ -66,17 +90,52 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         }
         return list;
     }
-    
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+
+    // Put on the queue after the last block.
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
+    private final Iterator<File> fileIt;
+    private final NetworkParameters params;
+    private final int parserThreads;
+    private final boolean parseLazy, parseRetain;
     private Block nextBlock = null;
-    private NetworkParameters params;
-    
+    private boolean finished;
+    private volatile boolean closed;
+
+    // Used when parsing on the iterating thread.
+    private BlockScanner currentScanner = null;
+    // Used when parsing on a thread pool.
+    private BlockingQueue<Future<Block>> parsedBlocks;
+    private ExecutorService parsers;
+    private Thread scannerThread;
+
+    /**
+     * Reads the blocks in the given files, parsing them in full on the thread iterating over them. No other threads
+     * are started.
+     */
     public BlockFileLoader(NetworkParameters params, List<File> files) {
-        fileIt = files.iterator();
+        this(params, files, 0, false, false);
+    }
+
+    /**
+     * Reads the blocks in the given files.
+     *
+     * @param parserThreads How many threads to parse blocks on. If zero, no threads are started and blocks are read
+     *                      and parsed by the thread iterating over them.
+     * @param parseLazy Whether blocks are parsed lazily, see
+     *                  {@link Block#Block(NetworkParameters, byte[], boolean, boolean, int)}.
+     * @param parseRetain Whether blocks keep their bytes for reserialization.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int parserThreads, boolean parseLazy,
+                           boolean parseRetain) {
+        checkArgument(parserThreads >= 0);
+        this.fileIt = files.iterator();
         this.params = params;
+        this.parserThreads = parserThreads;
+        this.parseLazy = parseLazy;
+        this.parseRetain = parseRetain;
     }
-    
+
     @Override
     public boolean hasNext() {
         if (nextBlock == null)
@@ -92,70 +151,194 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         nextBlock = null;
         return next;
     }
-    
+
+    /** Stops reading ahead, if that was happening. After this the iterator has no more blocks. */
+    @Override
+    public void close() {
+        closed = true;
+        nextBlock = null;
+        if (scannerThread != null) {
+            // The scanner thread closes its own file on the way out.
+            scannerThread.interrupt();
+            parsers.shutdownNow();
+            parsedBlocks.clear();
+        } else if (currentScanner != null) {
+            currentScanner.close();
+            currentScanner = null;
+        }
+    }
+
     private void loadNextBlock() {
-        while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
-            }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
+        if (finished || closed)
+            return;
+        if (parserThreads == 0) {
+            byte[] bytes;
+            while ((bytes = nextBlockBytes()) != null) {
+                nextBlock = parse(bytes);
+                if (nextBlock != null)
                     return;
+            }
+        } else {
+            if (scannerThread == null)
+                startThreads();
+            try {
+                Future<Block> future;
+                while ((future = parsedBlocks.take()) != END) {
+                    nextBlock = future.get();
+                    if (nextBlock != null)
+                        return;
                 }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            parsers.shutdown();
+        }
+        finished = true;
+    }
+
+    // Returns the next block in the files, or null when there are no more.
+    @Nullable
+    private byte[] nextBlockBytes() {
+        while (true) {
+            if (currentScanner == null) {
+                if (!fileIt.hasNext() || closed)
+                    return null;
+                File file = fileIt.next();
                 try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
+                    currentScanner = new BlockScanner(file);
+                } catch (IOException e) {
+                    log.warn("Could not read block file {}: {}", file, e.toString());
+                    continue;
                 }
             }
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
+                byte[] bytes = currentScanner.next();
+                if (bytes != null)
+                    return bytes;
+            } catch (IOException e) {
+                log.warn("Error reading block file: {}", e.toString());
+            }
+            currentScanner.close();
+            currentScanner = null;
+        }
+    }
+
+    // Returns null for blocks that don't parse, which are skipped.
+    @Nullable
+    private Block parse(byte[] bytes) {
+        try {
+            return new Block(params, bytes, parseLazy, parseRetain, bytes.length);
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    private void startThreads() {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Block parser %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        parsers = Executors.newFixedThreadPool(parserThreads, builder.build());
+        parsedBlocks = new ArrayBlockingQueue<Future<Block>>(parserThreads * BLOCKS_AHEAD_PER_THREAD);
+        scannerThread = builder.setNameFormat("Block file scanner").build().newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] bytes;
+                    while ((bytes = nextBlockBytes()) != null) {
+                        final byte[] blockBytes = bytes;
+                        parsedBlocks.put(parsers.submit(new Callable<Block>() {
+                            @Override
+                            public Block call() {
+                                return parse(blockBytes);
+                            }
+                        }));
                     }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
+                    parsedBlocks.put(END);
+                } catch (InterruptedException e) {
+                    // Closed.
+                } catch (RejectedExecutionException e) {
+                    // Closed.
+                } finally {
+                    if (currentScanner != null)
+                        currentScanner.close();
+                }
+            }
+        });
+        scannerThread.start();
+    }
+
+    // Finds the blocks in one file, mapping it into memory a window at a time.
+    private class BlockScanner {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int magic = (int) params.getPacketMagic();
+        private final byte magicFirstByte = (byte) (magic >>> 24);
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        BlockScanner(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            fileSize = channel.size();
+            map(0);
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW_SIZE, fileSize - start));
+        }
+
+        // Returns the bytes of the next block, or null at the end of the file.
+        @Nullable
+        byte[] next() throws IOException {
+            while (true) {
+                int pos = window.position(), limit = window.limit();
+                boolean lastWindow = windowStart + limit == fileSize;
+                // Look for the magic number followed by the length.
+                int found = -1;
+                for (int i = pos; i <= limit - 8; i++) {
+                    if (window.get(i) == magicFirstByte && window.getInt(i) == magic) {
+                        found = i;
                         break;
+                    }
+                }
+                if (found < 0) {
+                    if (lastWindow)
+                        return null;
+                    // Carry on from the part of this window that could still hold the start of the magic number.
+                    map(windowStart + Math.max(pos, limit - 7));
+                    continue;
                 }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
+                long size = Integer.reverseBytes(window.getInt(found + 4)) & 0xFFFFFFFFL;
                 // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0) {
+                    window.position(found + 4);
                     continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
+                }
+                if (found + 8 + size > limit) {
+                    // A truncated block at the end of the file, or one that runs into the next window.
+                    if (lastWindow)
+                        return null;
+                    map(windowStart + found);
                     continue;
                 }
-                break;
+                byte[] bytes = new byte[(int) size];
+                window.position(found + 8);
+                window.get(bytes);
+                return bytes;
+            }
+        }
+
+        void close() {
+            window = null;
+            try {
+                file.close();
             } catch (IOException e) {
-                currentFileStream = null;
-                continue;
+                // Nothing to do.
             }
         }
     }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs tasks after a delay, with the delay rounded up to a whole number of ticks. Meant for large numbers of
+ * timeouts that are usually cancelled or far in the future, like the expiry times of payment channels, where
+ * {@link java.util.Timer} and {@link java.util.concurrent.ScheduledThreadPoolExecutor} spend time keeping a priority
+ * queue in order and keep cancelled tasks around until they would have run.</p>
+ *
+ * <p>Timeouts are put in one of a fixed number of buckets arranged in a ring, according to the tick they are due in,
+ * and each tick only looks at one bucket. Adding and cancelling a timeout takes constant time. Timeouts more than one
+ * turn of the ring away stay in their bucket for as many turns as it takes.</p>
+ *
+ * <p>Tasks are run one at a time on the timer's thread, which is started the first time a timeout is added, so they
+ * should be quick or hand their work on to another thread. Any exception a task throws is logged and ignored.</p>
+ */
+@ThreadSafe
+public class HashedWheelTimer {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final String name;
+    private final long tickNanos;
+    // Each bucket is a doubly linked list of the timeouts in it, only touched by the timer thread.
+    private final Timeout[] wheel;
+    private final int mask;
+    // Timeouts added or cancelled since the last tick, waiting to be put in or taken out of their buckets.
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    @GuardedBy("this") private Thread thread;
+    private volatile boolean started;
+    private volatile boolean stopped;
+    // Set when the thread starts, then only read by the timer thread and by newTimeout.
+    private volatile long startNanos;
+    // The number of ticks done so far, only touched by the timer thread.
+    private long tick;
+
+    /** A task waiting to be run by the timer. */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        // 0 = waiting, 1 = cancelled, 2 = run.
+        private final AtomicInteger state = new AtomicInteger();
+        // Only touched by the timer thread.
+        private long remainingRounds;
+        private Timeout prev, next;
+        private int bucket = -1;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /** Stops the task from being run, returning false if it has already run or been cancelled. */
+        public boolean cancel() {
+            if (!state.compareAndSet(0, 1))
+                return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        /** Returns true if the task was cancelled before it ran. */
+        public boolean isCancelled() {
+            return state.get() == 1;
+        }
+
+        /** Returns true if the task has been run, or is being run. */
+        public boolean isExpired() {
+            return state.get() == 2;
+        }
+    }
+
+    /**
+     * Creates a timer whose thread has the given name.
+     *
+     * @param tickDuration how often the timer checks for timeouts that are due, which is how precise it is
+     * @param ticksPerWheel how many buckets timeouts are spread over, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        checkArgument(tickDuration > 0);
+        checkArgument(ticksPerWheel > 0 && ticksPerWheel <= 1 << 30);
+        this.name = checkNotNull(name);
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel)
+            size <<= 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Arranges for the task to be run on the timer thread once the delay has passed. A delay that isn't positive
+     * means the next tick.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        checkNotNull(task);
+        if (!started)
+            start();
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /** Returns how many timeouts are waiting to run. */
+    public int getPendingTimeouts() {
+        return pending.get();
+    }
+
+    /** Stops the timer thread. Timeouts that haven't run yet never will. */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private synchronized void start() {
+        if (thread != null)
+            return;
+        checkState(!stopped, "Timer has been stopped");
+        startNanos = System.nanoTime();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        }, name);
+        thread.setDaemon(true);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            thread.setUncaughtExceptionHandler(handler);
+        thread.start();
+        started = true;
+    }
+
+    private void runTimer() {
+        while (!stopped) {
+            // Sleep until the end of the current tick.
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != 0)
+                continue;
+            // Never put a timeout into a tick that has already gone by.
+            long dueTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            int bucket = (int) (dueTick & mask);
+            timeout.bucket = bucket;
+            timeout.next = wheel[bucket];
+            if (wheel[bucket] != null)
+                wheel[bucket].prev = timeout;
+            wheel[bucket] = timeout;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0)
+                unlink(timeout);
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(0, 2)) {
+                    pending.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        log.error("Timer task threw", t);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
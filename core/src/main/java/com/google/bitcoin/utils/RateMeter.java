@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.Utils;
+import net.jcip.annotations.ThreadSafe;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Measures how fast something happens, for instance bytes or blocks arriving from a peer, over a sliding window of
+ * recent time. The window is split into a fixed number of buckets so recording is cheap and old samples fall out of
+ * the average as time passes, even if nothing new is recorded.</p>
+ *
+ * <p>Time is taken from {@link Utils#currentTimeMillis()} so it can be mocked in unit tests.</p>
+ */
+@ThreadSafe
+public class RateMeter {
+    private final long bucketMsec;
+    private final long[] buckets;
+    // The index into the ring of the bucket covering the current time, and the time that bucket started.
+    private int current;
+    private long currentStartMsec;
+    private long firstRecordMsec, lastRecordMsec;
+    private long total;
+
+    /**
+     * @param windowMsec how far back in time the rate is averaged over
+     * @param numBuckets how many pieces the window is split into, more gives a smoother average
+     */
+    public RateMeter(long windowMsec, int numBuckets) {
+        checkArgument(numBuckets > 0 && windowMsec >= numBuckets);
+        this.bucketMsec = windowMsec / numBuckets;
+        this.buckets = new long[numBuckets];
+        this.currentStartMsec = Utils.currentTimeMillis();
+    }
+
+    /** Records that the given amount of work happened just now. */
+    public synchronized void record(long amount) {
+        long now = Utils.currentTimeMillis();
+        advance(now);
+        buckets[current] += amount;
+        total += amount;
+        if (firstRecordMsec == 0)
+            firstRecordMsec = now;
+        lastRecordMsec = now;
+    }
+
+    /**
+     * Returns the average amount per second over the window. Whilst the meter is younger than the window, the average
+     * is taken over the time since the first sample instead so it doesn't start out artificially low.
+     */
+    public synchronized double getRatePerSecond() {
+        long now = Utils.currentTimeMillis();
+        advance(now);
+        if (firstRecordMsec == 0)
+            return 0;
+        long sum = 0;
+        for (long bucket : buckets)
+            sum += bucket;
+        long windowMsec = bucketMsec * buckets.length;
+        long elapsed = Math.max(bucketMsec, Math.min(windowMsec, now - firstRecordMsec));
+        return sum * 1000.0 / elapsed;
+    }
+
+    /** Returns the sum of everything ever recorded. */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /** Returns the time in milliseconds since the epoch that something was last recorded, or zero if never. */
+    public synchronized long getLastRecordTime() {
+        return lastRecordMsec;
+    }
+
+    // Moves the ring forward to the bucket for the given time, clearing the buckets we skip over.
+    private void advance(long now) {
+        long steps = (now - currentStartMsec) / bucketMsec;
+        if (steps <= 0)
+            return;
+        for (long i = 0; i < Math.min(steps, buckets.length); i++) {
+            current = (current + 1) % buckets.length;
+            buckets[current] = 0;
+        }
+        currentStartMsec += steps * bucketMsec;
+    }
+}
@@ -1,5 +1,6 @@
 package com.google.bitcoin.wallet;
 
+import com.google.bitcoin.core.Coin;
 import com.google.bitcoin.core.TransactionOutput;
 
 import java.math.BigInteger;
@@ -20,4 +21,13 @@ public class CoinSelection {
         this.valueGathered = valueGathered;
         this.gathered = gathered;
     }
+
+    public CoinSelection(Coin valueGathered, Collection<TransactionOutput> gathered) {
+        this(valueGathered.toBigInteger(), gathered);
+    }
+
+    /** Returns {@link #valueGathered} as a {@link Coin}. */
+    public Coin getValueGatheredAsCoin() {
+        return Coin.valueOf(valueGathered);
+    }
 }
@@ -1,11 +1,14 @@
 package com.google.bitcoin.wallet;
 
+import com.google.bitcoin.core.Coin;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.params.RegTestParams;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Longs;
 
 import java.math.BigInteger;
 import java.util.*;
@@ -35,7 +38,7 @@ public class DefaultCoinSelector implements CoinSelector {
             // Only pick chain-included transactions, or transactions that are ours and pending.
             if (!shouldSelect(output.getParentTransaction())) continue;
             selected.add(output);
-            total += output.getValue().longValue();
+            total = Coin.add(total, Coin.longValueOf(output.getValue()));
         }
         // Total may be lower than target here, if the given candidates were insufficient to create to requested
         // transaction.
@@ -53,23 +56,41 @@ public class DefaultCoinSelector implements CoinSelector {
                     depth1 = conf1.getDepthInBlocks();
                 if (conf2.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
                     depth2 = conf2.getDepthInBlocks();
-                BigInteger aValue = a.getValue();
-                BigInteger bValue = b.getValue();
-                BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
+                // This is called O(n log n) times per selection, so it avoids creating BigIntegers.
+                long aValue = Coin.longValueOf(a.getValue());
+                long bValue = Coin.longValueOf(b.getValue());
+                int c1 = compareProducts(bValue, depth2, aValue, depth1);
                 if (c1 != 0) return c1;
                 // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
+                int c2 = Longs.compare(bValue, aValue);
                 if (c2 != 0) return c2;
                 // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
-                BigInteger bHash = b.getParentTransaction().getHash().toBigInteger();
-                return aHash.compareTo(bHash);
+                return compareUnsigned(a.getParentTransaction().getHash().getBytes(),
+                        b.getParentTransaction().getHash().getBytes());
             }
         });
     }
 
+    // Compares a * b with c * d. The values are in range for money and the depths are non-negative, so the products
+    // only overflow a long for absurdly deep outputs, in which case it falls back to BigIntegers.
+    private static int compareProducts(long a, long b, long c, long d) {
+        try {
+            return Longs.compare(LongMath.checkedMultiply(a, b), LongMath.checkedMultiply(c, d));
+        } catch (ArithmeticException e) {
+            return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b))
+                    .compareTo(BigInteger.valueOf(c).multiply(BigInteger.valueOf(d)));
+        }
+    }
+
+    // Compares two hashes as unsigned big endian numbers, the same order as Sha256Hash.toBigInteger() gives.
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
     protected boolean shouldSelect(Transaction tx) {
         return isSelectable(tx);
@@ -51,7 +51,7 @@ public class KeyTimeCoinSelector implements CoinSelector {
     public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
         try {
             LinkedList<TransactionOutput> gathered = Lists.newLinkedList();
-            BigInteger valueGathered = BigInteger.ZERO;
+            long valueGathered = 0;
             for (TransactionOutput output : candidates) {
                 if (ignorePending && !isConfirmed(output))
                     continue;
@@ -70,14 +70,14 @@ public class KeyTimeCoinSelector implements CoinSelector {
                 checkNotNull(controllingKey, "Coin selector given output as candidate for which we lack the key");
                 if (controllingKey.getCreationTimeSeconds() >= unixTimeSeconds) continue;
                 // It's older than the cutoff time so select.
-                valueGathered = valueGathered.add(output.getValue());
+                valueGathered = Coin.add(valueGathered, Coin.longValueOf(output.getValue()));
                 gathered.push(output);
                 if (gathered.size() >= MAX_SIMULTANEOUS_INPUTS) {
                     log.warn("Reached {} inputs, going further would yield a tx that is too large, stopping here.", gathered.size());
                     break;
                 }
             }
-            return new CoinSelection(valueGathered, gathered);
+            return new CoinSelection(BigInteger.valueOf(valueGathered), gathered);
         } catch (ScriptException e) {
             throw new RuntimeException(e);  // We should never have problems understanding scripts in our wallet.
         }
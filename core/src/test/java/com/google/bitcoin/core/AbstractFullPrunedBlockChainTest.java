@@ -17,9 +17,12 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.crypto.SignatureCache;
+import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
@@ -33,6 +36,8 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 
+import static com.google.bitcoin.script.ScriptOpCodes.OP_CHECKSIG;
+import static com.google.bitcoin.script.ScriptOpCodes.OP_NOT;
 import static org.junit.Assert.*;
 
 /**
@@ -64,6 +69,21 @@ public abstract class AbstractFullPrunedBlockChainTest
 
     @Test
     public void testGeneratedChain() throws Exception {
+        runGeneratedChain(false, false);
+    }
+
+    @Test
+    public void testGeneratedChainWithBatchedSignatures() throws Exception {
+        runGeneratedChain(true, false);
+    }
+
+    @Test
+    public void testGeneratedChainFromBytes() throws Exception {
+        // Blocks whose transactions are checked and connected without being parsed.
+        runGeneratedChain(false, true);
+    }
+
+    private void runGeneratedChain(boolean batchVerifySignatures, boolean fromBytes) throws Exception {
         // Tests various test cases from FullBlockTestGenerator
         FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
         RuleList blockList = generator.getBlocksToTest(false, false, null);
@@ -71,15 +91,21 @@ public abstract class AbstractFullPrunedBlockChainTest
         store = createStore(params, blockList.maximumReorgBlockCount);
         resetStore(store);
         chain = new FullPrunedBlockChain(params, store);
+        chain.setBatchVerifySignatures(batchVerifySignatures);
 
         for (Rule rule : blockList.list) {
             if (!(rule instanceof BlockAndValidity))
                 continue;
             BlockAndValidity block = (BlockAndValidity) rule;
             log.info("Testing rule " + block.ruleName + " with block hash " + block.block.getHash());
+            Block toAdd = block.block;
+            if (fromBytes) {
+                byte[] bytes = toAdd.bitcoinSerialize();
+                toAdd = new Block(params, bytes, true, false, bytes.length);
+            }
             boolean threw = false;
             try {
-                if (chain.add(block.block) != block.connects) {
+                if (chain.add(toAdd) != block.connects) {
                     log.error("Block didn't match connects flag on block " + block.ruleName);
                     fail();
                 }
@@ -145,6 +171,95 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void batchedSignatures() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setBatchVerifySignatures(true);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase1 = rollingBlock.getTransactions().get(0);
+        rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase2 = rollingBlock.getTransactions().get(0);
+        for (int i = 2; i < params.getSpendableCoinbaseDepth() + 1; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        TransactionSignature wrongSig =
+                new TransactionSignature(outKey.sign(Sha256Hash.create(new byte[0])), Transaction.SigHash.ALL, false);
+
+        // An output that can only be spent with an invalid signature. Assuming the signature is valid makes the script
+        // fail, so the transaction has to be checked again without batching.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(params);
+        Script checkSigNot = new ScriptBuilder().data(outKey.getPubKey()).op(OP_CHECKSIG).op(OP_NOT).build();
+        t1.addOutput(new TransactionOutput(params, t1, Utils.toNanoCoins(50, 0), checkSigNot.getProgram()));
+        t1.addSignedInput(new TransactionOutPoint(params, 0, coinbase1.getHash()), coinbase1.getOutput(0).getScriptPubKey(), outKey);
+        Transaction t2 = new Transaction(params);
+        t2.addOutput(new TransactionOutput(params, t2, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t2.addInput(t1.getOutput(0)).setScriptSig(new ScriptBuilder().data(wrongSig.encodeToBitcoin()).build());
+        rollingBlock.addTransaction(t1);
+        rollingBlock.addTransaction(t2);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // A signature that is really needed but invalid is caught when the batch is checked.
+        Block badBlock = rollingBlock.createNextBlock(null);
+        Transaction t3 = new Transaction(params);
+        t3.addOutput(new TransactionOutput(params, t3, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t3.addInput(coinbase2.getOutput(0)).setScriptSig(new ScriptBuilder().data(wrongSig.encodeToBitcoin()).build());
+        badBlock.addTransaction(t3);
+        badBlock.solve();
+        try {
+            chain.add(badBlock);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void relayedTransactionsWarmSignatureCache() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        SignatureCache cache = new SignatureCache(100);
+        chain.setSignatureCache(cache);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t.addSignedInput(new TransactionOutPoint(params, 0, coinbase.getHash()), coinbase.getOutput(0).getScriptPubKey(), outKey);
+        Transaction unconnected = new Transaction(params);
+        unconnected.addOutput(new TransactionOutput(params, unconnected, Utils.toNanoCoins(50, 0), new byte[] {}));
+        unconnected.addInput(new TransactionInput(params, unconnected, new byte[] {}, new TransactionOutPoint(params, 0, t.getHash())));
+
+        // Checking the relayed tx checks its signature, and connecting the block it ends up in doesn't have to again.
+        assertTrue(chain.checkRelayedTransaction(t, cache));
+        assertFalse(chain.checkRelayedTransaction(unconnected, cache));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
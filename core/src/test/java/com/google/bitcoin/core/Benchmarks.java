@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Helpers for the standalone benchmarks, which report the time each operation takes and the memory the calling thread
+ * allocated for it. Allocations are counted with the HotSpot specific {@code com.sun.management.ThreadMXBean}, so the
+ * benchmarks need a HotSpot based JVM.
+ */
+public final class Benchmarks {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Benchmarks() {}
+
+    /** Returns how many bytes the calling thread has allocated so far. */
+    public static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Returns how many bytes all the threads that are still running have allocated so far. */
+    public static long allThreadsAllocatedBytes() {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            total += Math.max(0, bytes);
+        return total;
+    }
+
+    /**
+     * Prints the time and memory per operation for a round of the given number of operations, which started at the
+     * given {@link System#nanoTime()} with the given {@link #allocatedBytes()}.
+     */
+    public static void report(int round, String name, int iterations, long start, long allocated) {
+        report(round, name, "op", iterations, start, allocated);
+    }
+
+    /** As {@link #report(int, String, int, long, long)}, naming the operation in the units, for example "root". */
+    public static void report(int round, String name, String unit, int iterations, long start, long allocated) {
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        System.out.println(String.format("round %d, %-20s %,8d usec/%s, %,7d %ss/sec, %,10d bytes/%s", round,
+                name + ":", nanos / iterations / 1000, unit, (long) iterations * 1000000000L / Math.max(1, nanos),
+                unit, allocated / iterations, unit));
+    }
+}
@@ -174,6 +174,25 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void bestChainHashes() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b2Fork = b1.createNextBlock(coinbaseTo);
+        Block b3Fork = b2Fork.createNextBlock(coinbaseTo);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertEquals(unitTestParams.getGenesisBlock().getHash(), chain.getBestChainHash(0));
+        assertEquals(b2.getHash(), chain.getBestChainHash(2));
+        assertNull(chain.getBestChainHash(3));
+        // The fork overtakes b2.
+        assertTrue(chain.add(b2Fork));
+        assertTrue(chain.add(b3Fork));
+        assertEquals(b1.getHash(), chain.getBestChainHash(1));
+        assertEquals(b2Fork.getHash(), chain.getBestChainHash(2));
+        assertEquals(b3Fork.getHash(), chain.getBestChainHash(3));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockReaderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void matchesParsedTransactions() throws Exception {
+        BlockReader reader = new BlockReader(BlockTest.blockBytes, 0);
+        Block block = new Block(params, BlockTest.blockBytes);
+        List<Transaction> transactions = block.getTransactions();
+        assertEquals(transactions.size(), reader.getTransactionCount());
+        assertEquals(block.getOptimalEncodingMessageSize(), reader.getOptimalEncodingMessageSize());
+        assertEquals(block.getMerkleRoot(), reader.getMerkleRoot());
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            assertEquals(tx.getHash(), reader.getTransactionHash(i));
+            assertEquals(tx.getMessageSize(), reader.getTransactionLength(i));
+            assertEquals(tx.isCoinBase(), reader.isCoinBase(i));
+            assertEquals(tx.getLockTime(), reader.getLockTime(i));
+            assertEquals(tx.getSigOpCount(), reader.getSigOpCount(i));
+            assertEquals(tx.getInputs().size(), reader.getInputCount(i));
+            for (int j = 0; j < tx.getInputs().size(); j++) {
+                TransactionInput input = tx.getInput(j);
+                assertEquals(input.getOutpoint().getHash(), reader.getOutpointHash(i, j));
+                assertEquals(input.getOutpoint().getIndex(), reader.getOutpointIndex(i, j));
+                assertEquals(input.getSequenceNumber(), reader.getSequence(i, j));
+                assertArrayEquals(input.getScriptBytes(), reader.getScriptSigBytes(i, j));
+            }
+            assertEquals(tx.getOutputs().size(), reader.getOutputCount(i));
+            for (int j = 0; j < tx.getOutputs().size(); j++) {
+                TransactionOutput output = tx.getOutput(j);
+                assertEquals(output.getValue().longValue(), reader.getOutputValue(i, j));
+                assertArrayEquals(output.getScriptBytes(), reader.getOutputScriptBytes(i, j));
+            }
+            Transaction parsed = reader.getTransaction(params, i);
+            assertEquals(tx, parsed);
+            assertArrayEquals(tx.bitcoinSerialize(), parsed.bitcoinSerialize());
+        }
+    }
+
+    @Test
+    public void sigOps() throws Exception {
+        byte[] program = Hex.decode("51ae4cac");  // OP_1 OP_CHECKMULTISIG, then a truncated push.
+        byte[] buffer = new byte[program.length + 2];
+        System.arraycopy(program, 0, buffer, 1, program.length);
+        assertEquals(Script.getSigOpCount(program), Script.getSigOpCount(buffer, 1, program.length));
+        assertEquals(20, Script.getSigOpCount(buffer, 1, program.length));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() throws Exception {
+        new BlockReader(Arrays.copyOf(BlockTest.blockBytes, BlockTest.blockBytes.length - 1), 0);
+    }
+
+    @Test
+    public void connectsWithoutParsing() throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlockWithCoinbase(key.getPubKey());
+        byte[] bytes = block.bitcoinSerialize();
+        Block lazy = new Block(params, bytes, true, false, bytes.length);
+        assertTrue(chain.add(lazy));
+        assertNull(lazy.transactions);
+        assertEquals(block.getHash(), chain.getChainHead().getHeader().getHash());
+        Transaction coinbase = block.getTransactions().get(0);
+        assertNotNull(chain.blockStore.getTransactionOutput(coinbase.getHash(), 0));
+
+        // Once something is listening the transactions are parsed, so it can be given them.
+        chain.addListener(new AbstractBlockChainListener());
+        block = block.createNextBlockWithCoinbase(key.getPubKey());
+        bytes = block.bitcoinSerialize();
+        lazy = new Block(params, bytes, true, false, bytes.length);
+        assertTrue(chain.add(lazy));
+        assertNotNull(lazy.transactions);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compares adding up amounts as BigIntegers, the way balances used to be calculated, with adding them up as longs
+ * using {@link Coin}, and sorting outputs for coin selection with the old BigInteger comparator against
+ * {@link DefaultCoinSelector}. Reports time and the memory allocated by the calling thread per operation.
+ *
+ * Usage: CoinBenchmark [outputs=2000] [iterations=500] [rounds=5]
+ */
+public class CoinBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numOutputs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        LinkedList<TransactionOutput> outputs = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < numOutputs; i++) {
+            Transaction tx = TestUtils.createFakeTx(params, BigInteger.valueOf(1000 + 37 * (i % 100)), to);
+            tx.getConfidence().setAppearedAtChainHeight(1);
+            tx.getConfidence().setDepthInBlocks(1 + i % 10);
+            outputs.add(tx.getOutput(0));
+        }
+        BigInteger target = BigInteger.valueOf(1000L * numOutputs / 2);
+        System.out.println(String.format("%,d outputs", numOutputs));
+
+        for (int round = 0; round < rounds; round++) {
+            long expected = 0;
+            long allocated = Benchmarks.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BigInteger value = BigInteger.ZERO;
+                for (TransactionOutput output : outputs)
+                    value = value.add(output.getValue());
+                expected = value.longValue();
+            }
+            Benchmarks.report(round, "balance, BigInteger", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long value = 0;
+                for (TransactionOutput output : outputs)
+                    value = Coin.add(value, Coin.longValueOf(output.getValue()));
+                if (value != expected)
+                    throw new IllegalStateException();
+            }
+            Benchmarks.report(round, "balance, Coin", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations / 10; i++)
+                oldSortOutputs(new ArrayList<TransactionOutput>(outputs));
+            Benchmarks.report(round, "sort, BigInteger", iterations / 10, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            CoinSelection selection = null;
+            DefaultCoinSelector selector = new DefaultCoinSelector() {
+                @Override
+                protected boolean shouldSelect(Transaction tx) {
+                    return true;
+                }
+            };
+            for (int i = 0; i < iterations / 10; i++)
+                selection = selector.select(target, outputs);
+            Benchmarks.report(round, "select, Coin", iterations / 10, start, allocated);
+            if (selection.getValueGatheredAsCoin().isLessThan(Coin.valueOf(target)))
+                throw new IllegalStateException();
+        }
+    }
+
+    // How DefaultCoinSelector used to sort its candidates.
+    private static void oldSortOutputs(ArrayList<TransactionOutput> outputs) {
+        Collections.sort(outputs, new Comparator<TransactionOutput>() {
+            public int compare(TransactionOutput a, TransactionOutput b) {
+                int depth1 = a.getParentTransaction().getConfidence().getDepthInBlocks();
+                int depth2 = b.getParentTransaction().getConfidence().getDepthInBlocks();
+                BigInteger aValue = a.getValue();
+                BigInteger bValue = b.getValue();
+                BigInteger aCoinDepth = aValue.multiply(BigInteger.valueOf(depth1));
+                BigInteger bCoinDepth = bValue.multiply(BigInteger.valueOf(depth2));
+                int c1 = bCoinDepth.compareTo(aCoinDepth);
+                if (c1 != 0) return c1;
+                int c2 = bValue.compareTo(aValue);
+                if (c2 != 0) return c2;
+                BigInteger aHash = a.getParentTransaction().getHash().toBigInteger();
+                BigInteger bHash = b.getParentTransaction().getHash().toBigInteger();
+                return aHash.compareTo(bHash);
+            }
+        });
+    }
+}
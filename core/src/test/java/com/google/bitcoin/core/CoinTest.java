@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class CoinTest {
+    @Test
+    public void arithmetic() {
+        Coin a = Coin.valueOf(Utils.toNanoCoins(1, 50));
+        Coin b = Coin.CENT;
+        assertEquals(Utils.toNanoCoins(1, 51), a.add(b).toBigInteger());
+        assertEquals(Utils.toNanoCoins(1, 49), a.subtract(b).toBigInteger());
+        assertEquals(Coin.COIN.multiply(3), Coin.valueOf(300000000L));
+        assertEquals(Coin.valueOf(50000000L), Coin.COIN.divide(2));
+        assertEquals(-1, b.negate().signum());
+        assertTrue(b.negate().isNegative());
+        assertTrue(a.isGreaterThan(b));
+        assertTrue(b.isLessThan(a));
+        assertTrue(b.subtract(b).isZero());
+        assertSame(Coin.ZERO, b.subtract(b));
+        assertEquals(0, Coin.valueOf(Utils.CENT).compareTo(b));
+        assertEquals(Coin.valueOf(1000000), b);
+        assertEquals(Coin.valueOf(1000000).hashCode(), b.hashCode());
+        assertEquals("1.50", a.toString());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void addOverflows() {
+        Coin.valueOf(Long.MAX_VALUE).add(Coin.NANOCOIN);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void subtractOverflows() {
+        Coin.subtract(Long.MIN_VALUE, 1);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void multiplyOverflows() {
+        Coin.COIN.multiply(Long.MAX_VALUE / 2);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void negateOverflows() {
+        Coin.valueOf(Long.MIN_VALUE).negate();
+    }
+
+    @Test
+    public void bigIntegerRange() {
+        assertEquals(Long.MAX_VALUE, Coin.longValueOf(BigInteger.valueOf(Long.MAX_VALUE)));
+        assertEquals(Long.MIN_VALUE, Coin.longValueOf(BigInteger.valueOf(Long.MIN_VALUE)));
+        try {
+            // An output value read as an unsigned 64 bit number can be too big.
+            Coin.valueOf(BigInteger.ONE.shiftLeft(63));
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void unverifiedTransactionValues() throws Exception {
+        // A transaction off the network can send more to us than a long holds, before it's been checked.
+        NetworkParameters params = UnitTestParams.get();
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Transaction tx = new Transaction(params);
+        BigInteger big = BigInteger.ONE.shiftLeft(62);
+        tx.addOutput(Utils.CENT, key).setValue(big);
+        tx.addOutput(Utils.CENT, key).setValue(big);
+        assertEquals(big.shiftLeft(1), tx.getValueSentToMe(wallet));
+        assertEquals(big.shiftLeft(1), tx.getValue(wallet));
+        assertTrue(wallet.isPendingTransactionRelevant(tx));
+        try {
+            tx.getValueSentToMeAsCoin(wallet);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+    }
+}
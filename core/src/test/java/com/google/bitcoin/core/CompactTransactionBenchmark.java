@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+
+import java.util.List;
+
+/**
+ * Measures how much heap a transaction takes as a fully parsed {@link Transaction} with its confidence, the same with
+ * the bytes it was parsed from retained, and as a {@link CompactTransaction}. The transactions are those of a real
+ * block, copied over and over. Heap use is measured as the change in used memory after a full collection, so run it
+ * with nothing else going on.
+ *
+ * Usage: CompactTransactionBenchmark [transactions=50000] [rounds=3]
+ */
+public class CompactTransactionBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numTxns = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        NetworkParameters params = UnitTestParams.get();
+        List<Transaction> templates = new Block(params, BlockTest.blockBytes).getTransactions();
+        byte[][] serialized = new byte[templates.size()][];
+        long totalSize = 0;
+        for (int i = 0; i < serialized.length; i++) {
+            serialized[i] = templates.get(i).bitcoinSerialize();
+            totalSize += serialized[i].length;
+        }
+        System.out.println(String.format("%,d transactions, %d bytes each on average", numTxns,
+                totalSize / serialized.length));
+
+        for (int round = 0; round < rounds; round++) {
+            for (int kind = 0; kind < 3; kind++) {
+                Object[] held = new Object[numTxns];
+                long before = usedMemory();
+                long start = System.nanoTime();
+                for (int i = 0; i < numTxns; i++) {
+                    byte[] bytes = serialized[i % serialized.length];
+                    if (kind == 2) {
+                        held[i] = CompactTransaction.parse(params, bytes, 0, bytes.length);
+                    } else {
+                        // As received from a peer, with the array the message was read into.
+                        Transaction tx = new Transaction(params, bytes.clone(), 0, null, false, kind == 1,
+                                bytes.length);
+                        tx.getHash();
+                        tx.getConfidence();
+                        held[i] = tx;
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                long used = usedMemory() - before;
+                String name = kind == 0 ? "Transaction" : kind == 1 ? "Transaction, retained" : "CompactTransaction";
+                System.out.println(String.format("round %d, %-22s %,6d bytes/tx, %,8d tx/sec created", round,
+                        name + ":", used / numTxns, (long) numTxns * 1000000000L / Math.max(1, nanos)));
+                if (held[numTxns - 1] == null)
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
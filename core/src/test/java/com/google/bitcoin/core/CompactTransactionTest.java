@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompactTransactionTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void matchesTransaction() throws Exception {
+        Block block = new Block(params, BlockTest.blockBytes);
+        for (Transaction tx : block.getTransactions()) {
+            CompactTransaction compact = CompactTransaction.of(tx);
+            assertEquals(tx.getHash(), compact.getHash());
+            assertEquals(tx.getMessageSize(), compact.getMessageSize());
+            assertEquals(tx.getVersion(), compact.getVersion());
+            assertEquals(tx.getLockTime(), compact.getLockTime());
+            assertEquals(tx.isCoinBase(), compact.isCoinBase());
+            assertEquals(tx.getInputs().size(), compact.getInputCount());
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                TransactionInput input = tx.getInput(i);
+                assertEquals(input.getOutpoint().getHash(), compact.getOutpointHash(i));
+                assertEquals(input.getOutpoint().getIndex(), compact.getOutpointIndex(i));
+                assertEquals(input.getSequenceNumber(), compact.getSequence(i));
+                assertArrayEquals(input.getScriptBytes(), compact.getScriptSigBytes(i));
+            }
+            assertEquals(tx.getOutputs().size(), compact.getOutputCount());
+            long valueOut = 0;
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                TransactionOutput output = tx.getOutput(i);
+                assertEquals(output.getValue().longValue(), compact.getOutputValue(i));
+                assertArrayEquals(output.getScriptBytes(), compact.getOutputScriptBytes(i));
+                assertEquals(output.getScriptPubKey().toString(), compact.getScriptPubKey(i).toString());
+                valueOut += output.getValue().longValue();
+            }
+            assertEquals(valueOut, compact.getValueOut());
+
+            Transaction inflated = compact.toTransaction();
+            assertEquals(tx, inflated);
+            assertArrayEquals(tx.bitcoinSerialize(), inflated.bitcoinSerialize());
+            assertArrayEquals(tx.bitcoinSerialize(), compact.bitcoinSerialize());
+        }
+    }
+
+    @Test
+    public void parse() throws Exception {
+        Block block = new Block(params, BlockTest.blockBytes);
+        Transaction tx = block.getTransactions().get(1);
+        byte[] bytes = tx.bitcoinSerialize();
+        byte[] buffer = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+        CompactTransaction compact = CompactTransaction.parse(params, buffer, 5, bytes.length);
+        assertEquals(tx.getHash(), compact.getHash());
+        assertEquals(CompactTransaction.of(tx), compact);
+        // Changing the buffer afterwards doesn't change the transaction.
+        Arrays.fill(buffer, (byte) 0);
+        assertArrayEquals(bytes, compact.bitcoinSerialize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() throws Exception {
+        byte[] bytes = new Block(params, BlockTest.blockBytes).getTransactions().get(1).bitcoinSerialize();
+        CompactTransaction.parse(params, bytes, 0, bytes.length - 1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void trailingBytes() throws Exception {
+        byte[] bytes = new Block(params, BlockTest.blockBytes).getTransactions().get(1).bitcoinSerialize();
+        CompactTransaction.parse(params, Arrays.copyOf(bytes, bytes.length + 1), 0, bytes.length + 1);
+    }
+}
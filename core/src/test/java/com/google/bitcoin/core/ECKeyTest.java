@@ -18,7 +18,9 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.bitcoin.crypto.Secp256k1;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
@@ -482,6 +484,74 @@ public class ECKeyTest {
         }
     }
 
+    @Test
+    public void fastAndSpongyCastlePathsAgree() throws Exception {
+        // Everything the fast secp256k1 code produces must be accepted by the old code and vice versa.
+        for (boolean fastFirst : new boolean[] { true, false }) {
+            Secp256k1.enabled = fastFirst;
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.create(key.getPubKey());
+            ECKey.ECDSASignature sig = key.sign(hash);
+            String message = key.signMessage("hello");
+            Secp256k1.enabled = !fastFirst;
+            try {
+                assertTrue(key.verify(hash, sig));
+                assertArrayEquals(key.getPubKey(), ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()), true));
+                assertArrayEquals(key.getPubKey(), ECKey.signedMessageToKey("hello", message).getPubKey());
+                for (int recId = 0; recId < 4; recId++) {
+                    ECKey recovered = ECKey.recoverFromSignature(recId, sig, hash, true);
+                    Secp256k1.enabled = fastFirst;
+                    ECKey recoveredOtherWay = ECKey.recoverFromSignature(recId, sig, hash, true);
+                    Secp256k1.enabled = !fastFirst;
+                    assertEquals(recovered, recoveredOtherWay);
+                }
+            } finally {
+                Secp256k1.enabled = true;
+            }
+        }
+    }
+
+    @Test
+    public void decryptToOutOfRangeKey() throws Exception {
+        // A wrong AES key can decrypt to bytes that aren't a valid private key, which must be reported as a wrong key.
+        ECKey key = new ECKey();
+        KeyParameter aesKey = keyCrypter.deriveKey(PASSWORD1);
+        byte[] outOfRange = new byte[32];
+        Arrays.fill(outOfRange, (byte) 0xff);
+        ECKey encryptedKey = new ECKey(keyCrypter.encrypt(outOfRange, aesKey), key.getPubKey(), keyCrypter);
+        try {
+            encryptedKey.decrypt(keyCrypter, aesKey);
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+        try {
+            encryptedKey.sign(Sha256Hash.create(new byte[0]), aesKey);
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void verifyWithPreparedKey() throws Exception {
+        // A key remembers its decoded public key after the first verification, which must not change any results.
+        ECKey key = new ECKey();
+        ECKey pubOnly = new ECKey(null, key.getPubKey());
+        for (int i = 0; i < 3; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(pubOnly.verify(hash, sig));
+            assertTrue(pubOnly.verify(hash.getBytes(), sig.encodeToDER()));
+            assertFalse(pubOnly.verify(Sha256Hash.create(new byte[] { (byte) i, 1 }), sig));
+            assertFalse(new ECKey().verify(hash, sig));
+        }
+        byte[] badPubKey = key.getPubKey().clone();
+        badPubKey[0] = 5;
+        Sha256Hash hash = Sha256Hash.create(new byte[0]);
+        assertFalse(new ECKey(null, badPubKey).verify(hash, key.sign(hash)));
+    }
+
     private static boolean checkSomeBytesAreNonZero(byte[] bytes) {
         if (bytes == null) return false;
         for (byte b : bytes) if (b != 0) return true;
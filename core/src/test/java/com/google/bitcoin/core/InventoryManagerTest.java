@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class InventoryManagerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+
+    private MemoryPool pool;
+    private InventoryManager inventory;
+    private Peer peer1, peer2;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock(1000000);
+        pool = new MemoryPool();
+        inventory = new InventoryManager(params, pool);
+        peer1 = newPeer(1);
+        peer2 = newPeer(2);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private static Peer newPeer(int id) throws Exception {
+        PeerAddress address = new PeerAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) id}), 8333);
+        return new Peer(params, new VersionMessage(params, 1), null, address);
+    }
+
+    // Does what Peer does with an inv, returning whether the tx should be asked for.
+    private boolean announce(Peer peer) {
+        boolean download = inventory.shouldRequestTransaction(peer, hash, pool.maybeWasSeen(hash));
+        pool.seen(hash, peer.getAddress());
+        return download;
+    }
+
+    @Test
+    public void onlyOnePeerIsAsked() throws Exception {
+        assertTrue(announce(peer1));
+        assertFalse(announce(peer2));
+        assertFalse(announce(peer1));
+        assertEquals(1, inventory.getInFlightCount());
+        assertTrue(inventory.isKnownBy(peer2, hash));
+        inventory.received(peer1, hash);
+        assertEquals(0, inventory.getInFlightCount());
+    }
+
+    @Test
+    public void knownInventoryIsBounded() throws Exception {
+        inventory = new InventoryManager(params, pool, 10, 1000);
+        inventory.markKnown(peer1, hash);
+        assertTrue(inventory.isKnownBy(peer1, hash));
+        assertFalse(inventory.isKnownBy(peer2, hash));
+        // Still there after half the maximum age, gone after all of it.
+        Utils.rollMockClockMillis(600);
+        assertTrue(inventory.isKnownBy(peer1, hash));
+        Utils.rollMockClockMillis(500);
+        assertFalse(inventory.isKnownBy(peer1, hash));
+        // Still there after half the maximum count, gone after all of it.
+        inventory.markKnown(peer1, hash);
+        for (int i = 0; i < 5; i++)
+            inventory.markKnown(peer1, Sha256Hash.create(new byte[] {2, (byte) i}));
+        assertTrue(inventory.isKnownBy(peer1, hash));
+        for (int i = 0; i < 5; i++)
+            inventory.markKnown(peer1, Sha256Hash.create(new byte[] {3, (byte) i}));
+        assertFalse(inventory.isKnownBy(peer1, hash));
+    }
+
+    @Test
+    public void timedOutDownloadIsForgotten() throws Exception {
+        // Nobody else announced the tx, so when the request times out there's nobody to move it to. The next peer to
+        // announce it must be asked for it rather than being ignored because the hash was seen before.
+        assertTrue(announce(peer1));
+        Utils.rollMockClockMillis(inventory.getRequestTimeoutMsec() + 1);
+        inventory.tick();
+        assertEquals(0, inventory.getInFlightCount());
+        assertFalse(pool.maybeWasSeen(hash));
+        assertTrue(announce(peer2));
+    }
+
+    @Test
+    public void downloadedTransactionsAreNotForgotten() throws Exception {
+        Transaction tx = new Transaction(params);
+        Sha256Hash txHash = tx.getHash();
+        assertTrue(inventory.shouldRequestTransaction(peer1, txHash, false));
+        pool.intern(tx);
+        inventory.peerDisconnected(peer1);
+        assertEquals(0, inventory.getInFlightCount());
+        assertTrue(pool.maybeWasSeen(txHash));
+    }
+}
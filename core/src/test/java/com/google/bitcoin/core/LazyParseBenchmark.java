@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how fast several threads can read from the same lazily parsed blocks, which used to mean taking each
+ * message's lock in every getter. Each round builds fresh blocks from the same bytes, so the first read of each part
+ * races with the others to parse it, then every thread walks all the transactions of every block reading their hash,
+ * inputs and output values.
+ *
+ * Usage: LazyParseBenchmark [max threads=8] [blocks=20] [transactions=1000] [passes=20] [rounds=5]
+ */
+public class LazyParseBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int numBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int numTxns = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        final int passes = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        final int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        Block template = MerkleHasherTest.createBlock(numTxns);
+        final NetworkParameters params = template.getParams();
+        final byte[] bytes = template.bitcoinSerialize();
+        final long expected = sum(template);
+        System.out.println(String.format("%d blocks of %,d transactions, %d processors", numBlocks, numTxns,
+                Runtime.getRuntime().availableProcessors()));
+
+        for (int round = 0; round < rounds; round++) {
+            for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+                final Block[] blocks = new Block[numBlocks];
+                for (int i = 0; i < numBlocks; i++)
+                    blocks[i] = new Block(params, bytes, true, true, bytes.length);
+                final CountDownLatch startLatch = new CountDownLatch(1);
+                final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+                final AtomicLong reads = new AtomicLong();
+                for (int t = 0; t < numThreads; t++) {
+                    final int first = t;
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                startLatch.await();
+                                long count = 0;
+                                for (int pass = 0; pass < passes; pass++) {
+                                    // Start each thread on a different block so they meet in the middle of parsing.
+                                    for (int i = 0; i < numBlocks; i++) {
+                                        Block block = blocks[(first + i) % numBlocks];
+                                        if (sum(block) != expected)
+                                            throw new IllegalStateException("Wrong value read");
+                                        count += block.getTransactions().size();
+                                    }
+                                }
+                                reads.addAndGet(count);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            } finally {
+                                doneLatch.countDown();
+                            }
+                        }
+                    }.start();
+                }
+                long start = System.nanoTime();
+                startLatch.countDown();
+                doneLatch.await();
+                long nanos = System.nanoTime() - start;
+                System.out.println(String.format("round %d, %2d threads: %,10d transactions read/sec", round,
+                        numThreads, reads.get() * 1000000000L / Math.max(1, nanos)));
+            }
+        }
+    }
+
+    // Touches the parts of each transaction a wallet or block chain listener would, returning something that depends
+    // on all of them.
+    private static long sum(Block block) {
+        long total = block.getHash().hashCode();
+        for (Transaction tx : block.getTransactions()) {
+            total += tx.getHash().hashCode();
+            for (TransactionInput input : tx.getInputs())
+                total += input.getOutpoint().getIndex();
+            for (TransactionOutput output : tx.getOutputs())
+                total += output.getValue().longValue();
+        }
+        return total;
+    }
+}
@@ -27,6 +27,9 @@ import org.spongycastle.util.encoders.Hex;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -168,7 +171,46 @@ public class LazyParseByteCacheTest {
         testBlock(b1BytesWithHeader, false, true, false);
         testBlock(b1BytesWithHeader, false, false, true);
     }
-    
+
+    @Test
+    public void testBlockConcurrentParse() throws Exception {
+        // Many threads reading lazily parsed blocks for the first time at once should all see the same, whole blocks.
+        Block reference = MerkleHasherTest.createBlock(500);
+        byte[] bytes = reference.bitcoinSerialize();
+        final Block[] blocks = new Block[20];
+        for (int i = 0; i < blocks.length; i++)
+            blocks[i] = new Block(reference.getParams(), bytes, true, true, bytes.length);
+        final int count = reference.getTransactions().size();
+        final Sha256Hash lastHash = reference.getTransactions().get(count - 1).getHash();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger correct = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int first = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < blocks.length; j++) {
+                            List<Transaction> transactions = blocks[(first + j) % blocks.length].getTransactions();
+                            if (transactions.size() == count && transactions.get(count - 1).getHash().equals(lastHash))
+                                correct.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(threads.length * blocks.length, correct.get());
+        for (Block block : blocks)
+            assertArrayEquals(bytes, block.bitcoinSerialize());
+    }
     
     public void testBlock(byte[] blockBytes, boolean isChild, boolean lazy, boolean retain) throws Exception {
         //reference serializer to produce comparison serialization output after changes to
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.utils.TestUtils;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how many inv/tx events per second a {@link MemoryPool} can absorb when many peer threads hit it at once,
+ * for a single segment versus the default lock striping.
+ *
+ * Usage: MemoryPoolBenchmark [threads=32] [transactions=20000] [rounds=5]
+ */
+public class MemoryPoolBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.init();
+        // The pool logs every new announcement at INFO, which would swamp the measurement.
+        Logger.getLogger("").setLevel(Level.WARNING);
+        final int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int numTxns = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        NetworkParameters params = UnitTestParams.get();
+        final Transaction[] txns = new Transaction[numTxns];
+        for (int i = 0; i < numTxns; i++)
+            txns[i] = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params));
+        final PeerAddress[] addresses = new PeerAddress[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            addresses[i] = new PeerAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }));
+
+        System.out.println(String.format("%d threads, %d transactions", numThreads, numTxns));
+        for (int round = 0; round < rounds; round++) {
+            for (int concurrency : new int[] { 1, MemoryPool.DEFAULT_CONCURRENCY }) {
+                MemoryPool pool = new MemoryPool(numTxns * 2, MemoryPool.DEFAULT_MAX_BYTES, concurrency);
+                long ops = run(pool, txns, addresses);
+                System.out.println(String.format("round %d, concurrency %2d: %,d ops in %,d msec, %,d ops/sec",
+                        round, concurrency, ops, lastElapsedMsec, ops * 1000 / Math.max(1, lastElapsedMsec)));
+            }
+        }
+    }
+
+    private static long lastElapsedMsec;
+
+    // Every thread acts like a peer: it announces each transaction with an inv, and one in every numThreads
+    // transactions it also delivers the full transaction, then queries the broadcast count as the wallet would.
+    private static long run(final MemoryPool pool, final Transaction[] txns, final PeerAddress[] addresses)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(addresses.length);
+        final AtomicLong ops = new AtomicLong();
+        for (int t = 0; t < addresses.length; t++) {
+            final int id = t;
+            new Thread("peer " + id) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        for (int i = 0; i < txns.length; i++) {
+                            // Start each thread at a different offset so they don't move in lockstep.
+                            Transaction tx = txns[(i + id * 97) % txns.length];
+                            pool.seen(tx.getHash(), addresses[id]);
+                            if ((i + id) % addresses.length == 0)
+                                pool.seen(tx, addresses[id]);
+                            pool.numBroadcastPeers(tx.getHash());
+                            count += 2;
+                        }
+                        ops.addAndGet(count);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        lastElapsedMsec = (System.nanoTime() - startTime) / 1000000;
+        return ops.get();
+    }
+}
@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.net.InetAddress;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class MemoryPoolTest {
@@ -75,4 +76,73 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void strongReferenceBudget() throws Exception {
+        // A single segment pool with room for about two transactions worth of strong references.
+        int txSize = tx1.getMessageSize();
+        MemoryPool pool = new MemoryPool(1000, txSize * 2, 1);
+        Transaction[] txns = new Transaction[5];
+        for (int i = 0; i < txns.length; i++) {
+            txns[i] = TestUtils.createFakeTx(params, Utils.toNanoCoins(i + 1, 0), new ECKey().toAddress(params));
+            pool.seen(txns[i], address1);
+        }
+        assertTrue(pool.getStrongBytes() <= txSize * 2);
+        assertTrue(pool.getStrongBytes() > 0);
+        // We still hold the transactions so they are all still available via the weak references.
+        for (Transaction tx : txns)
+            assertEquals(tx, pool.get(tx.getHash()));
+        assertEquals(5, pool.size());
+    }
+
+    @Test
+    public void pinnedTransactionOutlivesObject() throws Exception {
+        // Within the budget, a transaction nothing else holds is kept in compact form, and if the object itself is
+        // garbage collected it's recreated along with its broadcast peers.
+        MemoryPool pool = new MemoryPool();
+        Sha256Hash hash = seenTwice(pool);
+        for (int i = 0; i < 5; i++)
+            System.gc();
+        assertEquals(2, pool.numBroadcastPeers(hash));
+        pool.seen(hash, address3);
+        Transaction tx = pool.get(hash);
+        assertNotNull(tx);
+        assertEquals(hash, tx.getHash());
+        assertEquals(3, tx.getConfidence().numBroadcastPeers());
+        assertEquals(3, pool.numBroadcastPeers(hash));
+    }
+
+    // Done in a separate method so that nothing on the stack still refers to the transaction.
+    private Sha256Hash seenTwice(MemoryPool pool) throws Exception {
+        Transaction tx = TestUtils.createFakeTx(params, Utils.toNanoCoins(2, 0), new ECKey().toAddress(params));
+        pool.seen(new Transaction(params, tx.bitcoinSerialize()), address1);
+        pool.seen(new Transaction(params, tx.bitcoinSerialize()), address2);
+        return tx.getHash();
+    }
+
+    @Test
+    public void boundedAcrossSegments() throws Exception {
+        MemoryPool pool = new MemoryPool(256, 0, 4);
+        for (int i = 0; i < 1000; i++)
+            pool.seen(new Sha256Hash(Utils.doubleDigest(new byte[] { (byte) i, (byte) (i >> 8) })), address1);
+        assertTrue(pool.size() <= 256);
+        assertEquals(0, pool.getStrongBytes());
+    }
+
+    @Test
+    public void ageEviction() throws Exception {
+        Utils.setMockClock(System.currentTimeMillis() / 1000);
+        try {
+            MemoryPool pool = new MemoryPool();
+            pool.setMaxAgeMsec(60 * 1000);
+            pool.seen(tx1.getHash(), address1);
+            assertTrue(pool.maybeWasSeen(tx1.getHash()));
+            Utils.rollMockClock(120);
+            // Eviction happens when the segment is next touched.
+            pool.seen(tx1.getHash(), address2);
+            assertEquals(1, pool.numBroadcastPeers(tx1.getHash()));
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
 }
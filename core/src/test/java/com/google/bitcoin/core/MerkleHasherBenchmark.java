@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long it takes to calculate the Merkle root of a block, the way it used to be done with a list of
+ * separately allocated hashes and the shared digest, with {@link MerkleHasher} from the cached transaction hashes, and
+ * with {@link MerkleHasher} from the serialized block. The last is compared with parsing the block and hashing its
+ * transactions, which is what verifying a freshly received block used to involve. Also reports the memory allocated
+ * per root by the calling thread.
+ *
+ * Usage: MerkleHasherBenchmark [transactions=4000] [iterations=200] [rounds=5]
+ */
+public class MerkleHasherBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numTxns = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Block block = MerkleHasherTest.createBlock(numTxns);
+        List<Transaction> transactions = block.getTransactions();
+        byte[] bytes = block.bitcoinSerialize();
+        Sha256Hash root = block.getMerkleRoot();
+        NetworkParameters params = block.getParams();
+        System.out.println(String.format("%,d transactions, %,d bytes, %d processors", numTxns, bytes.length,
+                Runtime.getRuntime().availableProcessors()));
+
+        for (int round = 0; round < rounds; round++) {
+            long allocated = Benchmarks.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                check(root, listRoot(transactions));
+            Benchmarks.report(round, "list of byte arrays", "root", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                check(root, MerkleHasher.calculateRoot(transactions));
+            Benchmarks.report(round, "transaction hashes", "root", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                check(root, MerkleHasher.calculateRoot(bytes, 0));
+            Benchmarks.report(round, "serialized block", "root", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                check(root, MerkleHasher.calculateRoot(new Block(params, bytes).getTransactions()));
+            Benchmarks.report(round, "parsed block", "root", iterations, start, allocated);
+        }
+    }
+
+    // How Block used to calculate the root.
+    private static Sha256Hash listRoot(List<Transaction> transactions) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (Transaction t : transactions)
+            tree.add(t.getHash().getBytes());
+        int levelOffset = 0;
+        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+
+    private static void check(Sha256Hash expected, Sha256Hash actual) {
+        if (!expected.equals(actual))
+            throw new IllegalStateException(actual + " vs " + expected);
+    }
+}
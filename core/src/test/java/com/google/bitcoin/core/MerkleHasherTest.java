@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleHasherTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    // Builds a block with the given number of transactions, all different.
+    static Block createBlock(int numTransactions) {
+        Address to = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 1; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addInput(new TransactionInput(params, tx, new byte[] { 1 },
+                    new TransactionOutPoint(params, i, Sha256Hash.ZERO_HASH)));
+            tx.addOutput(BigInteger.valueOf(i), to);
+            block.addTransaction(tx);
+        }
+        return block;
+    }
+
+    // The straightforward way of calculating the root, one level at a time.
+    private static Sha256Hash referenceRoot(List<Transaction> transactions) {
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Transaction tx : transactions)
+            level.add(Utils.reverseBytes(tx.getHash().getBytes()));
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] left = level.get(i), right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Utils.doubleDigestTwoBuffers(left, 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        return new Sha256Hash(Utils.reverseBytes(level.get(0)));
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        // Odd and even sized levels, and enough transactions to hash on several threads.
+        for (int count : new int[] { 1, 2, 3, 4, 5, 7, 8, 13, 4097 }) {
+            Block block = createBlock(count);
+            Sha256Hash expected = referenceRoot(block.getTransactions());
+            assertEquals(expected, MerkleHasher.calculateRoot(block.getTransactions()));
+            assertEquals(expected, block.getMerkleRoot());
+            assertEquals(expected, MerkleHasher.calculateRoot(block.bitcoinSerialize(), 0));
+        }
+    }
+
+    @Test
+    public void realBlock() throws Exception {
+        Block block = new Block(params, BlockTest.blockBytes);
+        assertTrue(MerkleHasher.verifyRoot(BlockTest.blockBytes, 0));
+        assertEquals(block.getMerkleRoot(), MerkleHasher.calculateRoot(block.getTransactions()));
+        // A block somewhere in the middle of a bigger buffer.
+        byte[] buffer = new byte[BlockTest.blockBytes.length + 20];
+        System.arraycopy(BlockTest.blockBytes, 0, buffer, 10, BlockTest.blockBytes.length);
+        assertEquals(block.getMerkleRoot(), MerkleHasher.calculateRoot(buffer, 10));
+        assertTrue(MerkleHasher.verifyRoot(buffer, 10));
+    }
+
+    @Test
+    public void badBytes() throws Exception {
+        byte[] bytes = Arrays.copyOf(BlockTest.blockBytes, BlockTest.blockBytes.length);
+        // Change a byte of the last transaction's lock time.
+        bytes[bytes.length - 1] = 1;
+        assertFalse(MerkleHasher.verifyRoot(bytes, 0));
+        try {
+            MerkleHasher.calculateRoot(Arrays.copyOf(bytes, bytes.length - 1), 0);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        try {
+            MerkleHasher.calculateRoot(Arrays.copyOf(bytes, Block.HEADER_SIZE), 0);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void verifyRetainedBytes() throws Exception {
+        Block block = new Block(params, BlockTest.blockBytes, true, true, BlockTest.blockBytes.length);
+        block.verifyTransactions();
+        Block bad = new Block(params, BlockTest.blockBytes, true, true, BlockTest.blockBytes.length);
+        bad.setMerkleRoot(Sha256Hash.ZERO_HASH);
+        try {
+            bad.verifyTransactions();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
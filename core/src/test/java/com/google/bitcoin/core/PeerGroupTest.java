@@ -16,6 +16,8 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.ClientConnectionManager;
+import com.google.bitcoin.net.discovery.PeerAddressManager;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.params.UnitTestParams;
@@ -23,6 +25,7 @@ import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.SettableFuture;
 import org.junit.After;
@@ -31,7 +34,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.File;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.*;
@@ -50,6 +55,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
     private BlockingQueue<Peer> disconnectedPeers;
     private PeerEventListener listener;
     private Map<Peer, AtomicInteger> peerToMessageCount;
+    // Peers the group won't pick to download from.
+    private final Set<Peer> unsuitableDownloadPeers = Collections.synchronizedSet(new HashSet<Peer>());
 
     @Parameterized.Parameters
     public static Collection<ClientType[]> parameters() {
@@ -61,6 +68,18 @@ public class PeerGroupTest extends TestWithPeerGroup {
         super(clientType);
     }
 
+    @Override
+    protected PeerGroup createPeerGroup(ClientConnectionManager connectionManager) {
+        return new PeerGroup(unitTestParams, blockChain, connectionManager) {
+            @Override
+            protected Peer selectDownloadPeer(List<Peer> peers) {
+                List<Peer> suitable = new ArrayList<Peer>(peers);
+                suitable.removeAll(unsuitableDownloadPeers);
+                return super.selectDownloadPeer(suitable);
+            }
+        };
+    }
+
     @Override
     @Before
     public void setUp() throws Exception {
@@ -193,6 +212,41 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stopAndWait();
     }
 
+    @Test
+    public void txDownloadMovesToAlternatePeer() throws Exception {
+        // Check that a transaction announced by two peers is only requested from one of them, and that when that peer
+        // goes away without answering the download is moved to the other.
+        peerGroup.startAndWait();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Transaction t1 = TestUtils.createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), address);
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addTransaction(t1);
+        inbound(p1, inv);
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+        inbound(p2, inv);
+        assertNull(outbound(p2));
+        assertEquals(1, peerGroup.getInventoryManager().getInFlightCount());
+        assertTrue(peerGroup.getInventoryManager().isKnownBy(peerOf(p2), t1.getHash()));
+
+        final SettableFuture<Void> p1CloseFuture = SettableFuture.create();
+        peerOf(p1).addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                p1CloseFuture.set(null);
+            }
+        });
+        closePeer(peerOf(p1));
+        p1CloseFuture.get();
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p2);
+        assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+        inbound(p2, t1);
+        pingAndWait(p2);
+        assertEquals(0, peerGroup.getInventoryManager().getInFlightCount());
+        peerGroup.stopAndWait();
+    }
+
     @Test
     public void singleDownloadPeer1() throws Exception {
         // Check that we don't attempt to retrieve blocks on multiple peers.
@@ -418,6 +472,69 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void downloadMovesAwayFromStalledPeer() throws Exception {
+        Utils.rollMockClock(0);
+        try {
+            peerGroup.startAndWait();
+            peerGroup.setPingIntervalMsec(0);
+            peerGroup.setDownloadStallTimeoutMsec(10 * 1000);
+            // Both peers claim many more blocks than we have.
+            VersionMessage versionMessage = new VersionMessage(params, 100);
+            versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+            versionMessage.localServices = VersionMessage.NODE_NETWORK;
+            InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+            InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+            peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+            });
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+            assertTrue(outbound(p1) instanceof GetBlocksMessage);
+            // Not long enough to give up yet.
+            Utils.rollMockClock(5);
+            peerGroup.checkDownloadPeer();
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+            // p1 never answers, so the download moves to p2 which is asked for blocks from where we are.
+            Utils.rollMockClock(6);
+            peerGroup.checkDownloadPeer();
+            assertEquals(p2.peer, peerGroup.getDownloadPeer());
+            assertTrue(outbound(p2) instanceof GetBlocksMessage);
+            // When p2 stalls too, p1 is the only option left so it gets another go.
+            Utils.rollMockClock(11);
+            peerGroup.checkDownloadPeer();
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+            assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
+    @Test
+    public void downloadStaysWithStalledPeerIfNobodyElseWillDo() throws Exception {
+        Utils.rollMockClock(0);
+        try {
+            peerGroup.startAndWait();
+            peerGroup.setDownloadStallTimeoutMsec(10 * 1000);
+            VersionMessage versionMessage = new VersionMessage(params, 100);
+            versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+            versionMessage.localServices = VersionMessage.NODE_NETWORK;
+            InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+            InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+            unsuitableDownloadPeers.add(p2.peer);
+            peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+            });
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+            // p1 stalls but p2 can't take over, so p1 keeps the download.
+            Utils.rollMockClock(11);
+            peerGroup.checkDownloadPeer();
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+            // p1 wasn't demoted by that, so it is still the first choice when the download peer is re-evaluated.
+            connectPeer(3, versionMessage);
+            assertEquals(p1.peer, peerGroup.getDownloadPeer());
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         peerGroup.startAndWait();
@@ -509,6 +626,74 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(2001, disconnectedPeers.take().getAddress().getPort());
     }
 
+    @Test
+    public void connectsToRememberedPeers() throws Exception {
+        // Peers remembered from a previous run are connected to straight away, without waiting on other discovery
+        // sources, and the addresses they advertise are remembered for next time.
+        File file = File.createTempFile("peergrouptest", null);
+        file.delete();
+        PeerAddressManager previousRun = new PeerAddressManager(params, file);
+        for (int i = 0; i < 3; i++) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 2000 + i);
+            previousRun.recordSuccess(address);
+            previousRun.recordLatency(address, 300 - i * 100);
+        }
+        previousRun.save();
+
+        final AtomicBoolean discoveryUsed = new AtomicBoolean();
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            public InetSocketAddress[] getPeers(long unused, TimeUnit unused2) throws PeerDiscoveryException {
+                discoveryUsed.set(true);
+                return new InetSocketAddress[0];
+            }
+
+            public void shutdown() {
+            }
+        });
+        PeerAddressManager addressManager = new PeerAddressManager(params, file);
+        assertEquals(new InetSocketAddress("127.0.0.1", 2002), addressManager.getBestPeers(1).get(0));
+        peerGroup.setPeerAddressManager(addressManager);
+        peerGroup.addEventListener(listener);
+        peerGroup.setMaxConnections(3);
+
+        long start = System.currentTimeMillis();
+        peerGroup.startAndWait();
+        List<InboundMessageQueuer> channels = Lists.newArrayList();
+        Set<Integer> ports = new HashSet<Integer>();
+        for (int i = 0; i < 3; i++) {
+            channels.add(handleConnectToPeer(i));
+            ports.add(connectedPeers.take().getAddress().getPort());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(ImmutableSet.of(2000, 2001, 2002), ports);
+        assertFalse(discoveryUsed.get());
+        // No discovery round trips, just three local handshakes.
+        assertTrue("Took " + elapsed + "msec to connect", elapsed < 5000);
+
+        // Each peer is asked for more addresses, and the answers are remembered.
+        for (InboundMessageQueuer channel : channels)
+            assertTrue(waitForOutbound(channel) instanceof GetAddrMessage);
+        AddressMessage addr = new AddressMessage(params, new byte[] { 0 });
+        PeerAddress advertised = new PeerAddress(InetAddress.getByName("127.0.0.1"), 2003);
+        advertised.setTime(Utils.currentTimeMillis() / 1000);
+        addr.addAddress(advertised);
+        inbound(channels.get(0), addr);
+        // Messages are handled in order, so once our ping is answered the addr message was processed.
+        inbound(channels.get(0), new Ping(42));
+        Message m;
+        do {
+            m = (Message) waitForOutbound(channels.get(0));
+        } while (!(m instanceof Pong));
+        assertEquals(4, addressManager.size());
+
+        // Everything is saved on shutdown.
+        peerGroup.stopAndWait();
+        PeerAddressManager nextRun = new PeerAddressManager(params, file);
+        assertEquals(4, nextRun.size());
+        assertEquals(3, nextRun.getNumTried());
+        file.delete();
+    }
+
     @Test
     public void testBloomOnP2Pubkey() throws Exception {
         // Cover bug 513. When a relevant transaction with a p2pubkey output is found, the Bloom filter should be
@@ -189,6 +189,85 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void filteredBlocksArePipelined() throws Exception {
+        // Filtered blocks are requested a window at a time, each getdata followed by a ping so the end of the last
+        // block is clear, and the next getblocks is sent as soon as the last block of a full inv has been requested.
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        // Stay below the unit test difficulty transition interval.
+        Block[] blocks = new Block[8];
+        Block prev = b1;
+        for (int i = 0; i < blocks.length; i++)
+            blocks[i] = prev = makeSolvedTestBlock(prev);
+
+        connect();
+        peer.setDownloadParameters(0, true);
+        peer.setMaxFilteredBlocksInFlight(4);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetBlocksMessage);
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        for (Block block : blocks)
+            inv.addBlock(block);
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(4, getdata.getItems().size());
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata.getItems().get(0).type);
+        assertEquals(blocks[0].getHash(), getdata.getItems().get(0).hash);
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        // Each filtered block ends when the next message that isn't a transaction arrives. Nothing more is asked for
+        // until half the window has arrived.
+        inbound(writeTarget, filteredBlockOf(blocks[0]));
+        inbound(writeTarget, filteredBlockOf(blocks[1]));
+        assertNull(outbound(writeTarget));
+        inbound(writeTarget, filteredBlockOf(blocks[2]));
+        getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(blocks[4].getHash(), getdata.getItems().get(0).hash);
+        Ping ping = (Ping) outbound(writeTarget);
+        assertNull(outbound(writeTarget));
+        assertEquals(blocks[1].getHash(), blockChain.getChainHead().getHeader().getHash());
+        for (int i = 3; i < blocks.length; i++) {
+            inbound(writeTarget, filteredBlockOf(blocks[i]));
+            Message message;
+            while ((message = outbound(writeTarget)) != null) {
+                if (message instanceof Ping)
+                    ping = (Ping) message;
+            }
+        }
+        // The pong for the last ping tells us the final block is complete.
+        inbound(writeTarget, new Pong(ping.getNonce()));
+        assertNull(outbound(writeTarget));
+        assertEquals(blocks[7].getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // A full inv means the peer has more, so once all of it is requested the next batch is asked for straight
+        // away, starting from the end of this one.
+        peer.setMaxFilteredBlocksInFlight(1000);
+        inv = new InventoryMessage(unitTestParams);
+        for (int i = 0; i < 500; i++)
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8) })));
+        inbound(writeTarget, inv);
+        getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(500, getdata.getItems().size());
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(inv.getItems().get(499).hash, getblocks.getLocator().get(0));
+        assertEquals(blocks[7].getHash(), getblocks.getLocator().get(1));
+        closePeer(peer);
+    }
+
+    // Builds the filtered block a peer would send for a block whose coinbase didn't match our filter.
+    private FilteredBlock filteredBlockOf(Block block) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(block.bitcoinSerialize(), 0, Block.HEADER_SIZE);
+        Utils.uint32ToByteStreamLE(1, bos);
+        bos.write(new VarInt(1).encode());
+        bos.write(Utils.reverseBytes(block.getMerkleRoot().getBytes()));
+        bos.write(new VarInt(1).encode());
+        bos.write(0);
+        return new FilteredBlock(unitTestParams, bos.toByteArray());
+    }
+
     // Check that an inventory tickle is processed correctly when downloading missing blocks is active.
     @Test
     public void invTickle() throws Exception {
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.TestUtils;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Times {@link Transaction#signInputs(Transaction.SigHash, Wallet, KeyParameter, ExecutorService)} on a transaction
+ * spending many coins sent to a handful of keys, with and without an executor and with plain and encrypted keys. The
+ * executor has a thread per available processor. Each signed transaction is checked, so this also exercises signing in
+ * parallel.
+ *
+ * Usage: SignInputsBenchmark [inputs=200] [keys=5] [iterations=5] [rounds=5]
+ */
+public class SignInputsBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numInputs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        final int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        NetworkParameters params = UnitTestParams.get();
+        Wallet wallet = new Wallet(params);
+        Address[] addresses = new Address[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            ECKey key = new ECKey();
+            wallet.addKey(key);
+            addresses[i] = key.toAddress(params);
+        }
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT.multiply(BigInteger.valueOf(numInputs)), new ECKey().toAddress(params));
+        for (int i = 0; i < numInputs; i++)
+            tx.addInput(TestUtils.createFakeTx(params, Utils.CENT, addresses[i % numKeys]).getOutput(0));
+
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey("benchmark");
+        Wallet encrypted = new Wallet(params);
+        for (ECKey key : wallet.getKeys())
+            encrypted.addKey(key.encrypt(keyCrypter, aesKey));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format("%,d inputs, %,d keys, %d threads", numInputs, numKeys, threads));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                run(round, "plain", tx, wallet, null, null, iterations);
+                run(round, "plain, executor", tx, wallet, null, executor, iterations);
+                run(round, "encrypted", tx, encrypted, aesKey, null, iterations);
+                run(round, "encrypted, executor", tx, encrypted, aesKey, executor, iterations);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void run(int round, String name, Transaction tx, Wallet wallet, KeyParameter aesKey,
+                            ExecutorService executor, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (TransactionInput input : tx.getInputs())
+                input.setScriptBytes(new byte[0]);
+            tx.signInputs(Transaction.SigHash.ALL, wallet, aesKey, executor);
+        }
+        long nanos = System.nanoTime() - start;
+        for (TransactionInput input : tx.getInputs())
+            input.verify();
+        System.out.println(String.format("round %d, %-22s %,8d usec/op", round, name + ":",
+                nanos / iterations / 1000));
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.BlockingClientManager;
+import com.google.bitcoin.net.ClientConnectionManager;
 import com.google.bitcoin.net.NioClientManager;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.store.BlockStore;
@@ -55,12 +56,16 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
 
     protected void initPeerGroup() {
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
-            peerGroup = new PeerGroup(unitTestParams, blockChain, new NioClientManager());
+            peerGroup = createPeerGroup(new NioClientManager());
         else
-            peerGroup = new PeerGroup(unitTestParams, blockChain, new BlockingClientManager());
+            peerGroup = createPeerGroup(new BlockingClientManager());
         peerGroup.setPingIntervalMsec(0);  // Disable the pings as they just get in the way of most tests.
     }
 
+    protected PeerGroup createPeerGroup(ClientConnectionManager connectionManager) {
+        return new PeerGroup(unitTestParams, blockChain, connectionManager);
+    }
+
     protected InboundMessageQueuer connectPeerWithoutVersionExchange(int id) throws Exception {
         Preconditions.checkArgument(id < PEER_SERVERS);
         InetSocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 2000 + id);
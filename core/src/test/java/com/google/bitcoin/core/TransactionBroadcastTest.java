@@ -94,6 +94,22 @@ public class TransactionBroadcastTest extends TestWithPeerGroup {
         assertTrue(future.isDone());
     }
 
+    @Test
+    public void skipsPeersThatHaveTheTx() throws Exception {
+        // Peer 0 would be picked as in fourPeers, but it announced the tx to us already so another peer is sent it.
+        InboundMessageQueuer[] channels = { connectPeer(1), connectPeer(2), connectPeer(3), connectPeer(4) };
+        Transaction tx = new Transaction(params);
+        peerGroup.getInventoryManager().markKnown(peerOf(channels[0]), tx.getHash());
+        new TransactionBroadcast(peerGroup, tx).broadcast();
+        assertNull(outbound(channels[0]));
+        int sent = 0;
+        for (int i = 1; i < channels.length; i++) {
+            if (tx.equals(outbound(channels[i])))
+                sent++;
+        }
+        assertEquals(2, sent);
+    }
+
     @Test
     public void retryFailedBroadcast() throws Exception {
         // If we create a spend, it's sent to a peer that swallows it, and the peergroup is removed/re-added then
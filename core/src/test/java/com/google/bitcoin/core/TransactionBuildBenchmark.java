@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.utils.TestUtils;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the steps {@link Wallet#completeTx(Wallet.SendRequest)} goes through on a transaction with many inputs:
+ * replacing all the inputs and asking for the size, as each round of fee calculation does, then changing one output's
+ * value or one input's script and asking for the hash, as adjusting the fee or signing does. Reports time and the
+ * memory allocated by the calling thread per operation.
+ *
+ * Usage: TransactionBuildBenchmark [inputs=500] [iterations=200] [rounds=5]
+ */
+public class TransactionBuildBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numInputs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        Address to = key.toAddress(params);
+        List<TransactionOutput> spendable = new ArrayList<TransactionOutput>();
+        for (int i = 0; i < numInputs; i++)
+            spendable.add(TestUtils.createFakeTx(params, Utils.CENT, to).getOutput(0));
+        Script signature = ScriptBuilder.createInputScript(TransactionSignature.dummy(), key);
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.COIN, to));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, to));
+        for (TransactionOutput output : spendable)
+            tx.addInput(output);
+        // As completeTx() does while it works on the transaction.
+        tx.setCachingChildSerializations(true);
+        System.out.println(String.format("%,d inputs, %,d bytes unsigned", numInputs, tx.getMessageSize()));
+
+        for (int round = 0; round < rounds; round++) {
+            long allocated = Benchmarks.allocatedBytes();
+            long start = System.nanoTime();
+            int size = 0;
+            for (int i = 0; i < iterations; i++) {
+                tx.clearInputs();
+                for (TransactionOutput output : spendable)
+                    tx.addInput(output);
+                size = tx.getMessageSize();
+            }
+            Benchmarks.report(round, "replace inputs", iterations, start, allocated);
+            if (size != tx.bitcoinSerialize().length)
+                throw new IllegalStateException(size + " vs " + tx.bitcoinSerialize().length);
+
+            tx.getHash();
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                tx.getOutput(1).setValue(BigInteger.valueOf(1000 + i));
+                tx.getHash();
+            }
+            Benchmarks.report(round, "change value, hash", iterations, start, allocated);
+
+            allocated = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                tx.getInput(i % numInputs).setScriptSig(signature);
+                tx.getHash();
+            }
+            Benchmarks.report(round, "sign input, hash", iterations, start, allocated);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Address address = new ECKey().toAddress(params);
+    private static final Sha256Hash spentHash = Sha256Hash.create(new byte[] {1});
+
+    private static Transaction build(long value, long index, long sequence) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {1, 2, 3},
+                new TransactionOutPoint(params, index, spentHash)));
+        tx.getInput(0).setSequenceNumber(sequence);
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(value), address));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.COIN, address));
+        return tx;
+    }
+
+    private static void assertSizeMatches(Transaction tx) {
+        assertEquals(tx.bitcoinSerialize().length, tx.getMessageSize());
+    }
+
+    @Test
+    public void sizeTracksChanges() throws Exception {
+        Transaction tx = new Transaction(params);
+        assertSizeMatches(tx);
+        // Enough of each to need a three byte count.
+        for (int i = 0; i < 300; i++) {
+            tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, i, spentHash)));
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(i + 1), address));
+            if (i < 3 || i == 252 || i == 253)
+                assertSizeMatches(tx);
+        }
+        assertSizeMatches(tx);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(TransactionSignature.dummy(), new ECKey()));
+        assertSizeMatches(tx);
+        tx.clearInputs();
+        assertSizeMatches(tx);
+        tx.clearOutputs();
+        assertSizeMatches(tx);
+        assertEquals(new Transaction(params).getMessageSize(), tx.getMessageSize());
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, spentHash)));
+        assertSizeMatches(tx);
+
+        // A transaction read off the wire starts with its exact size too.
+        Transaction parsed = new Transaction(params, build(1, 0, 0).bitcoinSerialize());
+        parsed.addOutput(new TransactionOutput(params, parsed, Utils.CENT, address));
+        assertSizeMatches(parsed);
+        parsed.clearOutputs();
+        assertSizeMatches(parsed);
+    }
+
+    @Test
+    public void changesReachTheHash() throws Exception {
+        // While it's being built each part of the transaction caches its own serialization, so check changing any of
+        // them is noticed.
+        Transaction tx = build(1, 0, 0);
+        tx.setCachingChildSerializations(true);
+        Sha256Hash original = tx.getHash();
+        byte[] originalBytes = tx.bitcoinSerialize();
+
+        tx.getOutput(0).setValue(BigInteger.valueOf(2));
+        assertEquals(build(2, 0, 0).getHash(), tx.getHash());
+        tx.getInput(0).getOutpoint().setIndex(3);
+        assertEquals(build(2, 3, 0).getHash(), tx.getHash());
+        tx.getInput(0).setSequenceNumber(4);
+        assertEquals(build(2, 3, 4).getHash(), tx.getHash());
+        assertArrayEquals(build(2, 3, 4).bitcoinSerialize(), tx.bitcoinSerialize());
+
+        tx.getOutput(0).setValue(BigInteger.ONE);
+        tx.getInput(0).getOutpoint().setIndex(0);
+        tx.getInput(0).setSequenceNumber(0);
+        assertEquals(original, tx.getHash());
+        assertArrayEquals(originalBytes, tx.bitcoinSerialize());
+        tx.setCachingChildSerializations(false);
+        tx.getOutput(0).setValue(BigInteger.valueOf(2));
+        assertEquals(build(2, 0, 0).getHash(), tx.getHash());
+    }
+}
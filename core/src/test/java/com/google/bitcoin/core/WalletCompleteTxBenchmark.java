@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.TestUtils;
+
+import java.math.BigInteger;
+
+/**
+ * Times {@link Wallet#completeTx(Wallet.SendRequest)} building a large withdrawal, paying many destinations from a
+ * synthetic wallet with many keys and many small coins. The keys are public keys only, so inputs get dummy signatures
+ * and the time is that of selecting coins and calculating the fee rather than of ECDSA. Reports time and the memory
+ * allocated by the calling thread per operation.
+ *
+ * Usage: WalletCompleteTxBenchmark [keys=1000] [coins=2000] [destinations=100] [iterations=20] [rounds=5]
+ */
+public class WalletCompleteTxBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int numCoins = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int numDestinations = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        final int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        NetworkParameters params = UnitTestParams.get();
+        Wallet wallet = new Wallet(params);
+        Address[] addresses = new Address[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            ECKey key = new ECKey(null, new ECKey().getPubKey());
+            wallet.addKey(key);
+            addresses[i] = key.toAddress(params);
+        }
+        Transaction[] coins = new Transaction[numCoins];
+        for (int i = 0; i < numCoins; i++) {
+            BigInteger value = Utils.CENT.add(BigInteger.valueOf(1000L * (i % 1000)));
+            coins[i] = TestUtils.createFakeTx(params, value, addresses[i % numKeys]);
+        }
+        TestUtils.BlockPair block = TestUtils.createFakeBlock(new MemoryBlockStore(params), coins);
+        for (int i = 0; i < numCoins; i++)
+            wallet.receiveFromBlock(coins[i], block.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        wallet.notifyNewBestBlock(block.storedBlock);
+        System.out.println(String.format("%,d keys, %,d coins, balance %s, paying %,d destinations", numKeys,
+                numCoins, Utils.bitcoinValueToFriendlyString(wallet.getBalance()), numDestinations));
+
+        Address[] destinations = new Address[numDestinations];
+        for (int i = 0; i < numDestinations; i++)
+            destinations[i] = new ECKey().toAddress(params);
+        for (int round = 0; round < rounds; round++) {
+            Wallet.SendRequest req = null;
+            long allocated = Benchmarks.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Transaction tx = new Transaction(params);
+                for (Address destination : destinations)
+                    tx.addOutput(Utils.CENT.multiply(BigInteger.valueOf(3)), destination);
+                req = Wallet.SendRequest.forTx(tx);
+                wallet.completeTx(req);
+            }
+            Benchmarks.report(round, "completeTx", iterations, start, allocated);
+            if (round == 0)
+                System.out.println(String.format("%,d inputs, %,d bytes, fee %s", req.tx.getInputs().size(),
+                        req.tx.getMessageSize(), Utils.bitcoinValueToFriendlyString(req.fee)));
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.KeyTimeCoinSelector;
 import com.google.bitcoin.wallet.WalletFiles;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ForwardingExecutorService;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 
@@ -51,7 +52,11 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -874,6 +879,96 @@ public class WalletTest extends TestWithWallet {
         assertEquals(now + 60, wallet.getEarliestKeyCreationTime());
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey key = new ECKey();
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertTrue(wallet.addKey(key));
+        assertFalse(wallet.addKey(new ECKey(null, key.getPubKey())));
+        assertEquals(2, wallet.getKeychainSize());
+        assertSame(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertSame(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.hasKey(new ECKey(null, key.getPubKey())));
+        assertSame(myKey, wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+
+        // Encrypting and decrypting replaces the keys, and the replacements are the ones found.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+        assertTrue(wallet.findKeyFromPubKey(key.getPubKey()).isEncrypted());
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+
+        assertTrue(wallet.removeKey(key));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertFalse(wallet.hasKey(key));
+        assertEquals(myKey, wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+    }
+
+    @Test
+    public void signInParallel() throws Exception {
+        // Spend coins sent to several keys, some of them several times over, so inputs share keys.
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        wallet.addKey(key1);
+        wallet.addKey(key2);
+        Address[] addresses = { myAddress, key1.toAddress(params), key2.toAddress(params) };
+        for (int i = 0; i < 12; i++)
+            sendMoneyToWallet(wallet, Utils.CENT, addresses[i % 3], AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.encrypt(keyCrypter, aesKey);
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final AtomicInteger submitted = new AtomicInteger();
+        ExecutorService executor = new ForwardingExecutorService() {
+            @Override
+            protected ExecutorService delegate() {
+                return pool;
+            }
+
+            @Override
+            public Future<?> submit(Runnable task) {
+                submitted.incrementAndGet();
+                return super.submit(task);
+            }
+        };
+        try {
+            SendRequest req = SendRequest.emptyWallet(new ECKey().toAddress(params));
+            req.aesKey = aesKey;
+            req.signingExecutor = executor;
+            wallet.completeTx(req);
+            assertEquals(12, req.tx.getInputs().size());
+            assertTrue(submitted.get() > 1);
+            for (TransactionInput input : req.tx.getInputs())
+                input.verify();
+        } finally {
+            pool.shutdown();
+        }
+        for (ECKey key : wallet.getKeys())
+            assertTrue(key.isEncrypted());
+    }
+
+    @Test(timeout = 60000)
+    public void signOnOwnSigningThread() throws Exception {
+        // Signing from the only thread of the signing executor must not wait for the executor.
+        for (int i = 0; i < 12; i++)
+            sendMoneyToWallet(wallet, Utils.CENT, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final SendRequest req = SendRequest.emptyWallet(new ECKey().toAddress(params));
+            req.signingExecutor = executor;
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    wallet.completeTx(req);
+                    return null;
+                }
+            }).get();
+            assertEquals(12, req.tx.getInputs().size());
+            for (TransactionInput input : req.tx.getInputs())
+                input.verify();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void scriptCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core.utils;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.BlockFileLoader;
+import com.google.bitcoin.utils.TestUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a block file of the given size, full of blocks of a few hundred transactions each, then measures how many
+ * blocks per second {@link BlockFileLoader} reads from it, parsing on the iterating thread and on a pool of threads.
+ * The file is deleted afterwards. The first pass may be slower if the file isn't in the OS cache yet.
+ *
+ * Usage: BlockFileLoaderBenchmark [megabytes=1024] [transactionsPerBlock=500] [rounds=3]
+ */
+public class BlockFileLoaderBenchmark {
+    public static void main(String[] args) throws Exception {
+        final long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        final int txnsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 0; i < txnsPerBlock; i++)
+            block.addTransaction(TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), to));
+        byte[] blockBytes = block.bitcoinSerialize();
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(blockBytes.length, header, 4);
+
+        File file = File.createTempFile("benchmark", ".dat");
+        file.deleteOnExit();
+        long numBlocks = megabytes * 1024 * 1024 / (header.length + blockBytes.length);
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+        for (long i = 0; i < numBlocks; i++) {
+            stream.write(header);
+            stream.write(blockBytes);
+        }
+        stream.close();
+        System.out.println(String.format("%,d blocks of %,d bytes", numBlocks, blockBytes.length));
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (int threads : new int[] { 0, processors }) {
+                    for (boolean lazy : new boolean[] { false, true }) {
+                        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(file), threads, lazy, lazy);
+                        long start = System.nanoTime();
+                        long count = 0;
+                        for (Block b : loader)
+                            count++;
+                        long msec = Math.max(1, (System.nanoTime() - start) / 1000000);
+                        System.out.println(String.format("round %d, %2d threads, %-6s parse: %,d blocks in %,d msec, " +
+                                "%,d blocks/sec, %,d MB/sec", round, threads, lazy ? "lazy" : "full", count, msec,
+                                count * 1000 / msec, file.length() / 1024 / 1024 * 1000 / msec));
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
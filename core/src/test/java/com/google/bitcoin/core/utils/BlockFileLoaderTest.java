@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core.utils;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.BlockFileLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private List<Block> blocks;
+    private File file1, file2;
+
+    @Before
+    public void setUp() throws Exception {
+        Address to = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            block = block.createNextBlock(to);
+            blocks.add(block);
+        }
+        // Blocks with junk around them, as there can be in files written by the reference client.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[100]);
+        writeBlock(bytes, blocks.get(0));
+        bytes.write(new byte[] { (byte) 0xfa, (byte) 0xbf, 1, 2, 3 });
+        writeBlock(bytes, blocks.get(1));
+        // The magic number followed by a nonsense length.
+        writeHeader(bytes, 0);
+        writeBlock(bytes, blocks.get(2));
+        bytes.write(new byte[1000]);
+        file1 = write(bytes.toByteArray());
+
+        bytes = new ByteArrayOutputStream();
+        writeBlock(bytes, blocks.get(3));
+        writeBlock(bytes, blocks.get(4));
+        // A block that was only half written.
+        byte[] partial = blocks.get(4).bitcoinSerialize();
+        writeHeader(bytes, partial.length);
+        bytes.write(partial, 0, partial.length / 2);
+        file2 = write(bytes.toByteArray());
+    }
+
+    @After
+    public void tearDown() {
+        file1.delete();
+        file2.delete();
+    }
+
+    private static void writeHeader(ByteArrayOutputStream stream, int length) throws Exception {
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(length, header, 4);
+        stream.write(header);
+    }
+
+    private static void writeBlock(ByteArrayOutputStream stream, Block block) throws Exception {
+        byte[] bytes = block.bitcoinSerialize();
+        writeHeader(stream, bytes.length);
+        stream.write(bytes);
+    }
+
+    private static File write(byte[] bytes) throws Exception {
+        File file = File.createTempFile("blocks", ".dat");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(bytes);
+        stream.close();
+        return file;
+    }
+
+    private void checkLoads(BlockFileLoader loader) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Block block : loader)
+            hashes.add(block.getHash());
+        List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (Block block : blocks)
+            expected.add(block.getHash());
+        assertEquals(expected, hashes);
+        assertFalse(loader.hasNext());
+    }
+
+    @Test
+    public void loadOnCallingThread() throws Exception {
+        checkLoads(new BlockFileLoader(params, Arrays.asList(file1, new File("does-not-exist.dat"), file2), 0, false,
+                false));
+    }
+
+    @Test
+    public void defaultStartsNoThreads() throws Exception {
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(file1, file2));
+        assertEquals(blocks.get(0).getHash(), loader.next().getHash());
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            assertFalse(thread.getName(), thread.getName().startsWith("Block "));
+        loader.close();
+    }
+
+    @Test
+    public void loadOnParserThreads() throws Exception {
+        checkLoads(new BlockFileLoader(params, Arrays.asList(file1, new File("does-not-exist.dat"), file2), 3, false,
+                false));
+        checkLoads(new BlockFileLoader(params, Arrays.asList(file1, file2), 2, true, true));
+    }
+
+    @Test
+    public void close() throws Exception {
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(file1, file2), 2, false, false);
+        assertEquals(blocks.get(0).getHash(), loader.next().getHash());
+        loader.close();
+        assertFalse(loader.hasNext());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core.utils;
+
+import com.google.bitcoin.utils.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        // A small wheel, so that some of the timeouts below go round it more than once.
+        timer = new HashedWheelTimer("test timer", 10, TimeUnit.MILLISECONDS, 4);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    private static Runnable record(final List<Integer> ran, final int i, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(i);
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void runsInOrder() throws Exception {
+        List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout last = timer.newTimeout(record(ran, 3, latch), 150, TimeUnit.MILLISECONDS);
+        timer.newTimeout(record(ran, 1, latch), 20, TimeUnit.MILLISECONDS);
+        timer.newTimeout(record(ran, 2, latch), 70, TimeUnit.MILLISECONDS);
+        assertEquals(3, timer.getPendingTimeouts());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(3, ran.size());
+        assertEquals(1, (int) ran.get(0));
+        assertEquals(2, (int) ran.get(1));
+        assertEquals(3, (int) ran.get(2));
+        assertTrue(last.isExpired());
+        assertFalse(last.cancel());
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+        CountDownLatch latch = new CountDownLatch(1);
+        HashedWheelTimer.Timeout cancelled = timer.newTimeout(record(ran, 1, new CountDownLatch(1)), 30, TimeUnit.MILLISECONDS);
+        timer.newTimeout(record(ran, 2, latch), 80, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, timer.getPendingTimeouts());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.size());
+        assertEquals(2, (int) ran.get(0));
+        assertFalse(cancelled.isExpired());
+    }
+
+    @Test
+    public void exceptionDoesNotStopTimer() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("Expected");
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.newTimeout(record(new CopyOnWriteArrayList<Integer>(), 1, latch), 30, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
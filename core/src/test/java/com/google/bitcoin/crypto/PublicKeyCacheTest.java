@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class PublicKeyCacheTest {
+    @Test
+    public void remembersKeys() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        ECKey key = new ECKey();
+        ECKey uncompressed = new ECKey(new BigInteger(1, key.getPrivKeyBytes()), null, false);
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+
+        // The point keeps working after it's been given the larger table.
+        for (int i = 0; i < PublicKeyCache.PREPARE_AFTER_USES * 2; i++) {
+            Secp256k1.PreparedPoint point = cache.get(key.getPubKey());
+            assertTrue(Secp256k1.verify(hash.getBytes(), sig.r, sig.s, point));
+            assertFalse(Secp256k1.verify(hash.getBytes(), sig.r, sig.s.add(BigInteger.ONE), point));
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(PublicKeyCache.PREPARE_AFTER_USES * 2 - 1, cache.getHits());
+
+        // The same point encoded differently is a different entry.
+        assertTrue(Secp256k1.verify(hash.getBytes(), sig.r, sig.s, cache.get(uncompressed.getPubKey())));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void copiesKeys() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        byte[] pubKey = new ECKey().getPubKey().clone();
+        assertNotNull(cache.get(pubKey));
+        pubKey[1] ^= 1;
+        // Nearly half of all x co-ordinates aren't on the curve, so only check the changed key wasn't found.
+        cache.get(pubKey);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void invalidKeys() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        byte[] pubKey = new ECKey().getPubKey().clone();
+        pubKey[0] = 5;
+        assertNull(cache.get(pubKey));
+        assertNull(cache.get(pubKey));
+        assertNull(cache.get(new byte[0]));
+        assertEquals(0, cache.size());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        for (int i = 0; i < 50; i++)
+            assertNotNull(cache.get(new ECKey().getPubKey()));
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void usedByECKey() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        PublicKeyCache.setDefault(cache);
+        try {
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.create(new byte[] { 2 });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+            assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+            assertFalse(ECKey.verify(hash.getBytes(), sig, new ECKey().getPubKey()));
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        } finally {
+            PublicKeyCache.setDefault(new PublicKeyCache(PublicKeyCache.DEFAULT_MAX_ENTRIES));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.math.BigInteger;
+
+/**
+ * Compares how fast {@link ECKey} derives public keys, signs and verifies using {@link Secp256k1} against the Spongy
+ * Castle code it used before, and how much quicker verifying is when the same key is used over and over.
+ *
+ * Usage: Secp256k1Benchmark [operations=1000] [rounds=5]
+ */
+public class Secp256k1Benchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        ECKey[] keys = new ECKey[count];
+        BigInteger[] privKeys = new BigInteger[count];
+        Sha256Hash[] hashes = new Sha256Hash[count];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new ECKey();
+            privKeys[i] = new BigInteger(1, keys[i].getPrivKeyBytes());
+            hashes[i] = Sha256Hash.create(keys[i].getPubKey());
+            sigs[i] = keys[i].sign(hashes[i]);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            for (boolean fast : new boolean[] { false, true }) {
+                Secp256k1.enabled = fast;
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    ECKey.publicKeyFromPrivate(privKeys[i], true);
+                long derive = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    keys[i].sign(hashes[i]);
+                long sign = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    if (!ECKey.verify(hashes[i].getBytes(), sigs[i], keys[i].getPubKey()))
+                        throw new AssertionError();
+                }
+                long verify = System.nanoTime() - start;
+
+                System.out.println(String.format("round %d, %-13s: derive %,6d usec/op, sign %,6d usec/op, " +
+                        "verify %,6d usec/op", round, fast ? "Secp256k1" : "Spongy Castle",
+                        derive / 1000 / count, sign / 1000 / count, verify / 1000 / count));
+            }
+
+            // One key verifying many signatures, as a payment channel server does.
+            ECKey hotKey = new ECKey(null, keys[0].getPubKey());
+            ECKey.ECDSASignature[] hotSigs = new ECKey.ECDSASignature[count];
+            for (int i = 0; i < count; i++)
+                hotSigs[i] = keys[0].sign(hashes[i]);
+            PublicKeyCache.setDefault(null);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                ECKey.verify(hashes[i].getBytes(), hotSigs[i], keys[0].getPubKey());
+            long uncached = System.nanoTime() - start;
+            PublicKeyCache.setDefault(new PublicKeyCache(PublicKeyCache.DEFAULT_MAX_ENTRIES));
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                ECKey.verify(hashes[i].getBytes(), hotSigs[i], keys[0].getPubKey());
+            long cached = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                hotKey.verify(hashes[i], hotSigs[i]);
+            long prepared = System.nanoTime() - start;
+            System.out.println(String.format("round %d, same key    : uncached %,6d usec/op, key cache %,6d usec/op, " +
+                    "ECKey %,6d usec/op", round, uncached / 1000 / count, cached / 1000 / count, prepared / 1000 / count));
+        }
+        Secp256k1.enabled = true;
+    }
+}
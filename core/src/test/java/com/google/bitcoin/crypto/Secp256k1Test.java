@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import static com.google.bitcoin.crypto.Secp256k1Field.P;
+import static org.junit.Assert.*;
+
+public class Secp256k1Test {
+    private final Random random = new Random(1234);
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private BigInteger randomFieldElement() {
+        // Bias towards values near the top of the range, where reduction bugs hide.
+        switch (random.nextInt(4)) {
+            case 0: return P.subtract(BigInteger.valueOf(random.nextInt(5000) + 1));
+            case 1: return BigInteger.valueOf(random.nextInt(5000));
+            default: return new BigInteger(256, random).mod(P);
+        }
+    }
+
+    @Test
+    public void fieldArithmetic() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger a = randomFieldElement(), b = randomFieldElement();
+            int[] fa = Secp256k1Field.fromBigInteger(a), fb = Secp256k1Field.fromBigInteger(b);
+            int[] r = Secp256k1Field.create();
+            Secp256k1Field.add(fa, fb, r);
+            assertEquals(a.add(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.sub(fa, fb, r);
+            assertEquals(a.subtract(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.mul(fa, fb, r);
+            assertEquals(a.multiply(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.negate(fa, r);
+            assertEquals(a.negate().mod(P), Secp256k1Field.toBigInteger(r));
+            if (a.signum() != 0) {
+                Secp256k1Field.invert(fa, r);
+                assertEquals(a.modInverse(P), Secp256k1Field.toBigInteger(r));
+            }
+            boolean hasRoot = Secp256k1Field.sqrt(fa, r);
+            assertEquals(a.modPow(P.subtract(BigInteger.ONE).shiftRight(1), P).compareTo(BigInteger.ONE) <= 0, hasRoot);
+            if (hasRoot)
+                assertEquals(a, Secp256k1Field.toBigInteger(r).pow(2).mod(P));
+        }
+        // Results can alias inputs.
+        BigInteger a = randomFieldElement();
+        int[] fa = Secp256k1Field.fromBigInteger(a);
+        Secp256k1Field.mul(fa, fa, fa);
+        assertEquals(a.pow(2).mod(P), Secp256k1Field.toBigInteger(fa));
+        assertNull(Secp256k1Field.fromBytes(P.toByteArray(), 1));
+    }
+
+    @Test
+    public void invertAll() {
+        int[][] elements = new int[10][];
+        BigInteger[] values = new BigInteger[10];
+        for (int i = 0; i < 10; i++) {
+            values[i] = randomFieldElement().max(BigInteger.ONE);
+            elements[i] = Secp256k1Field.fromBigInteger(values[i]);
+        }
+        Secp256k1Field.invertAll(elements, 10);
+        for (int i = 0; i < 10; i++)
+            assertEquals(values[i].modInverse(P), Secp256k1Field.toBigInteger(elements[i]));
+    }
+
+    @Test
+    public void split() {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger k = new BigInteger(256, random).mod(Secp256k1.N);
+            BigInteger[] halves = Secp256k1.split(k);
+            assertTrue(halves[0].bitLength() <= 129 && halves[1].bitLength() <= 129);
+            assertEquals(k, halves[0].add(halves[1].multiply(Secp256k1.LAMBDA)).mod(Secp256k1.N));
+        }
+    }
+
+    @Test
+    public void publicKeysMatchSpongyCastle() {
+        BigInteger[] privKeys = {
+                BigInteger.ONE, BigInteger.valueOf(2), BigInteger.valueOf(3), Secp256k1.N.subtract(BigInteger.ONE),
+                Secp256k1.N.shiftRight(1), new BigInteger(256, random).mod(Secp256k1.N),
+                new BigInteger(128, random), new BigInteger(256, random).mod(Secp256k1.N)
+        };
+        for (BigInteger privKey : privKeys) {
+            ECPoint expected = ECKey.CURVE.getG().multiply(privKey);
+            assertArrayEquals(expected.getEncoded(), Secp256k1.publicKeyFromPrivate(privKey, false));
+            ECPoint compressed = new ECPoint.Fp(ECKey.CURVE.getCurve(), expected.getX(), expected.getY(), true);
+            assertArrayEquals(compressed.getEncoded(), Secp256k1.publicKeyFromPrivate(privKey, true));
+        }
+    }
+
+    @Test
+    public void signAndVerify() {
+        for (int i = 0; i < 30; i++) {
+            BigInteger privKey = new BigInteger(256, random).mod(Secp256k1.N);
+            boolean compressed = i % 2 == 0;
+            byte[] pubKey = Secp256k1.publicKeyFromPrivate(privKey, compressed);
+            byte[] hash = Sha256Hash.create(new byte[] { (byte) i }).getBytes();
+
+            // Our signatures verify with Spongy Castle.
+            BigInteger[] sig = Secp256k1.sign(hash, privKey, secureRandom);
+            ECDSASigner signer = new ECDSASigner();
+            signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE));
+            assertTrue(signer.verifySignature(hash, sig[0], sig[1]));
+            assertTrue(Secp256k1.verify(hash, sig[0], sig[1], pubKey));
+
+            // And theirs with ours.
+            signer.init(true, new ECPrivateKeyParameters(privKey, ECKey.CURVE));
+            BigInteger[] theirs = signer.generateSignature(hash);
+            assertTrue(Secp256k1.verify(hash, theirs[0], theirs[1], pubKey));
+            // Both s and n - s are valid.
+            assertTrue(Secp256k1.verify(hash, theirs[0], Secp256k1.N.subtract(theirs[1]), pubKey));
+
+            // Anything changed and it fails.
+            byte[] otherHash = Sha256Hash.create(new byte[] { (byte) i, 1 }).getBytes();
+            assertFalse(Secp256k1.verify(otherHash, sig[0], sig[1], pubKey));
+            assertFalse(Secp256k1.verify(hash, sig[0].add(BigInteger.ONE), sig[1], pubKey));
+            assertFalse(Secp256k1.verify(hash, sig[0], sig[1].add(BigInteger.ONE), pubKey));
+            assertFalse(Secp256k1.verify(hash, sig[0], sig[1], Secp256k1.publicKeyFromPrivate(privKey.add(BigInteger.ONE), true)));
+        }
+    }
+
+    @Test
+    public void invalidInputs() {
+        BigInteger privKey = new BigInteger(256, random).mod(Secp256k1.N);
+        byte[] hash = Sha256Hash.create(new byte[0]).getBytes();
+        BigInteger[] sig = Secp256k1.sign(hash, privKey, secureRandom);
+        byte[] pubKey = Secp256k1.publicKeyFromPrivate(privKey, false);
+        // Out of range signature components.
+        assertFalse(Secp256k1.verify(hash, BigInteger.ZERO, sig[1], pubKey));
+        assertFalse(Secp256k1.verify(hash, sig[0], Secp256k1.N, pubKey));
+        // A point that is not on the curve.
+        byte[] offCurve = pubKey.clone();
+        offCurve[64] ^= 1;
+        assertFalse(Secp256k1.verify(hash, sig[0], sig[1], offCurve));
+        assertNull(Secp256k1.decodePoint(offCurve));
+        // Bad lengths and prefixes.
+        assertNull(Secp256k1.decodePoint(new byte[0]));
+        assertNull(Secp256k1.decodePoint(new byte[] { 0 }));
+        byte[] wrongPrefix = pubKey.clone();
+        wrongPrefix[0] = 5;
+        assertNull(Secp256k1.decodePoint(wrongPrefix));
+        // Hybrid encodings are accepted.
+        byte[] hybrid = pubKey.clone();
+        hybrid[0] = (byte) ((pubKey[64] & 1) == 0 ? 6 : 7);
+        assertTrue(Secp256k1.verify(hash, sig[0], sig[1], hybrid));
+        try {
+            Secp256k1.publicKeyFromPrivate(Secp256k1.N, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void sumOfTwoMultiplies() {
+        BigInteger a = new BigInteger(256, random).mod(Secp256k1.N);
+        BigInteger b = new BigInteger(256, random).mod(Secp256k1.N);
+        BigInteger c = new BigInteger(256, random).mod(Secp256k1.N);
+        byte[] point = Secp256k1.publicKeyFromPrivate(c, true);
+        // aG + b(cG) = (a + bc)G
+        assertArrayEquals(Secp256k1.publicKeyFromPrivate(a.add(b.multiply(c)).mod(Secp256k1.N), true),
+                Secp256k1.sumOfTwoMultiplies(a, point, b, true));
+        // G + (n - 1)G is the point at infinity.
+        assertNull(Secp256k1.sumOfTwoMultiplies(BigInteger.ONE, Secp256k1.publicKeyFromPrivate(BigInteger.ONE, true),
+                Secp256k1.N.subtract(BigInteger.ONE), true));
+        // G + G has to be doubled.
+        assertArrayEquals(Secp256k1.publicKeyFromPrivate(BigInteger.valueOf(2), false),
+                Secp256k1.sumOfTwoMultiplies(BigInteger.ONE, Secp256k1.publicKeyFromPrivate(BigInteger.ONE, true),
+                        BigInteger.ONE, false));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SignatureBatchTest {
+    private final ECKey[] keys = { new ECKey(), new ECKey(), new ECKey() };
+
+    @After
+    public void tearDown() {
+        Secp256k1.enabled = true;
+    }
+
+    // Adds count valid signatures, reusing a few keys, plus an invalid one at the given index if it isn't negative.
+    private SignatureBatch makeBatch(int count, int invalidIndex, SignatureCache cache) {
+        SignatureBatch batch = new SignatureBatch(cache);
+        for (int i = 0; i < count; i++) {
+            ECKey key = keys[i % keys.length];
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8) });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            if (i == invalidIndex)
+                batch.add(hash.getBytes(), sig, keys[(i + 1) % keys.length].getPubKey());
+            else
+                batch.add(hash.getBytes(), sig, key.getPubKey());
+        }
+        return batch;
+    }
+
+    @Test
+    public void verify() throws Exception {
+        for (boolean fast : new boolean[] { true, false }) {
+            Secp256k1.enabled = fast;
+            assertTrue(makeBatch(10, -1, null).verify(null));
+            assertFalse(makeBatch(10, 7, null).verify(null));
+            assertTrue(new SignatureBatch().verify(null));
+        }
+    }
+
+    @Test
+    public void verifyWithExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertTrue(makeBatch(100, -1, null).verify(executor));
+            assertFalse(makeBatch(100, 99, null).verify(executor));
+            assertFalse(makeBatch(100, 0, null).verify(executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void verifyAll() throws Exception {
+        SignatureBatch good = makeBatch(5, -1, null), bad = makeBatch(5, 2, null);
+        // A public key that isn't on the curve.
+        SignatureBatch badKey = new SignatureBatch();
+        Sha256Hash hash = Sha256Hash.create(new byte[0]);
+        byte[] pubKey = keys[0].getPubKey().clone();
+        pubKey[0] = 9;
+        badKey.add(hash.getBytes(), keys[0].sign(hash), pubKey);
+        boolean[] results = SignatureBatch.verifyAll(ImmutableList.of(good, bad, badKey, good), null);
+        assertTrue(Arrays.equals(new boolean[] { true, false, false, true }, results));
+    }
+
+    @Test
+    public void usesCache() throws Exception {
+        SignatureCache cache = new SignatureCache(100);
+        Sha256Hash[] hashes = new Sha256Hash[10];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[10];
+        for (int i = 0; i < 10; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] { (byte) i });
+            sigs[i] = keys[0].sign(hashes[i]);
+        }
+        for (int round = 0; round < 2; round++) {
+            SignatureBatch batch = new SignatureBatch(cache);
+            for (int i = 0; i < 10; i++)
+                batch.add(hashes[i].getBytes(), sigs[i], (i == 3 ? keys[1] : keys[0]).getPubKey());
+            // The second time round, the valid signatures are known so only the invalid one is checked again.
+            assertEquals(round == 0 ? 10 : 1, batch.size());
+            assertFalse(batch.verify(null));
+            assertEquals(9, cache.size());
+        }
+        assertEquals(9, cache.getHits());
+    }
+}
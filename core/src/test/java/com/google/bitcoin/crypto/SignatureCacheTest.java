@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptExecutionContext;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void remembersValidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1, 2, 3 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+
+        assertTrue(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        // A different key, hash or signature is not a hit.
+        assertFalse(cache.verify(hash.getBytes(), sig, new ECKey().getPubKey()));
+        Sha256Hash otherHash = Sha256Hash.create(new byte[] { 4 });
+        assertFalse(cache.verify(otherHash.getBytes(), sig, key.getPubKey()));
+        // Signing again picks a new random nonce, so it's a different signature that must be checked by itself.
+        assertTrue(cache.verify(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void doesNotRememberInvalidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        ECKey.ECDSASignature sig = new ECKey().sign(hash);
+        for (int i = 0; i < 3; i++)
+            assertFalse(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        SignatureCache cache = new SignatureCache(5);
+        ECKey key = new ECKey();
+        for (int i = 0; i < 50; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 5);
+    }
+
+    @Test
+    public void usedByScripts() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        tx.signInputs(Transaction.SigHash.ALL, wallet);
+
+        SignatureCache cache = new SignatureCache(10);
+        for (int i = 0; i < 3; i++) {
+            ScriptExecutionContext context = new ScriptExecutionContext(tx, cache);
+            tx.getInput(0).getScriptSig().correctlySpends(context, 0, prev.getOutput(0).getScriptPubKey(), true);
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+}
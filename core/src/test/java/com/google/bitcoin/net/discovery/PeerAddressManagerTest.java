@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressManagerTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);
+        file = File.createTempFile("peeraddresses", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+        file.delete();
+    }
+
+    private static InetSocketAddress addr(int i) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }), 8333);
+    }
+
+    @Test
+    public void fastestTriedPeersFirst() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(UnitTestParams.get());
+        for (int i = 1; i <= 4; i++)
+            manager.addAddress(addr(i));
+        // 2 and 3 connected, 3 is faster. 4 was only advertised. 1 failed.
+        manager.recordAttempt(addr(2));
+        Utils.rollMockClock(1);
+        manager.recordSuccess(addr(2));
+        manager.recordSuccess(addr(3));
+        manager.recordLatency(addr(3), 20);
+        manager.recordFailure(addr(1));
+        assertEquals(2, manager.getNumTried());
+        assertEquals(Arrays.asList(addr(3), addr(2), addr(4), addr(1)), manager.getBestPeers(10));
+        assertEquals(addr(3), manager.getPeers(1, TimeUnit.SECONDS)[0]);
+        // Peer 3 starts failing, so peer 2 wins.
+        manager.recordFailure(addr(3));
+        assertEquals(addr(2), manager.getBestPeers(1).get(0));
+        // Untried addresses are forgotten after a few failures.
+        for (int i = 1; i < PeerAddressManager.MAX_NEW_FAILURES; i++)
+            manager.recordFailure(addr(1));
+        assertEquals(3, manager.size());
+    }
+
+    @Test
+    public void learnsFromAddrMessages() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(UnitTestParams.get());
+        long now = Utils.currentTimeMillis() / 1000;
+        PeerAddress fresh = new PeerAddress(addr(1).getAddress(), 8333);
+        fresh.setTime(now - 60);
+        PeerAddress stale = new PeerAddress(addr(2).getAddress(), 8333);
+        stale.setTime(now - PeerAddressManager.MAX_ADDRESS_AGE_SECS - 1);
+        PeerAddress fresher = new PeerAddress(addr(3).getAddress(), 8333);
+        fresher.setTime(now);
+        manager.addAddresses(Arrays.asList(fresh, stale, fresher));
+        assertEquals(Arrays.asList(addr(3), addr(1)), manager.getBestPeers(10));
+    }
+
+    @Test
+    public void bucketsAreBounded() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(UnitTestParams.get(), null, 2, 3);
+        for (int i = 1; i <= 10; i++) {
+            Utils.rollMockClock(1);
+            manager.addAddress(addr(i));
+        }
+        // The most recently seen untried addresses survive.
+        assertEquals(Arrays.asList(addr(10), addr(9), addr(8)), manager.getBestPeers(10));
+        for (int i = 8; i <= 10; i++) {
+            manager.recordLatency(addr(i), 100 - i);
+            manager.recordSuccess(addr(i));
+        }
+        assertEquals(2, manager.getNumTried());
+        assertEquals(Arrays.asList(addr(10), addr(9)), manager.getBestPeers(10));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(UnitTestParams.get(), file);
+        assertEquals(0, manager.size());
+        manager.addAddress(addr(1));
+        Utils.rollMockClock(1);
+        manager.addAddress(new InetSocketAddress(InetAddress.getByName("::1"), 18333));
+        manager.recordSuccess(addr(2));
+        manager.recordLatency(addr(2), 42);
+        manager.shutdown();
+        assertTrue(file.exists());
+
+        PeerAddressManager loaded = new PeerAddressManager(UnitTestParams.get(), file);
+        assertEquals(3, loaded.size());
+        assertEquals(1, loaded.getNumTried());
+        assertEquals(manager.getBestPeers(10), loaded.getBestPeers(10));
+        assertEquals(addr(2), loaded.getBestPeers(1).get(0));
+
+        // Untried addresses nobody mentioned for a long time are dropped on save.
+        Utils.rollMockClock((int) PeerAddressManager.MAX_ADDRESS_AGE_SECS + 1);
+        loaded.recordLatency(addr(2), 40);
+        loaded.save();
+        PeerAddressManager reloaded = new PeerAddressManager(UnitTestParams.get(), file);
+        assertEquals(Arrays.asList(addr(2)), reloaded.getBestPeers(10));
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongNetwork() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager(UnitTestParams.get(), file);
+        manager.addAddress(addr(1));
+        manager.save();
+        new PeerAddressManager(MainNetParams.get(), file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFile() throws Exception {
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(new byte[] { 0x70, 0x61 });
+        stream.close();
+        new PeerAddressManager(UnitTestParams.get(), file);
+    }
+}
@@ -38,6 +38,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.bitcoin.protocols.channels.PaymentChannelCloseException.CloseReason;
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
@@ -210,6 +211,61 @@ public class ChannelConnectionTest extends TestWithWallet {
         assertEquals(0, StoredPaymentChannelClientStates.getFromWallet(wallet).mapChannels.size());
     }
 
+    @Test
+    public void testServerWithExecutor() throws Exception {
+        // Messages are handled on the given executor rather than the network thread, and still in order.
+        final AtomicInteger tasks = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                Threading.THREAD_POOL.execute(command);
+            }
+        };
+        final SettableFuture<Sha256Hash> channelOpenFuture = SettableFuture.create();
+        final BlockingQueue<BigInteger> q = new LinkedBlockingQueue<BigInteger>();
+        final PaymentChannelServerListener server = new PaymentChannelServerListener(mockBroadcaster, serverWallet, 30, Utils.COIN,
+                new PaymentChannelServerListener.HandlerFactory() {
+                    @Nullable
+                    @Override
+                    public ServerConnectionEventHandler onNewConnection(SocketAddress clientAddress) {
+                        return new ServerConnectionEventHandler() {
+                            @Override
+                            public void channelOpen(Sha256Hash channelId) {
+                                channelOpenFuture.set(channelId);
+                            }
+
+                            @Override
+                            public void paymentIncrease(BigInteger by, BigInteger to) {
+                                q.add(to);
+                            }
+
+                            @Override
+                            public void channelClosed(CloseReason reason) {
+                            }
+                        };
+                    }
+                }, executor);
+        server.bindAndStart(4243);
+
+        PaymentChannelClientConnection client = new PaymentChannelClientConnection(
+                new InetSocketAddress("localhost", 4243), 30, wallet, myKey, Utils.COIN, "");
+        broadcastTxPause.release();
+        Transaction broadcastMultiSig = broadcasts.take();
+        client.getChannelOpenFuture().get();
+        assertEquals(broadcastMultiSig.getHash(), channelOpenFuture.get());
+        BigInteger amount = client.state().getValueSpent();
+        assertEquals(amount, q.take());
+        for (int i = 0; i < 5; i++) {
+            client.incrementPayment(Utils.CENT).get();
+            amount = amount.add(Utils.CENT);
+            assertEquals(amount, q.take());
+        }
+        assertTrue(tasks.get() > 0);
+        client.disconnectWithoutSettlement();
+        server.close();
+    }
+
     @Test
     public void testServerErrorHandling() throws Exception {
         // Gives the server crap and checks proper error responses are sent.
@@ -412,6 +468,60 @@ public class ChannelConnectionTest extends TestWithWallet {
         assertTrue(serverStoredChannels.mapChannels.isEmpty());
     }
 
+    @Test
+    public void testPaymentsStoredInLog() throws Exception {
+        File logFile = File.createTempFile("channelstates", null);
+        logFile.deleteOnExit();
+        PaymentChannelStateLog stateLog = new PaymentChannelStateLog(logFile);
+        StoredPaymentChannelServerStates serverStoredChannels = (StoredPaymentChannelServerStates)
+                serverWallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
+        serverStoredChannels.setStateLog(stateLog);
+
+        ChannelTestUtils.RecordingPair pair = ChannelTestUtils.makeRecorders(serverWallet, mockBroadcaster);
+        pair.server.connectionOpen();
+        PaymentChannelClient client = new PaymentChannelClient(wallet, myKey, Utils.COIN, Sha256Hash.ZERO_HASH, pair.clientRecorder);
+        PaymentChannelServer server = pair.server;
+        client.connectionOpen();
+        server.receiveMessage(pair.clientRecorder.checkNextMsg(MessageType.CLIENT_VERSION));
+        client.receiveMessage(pair.serverRecorder.checkNextMsg(MessageType.SERVER_VERSION));
+        final Protos.TwoWayChannelMessage initiateMsg = pair.serverRecorder.checkNextMsg(MessageType.INITIATE);
+        BigInteger minPayment = BigInteger.valueOf(initiateMsg.getInitiate().getMinPayment());
+        client.receiveMessage(initiateMsg);
+        server.receiveMessage(pair.clientRecorder.checkNextMsg(MessageType.PROVIDE_REFUND));
+        client.receiveMessage(pair.serverRecorder.checkNextMsg(MessageType.RETURN_REFUND));
+        broadcastTxPause.release();
+        server.receiveMessage(pair.clientRecorder.checkNextMsg(MessageType.PROVIDE_CONTRACT));
+        broadcasts.take();
+        pair.serverRecorder.checkTotalPayment(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+        client.receiveMessage(pair.serverRecorder.checkNextMsg(MessageType.CHANNEL_OPEN));
+        Sha256Hash contractHash = (Sha256Hash) pair.serverRecorder.q.take();
+        pair.clientRecorder.checkInitiated();
+        // The wallet as it was saved when the channel opened.
+        Wallet savedServerWallet = roundTripServerWallet(serverWallet);
+
+        // Payments are acknowledged once they are in the log.
+        BigInteger amount = minPayment;
+        for (int i = 0; i < 3; i++) {
+            client.incrementPayment(Utils.CENT);
+            amount = amount.add(Utils.CENT);
+            server.receiveMessage(pair.clientRecorder.checkNextMsg(MessageType.UPDATE_PAYMENT));
+            pair.serverRecorder.checkTotalPayment(amount);
+            client.receiveMessage(pair.serverRecorder.checkNextMsg(MessageType.PAYMENT_ACK));
+            assertEquals(amount, stateLog.get(contractHash).valueToMe);
+        }
+        stateLog.close();
+
+        // The payments are recovered from the log when the old wallet is loaded again.
+        stateLog = new PaymentChannelStateLog(logFile);
+        StoredPaymentChannelServerStates savedChannels = (StoredPaymentChannelServerStates)
+                savedServerWallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
+        assertEquals(minPayment, savedChannels.getChannel(contractHash).bestValueToMe);
+        savedChannels.setStateLog(stateLog);
+        assertEquals(amount, savedChannels.getChannel(contractHash).bestValueToMe);
+        stateLog.close();
+        new File(logFile.getPath() + ".snapshot").delete();
+    }
+
     private static Wallet roundTripClientWallet(Wallet wallet) throws Exception {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         new WalletProtobufSerializer().writeWallet(wallet, bos);
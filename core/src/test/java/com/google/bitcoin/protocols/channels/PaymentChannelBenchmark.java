@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.utils.MockTransactionBroadcaster;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Opens many payment channels to a {@link PaymentChannelServerListener} over loopback and has them all pay it, to
+ * see how many channels and payments per second the server side can handle. The transactions the server broadcasts
+ * are accepted straight away.</p>
+ *
+ * <p>Each client makes its payments one after the other, waiting for each to be acknowledged, either as fast as it
+ * can or at a fixed rate. A payment's latency is counted from when it was due to be sent rather than when it was
+ * sent, so a server that falls behind the rate isn't flattered by clients that wait for it. After a warm up, reports
+ * throughput, the median and 99th percentile latency, and the CPU time and memory allocated per payment. Clients and
+ * server share a process, so the last two cover both sides.</p>
+ *
+ * Usage: PaymentChannelBenchmark [clients=100] [payments=200] [rate=0] [executor=true] [realSignatures=true]
+ * [port=4250], where rate is payments per second per client and 0 means as fast as possible.
+ */
+public class PaymentChannelBenchmark {
+    private static final BigInteger PAYMENT = BigInteger.valueOf(1000);
+
+    private static final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.init();
+        // Channels log every step at INFO, and wallets warn about every untagged pending transaction, which would
+        // swamp the measurement.
+        Logger.getLogger("").setLevel(Level.SEVERE);
+        final int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int numPayments = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int rate = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        boolean useExecutor = args.length <= 3 || Boolean.parseBoolean(args[3]);
+        ECKey.FAKE_SIGNATURES = args.length > 4 && !Boolean.parseBoolean(args[4]);
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : 4250;
+
+        NetworkParameters params = UnitTestParams.get();
+        Wallet.SendRequest.DEFAULT_FEE_PER_KB = BigInteger.ZERO;
+        Wallet serverWallet = new Wallet(params);
+        serverWallet.addKey(new ECKey());
+        final MockTransactionBroadcaster broadcaster = new MockTransactionBroadcaster(serverWallet);
+        serverWallet.addExtension(new StoredPaymentChannelServerStates(serverWallet, broadcaster));
+        // Pretend every transaction the server broadcasts is accepted by the network.
+        Thread network = new Thread("broadcasts") {
+            @Override
+            public void run() {
+                while (true) {
+                    MockTransactionBroadcaster.TxFuturePair pair = broadcaster.waitForTxFuture();
+                    pair.future.set(pair.tx);
+                }
+            }
+        };
+        network.setDaemon(true);
+        network.start();
+
+        final AtomicLong paymentsReceived = new AtomicLong();
+        PaymentChannelServerListener server = new PaymentChannelServerListener(broadcaster, serverWallet, 30, Utils.CENT,
+                new PaymentChannelServerListener.HandlerFactory() {
+                    @Nullable
+                    @Override
+                    public ServerConnectionEventHandler onNewConnection(SocketAddress clientAddress) {
+                        return new ServerConnectionEventHandler() {
+                            @Override public void channelOpen(Sha256Hash channelId) {}
+                            @Override public void paymentIncrease(BigInteger by, BigInteger to) {
+                                paymentsReceived.incrementAndGet();
+                            }
+                            @Override public void channelClosed(PaymentChannelCloseException.CloseReason reason) {}
+                        };
+                    }
+                }, useExecutor ? Threading.THREAD_POOL : null);
+        server.bindAndStart(port);
+
+        // Every client gets a wallet of its own holding one coin, so that they don't fight over the same outputs.
+        BlockStore blockStore = new MemoryBlockStore(params);
+        List<Wallet> wallets = new ArrayList<Wallet>();
+        for (int i = 0; i < numClients; i++) {
+            Wallet wallet = new Wallet(params);
+            ECKey key = new ECKey();
+            wallet.addKey(key);
+            wallet.addExtension(new StoredPaymentChannelClientStates(wallet, new MockTransactionBroadcaster(wallet)));
+            Transaction tx = TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params));
+            TestUtils.BlockPair bp = TestUtils.createFakeBlock(blockStore, tx);
+            wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+            wallet.notifyNewBestBlock(bp.storedBlock);
+            wallets.add(wallet);
+        }
+
+        System.out.println(String.format("%d clients, %d payments each, %s, %s, %s", numClients, numPayments,
+                rate > 0 ? rate + " payments/sec per client" : "as fast as possible",
+                useExecutor ? "handled on the thread pool" : "handled on the network thread",
+                ECKey.FAKE_SIGNATURES ? "fake signatures" : "real signatures"));
+        long startTime = System.nanoTime();
+        List<PaymentChannelClientConnection> clients = new ArrayList<PaymentChannelClientConnection>();
+        for (Wallet wallet : wallets) {
+            clients.add(new PaymentChannelClientConnection(new InetSocketAddress("localhost", port), 30, wallet,
+                    wallet.getKeys().get(0), Utils.COIN, "benchmark"));
+        }
+        for (PaymentChannelClientConnection client : clients)
+            client.getChannelOpenFuture().get();
+        long openMsec = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        System.out.println(String.format("opened %d channels in %,d msec, %,d channels/sec", numClients, openMsec,
+                numClients * 1000L / openMsec));
+
+        // Warm up at full speed, then measure.
+        pay(clients, Math.max(1, numPayments / 10), 0);
+        paymentsReceived.set(0);
+        long cpu = os.getProcessCpuTime();
+        long allocated = Benchmarks.allThreadsAllocatedBytes();
+        startTime = System.nanoTime();
+        long[] latencies = pay(clients, numPayments, rate);
+        long elapsed = System.nanoTime() - startTime;
+        cpu = os.getProcessCpuTime() - cpu;
+        allocated = Benchmarks.allThreadsAllocatedBytes() - allocated;
+
+        long payments = paymentsReceived.get();
+        if (payments != latencies.length)
+            System.out.println(String.format("warning: server saw %,d payments, clients made %,d", payments,
+                    latencies.length));
+        Arrays.sort(latencies);
+        long n = latencies.length;
+        System.out.println(String.format("%,d payments in %,d msec, %,d payments/sec", n,
+                elapsed / 1000000, n * 1000000000L / Math.max(1, elapsed)));
+        System.out.println(String.format("latency p50 %,d usec, p99 %,d usec, max %,d usec", latencies[(int) (n / 2)] / 1000,
+                latencies[(int) (n * 99 / 100)] / 1000, latencies[(int) n - 1] / 1000));
+        System.out.println(String.format("CPU %,d usec/payment (%.1f cores), allocated %,d bytes/payment (%,d MB/sec)",
+                cpu / n / 1000, (double) cpu / elapsed, allocated / n,
+                allocated * 1000000000L / Math.max(1, elapsed) / (1024 * 1024)));
+
+        for (PaymentChannelClientConnection client : clients)
+            client.disconnectWithoutSettlement();
+        server.close();
+        ECKey.FAKE_SIGNATURES = false;
+    }
+
+    // Has every client make the given number of payments on a thread of its own, and returns how long each took.
+    private static long[] pay(List<PaymentChannelClientConnection> clients, final int numPayments, final int rate)
+            throws InterruptedException {
+        final long[] latencies = new long[clients.size() * numPayments];
+        final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            final PaymentChannelClientConnection client = clients.get(i);
+            final int offset = i * numPayments;
+            new Thread("client " + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long due = System.nanoTime();
+                        for (int j = 0; j < numPayments; j++) {
+                            long now = System.nanoTime();
+                            if (intervalNanos == 0)
+                                due = now;
+                            else if (due > now)
+                                TimeUnit.NANOSECONDS.sleep(due - now);
+                            client.incrementPayment(PAYMENT).get();
+                            latencies[offset + j] = System.nanoTime() - due;
+                            due += intervalNanos;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return latencies;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class PaymentChannelStateLogTest {
+    private File file;
+    private PaymentChannelStateLog stateLog;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("channelstates", null);
+        stateLog = new PaymentChannelStateLog(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stateLog.close();
+        file.delete();
+        new File(file.getPath() + ".snapshot").delete();
+    }
+
+    private static Sha256Hash id(int i) {
+        return Sha256Hash.create(new byte[] { (byte) i });
+    }
+
+    private static byte[] sig(int i) {
+        byte[] sig = new byte[72];
+        Arrays.fill(sig, (byte) i);
+        return sig;
+    }
+
+    private PaymentChannelStateLog reopen(long snapshotThreshold) throws Exception {
+        stateLog.close();
+        stateLog = new PaymentChannelStateLog(file, snapshotThreshold);
+        return stateLog;
+    }
+
+    @Test
+    public void appendAndReopen() throws Exception {
+        stateLog.append(id(1), BigInteger.valueOf(100), sig(1));
+        stateLog.append(id(2), BigInteger.valueOf(200), sig(2));
+        stateLog.append(id(1), BigInteger.valueOf(150), sig(3)).get();
+        assertEquals(BigInteger.valueOf(150), stateLog.get(id(1)).valueToMe);
+        reopen(PaymentChannelStateLog.DEFAULT_SNAPSHOT_THRESHOLD);
+        assertEquals(2, stateLog.getAll().size());
+        assertEquals(BigInteger.valueOf(150), stateLog.get(id(1)).valueToMe);
+        assertArrayEquals(sig(3), stateLog.get(id(1)).signature);
+        assertEquals(BigInteger.valueOf(200), stateLog.get(id(2)).valueToMe);
+        assertNull(stateLog.get(id(3)));
+    }
+
+    @Test
+    public void incompleteRecordDiscarded() throws Exception {
+        stateLog.append(id(1), BigInteger.valueOf(100), sig(1)).get();
+        stateLog.close();
+        // Half of a record, as if we crashed whilst writing it.
+        long length = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 112, 1, 2, 3 });
+        out.close();
+        stateLog = new PaymentChannelStateLog(file);
+        assertEquals(length, file.length());
+        assertEquals(BigInteger.valueOf(100), stateLog.get(id(1)).valueToMe);
+        // The log carries on from the end of the last good record.
+        stateLog.append(id(1), BigInteger.valueOf(120), sig(1)).get();
+        reopen(PaymentChannelStateLog.DEFAULT_SNAPSHOT_THRESHOLD);
+        assertEquals(BigInteger.valueOf(120), stateLog.get(id(1)).valueToMe);
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        // Small enough that a snapshot is taken every few records.
+        reopen(500);
+        ListenableFuture<Void> last = null;
+        for (int i = 0; i < 20; i++)
+            last = stateLog.append(id(i % 3), BigInteger.valueOf(i), sig(i));
+        last.get();
+        stateLog.forget(id(0));
+        stateLog.snapshot().get();
+        assertEquals(0, file.length());
+        assertTrue(new File(file.getPath() + ".snapshot").exists());
+        stateLog.append(id(1), BigInteger.valueOf(100), sig(1)).get();
+        reopen(500);
+        assertEquals(2, stateLog.getAll().size());
+        assertNull(stateLog.get(id(0)));
+        assertEquals(BigInteger.valueOf(100), stateLog.get(id(1)).valueToMe);
+        assertEquals(BigInteger.valueOf(17), stateLog.get(id(2)).valueToMe);
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        final int threads = 8, appends = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        List<Thread> payers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int channel = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int i = 1; i <= appends; i++) {
+                        ListenableFuture<Void> future = stateLog.append(id(channel), BigInteger.valueOf(i), sig(i));
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            payers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : payers)
+            thread.join();
+        Futures.allAsList(futures).get();
+        assertTrue(stateLog.getSyncCount() <= threads * appends);
+        for (int t = 0; t < threads; t++)
+            assertEquals(BigInteger.valueOf(appends), stateLog.get(id(t)).valueToMe);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void appendAfterClose() throws Exception {
+        stateLog.close();
+        stateLog.append(id(1), BigInteger.ONE, sig(1));
+    }
+}
@@ -174,6 +174,18 @@ public class PaymentChannelStateTest extends TestWithWallet {
             serverState.incrementPayment(halfCoin.subtract(totalPayment), signature);
         }
 
+        // The hash the server checks payment signatures against is the same as a full transaction would give.
+        Script multisigScript = multisigContract.getOutput(0).getScriptPubKey();
+        Transaction paymentTx = new Transaction(params);
+        paymentTx.addOutput(halfCoin.subtract(size), refund.getOutput(0).getScriptPubKey());
+        paymentTx.addInput(multisigContract.getOutput(0));
+        assertEquals(paymentTx.hashForSignature(0, multisigScript, Transaction.SigHash.SINGLE, true),
+                serverState.hashForPayment(size, Transaction.SigHash.SINGLE));
+        paymentTx = new Transaction(params);
+        paymentTx.addInput(multisigContract.getOutput(0));
+        assertEquals(paymentTx.hashForSignature(0, multisigScript, Transaction.SigHash.NONE, true),
+                serverState.hashForPayment(halfCoin, Transaction.SigHash.NONE));
+
         // Now confirm the contract transaction and make sure payments still work
         chain.add(makeSolvedTestBlock(blockStore.getChainHead().getHeader(), multisigContract));
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.collect.Lists;
+
+/**
+ * <p>Measures how much memory is allocated, and how long it takes, to parse and check one transaction input. The
+ * scripts are parsed from bytes every time as they would be when reading a block. There are four kinds of input:
+ * pay to address, pay to public key, 2 of 3 multisig and 2 of 3 multisig wrapped in pay to script hash.</p>
+ *
+ * <p>By default the ECDSA maths is skipped with {@link ECKey#FAKE_SIGNATURES}, as it would otherwise swamp the
+ * numbers for everything else.</p>
+ *
+ * Usage: ScriptBenchmark [inputs=20000] [rounds=5] [realSignatures=false]
+ */
+public class ScriptBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final boolean realSignatures = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0]));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey()));
+
+        Script payToAddress = ScriptBuilder.createOutputScript(key1.toAddress(params));
+        Script payToKey = ScriptBuilder.createOutputScript(key1);
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key2, key3));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(Utils.sha256hash160(multiSig.getProgram()));
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, multiSig, Transaction.SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateSignature(0, key3, multiSig, Transaction.SigHash.ALL, false);
+        byte[][][] cases = {
+                { ScriptBuilder.createInputScript(tx.calculateSignature(0, key1, payToAddress, Transaction.SigHash.ALL,
+                        false), key1).getProgram(), payToAddress.getProgram() },
+                { ScriptBuilder.createInputScript(tx.calculateSignature(0, key1, payToKey, Transaction.SigHash.ALL,
+                        false)).getProgram(), payToKey.getProgram() },
+                { new ScriptBuilder().data(new byte[0]).data(sig1.encodeToBitcoin()).data(sig3.encodeToBitcoin())
+                        .build().getProgram(), multiSig.getProgram() },
+                { new ScriptBuilder().data(new byte[0]).data(sig1.encodeToBitcoin()).data(sig3.encodeToBitcoin())
+                        .data(multiSig.getProgram()).build().getProgram(), p2sh.getProgram() },
+        };
+        String[] names = { "pay to address", "pay to key", "multisig", "P2SH multisig" };
+        ScriptExecutionContext context = new ScriptExecutionContext(tx, null);
+
+        ECKey.FAKE_SIGNATURES = !realSignatures;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (boolean fastPaths : new boolean[] { false, true }) {
+                    Script.fastPathsEnabled = fastPaths;
+                    StringBuilder line = new StringBuilder(String.format("round %d, %-11s:", round,
+                            fastPaths ? "fast paths" : "interpreter"));
+                    for (int c = 0; c < cases.length; c++) {
+                        long allocated = Benchmarks.allocatedBytes();
+                        long start = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            Script scriptSig = new Script(cases[c][0]);
+                            scriptSig.correctlySpends(context, 0, new Script(cases[c][1]), true);
+                        }
+                        long time = System.nanoTime() - start;
+                        allocated = Benchmarks.allocatedBytes() - allocated;
+                        line.append(String.format("  %s %,6d bytes %,5d ns", names[c], allocated / count,
+                                time / count));
+                    }
+                    System.out.println(line);
+                }
+            }
+        } finally {
+            ECKey.FAKE_SIGNATURES = false;
+            Script.fastPathsEnabled = true;
+        }
+    }
+}
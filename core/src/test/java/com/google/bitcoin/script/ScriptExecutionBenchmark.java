@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+
+/**
+ * Measures how long it takes to check every input of a transaction with many inputs, the way
+ * {@link FullPrunedBlockChain} does when verifying a block. Each input spends a pay-to-address output, like the
+ * large transactions built by FullBlockTestGenerator. It compares copying the transaction for every input, which is
+ * what {@link Script#correctlySpends(Transaction, long, Script, boolean)} used to do, with one shared
+ * {@link ScriptExecutionContext}. Signature hashing is timed on its own too, as the ECDSA maths otherwise dominates.
+ *
+ * Usage: ScriptExecutionBenchmark [inputs=500] [rounds=5]
+ */
+public class ScriptExecutionBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int numInputs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        NetworkParameters params = UnitTestParams.get();
+
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(params);
+        for (int i = 0; i < numInputs; i++)
+            prev.addOutput(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < numInputs; i++)
+            tx.addInput(prev.getOutput(i));
+        tx.addOutput(Utils.toNanoCoins(numInputs, 0), new ECKey().toAddress(params));
+        Script[] scriptPubKeys = new Script[numInputs];
+        for (int i = 0; i < numInputs; i++) {
+            scriptPubKeys[i] = prev.getOutput(i).getScriptPubKey();
+            TransactionSignature sig = tx.calculateSignature(i, key, scriptPubKeys[i], Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        }
+        tx = new Transaction(params, tx.bitcoinSerialize());
+        System.out.println(String.format("%d inputs, %,d bytes", numInputs, tx.getMessageSize()));
+
+        final byte sigHashAll = (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < numInputs; i++) {
+                Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+                copy.hashForSignature(i, scriptPubKeys[i].getProgram(), sigHashAll);
+            }
+            long copyHashing = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ScriptExecutionContext context = new ScriptExecutionContext(tx);
+            for (int i = 0; i < numInputs; i++)
+                context.hashForSignature(i, scriptPubKeys[i].getProgram(), sigHashAll);
+            long contextHashing = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < numInputs; i++) {
+                Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+                tx.getInput(i).getScriptSig().correctlySpends(new ScriptExecutionContext(copy), i, scriptPubKeys[i], true);
+            }
+            long copyVerify = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            context = new ScriptExecutionContext(tx);
+            for (int i = 0; i < numInputs; i++)
+                tx.getInput(i).getScriptSig().correctlySpends(context, i, scriptPubKeys[i], true);
+            long contextVerify = System.nanoTime() - start;
+
+            System.out.println(String.format("round %d: sighash with copies %,d usec, shared context %,d usec; " +
+                    "correctlySpends with copies %,d usec, shared context %,d usec", round,
+                    copyHashing / 1000, contextHashing / 1000, copyVerify / 1000, contextVerify / 1000));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.SignatureBatch;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static com.google.bitcoin.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class ScriptExecutionContextTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void matchesTransactionHashForSignature() throws Exception {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < 3; i++) {
+            TransactionInput input = new TransactionInput(params, tx, new byte[] { (byte) i },
+                    new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] { (byte) i })));
+            input.setSequenceNumber(1000 + i);
+            tx.addInput(input);
+        }
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        tx.addOutput(Utils.toNanoCoins(2, 0), new ECKey());
+        tx.setLockTime(12345);
+        byte[] before = tx.bitcoinSerialize();
+
+        ScriptExecutionContext context = new ScriptExecutionContext(tx);
+        assertEquals(tx.getHash(), context.getTransactionHash());
+        assertEquals(3, context.getNumInputs());
+        byte[][] scripts = {
+                ScriptBuilder.createOutputScript(new ECKey()).getProgram(),
+                new ScriptBuilder().op(OP_DUP).op(OP_CODESEPARATOR).op(OP_DROP).op(OP_1).build().getProgram(),
+                new byte[0],
+        };
+        for (int index = 0; index < 3; index++) {
+            for (byte[] script : scripts) {
+                for (Transaction.SigHash type : Transaction.SigHash.values()) {
+                    for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+                        assertEquals(type + " " + anyoneCanPay + " " + index,
+                                tx.hashForSignature(index, script, sigHashType),
+                                context.hashForSignature(index, script, sigHashType));
+                    }
+                }
+            }
+        }
+        // Unknown hash types are treated like SIGHASH_ALL.
+        assertEquals(tx.hashForSignature(1, scripts[0], (byte) 0x45), context.hashForSignature(1, scripts[0], (byte) 0x45));
+        // The transaction itself was never touched.
+        assertArrayEquals(before, tx.bitcoinSerialize());
+    }
+
+    @Test
+    public void correctlySpendsWithSharedContext() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        prev.addOutput(Utils.toNanoCoins(1, 0), key);
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addInput(prev.getOutput(1));
+        tx.addOutput(Utils.toNanoCoins(2, 0), new ECKey());
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        tx.signInputs(Transaction.SigHash.ALL, wallet);
+
+        ScriptExecutionContext context = new ScriptExecutionContext(tx);
+        for (int i = 0; i < 2; i++)
+            tx.getInput(i).getScriptSig().correctlySpends(context, i, prev.getOutput(i).getScriptPubKey(), true);
+        try {
+            // Swapping the inputs around means the signatures are checked against the wrong hashes.
+            tx.getInput(0).getScriptSig().correctlySpends(context, 1, prev.getOutput(0).getScriptPubKey(), true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        // Changes to the transaction are not seen by a context made earlier.
+        tx.getOutput(0).setValue(BigInteger.ONE);
+        tx.getInput(0).getScriptSig().correctlySpends(context, 0, prev.getOutput(0).getScriptPubKey(), true);
+        try {
+            tx.getInput(0).getScriptSig().correctlySpends(tx, 0, prev.getOutput(0).getScriptPubKey(), true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void multiSigWithSpareKeysIsNotDeferred() throws Exception {
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] { 1 }))));
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        Script twoOfThree = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key2, key3));
+        Script twoOfTwo = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key3));
+        // Signed with the first and last keys, so the second key has to be skipped over.
+        Script twoOfThreeSig = ScriptBuilder.createMultiSigInputScript(Lists.newArrayList(
+                tx.calculateSignature(0, key1, twoOfThree, Transaction.SigHash.ALL, false),
+                tx.calculateSignature(0, key3, twoOfThree, Transaction.SigHash.ALL, false)));
+        Script twoOfTwoSig = ScriptBuilder.createMultiSigInputScript(Lists.newArrayList(
+                tx.calculateSignature(0, key1, twoOfTwo, Transaction.SigHash.ALL, false),
+                tx.calculateSignature(0, key3, twoOfTwo, Transaction.SigHash.ALL, false)));
+
+        SignatureBatch batch = new SignatureBatch();
+        ScriptExecutionContext context = new ScriptExecutionContext(tx, null, batch);
+        twoOfThreeSig.correctlySpends(context, 0, twoOfThree, true);
+        assertEquals(0, batch.size());
+        twoOfTwoSig.correctlySpends(context, 0, twoOfTwo, true);
+        assertEquals(2, batch.size());
+        assertTrue(batch.verify(null));
+    }
+}
@@ -19,9 +19,14 @@ package com.google.bitcoin.script;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.common.collect.Lists;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.BufferedReader;
@@ -29,6 +34,8 @@ import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -36,6 +43,7 @@ import java.util.List;
 import static com.google.bitcoin.script.ScriptOpCodes.OP_INVALIDOPCODE;
 import static org.junit.Assert.*;
 
+@RunWith(value = Parameterized.class)
 public class ScriptTest {
     // From tx 05e04c26c12fe408a3c1b71aa7996403f6acad1045252b1c62e055496f4d2cb1 on the testnet.
 
@@ -46,6 +54,28 @@ public class ScriptTest {
 
     static final NetworkParameters params = TestNet3Params.get();
 
+    // Everything is run with and without the fast paths for standard scripts, which must give the same results.
+    private final boolean fastPaths;
+
+    @Parameterized.Parameters
+    public static Collection<Boolean[]> parameters() {
+        return Arrays.asList(new Boolean[] {true}, new Boolean[] {false});
+    }
+
+    public ScriptTest(boolean fastPaths) {
+        this.fastPaths = fastPaths;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Script.fastPathsEnabled = fastPaths;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Script.fastPathsEnabled = true;
+    }
+
     @Test
     public void testScriptSig() throws Exception {
         byte[] sigProgBytes = Hex.decode(sigProg);
@@ -88,6 +118,90 @@ public class ScriptTest {
         // Actual execution is tested by the data driven tests.
     }
 
+    @Test
+    public void standardScripts() throws Exception {
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key2, key3));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(Utils.sha256hash160(multiSig.getProgram()));
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0]));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey()));
+
+        Script payToAddress = ScriptBuilder.createOutputScript(key1.toAddress(params));
+        TransactionSignature sig = tx.calculateSignature(0, key1, payToAddress, Transaction.SigHash.ALL, false);
+        checkSpend(tx, ScriptBuilder.createInputScript(sig, key1), payToAddress, true);
+        checkSpend(tx, ScriptBuilder.createInputScript(sig, key2), payToAddress, false);
+        TransactionSignature badSig = tx.calculateSignature(0, key2, payToAddress, Transaction.SigHash.ALL, false);
+        checkSpend(tx, ScriptBuilder.createInputScript(badSig, key1), payToAddress, false);
+
+        Script payToKey = ScriptBuilder.createOutputScript(key1);
+        sig = tx.calculateSignature(0, key1, payToKey, Transaction.SigHash.ALL, false);
+        checkSpend(tx, ScriptBuilder.createInputScript(sig), payToKey, true);
+        checkSpend(tx, ScriptBuilder.createInputScript(badSig), payToKey, false);
+
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, multiSig, Transaction.SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateSignature(0, key3, multiSig, Transaction.SigHash.ALL, false);
+        checkSpend(tx, ScriptBuilder.createMultiSigInputScript(sig1, sig3), multiSig, true);
+        // Signatures must be in the same order as the keys.
+        checkSpend(tx, ScriptBuilder.createMultiSigInputScript(sig3, sig1), multiSig, false);
+        checkSpend(tx, ScriptBuilder.createMultiSigInputScript(sig1), multiSig, false);
+
+        sig1 = tx.calculateSignature(0, key1, multiSig, Transaction.SigHash.ALL, false);
+        sig3 = tx.calculateSignature(0, key3, multiSig, Transaction.SigHash.ALL, false);
+        Script p2shInput = new ScriptBuilder().data(new byte[0]).data(sig1.encodeToBitcoin()).data(sig3.encodeToBitcoin())
+                .data(multiSig.getProgram()).build();
+        checkSpend(tx, p2shInput, p2sh, true);
+        p2shInput = new ScriptBuilder().data(new byte[0]).data(sig3.encodeToBitcoin()).data(sig1.encodeToBitcoin())
+                .data(multiSig.getProgram()).build();
+        checkSpend(tx, p2shInput, p2sh, false);
+    }
+
+    @Test
+    public void standardScriptsRespectStackLimit() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0]));
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey()));
+
+        // CHECKSIG needs one more item on the stack than the scriptSig pushed.
+        Script payToKey = ScriptBuilder.createOutputScript(key);
+        TransactionSignature sig = tx.calculateSignature(0, key, payToKey, Transaction.SigHash.ALL, false);
+        checkSpend(tx, padded(ScriptBuilder.createInputScript(sig), 999), payToKey, true);
+        checkSpend(tx, padded(ScriptBuilder.createInputScript(sig), 1000), payToKey, false);
+
+        // DUP and then the pushed hash need two more.
+        Script payToAddress = ScriptBuilder.createOutputScript(key.toAddress(params));
+        sig = tx.calculateSignature(0, key, payToAddress, Transaction.SigHash.ALL, false);
+        checkSpend(tx, padded(ScriptBuilder.createInputScript(sig, key), 998), payToAddress, true);
+        checkSpend(tx, padded(ScriptBuilder.createInputScript(sig, key), 999), payToAddress, false);
+        checkSpend(tx, padded(ScriptBuilder.createInputScript(sig, key), 1000), payToAddress, false);
+    }
+
+    // Puts empty pushes in front of the given script so that it pushes the given number of items in total.
+    private static Script padded(Script scriptSig, int pushes) {
+        byte[] program = scriptSig.getProgram();
+        int padding = pushes - scriptSig.getChunks().size();
+        byte[] bytes = new byte[padding + program.length];
+        System.arraycopy(program, 0, bytes, padding, program.length);
+        return new Script(bytes);
+    }
+
+    private void checkSpend(Transaction tx, Script scriptSig, Script scriptPubKey, boolean valid) throws Exception {
+        // Scripts read off the wire, as scripts made by ScriptBuilder use opcodes instead of empty pushes.
+        scriptSig = new Script(scriptSig.getProgram());
+        scriptPubKey = new Script(scriptPubKey.getProgram());
+        tx.getInput(0).setScriptSig(scriptSig);
+        ScriptExecutionContext context = new ScriptExecutionContext(tx, null);
+        if (fastPaths && valid)
+            assertTrue(scriptSig.correctlySpendsStandard(context, 0, scriptPubKey, true));
+        try {
+            scriptSig.correctlySpends(context, 0, scriptPubKey, true);
+            assertTrue(valid);
+        } catch (ScriptException e) {
+            assertFalse(valid);
+        }
+    }
+
     @Test
     public void testP2SHOutputScript() throws Exception {
       Address p2shAddress = new Address(MainNetParams.get(), "35b9vsyH1KoFT5a5KtrKusaCcPLkiSo1tU");
@@ -100,7 +214,41 @@ public class ScriptTest {
         Script s = new Script(bytes);
         assertTrue(s.isSentToRawPubKey());
     }
-    
+
+    @Test
+    public void removeInstances() throws Exception {
+        byte[] script = Hex.decode("02abcd" + "ab" + "02abcd" + "4c02abcd");
+        // Nothing to remove gives back the same array, without copying.
+        assertSame(script, Script.removeInstances(script, Hex.decode("02abce")));
+        byte[] removed = Script.removeInstances(script, Hex.decode("02abcd"));
+        assertArrayEquals(Hex.decode("ab4c02abcd"), removed);
+        assertArrayEquals(removed, Script.removeAllInstancesOf(script, Hex.decode("02abcd")));
+        assertArrayEquals(Hex.decode("02abcd02abcd4c02abcd"), Script.removeInstances(script, new byte[] {(byte) 0xab}));
+    }
+
+    @Test
+    public void chunksOfParsedScript() throws Exception {
+        Script script = new Script(Hex.decode("0002abcdab4c02abcd"));
+        List<ScriptChunk> chunks = script.getChunks();
+        assertEquals(4, chunks.size());
+        assertEquals(0, chunks.get(0).data.length);
+        assertArrayEquals(Hex.decode("abcd"), chunks.get(1).data);
+        assertTrue(chunks.get(2).equalsOpCode(ScriptOpCodes.OP_CODESEPARATOR));
+        assertEquals(4, chunks.get(2).getStartLocationInProgram());
+        assertArrayEquals(Hex.decode("abcd"), chunks.get(3).data);
+        // Counting sig ops stops at a push that runs off the end rather than failing.
+        assertEquals(1, Script.getSigOpCount(Hex.decode("ac4c05abcd")));
+        // The last push before the one that runs off the end is still the redeem script.
+        assertEquals(2, Script.getP2SHSigOpCount(Hex.decode("02acac4c")));
+        assertSame(script.getChunks(), script.getChunks());
+        try {
+            new Script(Hex.decode("ac4c05abcd"));
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
     private Script parseScriptString(String string) throws Exception {
         String[] words = string.split("[ \\t\\n]");
         
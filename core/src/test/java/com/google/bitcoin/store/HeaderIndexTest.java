@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int FORK_HEIGHT = 150;
+
+    private Address to;
+    private HeaderIndex index;
+    private List<StoredBlock> chain, fork;
+
+    @Before
+    public void setUp() throws Exception {
+        to = new ECKey().toAddress(params);
+        // Small, so that the index has to grow.
+        index = new HeaderIndex(16);
+        StoredBlock genesis = new StoredBlock(params.getGenesisBlock(), params.getGenesisBlock().getWork(), 0);
+        chain = extend(genesis, 300, 1);
+        chain.add(0, genesis);
+        fork = extend(chain.get(FORK_HEIGHT), 20, 2);
+        for (StoredBlock block : chain)
+            index.add(block);
+        for (StoredBlock block : fork)
+            index.add(block);
+    }
+
+    private List<StoredBlock> extend(StoredBlock from, int count, int spacing) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            Block next = prev.getHeader().createNextBlock(to, prev.getHeader().getTimeSeconds() + spacing);
+            prev = prev.build(next.cloneAsHeader());
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private int slot(StoredBlock block) {
+        return index.getSlot(block.getHeader().getHash());
+    }
+
+    private void checkAncestors() {
+        StoredBlock chainTip = chain.get(chain.size() - 1), forkTip = fork.get(fork.size() - 1);
+        for (int height = 0; height < chain.size(); height++) {
+            assertEquals(slot(chain.get(height)), index.getAncestor(slot(chainTip), height));
+            int expected = height <= FORK_HEIGHT ? slot(chain.get(height)) :
+                    height <= forkTip.getHeight() ? slot(fork.get(height - FORK_HEIGHT - 1)) : HeaderIndex.UNKNOWN;
+            assertEquals(expected, index.getAncestor(slot(forkTip), height));
+        }
+        assertEquals(HeaderIndex.UNKNOWN, index.getAncestor(slot(forkTip), forkTip.getHeight() + 1));
+        assertEquals(slot(chain.get(FORK_HEIGHT)), index.findFork(slot(chainTip), slot(forkTip)));
+        assertEquals(slot(chain.get(FORK_HEIGHT)), index.findFork(slot(forkTip), slot(chain.get(200))));
+        assertEquals(slot(chain.get(100)), index.findFork(slot(chain.get(100)), slot(forkTip)));
+    }
+
+    @Test
+    public void ancestors() throws Exception {
+        assertEquals(chain.size() + fork.size(), index.size());
+        // By following skips alone, then with the help of the best chain, then after a re-org.
+        checkAncestors();
+        index.setBestChain(slot(chain.get(chain.size() - 1)));
+        checkAncestors();
+        index.setBestChain(slot(fork.get(fork.size() - 1)));
+        checkAncestors();
+    }
+
+    @Test
+    public void bestChain() throws Exception {
+        StoredBlock chainTip = chain.get(chain.size() - 1), forkTip = fork.get(fork.size() - 1);
+        index.setBestChain(slot(chainTip));
+        assertEquals(chain.get(250).getHeader().getHash(), index.getBestChainHash(250));
+        assertEquals(slot(chainTip), index.getBestChainSlot(chainTip.getHeight()));
+        assertNull(index.getBestChainHash(chainTip.getHeight() + 1));
+        index.setBestChain(slot(forkTip));
+        assertEquals(fork.get(5).getHeader().getHash(), index.getBestChainHash(FORK_HEIGHT + 6));
+        assertEquals(chain.get(FORK_HEIGHT).getHeader().getHash(), index.getBestChainHash(FORK_HEIGHT));
+        assertEquals(HeaderIndex.UNKNOWN, index.getBestChainSlot(forkTip.getHeight() + 1));
+    }
+
+    @Test
+    public void fields() throws Exception {
+        StoredBlock block = chain.get(123);
+        int slot = slot(block);
+        assertEquals(block.getHeader().getHash(), index.getHash(slot));
+        assertEquals(123, index.getHeight(slot));
+        assertEquals(block.getHeader().getTimeSeconds(), index.getTimeSeconds(slot));
+        assertEquals(block.getChainWork(), index.getChainWork(slot));
+        assertEquals(slot(chain.get(122)), index.getPrev(slot));
+        // Chain work needs more than 64 bits.
+        BigInteger work = BigInteger.ONE.shiftLeft(90).add(BigInteger.ONE.shiftLeft(63)).add(BigInteger.ONE);
+        Block header = chain.get(300).getHeader().createNextBlock(to).cloneAsHeader();
+        assertEquals(work, index.getChainWork(index.add(new StoredBlock(header, work, 301))));
+    }
+
+    @Test
+    public void medianTimePast() throws Exception {
+        StoredBlock block = chain.get(200);
+        long[] times = new long[11];
+        for (int i = 0; i < 11; i++)
+            times[i] = chain.get(200 - i).getHeader().getTimeSeconds();
+        Arrays.sort(times);
+        assertEquals(times[5], index.getMedianTimePast(slot(block)));
+        // Not enough blocks before it.
+        assertEquals(-1, index.getMedianTimePast(slot(chain.get(5))));
+    }
+
+    @Test
+    public void removeBelow() throws Exception {
+        StoredBlock chainTip = chain.get(chain.size() - 1), forkTip = fork.get(fork.size() - 1);
+        index.setBestChain(slot(chainTip));
+        index.removeBelow(100);
+        assertEquals(chain.size() - 100 + fork.size(), index.size());
+        assertEquals(HeaderIndex.UNKNOWN, slot(chain.get(99)));
+        assertEquals(HeaderIndex.UNKNOWN, index.getPrev(slot(chain.get(100))));
+        assertEquals(slot(chain.get(100)), index.getAncestor(slot(chainTip), 100));
+        assertEquals(HeaderIndex.UNKNOWN, index.getAncestor(slot(chainTip), 99));
+        assertEquals(slot(chain.get(120)), index.getAncestor(slot(forkTip), 120));
+        assertEquals(slot(chain.get(FORK_HEIGHT)), index.findFork(slot(chainTip), slot(forkTip)));
+        assertEquals(-1, index.getMedianTimePast(slot(chain.get(105))));
+        assertEquals(chain.get(250).getHeader().getHash(), index.getBestChainHash(250));
+        assertEquals(slot(chain.get(100)), index.getBestChainSlot(100));
+        assertNull(index.getBestChainHash(99));
+        // The index carries on working after a re-org and as the chain grows.
+        index.setBestChain(slot(forkTip));
+        assertEquals(fork.get(5).getHeader().getHash(), index.getBestChainHash(FORK_HEIGHT + 6));
+        assertEquals(chain.get(120).getHeader().getHash(), index.getBestChainHash(120));
+        StoredBlock next = extend(forkTip, 1, 2).get(0);
+        int nextSlot = index.add(next);
+        index.setBestChain(nextSlot);
+        assertEquals(slot(forkTip), index.getPrev(nextSlot));
+        assertEquals(slot(chain.get(110)), index.getAncestor(nextSlot, 110));
+        // Removing everything.
+        index.removeBelow(chainTip.getHeight() + 1);
+        assertEquals(0, index.size());
+        assertEquals(HeaderIndex.UNKNOWN, index.getBestChainSlot(next.getHeight()));
+    }
+
+    @Test
+    public void unconnected() throws Exception {
+        // A block whose parent isn't in the index.
+        HeaderIndex partial = new HeaderIndex();
+        for (StoredBlock block : chain.subList(100, 200))
+            partial.add(block);
+        int tip = partial.getSlot(chain.get(199).getHeader().getHash());
+        assertEquals(partial.getSlot(chain.get(100).getHeader().getHash()), partial.getAncestor(tip, 100));
+        assertEquals(HeaderIndex.UNKNOWN, partial.getAncestor(tip, 99));
+        assertEquals(HeaderIndex.UNKNOWN, partial.getPrev(partial.getSlot(chain.get(100).getHeader().getHash())));
+        assertEquals(-1, partial.getMedianTimePast(partial.getSlot(chain.get(105).getHeader().getHash())));
+        partial.setBestChain(tip);
+        assertEquals(HeaderIndex.UNKNOWN, partial.getBestChainSlot(99));
+        assertEquals(chain.get(150).getHeader().getHash(), partial.getBestChainHash(150));
+    }
+}
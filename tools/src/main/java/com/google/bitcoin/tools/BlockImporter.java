@@ -48,7 +48,8 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(),
+                Runtime.getRuntime().availableProcessors(), false, false);
         
         for (Block block : loader)
             chain.add(block);